@@ -0,0 +1,115 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding of read coils (0x01) and read holding registers (0x03) response PDUs
+ * into caller buffers - the part of mbtcReadCoils and mbtcReadRegisters after I/O.
+ * Run with -prof gc to see bytes allocated per operation.
+ *
+ * @author Robert K.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModbusDecodeBenchmark {
+
+    @State(Scope.Thread)
+    public static class Client {
+    	ModbusTcpClient client;
+
+    	@Setup
+    	public void setup() {
+    		client = new ModbusTcpClient(0) {
+    		};
+    	}
+    }
+
+    @State(Scope.Thread)
+    public static class Coils {
+    	@Param({ "8", "256", "2000" })
+    	public int coilQuantity;
+
+    	ByteBuffer responsePDU;
+    	boolean[]  coils;
+
+    	@Setup
+    	public void setup() {
+    		int byteCount = ( coilQuantity + 7 ) / 8;
+    		// direct buffer like the receive buffer of the client
+    		responsePDU = ByteBuffer.allocateDirect(2 + byteCount);
+    		responsePDU.put((byte)0x01);
+    		responsePDU.put((byte)byteCount);
+    		for ( int i = 0; i < byteCount; i++ )
+    			responsePDU.put((byte)( i * 37 ));
+    		responsePDU.flip();
+    		coils = new boolean[coilQuantity];
+    	}
+    }
+
+    @State(Scope.Thread)
+    public static class Registers {
+    	@Param({ "1", "16", "125" })
+    	public int registerQuantity;
+
+    	ByteBuffer responsePDU;
+    	int[]      registers;
+
+    	@Setup
+    	public void setup() {
+    		responsePDU = ByteBuffer.allocateDirect(2 + 2 * registerQuantity);
+    		responsePDU.put((byte)0x03);
+    		responsePDU.put((byte)( 2 * registerQuantity ));
+    		for ( int i = 0; i < registerQuantity; i++ )
+    			responsePDU.putShort((short)( i * 1001 ));
+    		responsePDU.flip();
+    		registers = new int[registerQuantity];
+    	}
+    }
+
+    @Benchmark
+    public boolean[] decodeCoils(Client client, Coils coils) {
+		if ( client.client._readResponseFromPDU(coils.responsePDU, (byte)0x01, coils.coilQuantity, coils.coils, null, 0) != ModbusTcpClient.RET_OK )
+			throw new IllegalStateException("bad coils response");
+		return coils.coils;
+    }
+
+    @Benchmark
+    public int[] decodeRegisters(Client client, Registers registers) {
+		if ( client.client._readResponseFromPDU(registers.responsePDU, (byte)0x03, registers.registerQuantity, null, registers.registers, 0) != ModbusTcpClient.RET_OK )
+			throw new IllegalStateException("bad registers response");
+		return registers.registers;
+    }
+}
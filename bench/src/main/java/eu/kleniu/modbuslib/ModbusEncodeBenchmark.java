@@ -0,0 +1,69 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding of read request ADU (MBAP header + PDU) in the transmit buffer of the client.
+ * Run with -prof gc to see bytes allocated per operation.
+ *
+ * @author Robert K.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ModbusEncodeBenchmark {
+
+    @Param({ "1", "3" })
+    public int functionCode;
+
+    @Param({ "1", "125" })
+    public int quantity;
+
+    private ModbusTcpClient _client;
+    private int _address;
+
+    @Setup
+    public void setup() {
+		_client = new ModbusTcpClient(0) {
+		};
+    }
+
+    @Benchmark
+    public ByteBuffer encodeReadRequest() {
+		_address = ( _address + 1 ) & 0x7FFF;
+		return _client._encodeReadRequest((byte)functionCode, _address, quantity, (byte)0);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Minimal in-process MODBUS/TCP server for round trip benchmarks. Answers read coils (0x01),
+ * read holding registers (0x03), write single coil (0x05) and write single register (0x06),
+ * other functions get exception 01. Every connection has its own thread and preallocated
+ * buffers, so the server does not disturb allocation numbers of the client.
+ *
+ * @author Robert K.
+ *
+ */
+final class ModbusLoopbackServer implements Runnable {
+
+    private final ServerSocket _serverSocket;
+    private final boolean[]    _coils;
+    private final short[]      _registers;
+    private volatile boolean   _running;
+
+    ModbusLoopbackServer() throws IOException {
+		_serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		_coils = new boolean[65536];
+		_registers = new short[65536];
+		for ( int i = 0; i < 65536; i++ ) {
+			_coils[i] = ( i % 3 ) == 0;
+			_registers[i] = (short)i;
+		}
+    }
+
+    int getPort() {
+    	return _serverSocket.getLocalPort();
+    }
+
+    void start() {
+		_running = true;
+		Thread thread = new Thread(this, "ModbusLoopbackServer");
+		thread.setDaemon(true);
+		thread.start();
+    }
+
+    void stop() {
+		_running = false;
+		try {
+			_serverSocket.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+    }
+
+    @Override
+    public void run() {
+		while ( _running ) {
+			try {
+				final Socket socket = _serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						_serve(socket);
+					}
+				}, "ModbusLoopbackConnection");
+				thread.setDaemon(true);
+				thread.start();
+			} catch (IOException e) {
+				return; // closed by stop()
+			}
+		}
+    }
+
+    private void _serve(Socket socket) {
+		byte[] request  = new byte[260];
+		byte[] response = new byte[260];
+
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			while ( _running ) {
+				in.readFully(request, 0, 7);
+				int length = ( ( request[4] & 0xFF ) << 8 ) | ( request[5] & 0xFF );
+				if ( length < 2 || length > 254 )
+					break;
+				in.readFully(request, 7, length - 1);
+				int pduLength = _answer(request, response);
+				System.arraycopy(request, 0, response, 0, 4); // transaction and protocol ID
+				response[4] = (byte)( ( pduLength + 1 ) >> 8 );
+				response[5] = (byte)( pduLength + 1 );
+				response[6] = request[6];                     // unit ID
+				out.write(response, 0, 7 + pduLength);
+			}
+		} catch (IOException e) {
+			// client disconnected
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+    }
+
+    // request and response PDU start at offset 7. Returns length of response PDU
+    private int _answer(byte[] request, byte[] response) {
+		byte function = request[7];
+		int address  = ( ( request[8] & 0xFF ) << 8 ) | ( request[9] & 0xFF );
+		int value    = ( ( request[10] & 0xFF ) << 8 ) | ( request[11] & 0xFF );
+
+		response[7] = function;
+		switch ( function ) {
+		case 0x01:
+			int byteCount = ( value + 7 ) / 8;
+			response[8] = (byte)byteCount;
+			for ( int i = 0; i < byteCount; i++ ) {
+				int bits = 0;
+				for ( int j = 0; j < 8; j++ ) {
+					int coil = i * 8 + j;
+					if ( coil < value && _coils[( address + coil ) & 0xFFFF] )
+						bits |= 1 << j;
+				}
+				response[9 + i] = (byte)bits;
+			}
+			return 2 + byteCount;
+		case 0x03:
+			response[8] = (byte)( value * 2 );
+			for ( int i = 0; i < value; i++ ) {
+				short register = _registers[( address + i ) & 0xFFFF];
+				response[9 + 2 * i] = (byte)( register >> 8 );
+				response[10 + 2 * i] = (byte)register;
+			}
+			return 2 + value * 2;
+		case 0x05:
+			_coils[address] = value == 0xFF00;
+			System.arraycopy(request, 8, response, 8, 4); // echo
+			return 5;
+		case 0x06:
+			_registers[address] = (short)value;
+			System.arraycopy(request, 8, response, 8, 4); // echo
+			return 5;
+		default:
+			response[7] = (byte)( function | 0x80 );
+			response[8] = 0x01;                           // illegal function
+			return 2;
+		}
+    }
+}
@@ -0,0 +1,124 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full request/response round trips of ModbusTcpClient against ModbusLoopbackServer
+ * running in the same JVM over 127.0.0.1. Times include both TCP stacks and the server,
+ * allocation numbers (-prof gc) are the client's, the server does not allocate per request.
+ *
+ * @author Robert K.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModbusRoundTripBenchmark {
+
+    @State(Scope.Thread)
+    public static class Connection {
+    	@Param({ "0", "1" })
+    	public int blockingIo;
+
+    	ModbusLoopbackServer server;
+    	ModbusTcpClient      client;
+    	int                  value;
+
+    	@Setup
+    	public void setup() throws IOException {
+    		server = new ModbusLoopbackServer();
+    		server.start();
+    		client = new ModbusTcpClient(0) {
+    		};
+    		if ( client.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 1000, 1000, 1, 1, 1, blockingIo) != ModbusTcpClient.RET_OK
+    				|| client.mbtcConnect() != ModbusTcpClient.RET_OK )
+    			throw new IllegalStateException("cannot connect to loopback server");
+    	}
+
+    	@TearDown
+    	public void tearDown() {
+    		client.mbtcDisconnect();
+    		server.stop();
+    	}
+    }
+
+    @State(Scope.Thread)
+    public static class Coils {
+    	@Param({ "16", "2000" })
+    	public int coilQuantity;
+
+    	boolean[] coils;
+
+    	@Setup
+    	public void setup() {
+    		coils = new boolean[coilQuantity];
+    	}
+    }
+
+    @State(Scope.Thread)
+    public static class Registers {
+    	@Param({ "1", "16", "125" })
+    	public int registerQuantity;
+
+    	int[] registers;
+
+    	@Setup
+    	public void setup() {
+    		registers = new int[registerQuantity];
+    	}
+    }
+
+    @Benchmark
+    public boolean[] readCoils(Connection connection, Coils coils) {
+		if ( connection.client.mbtcReadCoils(0, coils.coilQuantity, 0, coils.coils) != ModbusTcpClient.RET_OK )
+			throw new IllegalStateException("read coils failed");
+		return coils.coils;
+    }
+
+    @Benchmark
+    public int[] readRegisters(Connection connection, Registers registers) {
+		if ( connection.client.mbtcReadRegisters(0, registers.registerQuantity, 0, registers.registers) != ModbusTcpClient.RET_OK )
+			throw new IllegalStateException("read registers failed");
+		return registers.registers;
+    }
+
+    @Benchmark
+    public int writeSingleRegister(Connection connection) {
+		connection.value = ( connection.value + 1 ) & 0x7FFF;
+		if ( connection.client.mbtcWriteSingleRegister(10, connection.value, 0) != ModbusTcpClient.RET_OK )
+			throw new IllegalStateException("write single register failed");
+		return connection.value;
+    }
+}
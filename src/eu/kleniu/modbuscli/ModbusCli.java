@@ -24,11 +24,6 @@ class MyClient extends ModbusTcpClient {
 	public MyClient(int debugLevel) {
 		super(debugLevel);
 	}
-
-	@Override
-	public void displayLog(String debMsg) {
-		System.out.println( debMsg );
-	}
 	
 }
 
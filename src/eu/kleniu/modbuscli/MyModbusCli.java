@@ -16,6 +16,8 @@
 
 package eu.kleniu.modbuscli;
 
+import java.util.BitSet;
+
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -24,6 +26,9 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import eu.kleniu.modbuslib.ModbusTraceEvent;
+import eu.kleniu.modbuslib.ModbusTracer;
+
 public class MyModbusCli {
 	
 	private String 	 ipAddress = "";
@@ -39,11 +44,14 @@ public class MyModbusCli {
 	private boolean     doUnsetCoil = false;
 	private boolean doReadRegisters = false;
 	private boolean doWriteRegister = false;
+	private boolean doWriteRegisterBits = false;
 	private int      coilAddress = 0;
 	private int      coilsNumber = 0;
 	private int  registerAddress = 0;
 	private int  registersNumber = 0;
 	private int    registerValue = 0;
+	private int  registerSetMask = 0;
+	private int registerClearMask = 0;
 	
 	private void _msg(String msg) {
 		if( !silent ) {
@@ -51,6 +59,19 @@ public class MyModbusCli {
 		}
 	}
 	
+	/**
+	 * sets or unsets coilsNumber coils starting at coilAddress.
+	 * One coil is written with FC05, more coils with one FC15 request
+	 */
+	private int _writeCoils(MyClient client, boolean state) {
+		if (coilsNumber == 1)
+			return client.mbtcWriteSingleCoil(coilAddress, state, 0);
+		BitSet coils = new BitSet(coilsNumber);
+		if (state)
+			coils.set(0, coilsNumber);
+		return client.mbtcWriteCoils(coilAddress, coils, coilsNumber, 0);
+	}
+	
 	private int _doit() {
 		boolean[] coilStatus = null;
 		int[] registerStatus = null;
@@ -60,7 +81,15 @@ public class MyModbusCli {
 		String formatedMsg = "";
 		
 		// do connection and request PLC
-		MyClient client = new MyClient(debugLvl);
+		MyClient client = new MyClient(0);
+		if ( debugLvl > 0 ) {
+			client.mbtcSetTracer(new ModbusTracer() {
+				@Override
+				public void trace(ModbusTraceEvent event) {
+					System.out.println( event );
+				}
+			});
+		}
 		if ( retVal == 0 && client.mbtcSetup(ipAddress, portNumber) != MyClient.RET_OK) 
 			retVal = 1;
 		
@@ -85,10 +114,12 @@ public class MyModbusCli {
 		}
 
 		if( retVal == 0 && doSetCoil ) {	
-			funRet = client.mbtcWriteSingleCoil(coilAddress, true, 0);
+			funRet = _writeCoils(client, true);
 			if (funRet == MyClient.RET_OK) {
-				formatedMsg = String.format("coil=%05d newStatus=%b", coilAddress, true);
-				System.out.println(formatedMsg);
+				for (int i = 0; i < coilsNumber; i++) {
+					formatedMsg = String.format("coil=%05d newStatus=%b", coilAddress + i, true);
+					System.out.println(formatedMsg);
+				}
 			}
 			else {
 				_msg("write error: cannot set the coil");
@@ -120,10 +151,12 @@ public class MyModbusCli {
 		}
 		
 		if( retVal == 0 && doUnsetCoil ) {	
-			funRet = client.mbtcWriteSingleCoil(coilAddress, false, 0);
+			funRet = _writeCoils(client, false);
 			if (funRet == MyClient.RET_OK) {
-				formatedMsg = String.format("coil=%05d newStatus=%b", coilAddress, false);
-				System.out.println(formatedMsg);
+				for (int i = 0; i < coilsNumber; i++) {
+					formatedMsg = String.format("coil=%05d newStatus=%b", coilAddress + i, false);
+					System.out.println(formatedMsg);
+				}
 			}
 			else {
 				_msg("write error: cannot unset the coil");
@@ -160,6 +193,24 @@ public class MyModbusCli {
 			}
 		}
 		
+		if( retVal == 0 && doWriteRegisterBits ) {
+			// all bits in one FC22 request, the register is not read first
+			funRet = client.mbtcWriteRegisterBits(registerAddress, registerSetMask, registerClearMask, 0);
+			if (funRet == MyClient.RET_OK) {
+				for (int i = 0; i < 16; i++) {
+					if (((registerSetMask | registerClearMask) & (1 << i)) != 0) {
+						formatedMsg = String.format("register=%05d bit=%02d newStatus=%b", registerAddress, i, (registerSetMask & (1 << i)) != 0);
+						System.out.println(formatedMsg);
+					}
+				}
+			}
+			else {
+				_msg("write error: cannot change bits of the register");
+				client.mbtcDisconnect();
+				retVal = 11;
+			}
+		}
+		
 		if ( retVal == 0 ) {
 			if (client.mbtcDisconnect() != MyClient.RET_OK) {
 				_msg("disconnect error: cannot disconnect from PLC");
@@ -200,16 +251,18 @@ public class MyModbusCli {
 		options.addOption(readRegs);
 		
 		Option setCoil = Option.builder("cs")
-                .argName("coil_address")
+                .argName("coil_address[:number]")
                 .hasArg()
-                .desc("set coil.")
+                .desc("set coil. If optional number is specified"
+                	  + " then given amount of subsequent coils will be set with one request.")
                 .build();
 		options.addOption(setCoil);
 		
 		Option usetCoil = Option.builder("cu")
-                .argName("coil_address")
+                .argName("coil_address[:number]")
                 .hasArg()
-                .desc("uset coil.")
+                .desc("uset coil. If optional number is specified"
+                	  + " then given amount of subsequent coils will be unset with one request.")
                 .build();
 		options.addOption(usetCoil);
 		
@@ -227,6 +280,14 @@ public class MyModbusCli {
                 .build();
 		options.addOption(setReg);
 		
+		Option setRegBits = Option.builder("rb")
+                .argName("reg_address:bit=0|1[,bit=0|1...]")
+                .hasArg()
+                .desc("set (=1) or clear (=0) bits 0..15 of the register with one mask write request."
+                	  + " Other bits of the register are not changed.")
+                .build();
+		options.addOption(setRegBits);
+		
 		Option silent = Option.builder("s")
                 .longOpt("silent")
                 .desc("display minimal amount of information.")
@@ -467,30 +528,50 @@ public class MyModbusCli {
 		return retVal;
 	}
 	
-	private boolean _setPropertiesSetCoil(CommandLine cmd) {
+	/**
+	 * parses coil_address[:number] of -cs and -cu options
+	 * @return true if coilAddress and coilsNumber are set
+	 */
+	private boolean _setPropertiesCoilRange(CommandLine cmd, String opt) {
 		boolean retVal = true;
+		String optVals[] = cmd.getOptionValue(opt).split(":");
 
-		if (cmd.hasOption("cs") ) {
-			String optVal = cmd.getOptionValue("cs");
-			// first value
-			if (optVal.length() == 0) {
-				_msg("syntax error: coil address must be provided with -cs option");
-				retVal = false;
+		if (optVals.length == 0 || optVals[0].length() == 0) {
+			_msg("syntax error: coil address must be provided with -" + opt + " option");
+			return false;
+		}
+		try {
+			coilAddress = Integer.parseInt(optVals[0]);
+		} catch (NumberFormatException e) {
+			_msg("syntax error: coil address (entered:" + optVals[0] + ") provided with -" + opt + " option is not a valid number");
+			retVal = false;	
+		}
+		if (coilAddress < 0) {
+			_msg("syntax error: coil aadress (entered:" + optVals[0] + ") provided with -" + opt + " option must be possitive number");
+			retVal = false;
+		}
+		// second (optional) value
+		coilsNumber = 1;
+		if (optVals.length > 1 && optVals[1].length() > 0) {
+			try {
+				coilsNumber = Integer.parseInt(optVals[1]);
+			} catch (NumberFormatException e) {
+				_msg("syntax error: coils number (entered:" + optVals[1] + ") provided with -" + opt + " option is not a valid number");
+				retVal = false;	
 			}
-			else {
-				try {
-					coilAddress = Integer.parseInt(optVal);
-					coilsNumber = 1;
-				} catch (NumberFormatException e) {
-					_msg("syntax error: coil address (entered:" + optVal + ") provided with -cs option is not a valid number");
-					retVal = false;	
-				}
-				if (coilAddress < 0) {
-					_msg("syntax error: coil aadress (entered:" + optVal + ") provided with -cs option must be possitive number");
-					retVal = false;
-				}
-				
+			if (coilsNumber < 1) {
+				_msg("syntax error: number of coils (entered:" + optVals[1] + ") provided with -" + opt + " option must be possitive number");
+				retVal = false;
 			}
+		}
+		return retVal;
+	}
+
+	private boolean _setPropertiesSetCoil(CommandLine cmd) {
+		boolean retVal = true;
+
+		if (cmd.hasOption("cs") ) {
+			retVal = _setPropertiesCoilRange(cmd, "cs");
 			// if retVal is still true we are ok to go
 			if(retVal) 
 				doSetCoil = true;
@@ -556,6 +637,66 @@ public class MyModbusCli {
 		return retVal;
 	}
 		
+	/**
+	 * parses reg_address:bit=0|1[,bit=0|1...] of -rb option
+	 * @return true if registerAddress, registerSetMask and registerClearMask are set
+	 */
+	private boolean _setPropertiesWriteRegisterBits(CommandLine cmd) {
+		boolean retVal = true;
+
+		if (cmd.hasOption("rb")) {
+			String optVals[] = cmd.getOptionValue("rb").split(":");
+			registerSetMask = 0;
+			registerClearMask = 0;
+			if (optVals.length != 2 || optVals[0].length() == 0 || optVals[1].length() == 0) {
+				_msg("syntax error: register address and bits must be provided with -rb option");
+				retVal = false;
+			}
+			else {
+				try {
+					registerAddress = Integer.parseInt(optVals[0]);
+				} catch (NumberFormatException e) {
+					_msg("syntax error: register address (entered:" + optVals[0] + ") provided with -rb option is not a valid number");
+					retVal = false;	
+				}
+				if (registerAddress < 0) {
+					_msg("syntax error: register aadress (entered:" + optVals[0] + ") provided with -rb option must be possitive number");
+					retVal = false;
+				}
+				for (String edit : optVals[1].split(",")) {
+					String bitVal[] = edit.split("=");
+					int bit = -1;
+					if (bitVal.length == 2 && ("0".equals(bitVal[1]) || "1".equals(bitVal[1]))) {
+						try {
+							bit = Integer.parseInt(bitVal[0]);
+						} catch (NumberFormatException e) {
+							bit = -1;
+						}
+					}
+					if (bit < 0 || bit > 15) {
+						_msg("syntax error: bit (entered:" + edit + ") provided with -rb option must be bit=0 or bit=1 with bit in <0,15>");
+						retVal = false;
+						break;
+					}
+					if ("1".equals(bitVal[1])) {
+						registerSetMask |= 1 << bit;
+						registerClearMask &= ~(1 << bit);
+					}
+					else {
+						registerClearMask |= 1 << bit;
+						registerSetMask &= ~(1 << bit);
+					}
+				}
+			}
+			// if retVal is still true we are ok to go
+			if(retVal) 
+				doWriteRegisterBits = true;
+			else
+				doWriteRegisterBits = false;		
+		}
+		return retVal;
+	}
+		
 	private boolean _setPropertiesToggleCoil(CommandLine cmd) {
 		boolean retVal = true;
 
@@ -593,26 +734,7 @@ public class MyModbusCli {
 		boolean retVal = true;
 
 		if (cmd.hasOption("cu") ) {
-			String optVal = cmd.getOptionValue("cu");
-			// first value
-			if (optVal.length() == 0) {
-				_msg("syntax error: coil address must be provided with -cu option");
-				retVal = false;
-			}
-			else {
-				try {
-					coilAddress = Integer.parseInt(optVal);
-					coilsNumber = 1;
-				} catch (NumberFormatException e) {
-					_msg("syntax error: coil address (entered:" + optVal + ") provided with -cu option is not a valid number");
-					retVal = false;	
-				}
-				if (coilAddress < 0) {
-					_msg("syntax error: coil aadress (entered:" + optVal + ") provided with -cu option must be possitive number");
-					retVal = false;
-				}
-				
-			}
+			retVal = _setPropertiesCoilRange(cmd, "cu");
 			// if retVal is still true we are ok to go
 			if(retVal) 
 				doUnsetCoil = true;
@@ -636,8 +758,9 @@ public class MyModbusCli {
 		if( retVal ) retVal = _setPropertiesUnsetCoil(cmd);
 		if( retVal ) retVal = _setPropertiesReadRegisters(cmd);
 		if( retVal ) retVal = _setPropertiesWriteRegister(cmd);
-		if (retVal && !printHelp && !doReadCoils && !doSetCoil && !doToggleCoil && !doUnsetCoil && !doReadRegisters && !doWriteRegister ) {
-			_msg("usage error: at least one of the following switches: -h, -cr, -cs, -ct, -cu, -rr or -rw must be provided");
+		if( retVal ) retVal = _setPropertiesWriteRegisterBits(cmd);
+		if (retVal && !printHelp && !doReadCoils && !doSetCoil && !doToggleCoil && !doUnsetCoil && !doReadRegisters && !doWriteRegister && !doWriteRegisterBits ) {
+			_msg("usage error: at least one of the following switches: -h, -cr, -cs, -ct, -cu, -rr, -rw or -rb must be provided");
 			retVal = false;
 		}
 		return retVal;
@@ -0,0 +1,124 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder of MODBUS/TCP frames (ADU = MBAP header + PDU) read from a stream.
+ * Bytes from the socket are collected in a buffer and decode is called after each read.
+ * Frame may come in several TCP segments and one segment may carry several frames.
+ * <p>
+ * MBAP[7]=TRANSACTION_ID[2]+PROTOCOL_ID[2]+LENGTH[2]+UNIT_ID[1]. LENGTH is 16 bit
+ * unsigned and counts UNIT_ID and PDU bytes.
+ * <p>
+ * Decoder keeps only the header of the last decoded frame, so one object is
+ * reused for the whole life of the connection.
+ *
+ * @author Robert K.
+ *
+ */
+final class MbapFrameDecoder {
+
+    static final int MBAP_LEN    = 7;   // MBAP Header is ALWAYS 7 bytes long!
+    static final int MAX_PDU_LEN = 253; // maximum size of PDU according to MODBUS specification
+    static final int MAX_ADU_LEN = MBAP_LEN + MAX_PDU_LEN;
+
+    static final int NEED_MORE = -1; // frame is not complete yet, read more bytes
+    static final int BAD_FRAME = -2; // header is broken, frame boundaries are lost
+
+    private int _transId;
+    private int _unitId;
+    private int _pduOffset;
+    private int _pduLength;
+
+    /**
+     * Looks for the complete frame at the position of the buffer (read mode: data between position and limit).
+     * On success buffer position is moved just after the frame. Otherwise the buffer is not changed.
+     *
+     * @param  buffer  bytes received from the Master
+     *
+     * @return length of the PDU of the decoded frame<br>
+     * NEED_MORE if the frame is not complete yet<br>
+     * BAD_FRAME if the header is not a valid MODBUS/TCP header
+     */
+    int decode(ByteBuffer buffer) {
+		int pos = buffer.position();
+		int length;
+
+		if ( buffer.remaining() < MBAP_LEN )
+			return NEED_MORE;
+
+		length = buffer.getShort(pos + 4) & 0xFFFF;
+		if ( buffer.getShort(pos + 2) != 0 || length < 2 || length > MAX_PDU_LEN + 1 )
+			return BAD_FRAME;
+		if ( buffer.remaining() < MBAP_LEN - 1 + length )
+			return NEED_MORE;
+
+		_transId   = buffer.getShort(pos) & 0xFFFF;
+		_unitId    = buffer.get(pos + 6) & 0xFF;
+		_pduOffset = pos + MBAP_LEN;
+		_pduLength = length - 1;
+		buffer.position( _pduOffset + _pduLength );
+		return _pduLength;
+    }
+
+    /**
+     * Skips garbage after decode returned BAD_FRAME. Buffer position is moved at least one
+     * byte forward, to the first place which looks like MBAP header (protocol ID 0 and
+     * valid length). Last few bytes which are too short to be checked are kept, they may
+     * be the beginning of the next frame.
+     *
+     * @param  buffer  bytes received from the Master (read mode)
+     *
+     * @return number of bytes skipped
+     */
+    int resync(ByteBuffer buffer) {
+		int start = buffer.position();
+		int pos   = start + 1;
+		int length;
+
+		for ( ; buffer.limit() - pos >= MBAP_LEN - 1; pos++ ) {
+			length = buffer.getShort(pos + 4) & 0xFFFF;
+			if ( buffer.getShort(pos + 2) == 0 && length >= 2 && length <= MAX_PDU_LEN + 1 )
+				break;
+		}
+		pos = Math.min( pos, buffer.limit() );
+		buffer.position( pos );
+		return pos - start;
+    }
+
+    // transaction ID of the last decoded frame
+    int transId() {
+    	return _transId;
+    }
+
+    // unit ID of the last decoded frame
+    int unitId() {
+    	return _unitId;
+    }
+
+    // absolute index of the first PDU byte of the last decoded frame
+    int pduOffset() {
+    	return _pduOffset;
+    }
+
+    // PDU length of the last decoded frame
+    int pduLength() {
+    	return _pduLength;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ModbusDeviceCapabilities of devices keyed by endpoint (host:port given to mbtcSetup)
+ * and unit ID. Clients use the default cache unless other one is set with
+ * mbtcSetCapabilityCache, so everything learned about a device by one client
+ * is used by all the others.
+ *
+ * @author Robert K.
+ *
+ */
+public class ModbusCapabilityCache {
+
+    private static final ModbusCapabilityCache DEFAULT = new ModbusCapabilityCache();
+
+    private final ConcurrentHashMap<String, ModbusDeviceCapabilities> _devices = new ConcurrentHashMap<String, ModbusDeviceCapabilities>();
+
+    /**
+     * @return cache shared by all clients which have no other cache set
+     */
+    public static ModbusCapabilityCache getDefault() {
+    	return DEFAULT;
+    }
+
+    private static String _key(String endpoint, int unitID) {
+    	return endpoint + "/" + ( unitID & 0xFF );
+    }
+
+    /**
+     * Returns capabilities of the device, a new entry with MODBUS specification limits
+     * is created if the device is not in the cache yet.
+     *
+     * @param  endpoint  host:port of the device
+     * @param  unitID    MODBUS unit ID (device ID)
+     * @return capabilities of the device, never null
+     */
+    public ModbusDeviceCapabilities get(String endpoint, int unitID) {
+    	String key = _key(endpoint, unitID);
+    	ModbusDeviceCapabilities device = _devices.get(key);
+
+    	if ( device == null ) {
+    		ModbusDeviceCapabilities fresh = new ModbusDeviceCapabilities(endpoint, unitID & 0xFF);
+    		device = _devices.putIfAbsent(key, fresh);
+    		if ( device == null )
+    			device = fresh;
+    	}
+    	return device;
+    }
+
+    /**
+     * @return capabilities of the device or null if the device is not in the cache
+     */
+    public ModbusDeviceCapabilities find(String endpoint, int unitID) {
+    	return _devices.get(_key(endpoint, unitID));
+    }
+
+    /**
+     * Forgets the device, e.g. after its firmware was changed.
+     */
+    public void remove(String endpoint, int unitID) {
+    	_devices.remove(_key(endpoint, unitID));
+    }
+
+    /**
+     * Forgets all devices.
+     */
+    public void clear() {
+    	_devices.clear();
+    }
+
+    /**
+     * @return number of devices in the cache
+     */
+    public int size() {
+    	return _devices.size();
+    }
+}
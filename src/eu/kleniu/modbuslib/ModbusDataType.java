@@ -0,0 +1,58 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+/**
+ * Data type of a ModbusTag and the number of table elements (bits or registers) it takes.
+ *
+ * @author Robert K.
+ *
+ */
+public enum ModbusDataType {
+
+    /** one coil or discrete input */
+    BOOL(1),
+    INT16(1),
+    UINT16(1),
+    INT32(2),
+    UINT32(2),
+    FLOAT32(2),
+    INT64(4),
+    FLOAT64(4),
+    /** ISO-8859-1 characters, two in each register, length of the tag is given in registers */
+    STRING(0);
+
+    private final int _registers;
+
+    ModbusDataType(int registers) {
+		_registers = registers;
+    }
+
+    /**
+     * @return number of registers (bits for BOOL) taken by one value, 0 for STRING
+     */
+    public int registers() {
+		return _registers;
+    }
+
+    /**
+     * @return true for BOOL, the only type of coils and discrete inputs
+     */
+    public boolean isBit() {
+		return this == BOOL;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One thread shared by all ModbusTcpClient objects working in blocking I/O mode.
+ * Blocking channel has no timeout, so every few milliseconds the watchdog looks at
+ * the deadline of the I/O each client is blocked in and closes the channel of the
+ * client which is late. Client arms and disarms its deadline with plain atomic
+ * operations, nothing is allocated or locked on the request path.
+ *
+ * @author Robert K.
+ *
+ */
+final class ModbusDeadlineWatchdog implements Runnable {
+
+    private static final long TICK_MS = 5; // timeouts are detected with this resolution
+
+    private static final ModbusDeadlineWatchdog INSTANCE = new ModbusDeadlineWatchdog();
+
+    private final Set<ModbusTcpClient> _clients;
+
+    private ModbusDeadlineWatchdog() {
+		_clients = ConcurrentHashMap.newKeySet();
+		Thread thread = new Thread(this, "ModbusDeadlineWatchdog");
+		thread.setDaemon(true);
+		thread.start();
+    }
+
+    // client connected in blocking mode
+    static void watch(ModbusTcpClient client) {
+    	INSTANCE._clients.add(client);
+    }
+
+    // client closed its channel
+    static void unwatch(ModbusTcpClient client) {
+    	INSTANCE._clients.remove(client);
+    }
+
+    @Override
+    public void run() {
+		while ( true ) {
+			try {
+				Thread.sleep(TICK_MS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			long now = System.nanoTime();
+			for ( ModbusTcpClient client : _clients )
+				client._expireIo(now);
+		}
+    }
+}
@@ -0,0 +1,203 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes values wider than one register from register buffers filled by the read functions
+ * (e.g. mbtcReadRegisters or mbtcReadPlan). Only the low 16 bits of each element are used,
+ * so signed and unsigned register values give the same result. Nothing is allocated except
+ * by string.
+ * <p>
+ * Values are read from the registers at offset, offset + 1, ... in the given ModbusWordOrder,
+ * null order means ABCD.
+ *
+ * @author Robert K.
+ *
+ */
+public final class ModbusDecoder {
+
+    private ModbusDecoder() {
+    }
+
+    private static boolean _wordSwap(ModbusWordOrder order) {
+		return order == ModbusWordOrder.CDAB || order == ModbusWordOrder.DCBA;
+    }
+
+    private static boolean _byteSwap(ModbusWordOrder order) {
+		return order == ModbusWordOrder.BADC || order == ModbusWordOrder.DCBA;
+    }
+
+    /**
+     * @param  words      register values
+     * @param  offset     index of the first register of the value
+     * @param  registers  1 to 4
+     * @param  order      layout of the registers, null means ABCD
+     * @return raw bits of the value, the most significant byte first (ABCD)
+     */
+    public static long bits(int[] words, int offset, int registers, ModbusWordOrder order) {
+		boolean wordSwap = _wordSwap(order);
+		boolean byteSwap = _byteSwap(order);
+		long value = 0;
+
+		for ( int i = 0; i < registers; i++ ) {
+			int w = words[ offset + ( wordSwap ? registers - 1 - i : i ) ] & 0xFFFF;
+			if ( byteSwap )
+				w = ( ( w & 0xFF ) << 8 ) | ( w >>> 8 );
+			value = ( value << 16 ) | w;
+		}
+		return value;
+    }
+
+    // the same for registers in a response PDU, index is the byte index of the first register
+    static long bits(ByteBuffer pdu, int index, int registers, ModbusWordOrder order) {
+		boolean wordSwap = _wordSwap(order);
+		boolean byteSwap = _byteSwap(order);
+		long value = 0;
+
+		for ( int i = 0; i < registers; i++ ) {
+			int w = pdu.getShort( index + 2 * ( wordSwap ? registers - 1 - i : i ) ) & 0xFFFF;
+			if ( byteSwap )
+				w = ( ( w & 0xFF ) << 8 ) | ( w >>> 8 );
+			value = ( value << 16 ) | w;
+		}
+		return value;
+    }
+
+    /**
+     * @return the register as an unsigned value 0 to 65535
+     */
+    public static int uint16(int[] words, int offset) {
+		return words[offset] & 0xFFFF;
+    }
+
+    /**
+     * @return signed 32-bit value of two registers
+     */
+    public static int int32(int[] words, int offset, ModbusWordOrder order) {
+		return (int)bits(words, offset, 2, order);
+    }
+
+    /**
+     * @return unsigned 32-bit value of two registers
+     */
+    public static long uint32(int[] words, int offset, ModbusWordOrder order) {
+		return bits(words, offset, 2, order);
+    }
+
+    /**
+     * @return signed 64-bit value of four registers
+     */
+    public static long int64(int[] words, int offset, ModbusWordOrder order) {
+		return bits(words, offset, 4, order);
+    }
+
+    /**
+     * @return IEEE 754 single precision value of two registers
+     */
+    public static float float32(int[] words, int offset, ModbusWordOrder order) {
+		return Float.intBitsToFloat( (int)bits(words, offset, 2, order) );
+    }
+
+    /**
+     * @return IEEE 754 double precision value of four registers
+     */
+    public static double float64(int[] words, int offset, ModbusWordOrder order) {
+		return Double.longBitsToDouble( bits(words, offset, 4, order) );
+    }
+
+    /**
+     * Decodes consecutive FLOAT32 values, e.g. a block read by mbtcReadRegisters.
+     *
+     * @param  words       register values, two for each float
+     * @param  offset      index of the first register
+     * @param  order       layout of the registers, null means ABCD
+     * @param  values      buffer for the values
+     * @param  valueOffset index in values for the first value
+     * @param  count       number of values
+     */
+    public static void float32(int[] words, int offset, ModbusWordOrder order, float[] values, int valueOffset, int count) {
+		for ( int i = 0; i < count; i++ )
+			values[valueOffset + i] = float32(words, offset + 2 * i, order);
+    }
+
+    /**
+     * Appends ISO-8859-1 characters of the registers to the builder, the high byte of each
+     * register first. It stops at the first zero character.
+     *
+     * @param  words      register values
+     * @param  offset     index of the first register
+     * @param  registers  number of registers, two characters in each
+     * @param  text       the characters are appended here
+     * @return text
+     */
+    public static StringBuilder string(int[] words, int offset, int registers, StringBuilder text) {
+		for ( int i = 0; i < 2 * registers; i++ ) {
+			int c = ( ( i & 1 ) == 0 ) ? ( words[offset + i / 2] >>> 8 ) & 0xFF : words[offset + i / 2] & 0xFF;
+			if ( c == 0 )
+				break;
+			text.append( (char)c );
+		}
+		return text;
+    }
+
+    /**
+     * @return ISO-8859-1 characters of the registers up to the first zero character
+     * @see    #string(int[], int, int, StringBuilder)
+     */
+    public static String string(int[] words, int offset, int registers) {
+		return string(words, offset, registers, new StringBuilder(2 * registers)).toString();
+    }
+
+    /**
+     * Decodes one numeric value of any register type.
+     *
+     * @param  type       INT16, UINT16, INT32, UINT32, INT64, FLOAT32 or FLOAT64
+     * @return the value, FLOAT32 and FLOAT64 are truncated
+     * @throws IllegalArgumentException for BOOL and STRING
+     */
+    public static long longValue(int[] words, int offset, ModbusDataType type, ModbusWordOrder order) {
+		switch ( type ) {
+		case INT16:   return (short)words[offset];
+		case UINT16:  return words[offset] & 0xFFFF;
+		case INT32:   return int32(words, offset, order);
+		case UINT32:  return uint32(words, offset, order);
+		case INT64:   return int64(words, offset, order);
+		case FLOAT32: return (long)float32(words, offset, order);
+		case FLOAT64: return (long)float64(words, offset, order);
+		default:
+			throw new IllegalArgumentException(type + " is not a number");
+		}
+    }
+
+    /**
+     * Decodes one numeric value of any register type.
+     *
+     * @param  type       INT16, UINT16, INT32, UINT32, INT64, FLOAT32 or FLOAT64
+     * @return the value, INT64 beyond 2^53 loses precision
+     * @throws IllegalArgumentException for BOOL and STRING
+     */
+    public static double doubleValue(int[] words, int offset, ModbusDataType type, ModbusWordOrder order) {
+		switch ( type ) {
+		case FLOAT32: return float32(words, offset, order);
+		case FLOAT64: return float64(words, offset, order);
+		default:
+			return longValue(words, offset, type, order);
+		}
+    }
+}
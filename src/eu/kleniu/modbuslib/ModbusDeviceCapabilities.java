@@ -0,0 +1,286 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+import java.util.BitSet;
+
+/**
+ * What is known about one MODBUS device (endpoint + unit ID): identification objects read with
+ * read device identification (0x2B / 0x0E) and limits of its MODBUS stack. Limits start at
+ * the maximum allowed by MODBUS specification and are lowered when the device is found to
+ * support less, either by configuration or by the client learning it. Addresses the device
+ * does not have and places a read must not cross are kept as well, see
+ * ModbusTcpClient.mbtcSetAdaptiveReads.
+ * Entries live in a ModbusCapabilityCache and are shared by all clients of the same device,
+ * so all fields can be read and written from any thread.
+ *
+ * @author Robert K.
+ *
+ */
+public final class ModbusDeviceCapabilities {
+
+    // ********************************************************************************************
+    // **** Basic and regular device identification objects
+    // ********************************************************************************************
+
+    public static final int VENDOR_NAME           = 0x00;
+    public static final int PRODUCT_CODE          = 0x01;
+    public static final int MAJOR_MINOR_REVISION  = 0x02;
+    public static final int VENDOR_URL            = 0x03;
+    public static final int PRODUCT_NAME          = 0x04;
+    public static final int MODEL_NAME            = 0x05;
+    public static final int USER_APPLICATION_NAME = 0x06;
+
+    public static final int MAX_READ_REGISTERS  = 125;  // MODBUS specification limit of read registers (0x03, 0x04)
+    public static final int MAX_READ_BITS       = 2000; // MODBUS specification limit of read coils/inputs (0x01, 0x02)
+
+    private final String _endpoint;
+    private final int    _unitID;
+    private final String[] _objects = new String[USER_APPLICATION_NAME + 1];
+    private volatile boolean _identified;
+    private volatile int  _conformityLevel;
+    private volatile int  _maxReadRegisters = MAX_READ_REGISTERS;
+    private volatile int  _maxReadBits      = MAX_READ_BITS;
+    private volatile int  _maxPipelineWindow;  // 0 - not known yet
+    private final BitSet[] _illegalAddresses = new BitSet[ModbusTag.INPUT_REGISTERS + 1]; // by table, null - no holes
+    private final BitSet[] _readBoundaries   = new BitSet[ModbusTag.INPUT_REGISTERS + 1]; // bit a - read must not take a-1 and a
+
+    ModbusDeviceCapabilities(String endpoint, int unitID) {
+		_endpoint = endpoint;
+		_unitID = unitID;
+    }
+
+    // called by the client when identification objects are read
+    synchronized void setIdentification(String[] objects, int conformityLevel) {
+		for ( int i = 0; i < _objects.length; i++ )
+			_objects[i] = ( i < objects.length ) ? objects[i] : null;
+		_conformityLevel = conformityLevel;
+		_identified = true;
+    }
+
+    /**
+     * @return host:port given to mbtcSetup
+     */
+    public String endpoint() {
+    	return _endpoint;
+    }
+
+    /**
+     * @return MODBUS unit ID (device ID) of the device
+     */
+    public int unitID() {
+    	return _unitID;
+    }
+
+    /**
+     * @return true when read device identification succeeded for this device
+     */
+    public boolean identified() {
+    	return _identified;
+    }
+
+    /**
+     * @return conformity level from read device identification response, 0 if not identified
+     */
+    public int conformityLevel() {
+    	return _conformityLevel;
+    }
+
+    /**
+     * @param  objectId  one of VENDOR_NAME .. USER_APPLICATION_NAME
+     * @return value of the identification object or null if the device did not send it
+     */
+    public synchronized String object(int objectId) {
+    	return ( objectId >= 0 && objectId < _objects.length ) ? _objects[objectId] : null;
+    }
+
+    /**
+     * @return VendorName object or null
+     */
+    public String vendorName() {
+    	return object(VENDOR_NAME);
+    }
+
+    /**
+     * @return ProductCode object or null
+     */
+    public String productCode() {
+    	return object(PRODUCT_CODE);
+    }
+
+    /**
+     * @return MajorMinorRevision object or null
+     */
+    public String revision() {
+    	return object(MAJOR_MINOR_REVISION);
+    }
+
+    /**
+     * @return ModelName object, ProductName when device has no model name, or null
+     */
+    public String model() {
+    	String model = object(MODEL_NAME);
+    	return ( model != null ) ? model : object(PRODUCT_NAME);
+    }
+
+    /**
+     * @return maximum number of registers the device answers in one read request, 1 to 125
+     */
+    public int maxReadRegisters() {
+    	return _maxReadRegisters;
+    }
+
+    /**
+     * Sets the maximum number of registers in one read request. Values out of <1,125> are clamped.
+     */
+    public void setMaxReadRegisters(int maxReadRegisters) {
+    	_maxReadRegisters = Math.max(1, Math.min(MAX_READ_REGISTERS, maxReadRegisters));
+    }
+
+    /**
+     * @return maximum number of coils/discrete inputs the device answers in one read request, 1 to 2000
+     */
+    public int maxReadBits() {
+    	return _maxReadBits;
+    }
+
+    /**
+     * Sets the maximum number of coils/discrete inputs in one read request. Values out of <1,2000> are clamped.
+     */
+    public void setMaxReadBits(int maxReadBits) {
+    	_maxReadBits = Math.max(1, Math.min(MAX_READ_BITS, maxReadBits));
+    }
+
+    /**
+     * @return number of requests the device can have in flight, 1 if it does not support pipelining,
+     *         0 if it is not known yet
+     */
+    public int maxPipelineWindow() {
+    	return _maxPipelineWindow;
+    }
+
+    /**
+     * Sets the number of requests the device can have in flight, 1 when it must not get pipelined requests.
+     * Clients send at most this many requests in flight to the device, even with a bigger pipeline
+     * window in mbtcSetup. 0 leaves the window of mbtcSetup.
+     */
+    public void setMaxPipelineWindow(int maxPipelineWindow) {
+    	_maxPipelineWindow = Math.max(0, maxPipelineWindow);
+    }
+
+    /**
+     * Marks addresses the device does not have (it answers exception 02 - illegal data address).
+     * Read plans compiled for the device never read across them.
+     *
+     * @param  table      ModbusTag.COILS, DISCRETE_INPUTS, HOLDING_REGISTERS or INPUT_REGISTERS
+     * @param  address    the first address of the hole
+     * @param  quantity   number of addresses in the hole
+     */
+    public synchronized void addIllegalAddresses(int table, int address, int quantity) {
+    	if ( table < ModbusTag.COILS || table > ModbusTag.INPUT_REGISTERS || address < 0 || quantity < 1 || address + quantity > 65536 )
+    		throw new IllegalArgumentException("bad hole " + table + ":" + address + "/" + quantity);
+    	if ( _illegalAddresses[table] == null )
+    		_illegalAddresses[table] = new BitSet();
+    	_illegalAddresses[table].set(address, address + quantity);
+    }
+
+    /**
+     * @param  table      ModbusTag.COILS, DISCRETE_INPUTS, HOLDING_REGISTERS or INPUT_REGISTERS
+     * @param  address    the first address of the range
+     * @param  quantity   number of addresses in the range
+     * @return true if any address of the range is known to be illegal
+     */
+    public synchronized boolean hasIllegalAddress(int table, int address, int quantity) {
+    	return _next(_illegalAddresses, table, address) < address + quantity;
+    }
+
+    /**
+     * Marks the place a read request must not cross, though addresses on both sides are legal -
+     * typically the end of one memory area of the device and the beginning of another one.
+     * Read plans compiled for the device never read across it.
+     *
+     * @param  table      ModbusTag.COILS, DISCRETE_INPUTS, HOLDING_REGISTERS or INPUT_REGISTERS
+     * @param  address    the first address after the boundary, 1 to 65535
+     */
+    public synchronized void addReadBoundary(int table, int address) {
+    	if ( table < ModbusTag.COILS || table > ModbusTag.INPUT_REGISTERS || address < 1 || address > 65535 )
+    		throw new IllegalArgumentException("bad boundary " + table + ":" + address);
+    	if ( _readBoundaries[table] == null )
+    		_readBoundaries[table] = new BitSet();
+    	_readBoundaries[table].set(address);
+    }
+
+    /**
+     * @param  table      ModbusTag.COILS, DISCRETE_INPUTS, HOLDING_REGISTERS or INPUT_REGISTERS
+     * @param  address    the first address of the range
+     * @param  quantity   number of addresses in the range
+     * @return true if the range crosses a read boundary
+     */
+    public synchronized boolean hasReadBoundary(int table, int address, int quantity) {
+    	return _next(_readBoundaries, table, address + 1) < address + quantity;
+    }
+
+    // first set bit from the address in the table, Integer.MAX_VALUE if there is none
+    private static int _next(BitSet[] tables, int table, int address) {
+    	BitSet bits = ( table >= ModbusTag.COILS && table <= ModbusTag.INPUT_REGISTERS ) ? tables[table] : null;
+    	int next = ( bits != null ) ? bits.nextSetBit( Math.max(0, address) ) : -1;
+    	return ( next >= 0 ) ? next : Integer.MAX_VALUE;
+    }
+
+    // the first illegal address from address on, Integer.MAX_VALUE if there is none
+    synchronized int nextIllegalAddress(int table, int address) {
+    	return _next(_illegalAddresses, table, address);
+    }
+
+    // the first legal address from address on
+    synchronized int nextLegalAddress(int table, int address) {
+    	BitSet holes = ( table >= ModbusTag.COILS && table <= ModbusTag.INPUT_REGISTERS ) ? _illegalAddresses[table] : null;
+    	return ( holes != null ) ? holes.nextClearBit(address) : address;
+    }
+
+    // the first read boundary after address, Integer.MAX_VALUE if there is none
+    synchronized int nextReadBoundary(int table, int address) {
+    	return _next(_readBoundaries, table, address + 1);
+    }
+
+    /**
+     * @return number of addresses known to be illegal in all tables
+     */
+    public synchronized int illegalAddressCount() {
+    	int count = 0;
+    	for ( BitSet holes : _illegalAddresses )
+    		count += ( holes != null ) ? holes.cardinality() : 0;
+    	return count;
+    }
+
+    /**
+     * Forgets all illegal addresses and read boundaries, e.g. after the device program was changed.
+     */
+    public synchronized void clearIllegalAddresses() {
+    	for ( int i = 0; i < _illegalAddresses.length; i++ ) {
+    		_illegalAddresses[i] = null;
+    		_readBoundaries[i] = null;
+    	}
+    }
+
+    @Override
+    public String toString() {
+    	return _endpoint + "/" + _unitID + ( _identified ? " " + vendorName() + " " + model() : "" )
+    			+ " maxReadRegisters=" + _maxReadRegisters + " maxReadBits=" + _maxReadBits
+    			+ " maxPipelineWindow=" + _maxPipelineWindow + " illegalAddresses=" + illegalAddressCount();
+    }
+}
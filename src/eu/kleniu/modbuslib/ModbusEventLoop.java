@@ -0,0 +1,161 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One thread with one Selector serving many MODBUS connections.
+ * Everything registered here (handlers, their channels and state) is touched
+ * only by the loop thread. Other threads talk to the loop through execute.
+ *
+ * @author Robert K.
+ *
+ */
+final class ModbusEventLoop implements Runnable {
+
+    /**
+     * Connection served by the loop. All methods are called by the loop thread.
+     */
+    interface Handler {
+    	// channel registered with this handler as attachment is ready
+    	void handleReady(SelectionKey key);
+    	// check timeouts, returns next deadline (System.nanoTime()) or Long.MAX_VALUE if none
+    	long handleTimers(long now);
+    	// loop is going down, release everything
+    	void handleShutdown();
+    }
+
+    private final Selector _selector;
+    private final ConcurrentLinkedQueue<Runnable> _tasks;
+    private final ArrayList<Handler> _handlers;
+    private final Thread _thread;
+    private volatile boolean _running;
+    private volatile boolean _terminated;
+
+    ModbusEventLoop(String name) throws IOException {
+		_selector = Selector.open();
+		_tasks    = new ConcurrentLinkedQueue<Runnable>();
+		_handlers = new ArrayList<Handler>();
+		_running  = true;
+		_terminated = false;
+		_thread   = new Thread(this, name);
+		_thread.setDaemon(true);
+		_thread.start();
+    }
+
+    Selector selector() {
+    	return _selector;
+    }
+
+    boolean inEventLoop() {
+    	return Thread.currentThread() == _thread;
+    }
+
+    /**
+     * Queues the task to be run by the loop thread.
+     *
+     * @return false if the loop is already down and the task will never run
+     */
+    boolean execute(Runnable task) {
+		_tasks.add(task);
+		if ( _terminated ) {
+			// loop has drained the queue for the last time. If the task is still
+			// there nobody will run it
+			return ! _tasks.remove(task);
+		}
+		if ( ! inEventLoop() )
+			_selector.wakeup();
+		return true;
+    }
+
+    // loop thread only. The caller keeps track of it, the handler must not be added twice
+    void addHandler(Handler handler) {
+    	_handlers.add(handler);
+    }
+
+    // loop thread only
+    void removeHandler(Handler handler) {
+    	_handlers.remove(handler);
+    }
+
+    void shutdown() {
+		_running = false;
+		_selector.wakeup();
+		if ( ! inEventLoop() ) {
+			try {
+				_thread.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+    }
+
+    @Override
+    public void run() {
+		while ( _running ) {
+			long now = System.nanoTime();
+			long next = Long.MAX_VALUE;
+			for ( int i = 0; i < _handlers.size(); i++ )
+				next = Math.min( next, _handlers.get(i).handleTimers(now) );
+
+			try {
+				if ( ! _tasks.isEmpty() )
+					_selector.selectNow();
+				else if ( next == Long.MAX_VALUE )
+					_selector.select();
+				else
+					// round up, so we do not wake up just before the deadline
+					_selector.select( Math.max( 1L, ( next - now + 999999L ) / 1000000L ) );
+			} catch (IOException e) {
+				break;
+			}
+
+			Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+			while ( it.hasNext() ) {
+				SelectionKey key = it.next();
+				it.remove();
+				if ( key.isValid() )
+					((Handler)key.attachment()).handleReady(key);
+			}
+
+			_runTasks();
+		}
+
+		_terminated = true;
+		_runTasks();
+		for ( int i = 0; i < _handlers.size(); i++ )
+			_handlers.get(i).handleShutdown();
+		_handlers.clear();
+		try {
+			_selector.close();
+		} catch (IOException e) {
+			// nothing more can be done
+		}
+    }
+
+    private void _runTasks() {
+		Runnable task;
+		while ( ( task = _tasks.poll() ) != null )
+			task.run();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small group of event-loop threads shared by ModbusTcpAsyncClient objects.
+ * Each thread multiplexes its connections with one Selector, so a couple of
+ * threads are enough for hundreds of PLCs.
+ *
+ * @author Robert K.
+ *
+ */
+public class ModbusEventLoopGroup {
+
+    private final ModbusEventLoop[] _loops;
+    private final AtomicInteger     _next;
+
+    /**
+     * Starts the event-loop threads.
+     *
+     * @param  threads    number of event-loop threads. Usually 1 or 2 is enough
+     *
+     * @throws IOException when the Selector cannot be opened
+     */
+    public ModbusEventLoopGroup(int threads) throws IOException {
+		_loops = new ModbusEventLoop[ Math.max(1, threads) ];
+		_next  = new AtomicInteger();
+		for ( int i = 0; i < _loops.length; i++ ) {
+			try {
+				_loops[i] = new ModbusEventLoop("ModbusEventLoop-" + i);
+			} catch (IOException ex) {
+				for ( int j = 0; j < i; j++ )
+					_loops[j].shutdown();
+				throw ex;
+			}
+		}
+    }
+
+    // loops are assigned to clients round robin
+    ModbusEventLoop next() {
+    	return _loops[ ( _next.getAndIncrement() & 0x7FFFFFFF ) % _loops.length ];
+    }
+
+    /**
+     * Stops all event-loop threads. Connections are closed and requests
+     * which are still waiting complete as failed.
+     */
+    public void shutdown() {
+		for ( int i = 0; i < _loops.length; i++ )
+			_loops[i].shutdown();
+    }
+}
@@ -0,0 +1,41 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+/**
+ * Device specific step which removes values read from a FIFO queue. By the MODBUS specification
+ * read FIFO queue (0x18) does not clear the queue, each device has its own way to do it, e.g.
+ * a write of the number of read values to a register. See mbtcDrainFifoQueue of ModbusTcpClient.
+ *
+ * @author Robert K.
+ *
+ */
+public interface ModbusFifoAcknowledge {
+
+    /**
+     * Called after the sink got the values of a response and before the queue is read again.
+     *
+     * @param  client      the client draining the queue, send the acknowledge request with it
+     * @param  fifoAddress FIFO pointer address the values come from
+     * @param  count       number of values read, 1 to 31
+     * @param  deviceID    modbus device id given to mbtcDrainFifoQueue
+     * @return RET_OK (0) when the values are removed from the queue, any other code of
+     *         ModbusTcpClient stops draining and is returned by mbtcDrainFifoQueue
+     *
+     */
+    int acknowledge(ModbusTcpClient client, int fifoAddress, int count, int deviceID);
+}
@@ -0,0 +1,39 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+/**
+ * Receives values read from a FIFO queue of the device with read FIFO queue (0x18) function.
+ * See mbtcReadFifoQueue and mbtcDrainFifoQueue of ModbusTcpClient.
+ *
+ * @author Robert K.
+ *
+ */
+public interface ModbusFifoSink {
+
+    /**
+     * Called once per read FIFO queue response which is not empty. The values array is
+     * reused by the client and valid only until this method returns - copy what you need.
+     *
+     * @param  fifoAddress FIFO pointer address the values come from
+     * @param  values      FIFO values, signed 16 bit like registers of mbtcReadRegisters, oldest first
+     * @param  count       number of valid values, 1 to 31
+     * @return true to continue draining the queue, false to stop after this response
+     *
+     */
+    boolean onFifoValues(int fifoAddress, int[] values, int count);
+}
@@ -0,0 +1,115 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+/**
+ * Cost model used by ModbusTagDatabase.compile to decide if two tags with a gap between
+ * them are read by one request. Reading the gap costs its bytes, a separate request costs
+ * a round trip and the bytes of one more request and response header. The gap is read
+ * when it is cheaper, as long as the request stays within the maximum quantity of its
+ * function code.
+ * <p>
+ * Round trip measured by ModbusTcpClient.mbtcEcho (mbtcGetRoundTripNanos / 1000) is a good
+ * value for setRoundTripMicros.
+ *
+ * @author Robert K.
+ *
+ */
+public class ModbusReadCost {
+
+    // MBAP + read request PDU (7 + 5) and MBAP + function code + byte count (7 + 2)
+    static final int REQUEST_OVERHEAD_BYTES = 21;
+
+    private double _roundTripMicros = 1000;
+    private double _byteMicros      = 1;
+    private final int[] _maxQuantities = { 0,
+    		ModbusDeviceCapabilities.MAX_READ_BITS, ModbusDeviceCapabilities.MAX_READ_BITS,
+    		ModbusDeviceCapabilities.MAX_READ_REGISTERS, ModbusDeviceCapabilities.MAX_READ_REGISTERS };
+
+    /**
+     * @return cost of one more request in microseconds, 1000 by default
+     */
+    public double roundTripMicros() {
+		return _roundTripMicros;
+    }
+
+    /**
+     * Sets the cost of one more request. Negative values are taken as 0 - gaps are then
+     * read only when they are shorter than request and response headers.
+     *
+     * @return this
+     */
+    public ModbusReadCost setRoundTripMicros(double roundTripMicros) {
+		_roundTripMicros = Math.max(0, roundTripMicros);
+		return this;
+    }
+
+    /**
+     * @return cost of one byte more in a response in microseconds, 1 by default
+     */
+    public double byteMicros() {
+		return _byteMicros;
+    }
+
+    /**
+     * Sets the cost of one byte more in a response - transfer time and the time the device
+     * needs to prepare it. Negative values are taken as 0.
+     *
+     * @return this
+     */
+    public ModbusReadCost setByteMicros(double byteMicros) {
+		_byteMicros = Math.max(0, byteMicros);
+		return this;
+    }
+
+    /**
+     * @param  functionCode   0x01, 0x02, 0x03 or 0x04 (ModbusTag table)
+     * @return maximum number of bits/registers in one request of the function
+     */
+    public int maxQuantity(int functionCode) {
+		return _maxQuantities[functionCode];
+    }
+
+    /**
+     * Sets the maximum number of bits/registers in one request of the read function.
+     * Values out of 1 to MODBUS specification limit are clamped.
+     *
+     * @param  functionCode   0x01, 0x02, 0x03 or 0x04 (ModbusTag table)
+     * @param  maxQuantity    maximum number of bits/registers
+     * @return this
+     * @throws IllegalArgumentException if the function code is not one of read functions
+     */
+    public ModbusReadCost setMaxQuantity(int functionCode, int maxQuantity) {
+		if ( functionCode < ModbusTag.COILS || functionCode > ModbusTag.INPUT_REGISTERS )
+			throw new IllegalArgumentException("bad read function code " + functionCode);
+		int limit = ( functionCode <= ModbusTag.DISCRETE_INPUTS ) ? ModbusDeviceCapabilities.MAX_READ_BITS : ModbusDeviceCapabilities.MAX_READ_REGISTERS;
+		_maxQuantities[functionCode] = Math.max(1, Math.min(limit, maxQuantity));
+		return this;
+    }
+
+    /**
+     * Tells if the gap between two tags should be read to save a request.
+     *
+     * @param  functionCode   0x01, 0x02, 0x03 or 0x04
+     * @param  gap            number of bits/registers between the tags
+     * @return true if reading the gap is cheaper than one more request
+     */
+    public boolean isGapCheaper(int functionCode, int gap) {
+		double gapBytes = ( functionCode <= ModbusTag.DISCRETE_INPUTS ) ? ( gap + 7 ) / 8 : 2.0 * gap;
+		return gapBytes * _byteMicros <= _roundTripMicros + REQUEST_OVERHEAD_BYTES * _byteMicros;
+    }
+}
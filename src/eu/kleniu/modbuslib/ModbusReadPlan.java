@@ -0,0 +1,298 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Read requests of a ModbusTagDatabase compiled once and polled many times with
+ * ModbusTcpClient.mbtcReadPlan. Values of coils and discrete inputs are read into one
+ * boolean[] buffer, values of holding and input registers into one int[] buffer.
+ * Each request has its place in the buffer and each tag has its offset there, so tags are
+ * found without any lookup during the scan. Immutable, one plan can be used by many clients.
+ * Typed values of the tags are decoded from the buffers by longValue, doubleValue or decode.
+ * <p>
+ * Tags are merged in requests either exactly (only overlapping and adjacent tags) or by
+ * ModbusReadCost, which reads gaps between tags when it is cheaper than one more request.
+ * Known illegal addresses of the device are never read and its read boundaries are never
+ * crossed. Tag which has an illegal address gets its own request, so it does not break the others.
+ *
+ * @author Robert K.
+ *
+ */
+public final class ModbusReadPlan {
+
+    // requests ordered by table and address
+    private final byte[] _functionCodes;
+    private final int[]  _startAddresses;
+    private final int[]  _quantities;
+    private final int[]  _bufferOffsets;
+    private final int    _bitBufferLength;
+    private final int    _wordBufferLength;
+
+    // tags in the order of the database
+    private final ModbusTag[] _tags;
+    private final int[]  _tagOffsets;
+    private final int[]  _tagRequests;
+    private final HashMap<String, Integer> _tagIndex = new HashMap<String, Integer>();
+
+    /**
+     * @param  tags     tags to be read
+     * @param  cost     cost model, null - only overlapping and adjacent tags are merged
+     * @param  device   capabilities of the device (maximum quantities and illegal addresses) or null
+     */
+    ModbusReadPlan(final ModbusTag[] tags, ModbusReadCost cost, ModbusDeviceCapabilities device) {
+		Integer[] order = new Integer[tags.length];
+		int n = 0;
+		int bits = 0;
+		int words = 0;
+
+		_tags = tags.clone();
+		_tagOffsets  = new int[tags.length];
+		_tagRequests = new int[tags.length];
+		for ( int i = 0; i < tags.length; i++ ) {
+			order[i] = i;
+			_tagIndex.put(tags[i].name(), i);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				ModbusTag ta = tags[a];
+				ModbusTag tb = tags[b];
+				if ( ta.table() != tb.table() )
+					return ta.table() - tb.table();
+				return ta.address() - tb.address();
+			}
+		});
+
+		// there are never more requests than tags
+		byte[] functionCodes  = new byte[tags.length];
+		int[]  startAddresses = new int[tags.length];
+		int[]  quantities     = new int[tags.length];
+		int[]  bufferOffsets  = new int[tags.length];
+		boolean[] isolated    = new boolean[tags.length]; // request of a tag with illegal address
+		for ( int k = 0; k < order.length; k++ ) {
+			ModbusTag tag = tags[order[k]];
+			int table = tag.table();
+			int end = tag.address() + tag.quantity();
+			boolean hole = device != null && device.hasIllegalAddress(table, tag.address(), tag.quantity());
+			int r = n - 1;
+
+			// the tag extends the current request if it still fits in it and nothing illegal is read
+			if ( r >= 0 && functionCodes[r] == table && ! hole && ! isolated[r]
+					&& Math.max(end, startAddresses[r] + quantities[r]) - startAddresses[r] <= _maxQuantity(table, cost, device)
+					&& _isGapRead(table, startAddresses[r] + quantities[r], tag.address(), cost, device)
+					&& ! _crossesBoundary(table, startAddresses[r], Math.max(end, startAddresses[r] + quantities[r]), device) ) {
+				quantities[r] = Math.max(end, startAddresses[r] + quantities[r]) - startAddresses[r];
+			}
+			else {
+				r = n++;
+				functionCodes[r]  = (byte)table;
+				startAddresses[r] = tag.address();
+				quantities[r]     = tag.quantity();
+				isolated[r]       = hole;
+			}
+			_tagRequests[order[k]] = r;
+		}
+
+		// place of each request in its buffer
+		for ( int r = 0; r < n; r++ ) {
+			if ( functionCodes[r] <= ModbusTag.DISCRETE_INPUTS ) {
+				bufferOffsets[r] = bits;
+				bits += quantities[r];
+			}
+			else {
+				bufferOffsets[r] = words;
+				words += quantities[r];
+			}
+		}
+		for ( int i = 0; i < tags.length; i++ ) {
+			int r = _tagRequests[i];
+			_tagOffsets[i] = bufferOffsets[r] + tags[i].address() - startAddresses[r];
+		}
+
+		_functionCodes    = Arrays.copyOf(functionCodes, n);
+		_startAddresses   = Arrays.copyOf(startAddresses, n);
+		_quantities       = Arrays.copyOf(quantities, n);
+		_bufferOffsets    = Arrays.copyOf(bufferOffsets, n);
+		_bitBufferLength  = bits;
+		_wordBufferLength = words;
+    }
+
+    private static int _maxQuantity(int table, ModbusReadCost cost, ModbusDeviceCapabilities device) {
+		int max;
+
+		if ( cost != null )
+			max = cost.maxQuantity(table);
+		else
+			max = ( table <= ModbusTag.DISCRETE_INPUTS ) ? ModbusDeviceCapabilities.MAX_READ_BITS : ModbusDeviceCapabilities.MAX_READ_REGISTERS;
+		if ( device != null )
+			max = Math.min( max, ( table <= ModbusTag.DISCRETE_INPUTS ) ? device.maxReadBits() : device.maxReadRegisters() );
+		return max;
+    }
+
+    // request ending at requestEnd may be extended up to the tag at tagAddress
+    private static boolean _isGapRead(int table, int requestEnd, int tagAddress, ModbusReadCost cost, ModbusDeviceCapabilities device) {
+		int gap = tagAddress - requestEnd;
+
+		if ( gap <= 0 )
+			return true;
+		if ( cost == null || ! cost.isGapCheaper(table, gap) )
+			return false;
+		return device == null || ! device.hasIllegalAddress(table, requestEnd, gap);
+    }
+
+    private static boolean _crossesBoundary(int table, int startAddress, int end, ModbusDeviceCapabilities device) {
+		return device != null && device.hasReadBoundary(table, startAddress, end - startAddress);
+    }
+
+    /**
+     * @return number of read requests sent in one scan
+     */
+    public int requestCount() {
+		return _functionCodes.length;
+    }
+
+    /**
+     * @return function code of the request (0x01, 0x02, 0x03 or 0x04), the same as ModbusTag table
+     */
+    public int functionCode(int request) {
+		return _functionCodes[request];
+    }
+
+    /**
+     * @return address of the first bit/register read by the request
+     */
+    public int startAddress(int request) {
+		return _startAddresses[request];
+    }
+
+    /**
+     * @return number of bits/registers read by the request
+     */
+    public int quantity(int request) {
+		return _quantities[request];
+    }
+
+    /**
+     * @return index of the first value of the request in the bit or word buffer
+     */
+    public int bufferOffset(int request) {
+		return _bufferOffsets[request];
+    }
+
+    /**
+     * @return length of boolean[] buffer for coils and discrete inputs, 0 if there are none
+     */
+    public int bitBufferLength() {
+		return _bitBufferLength;
+    }
+
+    /**
+     * @return length of int[] buffer for holding and input registers, 0 if there are none
+     */
+    public int wordBufferLength() {
+		return _wordBufferLength;
+    }
+
+    /**
+     * @return number of tags
+     */
+    public int tagCount() {
+		return _tags.length;
+    }
+
+    /**
+     * @return tag of given index, tags keep the order of the database
+     */
+    public ModbusTag tag(int tagIndex) {
+		return _tags[tagIndex];
+    }
+
+    /**
+     * @return index of the tag of given name or -1. Look it up once, not in every scan
+     */
+    public int indexOf(String name) {
+		Integer index = _tagIndex.get(name);
+		return ( index != null ) ? index : -1;
+    }
+
+    /**
+     * @return index of the first value of the tag in the bit or word buffer
+     */
+    public int offset(int tagIndex) {
+		return _tagOffsets[tagIndex];
+    }
+
+    /**
+     * @return index of the request which reads the tag
+     */
+    public int request(int tagIndex) {
+		return _tagRequests[tagIndex];
+    }
+
+    /**
+     * @param  words      word buffer of the scan, see ModbusTcpClient.mbtcReadPlan
+     * @return value of a numeric register tag in its type and word order, floats are truncated
+     * @throws IllegalArgumentException if the tag is BOOL or STRING
+     */
+    public long longValue(int tagIndex, int[] words) {
+		ModbusTag tag = _tags[tagIndex];
+		return ModbusDecoder.longValue(words, _tagOffsets[tagIndex], tag.type(), tag.wordOrder());
+    }
+
+    /**
+     * @param  words      word buffer of the scan, see ModbusTcpClient.mbtcReadPlan
+     * @return value of a numeric register tag in its type and word order
+     * @throws IllegalArgumentException if the tag is BOOL or STRING
+     */
+    public double doubleValue(int tagIndex, int[] words) {
+		ModbusTag tag = _tags[tagIndex];
+		return ModbusDecoder.doubleValue(words, _tagOffsets[tagIndex], tag.type(), tag.wordOrder());
+    }
+
+    /**
+     * @param  words      word buffer of the scan, see ModbusTcpClient.mbtcReadPlan
+     * @return characters of a register tag up to the first zero character
+     */
+    public String stringValue(int tagIndex, int[] words) {
+		return ModbusDecoder.string(words, _tagOffsets[tagIndex], _tags[tagIndex].quantity());
+    }
+
+    /**
+     * Decodes all tags of the scan at once into values indexed like tags. BOOL tags give
+     * 0 or 1, STRING tags give NaN, the other ones their value in their type and word order.
+     * Nothing is allocated, so it can follow every mbtcReadPlan.
+     *
+     * @param  bits       bit buffer of the scan, may be null if bitBufferLength() is 0
+     * @param  words      word buffer of the scan, may be null if wordBufferLength() is 0
+     * @param  values     buffer of at least tagCount() elements
+     */
+    public void decode(boolean[] bits, int[] words, double[] values) {
+		for ( int i = 0; i < _tags.length; i++ ) {
+			ModbusTag tag = _tags[i];
+			if ( tag.type() == ModbusDataType.BOOL )
+				values[i] = bits[_tagOffsets[i]] ? 1 : 0;
+			else if ( tag.type() == ModbusDataType.STRING )
+				values[i] = Double.NaN;
+			else
+				values[i] = ModbusDecoder.doubleValue(words, _tagOffsets[i], tag.type(), tag.wordOrder());
+		}
+    }
+}
@@ -0,0 +1,127 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+/**
+ * Symbolic name of a value in one of MODBUS tables: table, address of its first element,
+ * data type and word order. Tables are identified by the function code reading them.
+ * Immutable.
+ *
+ * @author Robert K.
+ *
+ */
+public final class ModbusTag {
+
+    public static final int COILS             = 0x01;
+    public static final int DISCRETE_INPUTS   = 0x02;
+    public static final int HOLDING_REGISTERS = 0x03;
+    public static final int INPUT_REGISTERS   = 0x04;
+
+    public static final int MAX_STRING_REGISTERS = 125; // a tag must fit in one read request
+
+    private final String _name;
+    private final int    _table;
+    private final int    _address;
+    private final ModbusDataType  _type;
+    private final ModbusWordOrder _wordOrder;
+    private final int    _quantity;
+
+    /**
+     * Tag of any type but STRING.
+     *
+     * @throws IllegalArgumentException see ModbusTag(String, int, int, ModbusDataType, ModbusWordOrder, int)
+     */
+    public ModbusTag(String name, int table, int address, ModbusDataType type, ModbusWordOrder wordOrder) {
+		this(name, table, address, type, wordOrder, ( type != null ) ? type.registers() : 0);
+    }
+
+    /**
+     * @param  name       unique name of the tag
+     * @param  table      COILS, DISCRETE_INPUTS, HOLDING_REGISTERS or INPUT_REGISTERS
+     * @param  address    address of the first bit/register, 0 to 65535
+     * @param  type       BOOL for coils and discrete inputs, any other type for registers
+     * @param  wordOrder  layout of values wider than one register, null means ABCD
+     * @param  registers  number of registers of STRING tag, 1 to 125. For other types it must
+     *                    match the type
+     * @throws IllegalArgumentException if the name is empty or any other parameter is out of range
+     */
+    public ModbusTag(String name, int table, int address, ModbusDataType type, ModbusWordOrder wordOrder, int registers) {
+		if ( name == null || name.isEmpty() )
+			throw new IllegalArgumentException("tag name is empty");
+		if ( table < COILS || table > INPUT_REGISTERS )
+			throw new IllegalArgumentException(name + ": bad table " + table);
+		if ( type == null || type.isBit() != ( table <= DISCRETE_INPUTS ) )
+			throw new IllegalArgumentException(name + ": type " + type + " does not match table " + table);
+		if ( ( type == ModbusDataType.STRING ) ? ( registers < 1 || registers > MAX_STRING_REGISTERS ) : registers != type.registers() )
+			throw new IllegalArgumentException(name + ": bad length " + registers + " of " + type);
+		if ( address < 0 || address + registers > 65536 )
+			throw new IllegalArgumentException(name + ": address " + address + " out of range");
+		_name = name;
+		_table = table;
+		_address = address;
+		_type = type;
+		_wordOrder = ( wordOrder != null ) ? wordOrder : ModbusWordOrder.ABCD;
+		_quantity = registers;
+    }
+
+    /**
+     * @return name of the tag
+     */
+    public String name() {
+		return _name;
+    }
+
+    /**
+     * @return COILS, DISCRETE_INPUTS, HOLDING_REGISTERS or INPUT_REGISTERS
+     */
+    public int table() {
+		return _table;
+    }
+
+    /**
+     * @return address of the first bit/register
+     */
+    public int address() {
+		return _address;
+    }
+
+    /**
+     * @return data type
+     */
+    public ModbusDataType type() {
+		return _type;
+    }
+
+    /**
+     * @return word order of values wider than one register
+     */
+    public ModbusWordOrder wordOrder() {
+		return _wordOrder;
+    }
+
+    /**
+     * @return number of bits/registers taken by the tag
+     */
+    public int quantity() {
+		return _quantity;
+    }
+
+    @Override
+    public String toString() {
+		return _name + " " + _table + ":" + _address + " " + _type + ( _quantity > 1 ? "[" + _quantity + "] " + _wordOrder : "" );
+    }
+}
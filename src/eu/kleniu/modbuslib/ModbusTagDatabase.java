@@ -0,0 +1,220 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Tags of one device by name. The database is edited while the application is configured
+ * and compiled into an immutable ModbusReadPlan, which is then polled cyclically.
+ * It is not thread safe.
+ * <p>
+ * CSV file has one tag in each line:
+ * <pre>
+ * # name, table, address, type, word order, registers
+ * pump1.running, coil, 10
+ * pump1.speed, holding, 100, FLOAT32, CDAB
+ * pump1.name, holding, 200, STRING, , 8
+ * </pre>
+ * Table is coil, discrete, holding or input (or 0x, 1x, 4x, 3x). Type is BOOL for coils
+ * and discrete inputs and INT16 for registers when not given, word order is ABCD when not given.
+ * Registers are given only for STRING. Empty lines and lines starting with # are skipped, and so
+ * is the first of the other lines when its first field is "name" (the header).
+ *
+ * @author Robert K.
+ *
+ */
+public class ModbusTagDatabase {
+
+    private final List<ModbusTag> _tags = new ArrayList<ModbusTag>();
+    private final HashMap<String, ModbusTag> _byName = new HashMap<String, ModbusTag>();
+
+    /**
+     * Loads tags from CSV file, see the class description.
+     *
+     * @param  path  CSV file in UTF-8
+     * @return database with tags of the file
+     * @throws IOException if the file cannot be read or a line is not a valid tag.
+     *                     The message tells the line number
+     */
+    public static ModbusTagDatabase load(Path path) throws IOException {
+		Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+		try {
+			return load(reader);
+		} finally {
+			reader.close();
+		}
+    }
+
+    /**
+     * Loads tags in CSV format, see the class description. The reader is not closed.
+     *
+     * @param  reader  CSV lines
+     * @return database with tags read
+     * @throws IOException if reading fails or a line is not a valid tag.
+     *                     The message tells the line number
+     */
+    public static ModbusTagDatabase load(Reader reader) throws IOException {
+		ModbusTagDatabase database = new ModbusTagDatabase();
+		BufferedReader lines = ( reader instanceof BufferedReader ) ? (BufferedReader)reader : new BufferedReader(reader);
+		String line;
+		int lineNumber = 0;
+		boolean first = true;
+
+		while ( ( line = lines.readLine() ) != null ) {
+			lineNumber++;
+			line = line.trim();
+			if ( line.isEmpty() || line.startsWith("#") )
+				continue;
+			String[] fields = line.split(",", -1);
+			if ( first ) {
+				first = false;
+				if ( fields[0].trim().equalsIgnoreCase("name") )
+					continue;
+			}
+			try {
+				database.add( _parseTag(fields) );
+			} catch (IllegalArgumentException ex) {
+				throw new IOException("line " + lineNumber + ": " + ex.getMessage());
+			}
+		}
+		return database;
+    }
+
+    // name, table, address [, type [, word order [, registers]]]
+    private static ModbusTag _parseTag(String[] fields) {
+		String name;
+		int table;
+		int address;
+		ModbusDataType type;
+		ModbusWordOrder wordOrder = null;
+		int registers;
+
+		if ( fields.length < 3 || fields.length > 6 )
+			throw new IllegalArgumentException("3 to 6 fields expected");
+		name = fields[0].trim();
+		table = _parseTable(fields[1].trim());
+		try {
+			address = Integer.parseInt(fields[2].trim());
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException(name + ": bad address " + fields[2].trim());
+		}
+		type = ( table <= ModbusTag.DISCRETE_INPUTS ) ? ModbusDataType.BOOL : ModbusDataType.INT16;
+		if ( fields.length > 3 && ! fields[3].trim().isEmpty() )
+			type = ModbusDataType.valueOf( fields[3].trim().toUpperCase(Locale.ROOT) );
+		if ( fields.length > 4 && ! fields[4].trim().isEmpty() )
+			wordOrder = ModbusWordOrder.valueOf( fields[4].trim().toUpperCase(Locale.ROOT) );
+		registers = type.registers();
+		if ( fields.length > 5 && ! fields[5].trim().isEmpty() ) {
+			try {
+				registers = Integer.parseInt(fields[5].trim());
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException(name + ": bad number of registers " + fields[5].trim());
+			}
+		}
+		return new ModbusTag(name, table, address, type, wordOrder, registers);
+    }
+
+    private static int _parseTable(String table) {
+		String t = table.toLowerCase(Locale.ROOT);
+
+		if ( t.equals("coil") || t.equals("coils") || t.equals("0x") )
+			return ModbusTag.COILS;
+		if ( t.equals("discrete") || t.equals("discrete_input") || t.equals("discrete_inputs") || t.equals("1x") )
+			return ModbusTag.DISCRETE_INPUTS;
+		if ( t.equals("holding") || t.equals("holding_register") || t.equals("holding_registers") || t.equals("4x") )
+			return ModbusTag.HOLDING_REGISTERS;
+		if ( t.equals("input") || t.equals("input_register") || t.equals("input_registers") || t.equals("3x") )
+			return ModbusTag.INPUT_REGISTERS;
+		throw new IllegalArgumentException("bad table " + table);
+    }
+
+    /**
+     * Adds the tag.
+     *
+     * @throws IllegalArgumentException if there is a tag with the same name already
+     */
+    public void add(ModbusTag tag) {
+		if ( _byName.containsKey(tag.name()) )
+			throw new IllegalArgumentException(tag.name() + ": duplicate tag name");
+		_byName.put(tag.name(), tag);
+		_tags.add(tag);
+    }
+
+    /**
+     * @return tag of given name or null
+     */
+    public ModbusTag find(String name) {
+		return _byName.get(name);
+    }
+
+    /**
+     * @return tag number index in the order they were added
+     */
+    public ModbusTag tag(int index) {
+		return _tags.get(index);
+    }
+
+    /**
+     * @return number of tags
+     */
+    public int size() {
+		return _tags.size();
+    }
+
+    /**
+     * Compiles tags into the minimal number of read requests which read nothing but the tags.
+     *
+     * @return read plan of all tags in the database
+     */
+    public ModbusReadPlan compile() {
+		return new ModbusReadPlan( _tags.toArray(new ModbusTag[_tags.size()]), null, null );
+    }
+
+    /**
+     * Compiles tags into read requests which read also gaps between tags when it is cheaper
+     * than one more request.
+     *
+     * @param  cost     cost model of the requests
+     * @return read plan of all tags in the database
+     */
+    public ModbusReadPlan compile(ModbusReadCost cost) {
+		return compile(cost, null);
+    }
+
+    /**
+     * Compiles tags into read requests for the device. Requests are not longer than the device
+     * supports and never read its illegal addresses. Compile the plan again when the device
+     * capabilities change, the plan itself does not follow them.
+     *
+     * @param  cost     cost model of the requests, null - only overlapping and adjacent tags are merged
+     * @param  device   capabilities of the device, see ModbusTcpClient.mbtcGetCapabilities
+     * @return read plan of all tags in the database
+     */
+    public ModbusReadPlan compile(ModbusReadCost cost, ModbusDeviceCapabilities device) {
+		return new ModbusReadPlan( _tags.toArray(new ModbusTag[_tags.size()]), cost, device );
+    }
+}
@@ -0,0 +1,877 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous counterpart of ModbusTcpClient. Methods do not block, they return
+ * CompletableFuture which is completed by the event loop the client belongs to.
+ * Connection is opened on the first request and reopened when it breaks.
+ * Retry, reconnect and timeout parameters have the same meaning as in ModbusTcpClient.
+ * <p>
+ * Futures are completed on the event-loop thread, so do not block in the callbacks.
+ *
+ * @author Robert K.
+ *
+ */
+public abstract class ModbusTcpAsyncClient {
+
+    // ********************************************************************************************
+    // **** Private properties
+    // ********************************************************************************************
+    private static final int MBAP_LEN    = 7;   // MBAP Header is ALWAYS 7 bytes long!
+    private static final int MAX_PDU_LEN = 253; // maximum size of PDU according to MODBUS specification
+
+    private static final int ST_DISCONNECTED = 0;
+    private static final int ST_CONNECTING   = 1;
+    private static final int ST_CONNECTED    = 2;
+
+    private final ModbusEventLoop _loop;
+    private final LoopHandler     _handler;
+    private boolean               _handlerAdded; // _handler is in the loop. Loop thread only
+    private volatile ModbusTracer _tracer; // null - tracing is off
+    private SocketAddress _socAddress;
+    private SocketChannel _channel;
+    private SelectionKey  _key;
+    private int           _state;
+    private long          _connectDeadline;
+    private ByteBuffer    _txBuffer;    // request ADUs waiting to be written
+    private ByteBuffer    _rxBuffer;    // bytes read but not yet decoded
+    private final MbapFrameDecoder _frameDecoder;
+    private int           _transId;     // this is the value for MODBUS Transaction Identifier
+    private int            _soTimeout;
+    private int           _conTimeout;
+    private int           _tcpNoDelay;
+    private int            _keepAlive;
+    private int      _rawRequestRetry;
+    private int      _rawRequestReconnectAndRetry;
+    private int      _pipelineWindow;   // max number of requests in flight on the connection
+    private final ArrayDeque<AsyncRequest> _pending;    // not sent yet
+    private AsyncRequest[]                 _inFlight;   // sent and waiting for response
+    private int                            _inFlightCount;
+    private final ArrayList<CompletableFuture<Integer>> _connectWaiters;
+
+    /**
+     * Request waiting in the client queue. Subclasses decode the response
+     * and complete the future given to the caller.
+     */
+    private static abstract class AsyncRequest {
+    	final byte[] requestPDU;
+    	final byte   unitID;
+    	int  retriesLeft;
+    	int  reconnectsLeft;
+    	int  transId;
+    	long deadline;
+
+    	AsyncRequest(byte[] requestPDU, byte unitID) {
+    		this.requestPDU = requestPDU;
+    		this.unitID     = unitID;
+    	}
+
+    	// response PDU is in buffer between offset and offset + length
+    	abstract void complete(ByteBuffer buffer, int offset, int length);
+
+    	abstract void fail(int retCode);
+    }
+
+    private static final class ReadCoilsRequest extends AsyncRequest {
+    	final int quantity;
+    	final CompletableFuture<boolean[]> future = new CompletableFuture<boolean[]>();
+
+    	ReadCoilsRequest(byte[] requestPDU, byte unitID, int quantity) {
+    		super(requestPDU, unitID);
+    		this.quantity = quantity;
+    	}
+
+    	@Override
+    	void complete(ByteBuffer buffer, int offset, int length) {
+    		int byteCount = ( length > 1 ) ? ( buffer.get(offset + 1) & 0xFF ) : 0;
+
+    		if ( buffer.get(offset) != requestPDU[0] || byteCount < ( quantity + 7 ) / 8 || length < 2 + byteCount ) {
+    			future.complete(null);
+    			return;
+    		}
+    		boolean[] coils = new boolean[quantity];
+    		for ( int i = 0; i < quantity; i++ )
+    			coils[i] = ( ( buffer.get(offset + 2 + ( i >> 3 )) >> ( i & 7 ) ) & 1 ) != 0;
+    		future.complete(coils);
+    	}
+
+    	@Override
+    	void fail(int retCode) {
+    		future.complete(null);
+    	}
+    }
+
+    private static final class ReadRegistersRequest extends AsyncRequest {
+    	final int quantity;
+    	final CompletableFuture<int[]> future = new CompletableFuture<int[]>();
+
+    	ReadRegistersRequest(byte[] requestPDU, byte unitID, int quantity) {
+    		super(requestPDU, unitID);
+    		this.quantity = quantity;
+    	}
+
+    	@Override
+    	void complete(ByteBuffer buffer, int offset, int length) {
+    		int byteCount = ( length > 1 ) ? ( buffer.get(offset + 1) & 0xFF ) : 0;
+
+    		if ( buffer.get(offset) != requestPDU[0] || byteCount != quantity * 2 || length < 2 + byteCount ) {
+    			future.complete(null);
+    			return;
+    		}
+    		int[] registers = new int[quantity];
+    		for ( int i = 0; i < quantity; i++ )
+    			registers[i] = buffer.getShort(offset + 2 + 2 * i); // same sign handling as ModbusTcpClient
+    		future.complete(registers);
+    	}
+
+    	@Override
+    	void fail(int retCode) {
+    		future.complete(null);
+    	}
+    }
+
+    private static final class WriteRequest extends AsyncRequest {
+    	final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+
+    	WriteRequest(byte[] requestPDU, byte unitID) {
+    		super(requestPDU, unitID);
+    	}
+
+    	@Override
+    	void complete(ByteBuffer buffer, int offset, int length) {
+    		future.complete( buffer.get(offset) == requestPDU[0] ? ModbusTcpClient.RET_OK : ModbusTcpClient.RET_ERRXRE );
+    	}
+
+    	@Override
+    	void fail(int retCode) {
+    		future.complete(retCode);
+    	}
+    }
+
+    /**
+     * Glue between the event loop and the client. Kept private, so
+     * the loop callbacks are not part of the public API.
+     */
+    private final class LoopHandler implements ModbusEventLoop.Handler {
+    	@Override
+    	public void handleReady(SelectionKey key) {
+    		if ( key.isConnectable() ) {
+    			_finishConnect();
+    			return;
+    		}
+    		if ( key.isValid() && key.isReadable() )
+    			_onRead();
+    		if ( _key != null && _key.isValid() && _key.isWritable() )
+    			_flush();
+    	}
+
+    	@Override
+    	public long handleTimers(long now) {
+    		return _checkTimeouts(now);
+    	}
+
+    	@Override
+    	public void handleShutdown() {
+    		_closeChannel();
+    		_failAll(ModbusTcpClient.RET_ERRBRE);
+    		_completeConnectWaiters(ModbusTcpClient.RET_ERRCON);
+    	}
+    }
+
+    // ********************************************************************************************
+    // **** Private methods. All of them run on the event-loop thread
+    // ********************************************************************************************
+    // event loop and calling threads both trace, so each event is a new object (only when tracing is on)
+    private void _trace(int type, String message) {
+		ModbusTracer tracer = _tracer;
+		if ( tracer != null )
+			tracer.trace(new ModbusTraceEvent().set(type, message, 0, 0, 0, null));
+    }
+
+    private void _trace(int type, String message, long arg0) {
+		ModbusTracer tracer = _tracer;
+		if ( tracer != null )
+			tracer.trace(new ModbusTraceEvent().set(type, message, 1, arg0, 0, null));
+    }
+
+    private void _trace(int type, String message, long arg0, long arg1) {
+		ModbusTracer tracer = _tracer;
+		if ( tracer != null )
+			tracer.trace(new ModbusTraceEvent().set(type, message, 2, arg0, arg1, null));
+    }
+
+    private int _getTransId() {
+		if ( _transId < 65535 )
+		    _transId++;
+		else
+		    _transId=1;
+		return _transId;
+    }
+
+    /**
+     * Hands the request over to the event loop. Request fails at once when
+     * the client is not set up or the loop is down.
+     */
+    // loop thread only. The loop is searched once per connection, not for every request
+    private void _addHandler() {
+		if ( ! _handlerAdded ) {
+			_loop.addHandler(_handler);
+			_handlerAdded = true;
+		}
+    }
+
+    private void _submit(final AsyncRequest request) {
+		if ( _socAddress == null ) {
+			_trace(ModbusTraceEvent.ERROR, "_submit: mbtcSetup has not been invoked");
+			request.fail(ModbusTcpClient.RET_NOTSET);
+			return;
+		}
+		boolean accepted = _loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				request.retriesLeft    = _rawRequestRetry;
+				request.reconnectsLeft = _rawRequestReconnectAndRetry;
+				_addHandler();
+				_pending.add(request);
+				_pump();
+			}
+		});
+		if ( ! accepted ) {
+			_trace(ModbusTraceEvent.ERROR, "_submit: event loop is down");
+			request.fail(ModbusTcpClient.RET_ERRBRE);
+		}
+    }
+
+    /**
+     * Sends as many pending requests as the pipeline window allows.
+     * Connects first if there is no connection.
+     */
+    private void _pump() {
+		if ( _pending.isEmpty() )
+			return;
+		if ( _state == ST_DISCONNECTED ) {
+			_startConnect();
+			return;
+		}
+		if ( _state != ST_CONNECTED )
+			return;
+
+		long now = System.nanoTime();
+		while ( _inFlightCount < _pipelineWindow && ! _pending.isEmpty()
+				&& _txBuffer.remaining() >= MBAP_LEN + MAX_PDU_LEN ) {
+			AsyncRequest request = _pending.poll();
+			request.transId  = _getTransId();
+			request.deadline = now + _soTimeout * 1000000L;
+
+			// MBAP header + request PDU
+			_txBuffer.putShort( (short)request.transId );
+			_txBuffer.putShort( (short)0 );                               // protocol identifier
+			_txBuffer.putShort( (short)( request.requestPDU.length + 1 ) );
+			_txBuffer.put( request.unitID );
+			_txBuffer.put( request.requestPDU );
+
+			for ( int i = 0; i < _inFlight.length; i++ ) {
+				if ( _inFlight[i] == null ) {
+					_inFlight[i] = request;
+					break;
+				}
+			}
+			_inFlightCount++;
+			_trace(ModbusTraceEvent.MESSAGE, "_pump: request sent with transId = {}", request.transId);
+		}
+		_flush();
+    }
+
+    private void _flush() {
+		_txBuffer.flip();
+		try {
+			_channel.write(_txBuffer);
+		} catch (IOException ex) {
+			_txBuffer.clear();
+			_trace(ModbusTraceEvent.ERROR, "_flush: cannot write to the channel");
+			_connectionLost();
+			return;
+		}
+		_txBuffer.compact();
+		if ( _txBuffer.position() > 0 )
+			_key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		else
+			_key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void _onRead() {
+		int retval;
+		int pduLength;
+
+		try {
+			retval = _channel.read(_rxBuffer);
+		} catch (IOException ex) {
+			retval = -1;
+		}
+		if ( retval < 0 ) {
+			_trace(ModbusTraceEvent.ERROR, "_onRead: connection closed by peer");
+			_connectionLost();
+			return;
+		}
+
+		// one read may bring part of the frame or several frames
+		_rxBuffer.flip();
+		while ( ( pduLength = _frameDecoder.decode(_rxBuffer) ) != MbapFrameDecoder.NEED_MORE ) {
+			if ( pduLength == MbapFrameDecoder.BAD_FRAME ) {
+				// not a frame boundary - skip to the next thing which looks like MBAP header
+				int skipped = _frameDecoder.resync(_rxBuffer);
+				_trace(ModbusTraceEvent.ERROR, "_onRead: bad MBAP header, {} bytes skipped", skipped);
+				continue;
+			}
+
+			int transId = _frameDecoder.transId();
+			AsyncRequest request = null;
+			for ( int i = 0; i < _inFlight.length; i++ ) {
+				if ( _inFlight[i] != null && _inFlight[i].transId == transId ) {
+					request = _inFlight[i];
+					_inFlight[i] = null;
+					_inFlightCount--;
+					break;
+				}
+			}
+			if ( request != null )
+				request.complete( _rxBuffer, _frameDecoder.pduOffset(), pduLength );
+			else
+				_trace(ModbusTraceEvent.ERROR, "_onRead: response for unknown transId = {} ignored", transId);
+		}
+		_rxBuffer.compact();
+
+		_pump();
+    }
+
+    // returns the nearest deadline or Long.MAX_VALUE
+    private long _checkTimeouts(long now) {
+		long next = Long.MAX_VALUE;
+
+		if ( _state == ST_CONNECTING ) {
+			if ( now - _connectDeadline >= 0 ) {
+				_trace(ModbusTraceEvent.ERROR, "_checkTimeouts: connection timeout");
+				_connectionLost();
+			}
+			else {
+				next = _connectDeadline;
+			}
+		}
+
+		if ( _inFlightCount > 0 ) {
+			boolean resend = false;
+			boolean reconnect = false;
+			// walk backwards, so requests go back to the queue in the order they were sent
+			for ( int i = _inFlight.length - 1; i >= 0; i-- ) {
+				AsyncRequest request = _inFlight[i];
+				if ( request == null )
+					continue;
+				if ( now - request.deadline >= 0 ) {
+					_inFlight[i] = null;
+					_inFlightCount--;
+					request.retriesLeft--;
+					if ( request.retriesLeft > 0 ) {
+						_trace(ModbusTraceEvent.ERROR, "_checkTimeouts: no response for transId = {}. Retry ...", request.transId);
+						_pending.addFirst(request);
+						resend = true;
+					}
+					else if ( request.reconnectsLeft > 0 ) {
+						// connection may be half-open (device rebooted), as _sRequest we connect again
+						_trace(ModbusTraceEvent.ERROR, "_checkTimeouts: no response for transId = {}. Reconnecting ...", request.transId);
+						_pending.addFirst(request);
+						reconnect = true;
+					}
+					else {
+						_trace(ModbusTraceEvent.ERROR, "_checkTimeouts: no response for transId = {}. Giving up", request.transId);
+						request.fail(ModbusTcpClient.RET_ERRBRE);
+					}
+				}
+				else {
+					next = Math.min(next, request.deadline);
+				}
+			}
+			if ( reconnect ) {
+				_connectionLost();
+				// deadlines of the new connection and the requests sent on it
+				return _checkTimeouts(System.nanoTime());
+			}
+			if ( resend ) {
+				_pump();
+				next = Math.min(next, now + _soTimeout * 1000000L);
+			}
+		}
+		return next;
+    }
+
+    private void _startConnect() {
+		_closeChannel();
+		try {
+			_channel = SocketChannel.open();
+			_channel.configureBlocking(false);
+		} catch (IOException ex) {
+			_trace(ModbusTraceEvent.ERROR, "_startConnect: cannot open channel");
+			_connectionLost();
+			return;
+		}
+
+		// TCP_NODELAY and SO_KEEPALIVE as in ModbusTcpClient. If not supported we ignore it
+		try {
+			if ( _tcpNoDelay == 1 )
+				_channel.socket().setTcpNoDelay(true);
+			if ( _keepAlive == 1 )
+				_channel.socket().setKeepAlive(true);
+		} catch (SocketException ex) {
+			_trace(ModbusTraceEvent.ERROR, "_startConnect: cannot set socket options. Ignoring ...");
+		}
+
+		try {
+			_key = _channel.register(_loop.selector(), 0, _handler);
+			_state = ST_CONNECTING;
+			_connectDeadline = System.nanoTime() + _conTimeout * 1000000L;
+			if ( _channel.connect(_socAddress) )
+				_onConnected();
+			else
+				_key.interestOps(SelectionKey.OP_CONNECT);
+		} catch (IOException ex) {
+			_trace(ModbusTraceEvent.ERROR, "_startConnect: connection cannot be established");
+			_connectionLost();
+		}
+    }
+
+    private void _finishConnect() {
+		try {
+			if ( _channel.finishConnect() )
+				_onConnected();
+		} catch (IOException ex) {
+			_trace(ModbusTraceEvent.ERROR, "_finishConnect: connection cannot be established");
+			_connectionLost();
+		}
+    }
+
+    private void _onConnected() {
+		_state = ST_CONNECTED;
+		_key.interestOps(SelectionKey.OP_READ);
+		_txBuffer.clear();
+		_rxBuffer.clear();
+		_trace(ModbusTraceEvent.MESSAGE, "_onConnected: connected successfully");
+		_completeConnectWaiters(ModbusTcpClient.RET_OK);
+		_pump();
+    }
+
+    /**
+     * Closes the broken connection. Requests in flight go back to the queue
+     * and all queued requests use one reconnect attempt. Requests which
+     * have no attempts left fail, for the rest we connect again.
+     */
+    private void _connectionLost() {
+		boolean wasConnected = ( _state == ST_CONNECTED );
+
+		_closeChannel();
+		if ( ! wasConnected )
+			_completeConnectWaiters(ModbusTcpClient.RET_ERRCON);
+
+		for ( int i = _inFlight.length - 1; i >= 0; i-- ) {
+			if ( _inFlight[i] != null ) {
+				_pending.addFirst(_inFlight[i]);
+				_inFlight[i] = null;
+			}
+		}
+		_inFlightCount = 0;
+
+		int n = _pending.size();
+		for ( int i = 0; i < n; i++ ) {
+			AsyncRequest request = _pending.poll();
+			request.reconnectsLeft--;
+			if ( request.reconnectsLeft < 0 )
+				request.fail(ModbusTcpClient.RET_ERRBRE);
+			else
+				_pending.add(request);
+		}
+
+		if ( ! _pending.isEmpty() ) {
+			_trace(ModbusTraceEvent.MESSAGE, "_connectionLost: reconnecting ...");
+			_startConnect();
+		}
+    }
+
+    private void _closeChannel() {
+		if ( _key != null ) {
+			_key.cancel();
+			_key = null;
+		}
+		if ( _channel != null ) {
+			try {
+				_channel.close();
+			} catch (IOException ex) {
+				// channel is gone anyway
+			}
+			_channel = null;
+		}
+		_state = ST_DISCONNECTED;
+    }
+
+    private void _failAll(int retCode) {
+		for ( int i = 0; i < _inFlight.length; i++ ) {
+			if ( _inFlight[i] != null ) {
+				_inFlight[i].fail(retCode);
+				_inFlight[i] = null;
+			}
+		}
+		_inFlightCount = 0;
+
+		AsyncRequest request;
+		while ( ( request = _pending.poll() ) != null )
+			request.fail(retCode);
+    }
+
+    private void _completeConnectWaiters(int retCode) {
+		for ( int i = 0; i < _connectWaiters.size(); i++ )
+			_connectWaiters.get(i).complete(retCode);
+		_connectWaiters.clear();
+    }
+
+    private byte[] _readRequestPDU(byte functionCode, int startAddress, int quantity) {
+		byte[] requestPDU = new byte[5];
+		ByteBuffer.wrap(requestPDU).put(functionCode).putShort((short)startAddress).putShort((short)quantity);
+		return requestPDU;
+    }
+
+    private boolean _checkReadRange(String funName, int startAddress, int quantity, int maxQuantity) {
+		if( ( startAddress < 0 ) || ( startAddress > 65535 ) ) {
+			if ( _tracer != null )
+				_trace(ModbusTraceEvent.ERROR, funName + ": address out of range <0,65535> - startAddress={}", startAddress);
+			return false;
+		}
+		if( ( quantity < 1 ) || ( quantity > maxQuantity ) ) {
+		    if ( _tracer != null )
+		    	_trace(ModbusTraceEvent.ERROR, funName + ": quantity out of range <1,{}> - quantity={}", maxQuantity, quantity);
+		    return false;
+		}
+		return true;
+    }
+
+    // ********************************************************************************************
+    // **** Public methods
+    // ********************************************************************************************
+
+    /**
+     * Displays debug messages when the object was created with debugLevel 9 and no other
+     * tracer was set. Override it to display formatted messages in your application.
+     * Default implementation does nothing.
+     * It is called from the event-loop thread and from the calling threads.
+     *
+     * @param  debMsg formatted debugging message to be displayed in your application
+     *
+     */
+    public void displayLog(String debMsg) {
+    }
+
+    /**
+     * Sets the receiver of trace events. Events are not created at all when tracer is null,
+     * so switched off tracing costs one branch per trace point.
+     *
+     * @param  tracer receiver of trace events or null to switch tracing off
+     *
+     */
+    public void mbtcSetTracer(ModbusTracer tracer) {
+		_tracer = tracer;
+    }
+
+
+    /**
+     * Initializes private properties of the object with the default values.
+     * Default values can be changed in mbtcSetup method.
+     *
+     * @param  group      event-loop group which will serve the connection
+     * @param  debugLevel value 0 indicates no debugging messages. Value 9 will call displayLog with formatted trace events.
+     *
+     */
+    public ModbusTcpAsyncClient (ModbusEventLoopGroup group, int debugLevel) {
+		_loop    = group.next();
+		_handler = new LoopHandler();
+		_frameDecoder = new MbapFrameDecoder();
+		if ( debugLevel >= 9 ) {
+			_tracer = new ModbusTracer() {
+				@Override
+				public void trace(ModbusTraceEvent event) {
+					displayLog(event.toString());
+				}
+			};
+		}
+		_socAddress = null;
+		_channel    = null;
+		_key        = null;
+		_state      = ST_DISCONNECTED;
+		_transId    = 1;
+
+		_soTimeout  = 1000; // 1000 ms for response timeout
+	    _conTimeout = 1000; // 1000 ms for connection timeout
+	    _tcpNoDelay = 1;    // set tcpNoDelay for MODBUS communication
+	    _keepAlive  = 1;    // set tcp keepAlive for MODBUS communication
+
+		_rawRequestRetry = 3;
+		_rawRequestReconnectAndRetry = 2;
+		_pipelineWindow = 1;              // no pipelining unless requested in mbtcSetup
+
+		_pending        = new ArrayDeque<AsyncRequest>();
+		_connectWaiters = new ArrayList<CompletableFuture<Integer>>();
+		_inFlight       = new AsyncRequest[_pipelineWindow];
+		_inFlightCount  = 0;
+		_txBuffer = ByteBuffer.allocate( ( MBAP_LEN + MAX_PDU_LEN ) * _pipelineWindow );
+		_rxBuffer = ByteBuffer.allocate( ( MBAP_LEN + MAX_PDU_LEN ) * _pipelineWindow );
+    }
+
+
+    /**
+     * Setup the initial parameters for TCP connection. Parameters are the same as for
+     * ModbusTcpClient.mbtcSetup. Call it before the first request and do not call it
+     * while requests are running.
+     *
+     * @param  host       a String value with the IP address or DNS name of the PLC Master
+     * @param  port       an int value with the TCP port
+     * @param  additionalParams (varargs) reqNum, reconNum, soTimeout, conTimeout, tcpNoDelay, keepAlive, pipeline
+     *                    - see ModbusTcpClient.mbtcSetup
+     * @return RET_OK (0)      on success<br>
+     *         RET_BADARG (11) when bad arguments has been passed to InetSocketAddress constructor<br>
+     *         RET_SECRES (12) when DNS name cannot be resolved<br>
+     *
+     */
+    public int mbtcSetup(String host, int port, int... additionalParams ) {
+		try {
+		    _socAddress = new InetSocketAddress(host,port);
+		} catch(IllegalArgumentException ex) {
+		      _socAddress = null;
+		      _trace(ModbusTraceEvent.ERROR, "mbtcSetup: illegal arguments in InetSocketAddress");
+		      return ModbusTcpClient.RET_BADARG;
+		} catch(SecurityException ex) {
+		      _socAddress = null;
+		      if ( _tracer != null )
+		    	  _trace(ModbusTraceEvent.ERROR, "mbtcSetup: unable to resolve " + host);
+		      return ModbusTcpClient.RET_SECRES;
+		}
+
+		if( additionalParams.length >= 1 ) _rawRequestRetry             = additionalParams[0];
+		if( additionalParams.length >= 2 ) _rawRequestReconnectAndRetry = additionalParams[1];
+		if( additionalParams.length >= 3 ) _soTimeout                   = additionalParams[2];
+		if( additionalParams.length >= 4 ) _conTimeout                  = additionalParams[3];
+		if( additionalParams.length >= 5 ) _tcpNoDelay                  = additionalParams[4];
+		if( additionalParams.length >= 6 ) _keepAlive                   = additionalParams[5];
+		if( additionalParams.length >= 7 ) _pipelineWindow              = Math.max(1, Math.min(additionalParams[6], 255));
+
+		if ( _inFlight.length != _pipelineWindow ) {
+			_inFlight = new AsyncRequest[_pipelineWindow];
+			_txBuffer = ByteBuffer.allocate( ( MBAP_LEN + MAX_PDU_LEN ) * _pipelineWindow );
+			_rxBuffer = ByteBuffer.allocate( ( MBAP_LEN + MAX_PDU_LEN ) * _pipelineWindow );
+		}
+
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcSetup: ### Network parameters:");
+		if ( _tracer != null )
+			_trace(ModbusTraceEvent.MESSAGE, "mbtcSetup:                         host = \"" + host + "\"");
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcSetup:                         port = {}", port);
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcSetup:             _rawRequestRetry = {}", _rawRequestRetry);
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcSetup: _rawRequestReconnectAndRetry = {}", _rawRequestReconnectAndRetry);
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcSetup:                   _soTimeout = {}", _soTimeout);
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcSetup:                  _conTimeout = {}", _conTimeout);
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcSetup:              _pipelineWindow = {}", _pipelineWindow);
+
+		return ModbusTcpClient.RET_OK;
+    }
+
+
+    /**
+     * Connects to the MODBUS master. Calling it is optional, the first request connects as well.
+     *
+     * @return future completed with<br>
+     *         RET_OK (0)      on success<br>
+     *         RET_NOTSET (21) when mbtcSetup has not been invoked<br>
+     *         RET_ERRCON (22) cannot connect to MODBUS master<br>
+     *
+     */
+    public CompletableFuture<Integer> mbtcConnect() {
+		final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+
+		if ( _socAddress == null ) {
+			future.complete(ModbusTcpClient.RET_NOTSET);
+			return future;
+		}
+		boolean accepted = _loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				_addHandler();
+				if ( _state == ST_CONNECTED ) {
+					future.complete(ModbusTcpClient.RET_OK);
+					return;
+				}
+				_connectWaiters.add(future);
+				if ( _state == ST_DISCONNECTED )
+					_startConnect();
+			}
+		});
+		if ( ! accepted )
+			future.complete(ModbusTcpClient.RET_ERRCON);
+		return future;
+    }
+
+
+    /**
+     * Disconnects from MODBUS master. Requests which are still waiting complete as failed.
+     *
+     * @return future completed with<br>
+     *         RET_OK (0)      on success<br>
+     *         RET_NOTCON (31) when there was no connection<br>
+     *
+     */
+    public CompletableFuture<Integer> mbtcDisconnect() {
+		final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+
+		boolean accepted = _loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				int retval = ( _state == ST_DISCONNECTED ) ? ModbusTcpClient.RET_NOTCON : ModbusTcpClient.RET_OK;
+				_closeChannel();
+				_failAll(ModbusTcpClient.RET_ERRBRE);
+				_completeConnectWaiters(ModbusTcpClient.RET_ERRCON);
+				if ( _handlerAdded ) {
+					_loop.removeHandler(_handler);
+					_handlerAdded = false;
+				}
+				_trace(ModbusTraceEvent.MESSAGE, "mbtcDisconnect: disconnected");
+				future.complete(retval);
+			}
+		});
+		if ( ! accepted )
+			future.complete(ModbusTcpClient.RET_NOTCON);
+		return future;
+    }
+
+
+    /**
+     * Reads specified number of coils' status starting at given address.
+     *
+     * @param  startAddress    address of the first coil to read
+     * @param  quantity        number of coils to read
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return future completed with coils status or with null on error
+     *
+     */
+    public CompletableFuture<boolean[]> mbtcReadCoilsAsync( int startAddress, int quantity, int deviceID ) {
+		ReadCoilsRequest request;
+
+		if( ! _checkReadRange("mbtcReadCoilsAsync", startAddress, quantity, 2000) )
+			return CompletableFuture.completedFuture(null);
+
+		// for reading coils we use function 0x01
+		request = new ReadCoilsRequest( _readRequestPDU((byte)0x01, startAddress, quantity), (byte)deviceID, quantity );
+		_submit(request);
+		return request.future;
+    }
+
+
+    /**
+     * Reads specified number of registers starting at given address.
+     *
+     * @param  startAddress    address of the first register to read
+     * @param  quantity        number of registers to read
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return future completed with registers values or with null on error
+     *
+     */
+    public CompletableFuture<int[]> mbtcReadRegistersAsync( int startAddress, int quantity, int deviceID ) {
+		ReadRegistersRequest request;
+
+		if( ! _checkReadRange("mbtcReadRegistersAsync", startAddress, quantity, 125) )
+			return CompletableFuture.completedFuture(null);
+
+		// for reading registers we use function 0x03
+		request = new ReadRegistersRequest( _readRequestPDU((byte)0x03, startAddress, quantity), (byte)deviceID, quantity );
+		_submit(request);
+		return request.future;
+    }
+
+
+    /**
+     * Switches ON or OFF the coil at specified address.
+     *
+     * @param  coilNumber      address of the coil
+     * @param  coilState       desired state of the coil
+     * @param  deviceID        MODBUS Master device ID. Usually 0.
+     * @return future completed with<br>
+     *         RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the coil address is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *
+     */
+    public CompletableFuture<Integer> mbtcWriteSingleCoilAsync( int coilNumber, boolean coilState, int deviceID ) {
+		WriteRequest request;
+		byte[] requestPDU = new byte[5];
+
+		if( ( coilNumber < 0 ) || ( coilNumber >= 65535 ) ) {
+		    _trace(ModbusTraceEvent.ERROR, "mbtcWriteSingleCoilAsync: coil# out of range <0,65535) - coilNumber={}", coilNumber);
+		    return CompletableFuture.completedFuture(ModbusTcpClient.RET_ERRRAN);
+		}
+
+		// function 0x05, coil number, 0xFF00 = ON ; 0x0000 = OFF
+		ByteBuffer.wrap(requestPDU).put((byte)0x05).putShort((short)coilNumber).put( coilState ? (byte)0xff : (byte)0x00 ).put((byte)0x00);
+		request = new WriteRequest( requestPDU, (byte)deviceID );
+		_submit(request);
+		return request.future;
+    }
+
+
+    /**
+     * Set specified value in the register at specified address.
+     *
+     * @param  registerNumber   address of the register
+     * @param  registerNewValue new value of the register
+     * @param  deviceID         MODBUS Master device ID. Usually 0.
+     * @return future completed with<br>
+     *         RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the register address is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *
+     */
+    public CompletableFuture<Integer> mbtcWriteSingleRegisterAsync( int registerNumber, int registerNewValue, int deviceID ) {
+		WriteRequest request;
+		byte[] requestPDU = new byte[5];
+
+		if( ( registerNumber < 0 ) || ( registerNumber >= 65535 ) ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcWriteSingleRegisterAsync: register# out of range <0,65535) - registerNumber={}", registerNumber);
+			return CompletableFuture.completedFuture(ModbusTcpClient.RET_ERRRAN);
+		}
+
+		// function 0x06, register number, new value - HiByte first
+		ByteBuffer.wrap(requestPDU).put((byte)0x06).putShort((short)registerNumber).putShort((short)registerNewValue);
+		request = new WriteRequest( requestPDU, (byte)deviceID );
+		_submit(request);
+		return request.future;
+    }
+
+}
@@ -16,14 +16,21 @@
 
 package eu.kleniu.modbuslib;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Robert K.
@@ -53,6 +60,7 @@ public abstract class ModbusTcpClient {
     public static final int RET_ERRRAN = 41; // parameter range error
     public static final int RET_ERRBRE = 42; // bad or no response
     public static final int RET_ERRXRE = 43; // exception response
+    public static final int RET_ERRWRC = 44; // error when writing to the channel given by the caller
     
     public static final int RET_OK     = 0;
  
@@ -60,11 +68,36 @@ public abstract class ModbusTcpClient {
     // **** Private properties
     // ********************************************************************************************
     
-    private int    _dispDebugMsgLevel;  // debug level 9 - very verbose 0 - do not display at all
-    private Socket        _socClient ;
+    private static final int MBAP_LEN    = 7;   // MBAP Header is ALWAYS 7 bytes long!
+    private static final int MAX_PDU_LEN = 253; // maximum size of PDU according to MODBUS specification
+    private static final int MAX_WRITE_REGISTERS = 123; // registers in one write multiple registers (0x10) request
+    private static final int MAX_WRITE_COILS     = 1968; // coils in one write multiple coils (0x0F) request
+    private static final int MAX_RW_WRITE_REGISTERS = 121; // registers written by one read/write multiple registers (0x17) request
+    private static final int MAX_FIFO_COUNT      = 31;  // values in one read FIFO queue (0x18) response
+    private static final int MAX_FILE_RECORDS    = 10000; // records 0 to 9999 in one file (0x14, 0x15)
+    private static final int MAX_WRITE_FILE_RECORDS = 122; // records in one write file record (0x15) request
+    private static final int MAX_FILE_RESPONSE_DATA = 0xF5;  // response data length of read file record (0x14)
+    
+    private static final long IO_IDLE    = Long.MIN_VALUE;     // _ioDeadline when no blocking I/O is running
+    private static final long IO_EXPIRED = Long.MIN_VALUE + 1; // _ioDeadline when watchdog has closed the channel
+    
+    private ModbusTracer     _tracer;     // null - tracing is off
+    private ModbusTraceEvent _traceEvent; // reused for every event, client is used by one thread at a time
+    private SocketChannel _channel;     // channel connected to MODBUS Master. Non-blocking unless _blockingIo is set
+    private Selector      _selector;    // used only to wait for _channel with timeout
+    private boolean       _blockingIo;  // blocking channel + ModbusDeadlineWatchdog instead of selector (for virtual threads)
+    private final AtomicLong      _ioDeadline;     // deadline of running blocking I/O, watched by ModbusDeadlineWatchdog
+    private volatile SocketChannel _watchedChannel; // channel the watchdog closes when _ioDeadline passes
     private SocketAddress _socAddress;
-    private DataInputStream  _iStream;	// Input Stream READ data
-    private DataOutputStream _oStream;	// Output Stream WRITES data
+    private String        _endpoint;    // host:port given to mbtcSetup, key of the capability cache
+    private ModbusCapabilityCache _capabilityCache;
+    private ModbusDeviceCapabilities _device; // entry of _capabilityCache for _deviceID, null - look it up again
+    private int           _deviceID;    // device ID of _device
+    private ByteBuffer    _txBuffer;    // direct buffer, request ADU(s) are encoded here
+    private ByteBuffer    _rxBuffer;    // direct buffer, response ADUs are collected here. Kept in read mode
+    private MbapFrameDecoder _frameDecoder;
+    private ByteBuffer    _reqPDU;      // view of _txBuffer just after MBAP header. Public methods encode request PDU here
+    private ByteBuffer    _rspPDU;      // view of _rxBuffer just after MBAP header. Response PDU of the last request
     private long             _transId;  // this is the value for MODBUS Transaction Identifier
     private int            _soTimeout;
     private int           _conTimeout;
@@ -73,53 +106,228 @@ public abstract class ModbusTcpClient {
 
     private int _rawRequestRetry;
     private int _rawRequestReconnectAndRetry;
+    private int _pipelineWindow;        // max number of requests in flight on one connection
+    private int _respTransId;           // transaction ID of the last response read by _readResponseADU
+    private final int[] _fifoValues = new int[MAX_FIFO_COUNT]; // values of the last read FIFO queue response
+    private int         _fifoCount;                             // number of valid values in _fifoValues
+    private final int[] _fifoPrevious = new int[MAX_FIFO_COUNT]; // values of the previous response while draining
+    private long _lastResponseNanos;    // System.nanoTime() of the last response or connect, 0 - never
+    private volatile long _roundTripNanos = -1; // round trip of the last echo, -1 - none yet. Read by other threads
+    private int  _probeData;            // data word of the last echo request
+    private int[] _inFlightChunks;      // chunk of each read request in flight, see _readChunks
+    private int[] _inFlightTrans;       // transaction ID of each read request in flight
+    private boolean[] _chunkDone = new boolean[65536 / 125 + 1]; // grows when the device takes shorter requests
+    private boolean[] _requestDone = new boolean[0]; // requests of the plan answered in the pipeline, see _readPlanPipelined
+    private int     _lastExceptionCode; // exception code of the last exception response to a read request
+    private boolean _adaptiveReads;     // mbtcReadPlan learns holes and limits of the device, see mbtcSetAdaptiveReads
+    private int     _learnedCount;      // number of facts learned by _learnRange so far
 
     // ********************************************************************************************
     // **** Private methods
     // ********************************************************************************************
-    private void _dispDebugLog(int level, String msgText) {
-    	String debMsg = "";
-		if ( level <= _dispDebugMsgLevel ) {
-			debMsg = "DEBUG(" + Long.toString(System.currentTimeMillis()) + "): " + msgText;
-			displayLog(debMsg);
-		}
-    } 
+    // message is a constant template - nothing is built when tracing is off
+    private void _trace(int type, String message) {
+		if ( _tracer != null )
+			_emitTrace(type, message, 0, 0, 0, null);
+    }
+
+    private void _trace(int type, String message, long arg0) {
+		if ( _tracer != null )
+			_emitTrace(type, message, 1, arg0, 0, null);
+    }
+
+    private void _trace(int type, String message, long arg0, long arg1) {
+		if ( _tracer != null )
+			_emitTrace(type, message, 2, arg0, arg1, null);
+    }
+
+    private void _trace(int type, String message, ByteBuffer data) {
+		if ( _tracer != null )
+			_emitTrace(type, message, 0, 0, 0, data);
+    }
+
+    private void _trace(int type, String message, long arg0, long arg1, ByteBuffer data) {
+		if ( _tracer != null )
+			_emitTrace(type, message, 2, arg0, arg1, data);
+    }
+
+    private void _emitTrace(int type, String message, int argCount, long arg0, long arg1, ByteBuffer data) {
+		_tracer.trace(_traceEvent.set(type, message, argCount, arg0, arg1, data));
+		_traceEvent.clear();
+    }
  
     private boolean _amIConnected() {
-	if( _socClient != null )
-	    return _socClient.isConnected() && ! _socClient.isClosed();
+	if( _channel != null )
+	    return _channel.isConnected() && _channel.isOpen();
 	else
 	    return false;
     }
 
-    private void _drainInputDataStream( DataInputStream streamToDrain ) {
-		byte[] data = new byte[1];
-		boolean procead = true;
+    /**
+     * (Re)creates per-connection buffers. Transmit buffer must be big enough
+     * for the whole pipeline window of request ADUs.
+     */
+    private void _allocBuffers() {
+		int txCapacity = ( MBAP_LEN + MAX_PDU_LEN ) * _pipelineWindow;
+
+		if ( _inFlightChunks == null || _inFlightChunks.length != _pipelineWindow ) {
+			_inFlightChunks = new int[_pipelineWindow];
+			_inFlightTrans  = new int[_pipelineWindow];
+		}
+		
+		if ( _txBuffer == null || _txBuffer.capacity() != txCapacity ) {
+			_txBuffer = ByteBuffer.allocateDirect( txCapacity );
+			_txBuffer.position(MBAP_LEN);
+			_txBuffer.limit(MBAP_LEN + MAX_PDU_LEN);
+			_reqPDU = _txBuffer.slice();
+			_txBuffer.clear();
+		}
+		// room for several frames, so one read may take all responses of the window
+		int rxCapacity = ( MBAP_LEN + MAX_PDU_LEN ) * Math.max(2, _pipelineWindow);
+		if ( _rxBuffer == null || _rxBuffer.capacity() != rxCapacity ) {
+			_rxBuffer = ByteBuffer.allocateDirect( rxCapacity );
+			_rxBuffer.position(MBAP_LEN);
+			_rxBuffer.limit(MBAP_LEN + MAX_PDU_LEN);
+			_rspPDU = _rxBuffer.slice();
+			_rxBuffer.clear();
+			_rxBuffer.limit(0); // nothing received yet
+		}
+    }
+
+    /**
+     * Waits until the channel is ready for given operation or until deadline.
+     *
+     * @param  ops      SelectionKey operation (OP_READ, OP_WRITE, OP_CONNECT)
+     * @param  deadline System.nanoTime() value when we give up waiting
+     * 
+     * @throws SocketTimeoutException when deadline passed
+     */
+    private void _waitFor(int ops, long deadline) throws IOException {
+		long timeLeft = ( deadline - System.nanoTime() ) / 1000000L;
+		SelectionKey key = _channel.keyFor(_selector);
+		
+		if ( timeLeft <= 0 )
+			throw new SocketTimeoutException("timeout");
+		if ( key == null )
+			key = _channel.register(_selector, ops);
+		else if ( key.interestOps() != ops )
+			key.interestOps(ops);
+		
+		// selected-key set is never cleared on purpose. The only key stays in it
+		// and select just updates its ready set, so nothing is allocated here
+		_selector.select(timeLeft);
+    }
+
+    /**
+     * Blocking I/O mode only. Reads from or writes to the blocking channel, which in a
+     * virtual thread parks instead of blocking the carrier. If the deadline passes
+     * ModbusDeadlineWatchdog closes the channel, so a late Master costs us the connection.
+     *
+     * @param  buffer   buffer to read to or write from
+     * @param  write    true to write, false to read
+     * @param  deadline System.nanoTime() value when we give up waiting
+     * 
+     * @return number of bytes read or written, -1 at the end of stream
+     * 
+     * @throws SocketTimeoutException when deadline passed. The channel is closed then
+     */
+    private int _blockingIo(ByteBuffer buffer, boolean write, long deadline) throws IOException {
 		int retval;
-	
-		_dispDebugLog(9,"_drainInputDataStream: before drain loop");
+		
+		if ( deadline - System.nanoTime() <= 0 ) {
+			_closeChannel();
+			throw new SocketTimeoutException("timeout");
+		}
+		_watchedChannel = _channel;
+		_ioDeadline.set(deadline);
 		try {
-			if( streamToDrain != null ) {
-			    while ( procead ) {
-			    	try {
-			    		retval = streamToDrain.read(data,0,data.length);
-			    		if ( retval != -1 ) {
-				    		//_dispDebugLog(9,"drained data:" + _byteArrayToHexString(data));
-			    			procead = true;
-			    		}
-				    	else
-				    		procead = false;
-			    	} catch (NullPointerException ee) {
-						procead = false;
-					}
-			    }
+			retval = write ? _channel.write(buffer) : _channel.read(buffer);
+		} catch (IOException ex) {
+			if ( _disarmDeadline() )
+				throw ex;
+			retval = 0; // channel was closed by the watchdog
+		}
+		if ( ! _disarmDeadline() ) {
+			_closeChannel();
+			throw new SocketTimeoutException("timeout");
+		}
+		return retval;
+    }
+    
+    // returns false if the watchdog has already closed the channel
+    private boolean _disarmDeadline() {
+		long deadline = _ioDeadline.get();
+		return deadline != IO_EXPIRED && _ioDeadline.compareAndSet(deadline, IO_IDLE);
+    }
+    
+    /**
+     * Called by ModbusDeadlineWatchdog thread. Closes the channel if the blocking
+     * I/O is still running after its deadline.
+     */
+    void _expireIo(long now) {
+		SocketChannel channel = _watchedChannel;
+		long deadline = _ioDeadline.get();
+		
+		if ( deadline == IO_IDLE || deadline == IO_EXPIRED || now - deadline < 0 )
+			return;
+		if ( _ioDeadline.compareAndSet(deadline, IO_EXPIRED) && channel != null ) {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				// the blocked thread gets its exception anyway
 			}
-		} catch ( IOException ex ) {
-		    //_dispDebugLog(9,"_drainInputDataStream: exception");
 		}
-	
-		//_dispDebugLog(9,"_drainInputDataStream: after drain loop");
+    }
+
+    /**
+     * Writes whole buffer to the channel (from position to limit).
+     */
+    private void _writeFully(ByteBuffer src) throws IOException {
+		long deadline = System.nanoTime() + _soTimeout * 1000000L;
+		
+		if ( _channel == null )
+			throw new IOException("not connected");
+		while ( src.hasRemaining() ) {
+			if ( _blockingIo )
+				_blockingIo(src, true, deadline);
+			else if ( _channel.write(src) == 0 )
+				_waitFor(SelectionKey.OP_WRITE, deadline);
+		}
+    }
 
+    /**
+     * Appends whatever the Master has sent to _rxBuffer (read mode is kept).
+     * Waits for at least one byte until deadline.
+     * 
+     * @throws SocketTimeoutException when the data did not come before deadline
+     * @throws EOFException when the Master closed the connection
+     */
+    private void _fillRxBuffer(long deadline) throws IOException {
+		int start = _rxBuffer.position();
+		int retval;
+		
+		if ( _channel == null )
+			throw new IOException("not connected");
+		if ( _rxBuffer.limit() == _rxBuffer.capacity() )
+			throw new IOException("receive buffer is full"); // cannot happen, frame is never bigger than the buffer
+		
+		_rxBuffer.position( _rxBuffer.limit() );
+		_rxBuffer.limit( _rxBuffer.capacity() );
+		try {
+			if ( _blockingIo ) {
+				while ( ( retval = _blockingIo(_rxBuffer, false, deadline) ) == 0 )
+					;
+			}
+			else {
+				while ( ( retval = _channel.read(_rxBuffer) ) == 0 )
+					_waitFor(SelectionKey.OP_READ, deadline);
+			}
+			if ( retval < 0 )
+				throw new EOFException("connection closed by peer");
+		} finally {
+			_rxBuffer.limit( _rxBuffer.position() );
+			_rxBuffer.position( start );
+		}
     }
 
     private int _getTransId() {
@@ -129,99 +337,72 @@ public abstract class ModbusTcpClient {
 		    _transId=1;
 		return (int)_transId;
     }
-  
-    private byte[] _intToByteArray(int intValue) {
-    	ByteBuffer buffer = ByteBuffer.allocate(4);
-        //buffer.order(ByteBuffer.BIG_ENDIAN); it is by default BIG_ENDIAN
-		return buffer.putInt(intValue).array();
-    }
-    
-    private String _byteArrayToHexString(byte[] byteArray) {
-		String retVal = "";
-    	for (byte b: byteArray) {
-			retVal += String.format("%02x", (b & 0xFF));
-		}
-		return retVal;
-	}
     
-    private int _twoBytesToInt(byte hi, byte lo) {
-    	ByteBuffer buffer = ByteBuffer.allocate(2);
-    	buffer.put(hi);
-    	buffer.put(lo);
-    	buffer.flip();
-    	return buffer.getShort();
-    }
-
-    private boolean _readBitFromByte( byte dataByte, int pos ) {
-		// do this to not have the problem with sign
-		int data = dataByte;
-		if ( ( ( data >> pos ) & 1 ) == 0 )
-		    return false;
-		else
-		    return true;
-    }
     
     /**
      * Retry to send MODBUS request in case of timeout/failure.
      * Method tries to reconnect to Master if send requests fails. 
      *
-     * @param  requestPDU Protocol Data Unit (PDU) to be sent to MODBUS Master
-     * @param  unitID              remote MODBUS Master identification number. Usualy 0
+     * @param  requestPDU  Protocol Data Unit (PDU) to be sent to MODBUS Master (from position to limit)
+     * @param  responsePDU buffer for response PDU. On success it contains the response between position 0 and limit
+     * @param  unitID      remote MODBUS Master identification number. Usualy 0
      * 
-     * @return responsePDU response Protocol Data Unit (PDU) on success<br>
-     * null on error
+     * @return length of response PDU on success<br>
+     * -RET_ERRBRE on error
      *         
      */
-    private byte[] _sRequest(byte[] requestPDU, byte unitID) {
+    private int _sRequest(ByteBuffer requestPDU, ByteBuffer responsePDU, byte unitID) {
 		int retVal;
 		int i;
-		byte[] responsePDU;
+		int responseLen;
 	
 		// connect to Master if not connected
 		if( ! _amIConnected() ) {
-		    _dispDebugLog(9,"_sRequest: we are not connected, trying to connect");
+		    _trace(ModbusTraceEvent.MESSAGE, "_sRequest: we are not connected, trying to connect");
 		    retVal = mbtcConnect();
 		    if ( retVal != RET_OK ) {
-				_dispDebugLog(9,"_sRequest: cannot connect mbtcConnect reurns" + String.valueOf(retVal));
-				return null; // if we cannot connect then there is nothing to do returning null
+				_trace(ModbusTraceEvent.ERROR, "_sRequest: cannot connect mbtcConnect reurns{}", retVal);
+				return -RET_ERRBRE; // if we cannot connect then there is nothing to do
 		    }
 		    else {
-		    	_dispDebugLog(9,"_sRequest: connection sucessfully established");
+		    	_trace(ModbusTraceEvent.MESSAGE, "_sRequest: connection sucessfully established");
 		    }
 		}
 	
-		responsePDU = null;
+		responseLen = -RET_ERRBRE;
 		for (i = 0; i < _rawRequestRetry; i++) {
-		    responsePDU = _rawRequest( requestPDU, unitID );
-		    if( responsePDU == null ) {
+		    responseLen = _rawRequest( requestPDU, responsePDU, unitID, _soTimeout );
+		    if( responseLen < 0 ) {
 		    	// we have potential problem
-		    	_dispDebugLog(9,"_sRequest: attempt #" + Integer.toString(i) + " - mbtcRawRequest failed.");
+		    	_trace(ModbusTraceEvent.ERROR, "_sRequest: attempt #{} - mbtcRawRequest failed.", i);
+		    	if( ! _amIConnected() )
+		    		i = _rawRequestRetry; // connection is gone, only reconnect can help
 		    }
 		    else {
 		    	i = _rawRequestRetry; // everything is OK. So we force to exit "for loop"
 		    }
 		}
 	
-		if( responsePDU == null ) {
+		if( responseLen < 0 ) {
 		    // we are still not OK - lets try reconnect trick
-		    _dispDebugLog(9,"_sRequest: we still have the problem with rawRequest. Lets try to disconnect and connect again");
+		    _trace(ModbusTraceEvent.ERROR, "_sRequest: we still have the problem with rawRequest. Lets try to disconnect and connect again");
 		    for (i = 0; i< _rawRequestReconnectAndRetry; i++) {
 				retVal = mbtcDisconnect(); // it will definitely close the connection and clean up local properties
-				_dispDebugLog(9,"_sRequest: we are disconnected now");
+				_trace(ModbusTraceEvent.MESSAGE, "_sRequest: we are disconnected now");
 				
 				retVal = mbtcConnect();
 				if ( retVal != RET_OK ) {
-				    _dispDebugLog(9,"_sRequest: cannot connect mbtcConnect returns: " + String.valueOf(retVal));
-				    return null; // if we cannot connect then there is nothing to do returning null
+				    _trace(ModbusTraceEvent.ERROR, "_sRequest: cannot connect mbtcConnect returns: {}", retVal);
+				    return -RET_ERRBRE; // if we cannot connect then there is nothing to do
 				}
 				else {
-				    _dispDebugLog(9,"_sRequest: connection successfully established");
+				    _trace(ModbusTraceEvent.MESSAGE, "_sRequest: connection successfully established");
 				}
 		
-				responsePDU = _rawRequest( requestPDU, unitID );
-				if( responsePDU == null ) {
+				responseLen = _rawRequest( requestPDU, responsePDU, unitID, _soTimeout );
+				if( responseLen < 0 ) {
 				    // we have potential problem
-				    _dispDebugLog(9,"_sRequest: attempt of mbtcRawRequest failed. ");
+				    _trace(ModbusTraceEvent.ERROR, "_sRequest: attempt of mbtcRawRequest failed. ");
 				}
 				else {
 				    i = _rawRequestReconnectAndRetry; // everything is OK. So we force to exit "for loop"
@@ -229,110 +410,314 @@ public abstract class ModbusTcpClient {
 		    } // for
 		}
 	
-		if( responsePDU == null ) {
-		    _dispDebugLog(9,"_sRequest: request failed. Returning null");
-		    return null;
+		if( responseLen < 0 ) {
+		    _trace(ModbusTraceEvent.ERROR, "_sRequest: request failed. Returning error");
+		}
+		else {
+		    _trace(ModbusTraceEvent.MESSAGE, "_sRequest: success");
+		}
+		return responseLen;
+    }
+
+    /**
+     * Puts request ADU (MBAP header + PDU) at current position of _txBuffer.
+     * MBAP[7]=TRANSACTION_ID[2]+PROTOCOL_ID[2]+LENGTH[2]+UNIT_ID[1]
+     * PDU is not copied if it is already in place (requestPDU is _reqPDU).
+     *
+     * @param  requestPDU Protocol Data Unit (PDU) to be sent to MODBUS Master (from position to limit)
+     * @param  unitID     remote MODBUS Master identification number. Usualy 0
+     * @param  transId    MODBUS Transaction Identifier to be put in the header
+     * 
+     * @return true on success<br>
+     * false if there is no PDU or it does not fit in the buffer
+     *         
+     */
+    private boolean _putADU(ByteBuffer requestPDU, byte unitID, int transId) {
+		int pduLength;
+		int pduPosition;
+		
+		if ( requestPDU == null ) {
+			_trace(ModbusTraceEvent.MESSAGE, "_putADU: there is no PDU to send");
+			return false;
+		}
+		pduLength = requestPDU.remaining();
+		if ( pduLength < 1 || pduLength > MAX_PDU_LEN || _txBuffer.remaining() < MBAP_LEN + pduLength ) {
+			_trace(ModbusTraceEvent.ERROR, "_putADU: PDU does not fit in the buffer - pduLength={}", pduLength);
+			return false;
+		}
+	
+		// creating MBAP header
+		_txBuffer.putShort( (short)transId ); // TRANSACTION ID
+		_txBuffer.putShort( (short)0 );       // always 0 for Modbus
+		// this is the length of transmitted data including 1 byte for unit ID
+		_txBuffer.putShort( (short)( pduLength + 1 ) );
+		_txBuffer.put( unitID );              // Unit Identifier
+		
+		// and the PDU
+		if ( requestPDU == _reqPDU && _txBuffer.position() == MBAP_LEN ) {
+			_txBuffer.position( MBAP_LEN + pduLength ); // public methods have encoded it already in place
 		}
 		else {
-		    _dispDebugLog(9,"_sRequest: success");
-		    return responsePDU;
+			pduPosition = requestPDU.position();
+			_txBuffer.put(requestPDU);
+			requestPDU.position(pduPosition);
+		}
+		return true;
+    }
+
+    /**
+     * Reads one complete response ADU from the channel. Bytes are read in as big chunks
+     * as the Master sends them and the frames are cut by _frameDecoder, so the frame split
+     * in several TCP segments or several frames in one segment are handled.
+     * Garbage between frames is skipped up to the next valid MBAP header.
+     * Transaction Identifier of the response is stored in _respTransId so the caller
+     * can match the response with one of the requests in flight.
+     * 
+     * @param  deadline System.nanoTime() value when we give up waiting
+     * 
+     * @return length of response PDU. The PDU is in _rspPDU between 0 and limit
+     * 
+     * @throws SocketTimeoutException when there is no complete frame before deadline.
+     * Part of the frame stays in the buffer, so the stream is still in sync
+     * @throws IOException when the channel fails
+     */
+    private int _readResponseADU(long deadline) throws IOException {
+		int pduLength;
+		
+		// forget the frame returned last time. The next one (maybe already received) moves to
+		// the beginning of the buffer, so its PDU is always in place of _rspPDU
+		_rxBuffer.compact();
+		_rxBuffer.flip();
+		
+		while ( ( pduLength = _frameDecoder.decode(_rxBuffer) ) < 0 ) {
+			if ( pduLength == MbapFrameDecoder.BAD_FRAME ) {
+				// not a frame boundary - skip to the next thing which looks like MBAP header
+				int skipped = _frameDecoder.resync(_rxBuffer);
+				_trace(ModbusTraceEvent.ERROR, "_readResponseADU: bad MBAP header, {} bytes skipped", skipped);
+				_rxBuffer.compact();
+				_rxBuffer.flip();
+			}
+			else {
+				_fillRxBuffer(deadline);
+			}
+		}
+		
+		_respTransId = _frameDecoder.transId();
+		_lastResponseNanos = System.nanoTime();
+		_rspPDU.clear();
+		_rspPDU.limit(pduLength);
+		_trace(ModbusTraceEvent.RESPONSE, "_readResponseADU: Response transaction ID = {}, unit ID = {}, PDU: ", _respTransId, _frameDecoder.unitId(), _rspPDU);
+		
+		return pduLength;
+    }
+    
+    /**
+     * @return number of requests in flight for the device - the pipeline window of mbtcSetup,
+     *         lowered to maxPipelineWindow of the device capabilities when it is known
+     */
+    private int _window(int deviceID) {
+		ModbusDeviceCapabilities device = mbtcGetCapabilities( deviceID );
+		int max = ( device != null ) ? device.maxPipelineWindow() : 0;
+
+		return ( max > 0 ) ? Math.min( _pipelineWindow, max ) : _pipelineWindow;
+    }
+
+    /**
+     * Sends a group of MODBUS requests without waiting for each response (pipelining).
+     * Up to _window requests are in flight at the same time and responses are
+     * matched with requests by MODBUS Transaction Identifier, so the Master may answer
+     * in any order. Requests which did not get the response in pipelined mode are sent
+     * once again one by one with _sRequest (with its retry and reconnect logic).
+     * Package-private, ModbusTcpConcurrentClient sends batches of queued requests here.
+     *
+     * @param  requestPDUs Protocol Data Units (PDU) to be sent to MODBUS Master
+     * @param  unitID      remote MODBUS Master identification number. Usualy 0
+     * 
+     * @return responsePDUs response Protocol Data Units (PDU) in the same order as requestPDUs.
+     * Element is null if there is no valid response for given request
+     *         
+     */
+    byte[][] _pRequest(byte[][] requestPDUs, byte unitID) {
+		return _pRequest( requestPDUs, unitID, false );
+    }
+
+    /**
+     * The same as _pRequest(byte[][], byte), but with inOrder set no request is sent after one
+     * has failed (exception response, no response or broken pipeline) - chunks of one write.
+     * Requests which are already in flight at that moment cannot be recalled, the device
+     * still executes them.
+     */
+    byte[][] _pRequest(byte[][] requestPDUs, byte unitID, boolean inOrder) {
+		byte[][] responsePDUs = new byte[requestPDUs.length][];
+		int[]    inFlightIdx;   // index of the request in requestPDUs
+		int[]    inFlightTrans; // transaction ID used for the request
+		int      inFlight = 0;
+		int      next = 0;
+		int      i;
+		int      transId;
+		int      responseLen;
+		boolean  broken = false;
+		boolean  stopped = false; // inOrder only - a request has failed, nothing more is sent
+		int      window = _window( unitID );
+		
+		if ( window > 1 && requestPDUs.length > 1 ) {
+			// connect to Master if not connected
+			if( ! _amIConnected() ) {
+			    _trace(ModbusTraceEvent.MESSAGE, "_pRequest: we are not connected, trying to connect");
+			    if ( mbtcConnect() != RET_OK ) {
+			    	_trace(ModbusTraceEvent.ERROR, "_pRequest: cannot connect");
+			    	broken = true;
+			    }
+			}
+			
+			inFlightIdx   = new int[window];
+			inFlightTrans = new int[window];
+			while ( !broken && ( ( next < requestPDUs.length && !stopped ) || inFlight > 0 ) ) {
+				// fill the window - all new requests go in one write
+				_txBuffer.clear();
+				while ( next < requestPDUs.length && inFlight < window && !stopped ) {
+					transId = _getTransId();
+					if ( requestPDUs[next] != null && _putADU(ByteBuffer.wrap(requestPDUs[next]), unitID, transId) ) {
+						inFlightIdx[inFlight]   = next;
+						inFlightTrans[inFlight] = transId;
+						inFlight++;
+					}
+					next++;
+				}
+				_txBuffer.flip();
+				try {
+					_writeFully(_txBuffer);
+				} catch (IOException ex) {
+					_trace(ModbusTraceEvent.ERROR, "_pRequest: Problem with writing ADU to slave");
+					broken = true;
+					break;
+				}
+				if ( inFlight == 0 )
+					break;
+				
+				// wait for one response and find the request it belongs to
+				try {
+					responseLen = _readResponseADU( System.nanoTime() + _soTimeout * 1000000L );
+				} catch (SocketTimeoutException ex) {
+					// stream is still in sync, late responses will be dropped by transaction ID
+					_trace(ModbusTraceEvent.ERROR, "_pRequest: No response from slave. {} requests in flight", inFlight);
+					break;
+				} catch (IOException ex) {
+					_trace(ModbusTraceEvent.ERROR, "_pRequest: Problem with reading response from slave. {} requests in flight", inFlight);
+					broken = true;
+					break;
+				}
+				for ( i = 0; i < inFlight; i++ ) {
+					if ( inFlightTrans[i] == _respTransId )
+						break;
+				}
+				if ( i < inFlight ) {
+					if ( inOrder && ( _rspPDU.get(0) & 0x80 ) != 0 )
+						stopped = true;
+					responsePDUs[inFlightIdx[i]] = new byte[responseLen];
+					_rspPDU.get(responsePDUs[inFlightIdx[i]]);
+					// the last one takes the place of the completed one
+					inFlight--;
+					inFlightIdx[i]   = inFlightIdx[inFlight];
+					inFlightTrans[i] = inFlightTrans[inFlight];
+				}
+				else {
+					_trace(ModbusTraceEvent.MESSAGE, "_pRequest: response with unexpected transaction ID={}. Ignoring ...", _respTransId);
+				}
+			}
+			
+			if ( broken ) {
+				// responses of requests still in flight are lost, the stream is out of sync
+				_trace(ModbusTraceEvent.ERROR, "_pRequest: pipeline broken, disconnecting");
+				mbtcDisconnect();
+			}
+		}
+		
+		// everything what is still missing goes one by one
+		for ( i = 0; i < requestPDUs.length && !stopped; i++ ) {
+			if ( responsePDUs[i] == null && requestPDUs[i] != null ) {
+				responseLen = _sRequest( ByteBuffer.wrap(requestPDUs[i]), _rspPDU, unitID );
+				if ( responseLen > 0 ) {
+					responsePDUs[i] = new byte[responseLen];
+					_rspPDU.get(responsePDUs[i]);
+				}
+			}
+			if ( inOrder && ( responsePDUs[i] == null || ( responsePDUs[i][0] & 0x80 ) != 0 ) )
+				stopped = true;
 		}
+		
+		return responsePDUs;
     }
 
     /**
      * Method communicates with MODSBUS Master via network socket. 
      * It creates Modbus Application Header (MBAP) before actual data will be sent via raw socket.
      * MBAP[7]=TRANSACTION_ID[2]+PROTOCOL_ID[2]+LENGTH[2]+UNIT_ID[1]<br>
-     * Method then creates ADU (which is MBAP_header + PDU) and sends it to Master 
+     * Method then creates ADU (which is MBAP_header + PDU) and sends it to Master.
+     * Request and response ADU are kept in per-connection direct buffers, so nothing 
+     * is allocated here.
      *
-     * @param  requestPDU Protocol Data Unit (PDU) to be sent to MODBUS Master
-     * @param  unitID              remote MODBUS Master identification number. Usualy 0
+     * @param  requestPDU  Protocol Data Unit (PDU) to be sent to MODBUS Master (from position to limit)
+     * @param  responsePDU buffer for response PDU. On success it contains the response between position 0 and limit
+     * @param  unitID      remote MODBUS Master identification number. Usualy 0
+     * @param  timeoutMillis how long to wait for the response
      * 
-     * @return responsePDU response Protocol Data Unit (PDU) on success<br>
-     * null on error
+     * @return length of response PDU on success<br>
+     * -RET_ERRBRE on error
      *         
      */
-    private byte[] _rawRequest(byte[] requestPDU, byte unitID) {
+    private int _rawRequest(ByteBuffer requestPDU, ByteBuffer responsePDU, byte unitID, int timeoutMillis) {
 
-		// MBAP Header is ALWAYS 7 bytes long!
-		byte[] requestMBAPheader  = new byte[7];
-		byte[] requestADU         = new byte[requestMBAPheader.length + requestPDU.length];
-		byte[] responseMBAPheader = new byte[7];
-		byte[] responsePDU;
-		byte[] intToByte;
-	
-		// creating requestMBAPheader
-		intToByte = _intToByteArray( _getTransId() );
-		requestMBAPheader[0] = intToByte[2]; // HiByte of TRANSACTION ID
-		requestMBAPheader[1] = intToByte[3]; // LoByte of TRANSACTION ID
-		requestMBAPheader[2] = 0x00; // always 0 for Modbus
-		requestMBAPheader[3] = 0x00; // always 0 for Modbus
-		// length is always positive number so we do not care about negative representation of int :)
-		// this is the length of transmitted data including 1 byte for unit ID
-		intToByte = _intToByteArray( requestPDU.length + 1 );
-		// BIG_ENDIAN = most significant byte is lowest memory adress
-		requestMBAPheader[4] = intToByte[2]; // HiByte of len+id
-		requestMBAPheader[5] = intToByte[3]; // LoByte of len+id
-		requestMBAPheader[6] = unitID; // Unit Identifier
-	
-		_dispDebugLog(9,"_rawRequest: Request MBAP Header:                 " + _byteArrayToHexString(requestMBAPheader));
-		_dispDebugLog(9,"_rawRequest: Request Protocol Data Unit (PDU):    " + _byteArrayToHexString(requestPDU));
+		int transId = _getTransId();
+		int responseLen;
 	
 		// creating request ADU = MBAP Header + PDU
-		try {
-			System.arraycopy(requestMBAPheader, 0, requestADU, 0, requestMBAPheader.length);
-			System.arraycopy(requestPDU, 0, requestADU, requestMBAPheader.length, requestPDU.length);
-		} catch (NullPointerException ex) {
-			_dispDebugLog(9,"_rawRequest: Problem with copying arrays");
-		    return null;
+		_txBuffer.clear();
+		if ( ! _putADU(requestPDU, unitID, transId) ) {
+			_trace(ModbusTraceEvent.ERROR, "_rawRequest: Problem with creating ADU");
+		    return -RET_ERRBRE;
 		}
+		_txBuffer.flip();
+		_trace(ModbusTraceEvent.REQUEST, "_rawRequest: Request ADU:                         ", _txBuffer);
 	
 		// write ADU
 		try {
 			    // now lets send it to the server
-			    _oStream.write(requestADU,0,requestADU.length);
-		} catch (NullPointerException ee) {
-			_dispDebugLog(9,"_rawRequest: Problem with writing to output stream");
-			return null;
+			    _writeFully(_txBuffer);
 		} catch (IOException ex) {
-		    _dispDebugLog(9,"_rawRequest: Problem with writing ADU to slave");
+		    _trace(ModbusTraceEvent.ERROR, "_rawRequest: Problem with writing ADU to slave");
 		    // the caller method should do something with is - like reconnect or resent PDU one more time
-		    return null;
+		    return -RET_ERRBRE;
 		}
 	
-		// read MBAP header
+		// read response MBAP header and PDU. Late responses to earlier (timed out)
+		// requests are dropped and we keep waiting for ours
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
 		try {
-				// and lets get the response MBAP Header
-				_iStream.read(responseMBAPheader,0,responseMBAPheader.length);
-		} catch (NullPointerException ee) {
-			return null;
+			while ( ( responseLen = _readResponseADU(deadline) ) >= 0 && _respTransId != transId )
+				_trace(ModbusTraceEvent.MESSAGE, "_rawRequest: stale response with transaction ID={} dropped", _respTransId);
+		} catch (EOFException ex) {
+			_trace(ModbusTraceEvent.ERROR, "_rawRequest: Connection closed by slave.");
+			_closeChannel(); // retries go straight to reconnect
+			return -RET_ERRBRE;
 		} catch (IOException ex) {
-		    _dispDebugLog(9,"_rawRequest: Problem with reading MBAP Header from slave.");
-		    _drainInputDataStream( _iStream );
+		    _trace(ModbusTraceEvent.ERROR, "_rawRequest: Problem with reading response from slave.");
 		    // the caller method should do something with is - like reconnect or resent PDU one more time
-		    return null;
+		    return -RET_ERRBRE;
 		}
-		_dispDebugLog(9,"_rawRequest: Response MBAP header:                " + _byteArrayToHexString(responseMBAPheader));
-	
-		// read PDU
-		if ( responseMBAPheader[5] >= 1 )
-			responsePDU = new byte[responseMBAPheader[5]-1]; // 6-th byte is size of response PDU
-		else
-			return null;
-		try {
-		   	_iStream.read(responsePDU,0,responsePDU.length);
-		} catch (NullPointerException ee) {
-			_dispDebugLog(9,"_rawRequest: zero length responce PDU");
-			return null;
-		} catch (IOException ex) {
-		    _dispDebugLog(9,"_rawRequest: Problem with reading PDU data.");
-		    _drainInputDataStream( _iStream );
-		    return null;
+		
+		// response PDU is already in _rspPDU, any other buffer gets a copy
+		if ( responsePDU != _rspPDU ) {
+			if ( responsePDU.capacity() < responseLen ) {
+				_trace(ModbusTraceEvent.ERROR, "_rawRequest: Response PDU does not fit in the buffer");
+				return -RET_ERRBRE;
+			}
+			responsePDU.clear();
+			responsePDU.put(_rspPDU);
+			responsePDU.flip();
 		}
-		_dispDebugLog(9,"_rawRequest: Response Protocol Data Unit (PDU):   " + _byteArrayToHexString(responsePDU));
 	
-	
-		return responsePDU;
+		return responseLen;
     }
 
 
@@ -340,27 +725,78 @@ public abstract class ModbusTcpClient {
     // **** Public methods
     // ********************************************************************************************
     /**
-     * Abstract method to be implemented by the User for displaying debug messages 
+     * Displays debug messages when the client was created with debugLevel 9 and no other
+     * tracer was set. Override it to display formatted messages in your application.
+     * Default implementation does nothing.
      * 
      * @param  debMsg formatted debugging message to be displayed in your application 
      * 
      */
-    abstract public void displayLog(String debMsg); 
+    public void displayLog(String debMsg) {
+    }
+
+    /**
+     * Sets the receiver of trace events. Events are not created at all when tracer is null,
+     * so switched off tracing costs one branch per trace point. Set it before the client is used.
+     *
+     * @param  tracer receiver of trace events or null to switch tracing off
+     *
+     */
+    public void mbtcSetTracer(ModbusTracer tracer) {
+		_tracer = tracer;
+    }
+
+    /**
+     * Sets the cache of device capabilities used by this client instead of the default one
+     * shared by all clients.
+     *
+     * @param  cache capability cache, null selects the default one
+     *
+     */
+    public void mbtcSetCapabilityCache(ModbusCapabilityCache cache) {
+		_capabilityCache = ( cache != null ) ? cache : ModbusCapabilityCache.getDefault();
+		_device = null;
+    }
+
+    /**
+     * Switches learning of the device map in mbtcReadPlan on or off (off by default).
+     * When a request of the plan gets exception 02 (illegal data address) or 03 (illegal data
+     * value), the range is bisected until the failing addresses are found. They are stored in
+     * the device capabilities (see mbtcGetCapabilities) as illegal addresses, read boundaries
+     * or a lower maximum quantity, and the next scans read around them, so one bad tag does not
+     * take the whole request down every scan. Compile the plan again with the capabilities to
+     * have the learned map in the requests themselves.
+     *
+     * @param  adaptive true - learn and read around the learned map
+     *
+     */
+    public void mbtcSetAdaptiveReads(boolean adaptive) {
+		_adaptiveReads = adaptive;
+    }
 
     
     /**
      * Initializes private properties of the object with the default values. 
      * Default values can be changed in mbtcSetup method.
      *
-     * @param  debugLevel value 0 indicates no debugging messages. Value 9 will call abstract class displayLog with debug message. 
+     * @param  debugLevel value 0 indicates no debugging messages. Value 9 will call displayLog with formatted trace events. 
      * 
      */
     public ModbusTcpClient (int debugLevel) {
-		_dispDebugMsgLevel = debugLevel; // very verbose debugging messaging
-		_socClient  = null;
+		_traceEvent = new ModbusTraceEvent();
+		if ( debugLevel >= 9 ) {
+			_tracer = new ModbusTracer() {
+				@Override
+				public void trace(ModbusTraceEvent event) {
+					displayLog(event.toString());
+				}
+			};
+		}
+		_channel    = null;
+		_selector   = null;
 		_socAddress = null;
-		_iStream = null;
-		_oStream = null;
+		_endpoint = null;
+		_capabilityCache = ModbusCapabilityCache.getDefault();
 		_transId = 1;
 	    
 		_soTimeout  = 1000; // 1000 ms for socket timeout
@@ -370,6 +806,12 @@ public abstract class ModbusTcpClient {
 	
 		_rawRequestRetry = 3;             
 		_rawRequestReconnectAndRetry = 2; 
+		_pipelineWindow = 1;              // no pipelining unless requested in mbtcSetup
+		_blockingIo = false;
+		_ioDeadline = new AtomicLong(IO_IDLE);
+		
+		_frameDecoder = new MbapFrameDecoder();
+		_allocBuffers();
     }
 
     
@@ -402,349 +844,2685 @@ public abstract class ModbusTcpClient {
     	//                                 03 illegal data value - fault in structure
     	//                                 04 server device failure - problem at server site
 
-    	byte[] requestPDU = new byte[5];
-    	byte[] intToByte;
-    	byte[] responsePDU;
+    	int responseLen;
     	byte unitID;
 
     	if( ( registerNumber < 0 ) || ( registerNumber >= 65535 ) ) {
-    		_dispDebugLog(9,"mbtcWriteSingleRegister: register# out of range <0,65535) - registerNumber=" + String.valueOf(registerNumber));
+    		_trace(ModbusTraceEvent.ERROR, "mbtcWriteSingleRegister: register# out of range <0,65535) - registerNumber={}", registerNumber);
     		return RET_ERRRAN;
     	}
 	
+    	// request PDU is encoded straight in the transmit buffer
+    	_reqPDU.clear();
     	// to write single holding register we use function 0x06
-    	requestPDU[0] = 0x06;
+    	_reqPDU.put( (byte)0x06 );
 
-    	// lets convert coil number to bytes
-    	intToByte = _intToByteArray( registerNumber );
-    	requestPDU[1] = intToByte[2]; // HiByte of register number
-    	requestPDU[2] = intToByte[3]; // LoByte of register number
+    	// register number - HiByte first
+    	_reqPDU.putShort( (short)registerNumber );
 
-    	// let's set value
-    	intToByte = _intToByteArray( registerNewValue );
-    	requestPDU[3] = intToByte[2]; // HiByte of value
-    	requestPDU[4] = intToByte[3]; // LoByte of value
+    	// let's set value - HiByte first
+    	_reqPDU.putShort( (short)registerNewValue );
+    	_reqPDU.flip();
 
     	// lets convert devideID to unitID
-    	intToByte = _intToByteArray ( registerDeviceId );
-    	unitID = intToByte[3];
+    	unitID = (byte)registerDeviceId;
 
     	// lets do the magic
-    	responsePDU = _sRequest( requestPDU, unitID );
+    	responseLen = _sRequest( _reqPDU, _rspPDU, unitID );
 
 
-    	if( responsePDU == null ) {
-    		_dispDebugLog(9,"mbtcWriteSingleRegister: _sRequest returned null value.");
+    	if( responseLen < 0 ) {
+    		_trace(ModbusTraceEvent.ERROR, "mbtcWriteSingleRegister: _sRequest returned error.");
     		return RET_ERRBRE;
     	}
     	else {
-    		_dispDebugLog(9,"mbtcWriteSingleRegister: _sRequest returned: " + _byteArrayToHexString(responsePDU));
+    		_trace(ModbusTraceEvent.MESSAGE, "mbtcWriteSingleRegister: _sRequest returned: ", _rspPDU);
 
     		// lets analyze the responsePDU
-    		if( responsePDU[0] != requestPDU[0] ) {
-    			_dispDebugLog(9,"mbtcWriteSingleRegister: exception in responsePDU.");
+    		if( _rspPDU.get(0) != _reqPDU.get(0) ) {
+    			_trace(ModbusTraceEvent.ERROR, "mbtcWriteSingleRegister: exception in responsePDU.");
     			return RET_ERRXRE;
     		}
     	}
     	 
     	return RET_OK;
     }
-    
+
+
+    /**
+     * Encodes mask write register (0x16) request PDU.
+     *
+     * @param  requestPDU   buffer for request PDU, at least 7 bytes
+     * @param  address      address of the holding register
+     * @param  andMask      AND mask, lower 16 bits are sent
+     * @param  orMask       OR mask, lower 16 bits are sent
+     *
+     */
+    private void _putMaskWriteRegisterPDU(ByteBuffer requestPDU, int address, int andMask, int orMask) {
+		requestPDU.clear();
+		requestPDU.put( (byte)0x16 );
+		requestPDU.putShort( (short)address );   // HiByte first
+		requestPDU.putShort( (short)andMask );
+		requestPDU.putShort( (short)orMask );
+		requestPDU.flip();
+    }
+
+    /**
+     * Checks the response of mask write register (0x16) function - it is the echo of the request.
+     *
+     * @return RET_OK, RET_ERRBRE or RET_ERRXRE
+     */
+    private int _checkMaskWriteResponse(ByteBuffer responsePDU, ByteBuffer requestPDU) {
+		if ( responsePDU.get(0) != 0x16 )
+			return RET_ERRXRE;
+		if ( responsePDU.limit() < 7 )
+			return RET_ERRBRE;
+		for ( int i = 1; i < 7; i++ )
+			if ( responsePDU.get(i) != requestPDU.get(i) )
+				return RET_ERRBRE;
+		return RET_OK;
+    }
 
 	/**
-     * Switches ON or OFF the coil at specified address.
+     * Modifies the holding register with mask write register (0x16) function.
+     * The device sets the register to (current AND andMask) OR (orMask AND NOT andMask),
+     * so bits are changed in one request, without reading the register first and without
+     * overwriting bits changed meanwhile by another master.
      * 
-     * @param  coilNumber      address of the coil
-     * @param  coilState       desired state of the coil
-     * @param  deviceID        MODBUS Master device ID. Usually 0.
+     * @param  address      address of the holding register
+     * @param  andMask      AND mask, bits set to 1 keep their current value
+     * @param  orMask       OR mask, new values of bits which are 0 in andMask
+     * @param  deviceID     MODBUS Master device ID. Usually 0.
      * 
      * @return RET_OK (0)      on success<br>
-     *         RET_ERRRAN (41) if the coil address is out of range
-     *         RET_ERRBRE (42) none or bad response from MODBUS Master
+     *         RET_ERRRAN (41) if the register address is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
      *         RET_ERRXRE (43) exception response from MODBUS Master
      *         
      */
-    public int mbtcWriteSingleCoil( int coilNumber, boolean coilState, int deviceID ) {
-		// when writing coils, we do not provide starting address but the Coil number
-		// coils are numbered starting from 0
+    public int mbtcMaskWriteRegister(int address, int andMask, int orMask, int deviceID) {
 		// the request PDU:
-		//    Function code     = 1 byte  - it will be 0x05 in this case
-		//    Coil number       = 2 bytes - starting from 0
-		//    Coil State        = 2 bytes - value 0xFF00 = ON ; value 0x0000 = OFF
+		//    Function code     = 1 byte  - it will be 0x16 for mask write register
+		//    Reference Address = 2 bytes
+		//    And_Mask          = 2 bytes - HiByte first
+		//    Or_Mask           = 2 bytes - HiByte first
 		//
 		// the response PDU - is just the echo of the requested PDU
-		//
-		// exception response PDU
-		//    Function code     = 1 byte - it will be 0x85
-		//    Exception code    = 1 byte - 01 illegal function - not implemented in server device
-		//                                 02 illegal data address - adress is not supported by device
-		//                                 03 illegal data value - fault in structure
-		//                                 04 server device failure - problem at server site
-	
-		byte[] requestPDU = new byte[5];
-		byte[] intToByte;
-		byte[] responsePDU;
-		byte unitID;
-			
-		if( ( coilNumber < 0 ) || ( coilNumber >= 65535 ) ) {
-		    _dispDebugLog(9,"mbtcWriteSingleCoil: coil# out of range <0,65535) - coilNumber=" + String.valueOf(coilNumber));
-		    return RET_ERRRAN;
-		}
-		
-		// to write single coil we use function 0x05
-		requestPDU[0] = 0x05;
-	
-		// lets convert coil number to bytes
-		intToByte = _intToByteArray( coilNumber );
-		requestPDU[1] = intToByte[2]; // HiByte of coil number
-		requestPDU[2] = intToByte[3]; // LoByte of coil number
-	
-		// let's set ON/OFF value
-		if ( coilState )
-		    requestPDU[3] = (byte)0xff; // lets set ON value
-		else
-		    requestPDU[3] = (byte)0x00; // lets set OFF value
-	
-		requestPDU[4] = (byte)0x00; // it is always 0x00
-	
-		// lets convert devideID to unitID
-		intToByte = _intToByteArray ( deviceID );
-		unitID = intToByte[3];
-	
-		responsePDU = _sRequest( requestPDU, unitID );
-	
-		if( responsePDU == null ) {
-		    _dispDebugLog(9,"mbtcWriteSingleCoil: mbtcRequest returned null value.");
-		    return RET_ERRBRE;
+
+		int retVal;
+
+		if( ( address < 0 ) || ( address > 65535 ) ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcMaskWriteRegister: register# out of range <0,65535> - address={}", address);
+			return RET_ERRRAN;
 		}
-		else {
-		    _dispDebugLog(9,"mbtcWriteSingleCoil: mbtcRequest returned: " + _byteArrayToHexString(responsePDU));
-	
-		    if( responsePDU[0] != requestPDU[0] ) {
-		    	_dispDebugLog(9,"mbtcWriteSingleCoil: exception in responsePDU.");
-		    	return RET_ERRXRE;
-		    }
-		    else {
-		    	_dispDebugLog(9,"mbtcWriteSingleCoil: coil state=" + String.valueOf(coilState));
-		    }
-	
+
+		_putMaskWriteRegisterPDU( _reqPDU, address, andMask, orMask );
+		if( _sRequest( _reqPDU, _rspPDU, (byte)deviceID ) < 0 ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcMaskWriteRegister: _sRequest returned error.");
+			return RET_ERRBRE;
 		}
-	
-		return RET_OK;
+		retVal = _checkMaskWriteResponse( _rspPDU, _reqPDU );
+		if( retVal != RET_OK )
+			_trace(ModbusTraceEvent.ERROR, "mbtcMaskWriteRegister: bad response for register {}", address);
+		return retVal;
     }
 
-
-    /**
-     * Reads specified number of coils' status starting at given address.
-     *
-     * @param  startAddress    address of the first coil to read
-     * @param  quantity        number of coils to read
+	/**
+     * Sets and clears several bits of one holding register in one mask write register (0x16) request.
+     * Bits which are in none of the masks keep their current value.
+     * 
+     * @param  address      address of the holding register
+     * @param  setMask      bits to be set to 1
+     * @param  clearMask    bits to be set to 0
+     * @param  deviceID     MODBUS Master device ID. Usually 0.
+     * 
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the register address is out of range or a bit is in both masks<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *         
+     */
+    public int mbtcWriteRegisterBits(int address, int setMask, int clearMask, int deviceID) {
+		if( ( setMask & clearMask & 0xFFFF ) != 0 ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcWriteRegisterBits: bits {} are both set and cleared in register {}", setMask & clearMask & 0xFFFF, address);
+			return RET_ERRRAN;
+		}
+		return mbtcMaskWriteRegister( address, ~( setMask | clearMask ) & 0xFFFF, setMask & 0xFFFF, deviceID );
+    }
+
+	/**
+     * Applies a list of bit edits to holding registers. Edits of the same register are merged,
+     * so every register gets exactly one mask write register (0x16) request whatever the number
+     * of its bits changed. When pipelining is set in mbtcSetup requests for different registers are
+     * in flight together. For the same bit the last edit in the list wins.
+     * 
+     * @param  addresses    address of the holding register of each edit
+     * @param  bits         bit number 0 (the lowest) to 15 of each edit
+     * @param  states       new state of the bit of each edit
+     * @param  deviceID     MODBUS Master device ID. Usually 0.
+     * 
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if arrays are not given, their lengths differ, an address or a bit number is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *         
+     */
+    public int mbtcWriteRegisterBits(int[] addresses, int[] bits, boolean[] states, int deviceID) {
+		int[] words;
+		int[] setMasks;
+		int[] clearMasks;
+		int wordCount = 0;
+		int retVal;
+
+		if( addresses == null || bits == null || states == null || addresses.length != bits.length
+				|| addresses.length != states.length || addresses.length == 0 ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcWriteRegisterBits: addresses, bits and states must have the same, non zero length");
+			return RET_ERRRAN;
+		}
+
+		// merge edits of the same register, lists are short so no map here
+		words = new int[addresses.length];
+		setMasks = new int[addresses.length];
+		clearMasks = new int[addresses.length];
+		for ( int e = 0; e < addresses.length; e++ ) {
+			int w = 0;
+			if( addresses[e] < 0 || addresses[e] > 65535 || bits[e] < 0 || bits[e] > 15 ) {
+				_trace(ModbusTraceEvent.ERROR, "mbtcWriteRegisterBits: edit out of range - address={} bit={}", addresses[e], bits[e]);
+				return RET_ERRRAN;
+			}
+			while ( w < wordCount && words[w] != addresses[e] )
+				w++;
+			if ( w == wordCount )
+				words[wordCount++] = addresses[e];
+			if ( states[e] ) {
+				setMasks[w] |= 1 << bits[e];
+				clearMasks[w] &= ~( 1 << bits[e] );
+			}
+			else {
+				clearMasks[w] |= 1 << bits[e];
+				setMasks[w] &= ~( 1 << bits[e] );
+			}
+		}
+
+		if ( wordCount == 1 || _window( deviceID ) == 1 ) {
+			for ( int w = 0; w < wordCount; w++ ) {
+				retVal = mbtcWriteRegisterBits( words[w], setMasks[w], clearMasks[w], deviceID );
+				if ( retVal != RET_OK )
+					return retVal;
+			}
+			return RET_OK;
+		}
+
+		byte[][] requestPDUs = new byte[wordCount][];
+		for ( int w = 0; w < wordCount; w++ ) {
+			requestPDUs[w] = new byte[7];
+			_putMaskWriteRegisterPDU( ByteBuffer.wrap(requestPDUs[w]), words[w], ~( setMasks[w] | clearMasks[w] ), setMasks[w] );
+		}
+		byte[][] responsePDUs = _pRequest( requestPDUs, (byte)deviceID );
+		for ( int w = 0; w < wordCount; w++ ) {
+			if ( responsePDUs[w] == null ) {
+				_trace(ModbusTraceEvent.ERROR, "mbtcWriteRegisterBits: no response for register {}", words[w]);
+				return RET_ERRBRE;
+			}
+			retVal = _checkMaskWriteResponse( ByteBuffer.wrap(responsePDUs[w]), ByteBuffer.wrap(requestPDUs[w]) );
+			if ( retVal != RET_OK ) {
+				_trace(ModbusTraceEvent.ERROR, "mbtcWriteRegisterBits: bad response for register {}", words[w]);
+				return retVal;
+			}
+		}
+		return RET_OK;
+    }
+
+
+    /**
+     * Encodes write multiple registers (0x10) request PDU for registers offset .. offset + quantity - 1
+     * of the values. Values are taken from intValues or shortValues, whichever is not null.
+     *
+     * @param  requestPDU   buffer for request PDU, at least 6 + 2 * quantity bytes
+     * @param  startAddress address of the register for values[0]
+     * @param  intValues    values of registers or null
+     * @param  shortValues  values of registers or null
+     * @param  offset       index of the first value of this request
+     * @param  quantity     number of registers in this request, 1 to 123
+     *
+     */
+    private void _putWriteRegistersPDU(ByteBuffer requestPDU, int startAddress, int[] intValues, short[] shortValues, int offset, int quantity) {
+		requestPDU.clear();
+		requestPDU.put( (byte)0x10 );
+		requestPDU.putShort( (short)( startAddress + offset ) ); // HiByte first
+		requestPDU.putShort( (short)quantity );                  // HiByte first
+		requestPDU.put( (byte)( quantity * 2 ) );                // byte count
+		for ( int i = offset; i < offset + quantity; i++ )
+			requestPDU.putShort( intValues != null ? (short)intValues[i] : shortValues[i] );
+		requestPDU.flip();
+    }
+
+    /**
+     * Checks the response of write multiple coils/registers functions (0x0F, 0x10).
+     * The response is the echo of starting address and quantity.
+     *
+     * @param  responsePDU  response PDU between position 0 and limit
+     * @param  functionCode function code of the request
+     * @param  address      starting address of the request
+     * @param  quantity     quantity of the request
+     * @return RET_OK on success<br>
+     *         RET_ERRBRE when the response does not match the request<br>
+     *         RET_ERRXRE on exception response
+     *
+     */
+    private int _checkWriteMultipleResponse(ByteBuffer responsePDU, byte functionCode, int address, int quantity) {
+		if ( responsePDU.get(0) != functionCode )
+			return RET_ERRXRE;
+		if ( responsePDU.limit() < 5 || ( responsePDU.getShort(1) & 0xFFFF ) != address || ( responsePDU.getShort(3) & 0xFFFF ) != quantity )
+			return RET_ERRBRE;
+		return RET_OK;
+    }
+
+    // both mbtcWriteRegisters variants. One of intValues, shortValues is null
+    private int _writeRegisters(int startAddress, int[] intValues, short[] shortValues, int deviceID) {
+		// the request PDU:
+		//    Function code         = 1 byte  - it will be 0x10 for writing multiple registers
+		//    Starting Address      = 2 bytes
+		//    Quantity of Registers = 2 bytes - 1 to 123 (0x7B)
+		//    Byte Count            = 1 byte  - 2 x Quantity of Registers
+		//    Registers Value       = N x 2 bytes - HiByte first
+		//
+		// the response PDU:
+		//    Function code         = 1 byte  - it will be the same as in request PDU
+		//    Starting Address      = 2 bytes
+		//    Quantity of Registers = 2 bytes
+		//
+		// longer arrays are written in chunks of 123 registers
+
+		int count = ( intValues != null ) ? intValues.length : ( ( shortValues != null ) ? shortValues.length : 0 );
+		int chunks;
+		int retVal;
+
+		if ( ( startAddress < 0 ) || ( count < 1 ) || ( startAddress + count > 65536 ) ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcWriteRegisters: registers out of range <0,65535> - startAddress={} count={}", startAddress, count);
+			return RET_ERRRAN;
+		}
+
+		chunks = ( count + MAX_WRITE_REGISTERS - 1 ) / MAX_WRITE_REGISTERS;
+		if ( chunks == 1 || _window( deviceID ) == 1 ) {
+			// one by one, request PDU is encoded straight in the transmit buffer
+			for ( int offset = 0; offset < count; offset += MAX_WRITE_REGISTERS ) {
+				int quantity = Math.min(MAX_WRITE_REGISTERS, count - offset);
+				_putWriteRegistersPDU( _reqPDU, startAddress, intValues, shortValues, offset, quantity );
+				if ( _sRequest( _reqPDU, _rspPDU, (byte)deviceID ) < 0 ) {
+					_trace(ModbusTraceEvent.ERROR, "mbtcWriteRegisters: _sRequest returned error for register {}", startAddress + offset);
+					return RET_ERRBRE;
+				}
+				retVal = _checkWriteMultipleResponse( _rspPDU, (byte)0x10, startAddress + offset, quantity );
+				if ( retVal != RET_OK ) {
+					_trace(ModbusTraceEvent.ERROR, "mbtcWriteRegisters: bad response for register {}", startAddress + offset);
+					return retVal;
+				}
+			}
+			return RET_OK;
+		}
+
+		// all chunks in the pipeline
+		byte[][] requestPDUs = new byte[chunks][];
+		for ( int c = 0; c < chunks; c++ ) {
+			int offset = c * MAX_WRITE_REGISTERS;
+			int quantity = Math.min(MAX_WRITE_REGISTERS, count - offset);
+			requestPDUs[c] = new byte[6 + 2 * quantity];
+			_putWriteRegistersPDU( ByteBuffer.wrap(requestPDUs[c]), startAddress, intValues, shortValues, offset, quantity );
+		}
+		byte[][] responsePDUs = _pRequest( requestPDUs, (byte)deviceID, true );
+		for ( int c = 0; c < chunks; c++ ) {
+			int offset = c * MAX_WRITE_REGISTERS;
+			if ( responsePDUs[c] == null ) {
+				_trace(ModbusTraceEvent.ERROR, "mbtcWriteRegisters: no response for register {}", startAddress + offset);
+				return RET_ERRBRE;
+			}
+			retVal = _checkWriteMultipleResponse( ByteBuffer.wrap(responsePDUs[c]), (byte)0x10, startAddress + offset, Math.min(MAX_WRITE_REGISTERS, count - offset) );
+			if ( retVal != RET_OK ) {
+				_trace(ModbusTraceEvent.ERROR, "mbtcWriteRegisters: bad response for register {}", startAddress + offset);
+				return retVal;
+			}
+		}
+		return RET_OK;
+    }
+
+	/**
+     * Writes values in consecutive holding registers with write multiple registers (0x10) function.
+     * Arrays longer than 123 registers are split in several requests. When pipelining is set in
+     * mbtcSetup these requests are in flight together, otherwise they are sent one by one.
+     * No chunk is sent after one has failed. Without pipelining the registers of the following
+     * chunks keep their old values. With pipelining up to pipeline window - 1 chunks after the
+     * failed one are already in flight and the device writes them, so a failed write may leave
+     * new values also beyond the failed chunk.
+     * 
+     * @param  startAddress address of the register for values[0]
+     * @param  values       new values of registers. Only lower 16 bits are sent
+     * @param  deviceID     MODBUS Master device ID. Usually 0.
+     * 
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the registers are out of range or there are no values<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *         
+     */
+    public int mbtcWriteRegisters(int startAddress, int[] values, int deviceID) {
+    	return _writeRegisters(startAddress, values, null, deviceID);
+    }
+
+	/**
+     * Writes values in consecutive holding registers with write multiple registers (0x10) function.
+     * Same as mbtcWriteRegisters(int, int[], int) for values kept as 16 bit words.
+     * 
+     * @param  startAddress address of the register for values[0]
+     * @param  values       new values of registers
+     * @param  deviceID     MODBUS Master device ID. Usually 0.
+     * 
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the registers are out of range or there are no values<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *         
+     */
+    public int mbtcWriteRegisters(int startAddress, short[] values, int deviceID) {
+    	return _writeRegisters(startAddress, null, values, deviceID);
+    }
+
+    /**
+     * Encodes write multiple coils (0x0F) request PDU for coils offset .. offset + quantity - 1
+     * of the source. Bits are taken from bits or words, whichever is not null. Offset of every
+     * chunk is a multiple of 8, so with words whole bytes are copied without shifting bit by bit.
+     *
+     * @param  requestPDU   buffer for request PDU, at least 6 + (quantity + 7) / 8 bytes
+     * @param  startAddress address of the coil for bit 0
+     * @param  bits         states of coils or null
+     * @param  words        states of coils, bit i is (words[i / 64] >>> (i % 64)) and 1, or null
+     * @param  offset       index of the first bit of this request, multiple of 8
+     * @param  quantity     number of coils in this request, 1 to 1968
+     *
+     */
+    private void _putWriteCoilsPDU(ByteBuffer requestPDU, int startAddress, BitSet bits, long[] words, int offset, int quantity) {
+		int byteCount = ( quantity + 7 ) / 8;
+
+		requestPDU.clear();
+		requestPDU.put( (byte)0x0F );
+		requestPDU.putShort( (short)( startAddress + offset ) ); // HiByte first
+		requestPDU.putShort( (short)quantity );                  // HiByte first
+		requestPDU.put( (byte)byteCount );
+		for ( int b = 0; b < byteCount; b++ ) {
+			int bitIdx = offset + b * 8;
+			int value;
+			if ( words != null ) {
+				value = (int)( words[bitIdx >>> 6] >>> ( bitIdx & 63 ) ) & 0xFF;
+			}
+			else {
+				value = 0;
+				for ( int j = 0; j < 8; j++ )
+					if ( bits.get(bitIdx + j) )
+						value |= 1 << j;
+			}
+			// coils beyond quantity must be sent as 0
+			if ( b == byteCount - 1 && ( quantity & 7 ) != 0 )
+				value &= ( 1 << ( quantity & 7 ) ) - 1;
+			requestPDU.put( (byte)value );
+		}
+		requestPDU.flip();
+    }
+
+    // both mbtcWriteCoils variants. One of bits, words is null
+    private int _writeCoils(int startAddress, BitSet bits, long[] words, int count, int deviceID) {
+		// the request PDU:
+		//    Function code     = 1 byte  - it will be 0x0F for writing multiple coils
+		//    Starting Address  = 2 bytes
+		//    Quantity of Coils = 2 bytes - 1 to 1968 (0x7B0)
+		//    Byte Count        = 1 byte  - (Quantity of Coils + 7) / 8
+		//    Coils Value       = N bytes - first coil in the lowest bit of the first byte
+		//
+		// the response PDU:
+		//    Function code     = 1 byte  - it will be the same as in request PDU
+		//    Starting Address  = 2 bytes
+		//    Quantity of Coils = 2 bytes
+		//
+		// more coils are written in chunks of 1968 coils
+
+		int chunks;
+		int retVal;
+
+		if ( ( startAddress < 0 ) || ( count < 1 ) || ( startAddress + count > 65536 )
+				|| ( bits == null && ( words == null || words.length * 64L < count ) ) ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcWriteCoils: coils out of range <0,65535> or too few bits - startAddress={} count={}", startAddress, count);
+			return RET_ERRRAN;
+		}
+
+		chunks = ( count + MAX_WRITE_COILS - 1 ) / MAX_WRITE_COILS;
+		if ( chunks == 1 || _window( deviceID ) == 1 ) {
+			// one by one, request PDU is encoded straight in the transmit buffer
+			for ( int offset = 0; offset < count; offset += MAX_WRITE_COILS ) {
+				int quantity = Math.min(MAX_WRITE_COILS, count - offset);
+				_putWriteCoilsPDU( _reqPDU, startAddress, bits, words, offset, quantity );
+				if ( _sRequest( _reqPDU, _rspPDU, (byte)deviceID ) < 0 ) {
+					_trace(ModbusTraceEvent.ERROR, "mbtcWriteCoils: _sRequest returned error for coil {}", startAddress + offset);
+					return RET_ERRBRE;
+				}
+				retVal = _checkWriteMultipleResponse( _rspPDU, (byte)0x0F, startAddress + offset, quantity );
+				if ( retVal != RET_OK ) {
+					_trace(ModbusTraceEvent.ERROR, "mbtcWriteCoils: bad response for coil {}", startAddress + offset);
+					return retVal;
+				}
+			}
+			return RET_OK;
+		}
+
+		// all chunks in the pipeline
+		byte[][] requestPDUs = new byte[chunks][];
+		for ( int c = 0; c < chunks; c++ ) {
+			int offset = c * MAX_WRITE_COILS;
+			int quantity = Math.min(MAX_WRITE_COILS, count - offset);
+			requestPDUs[c] = new byte[6 + ( quantity + 7 ) / 8];
+			_putWriteCoilsPDU( ByteBuffer.wrap(requestPDUs[c]), startAddress, bits, words, offset, quantity );
+		}
+		byte[][] responsePDUs = _pRequest( requestPDUs, (byte)deviceID, true );
+		for ( int c = 0; c < chunks; c++ ) {
+			int offset = c * MAX_WRITE_COILS;
+			if ( responsePDUs[c] == null ) {
+				_trace(ModbusTraceEvent.ERROR, "mbtcWriteCoils: no response for coil {}", startAddress + offset);
+				return RET_ERRBRE;
+			}
+			retVal = _checkWriteMultipleResponse( ByteBuffer.wrap(responsePDUs[c]), (byte)0x0F, startAddress + offset, Math.min(MAX_WRITE_COILS, count - offset) );
+			if ( retVal != RET_OK ) {
+				_trace(ModbusTraceEvent.ERROR, "mbtcWriteCoils: bad response for coil {}", startAddress + offset);
+				return retVal;
+			}
+		}
+		return RET_OK;
+    }
+
+	/**
+     * Sets states of consecutive coils with write multiple coils (0x0F) function.
+     * More than 1968 coils are split in several requests, pipelined when it is set in mbtcSetup.
+     * No chunk is sent after one has failed. With pipelining the chunks already in flight at that
+     * moment (up to pipeline window - 1 after the failed one) are still set by the device.
+     * 
+     * @param  startAddress address of the coil for bit 0
+     * @param  coils        new states of coils, bit i is the state of coil startAddress + i
+     * @param  count        number of coils to write
+     * @param  deviceID     MODBUS Master device ID. Usually 0.
+     * 
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the coils are out of range or count is less than 1<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *         
+     */
+    public int mbtcWriteCoils(int startAddress, BitSet coils, int count, int deviceID) {
+    	if ( coils == null ) {
+    		_trace(ModbusTraceEvent.ERROR, "mbtcWriteCoils: there are no coils states");
+    		return RET_ERRRAN;
+    	}
+    	return _writeCoils(startAddress, coils, null, count, deviceID);
+    }
+
+	/**
+     * Sets states of consecutive coils with write multiple coils (0x0F) function.
+     * Same as mbtcWriteCoils(int, BitSet, int, int) for bits packed in longs, the layout
+     * of BitSet.toLongArray(): state of coil startAddress + i is (coils[i / 64] >>> (i % 64)) and 1.
+     * 
+     * @param  startAddress address of the coil for bit 0
+     * @param  coils        new states of coils packed in longs
+     * @param  count        number of coils to write
+     * @param  deviceID     MODBUS Master device ID. Usually 0.
+     * 
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the coils are out of range, count is less than 1 or the array is too short<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *         
+     */
+    public int mbtcWriteCoils(int startAddress, long[] coils, int count, int deviceID) {
+    	return _writeCoils(startAddress, null, coils, count, deviceID);
+    }
+    
+
+	/**
+     * Switches ON or OFF the coil at specified address.
+     * 
+     * @param  coilNumber      address of the coil
+     * @param  coilState       desired state of the coil
+     * @param  deviceID        MODBUS Master device ID. Usually 0.
+     * 
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the coil address is out of range
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *         
+     */
+    public int mbtcWriteSingleCoil( int coilNumber, boolean coilState, int deviceID ) {
+		// when writing coils, we do not provide starting address but the Coil number
+		// coils are numbered starting from 0
+		// the request PDU:
+		//    Function code     = 1 byte  - it will be 0x05 in this case
+		//    Coil number       = 2 bytes - starting from 0
+		//    Coil State        = 2 bytes - value 0xFF00 = ON ; value 0x0000 = OFF
+		//
+		// the response PDU - is just the echo of the requested PDU
+		//
+		// exception response PDU
+		//    Function code     = 1 byte - it will be 0x85
+		//    Exception code    = 1 byte - 01 illegal function - not implemented in server device
+		//                                 02 illegal data address - adress is not supported by device
+		//                                 03 illegal data value - fault in structure
+		//                                 04 server device failure - problem at server site
+	
+		int responseLen;
+		byte unitID;
+			
+		if( ( coilNumber < 0 ) || ( coilNumber >= 65535 ) ) {
+		    _trace(ModbusTraceEvent.ERROR, "mbtcWriteSingleCoil: coil# out of range <0,65535) - coilNumber={}", coilNumber);
+		    return RET_ERRRAN;
+		}
+		
+		// request PDU is encoded straight in the transmit buffer
+		_reqPDU.clear();
+		// to write single coil we use function 0x05
+		_reqPDU.put( (byte)0x05 );
+	
+		// coil number - HiByte first
+		_reqPDU.putShort( (short)coilNumber );
+	
+		// let's set ON/OFF value
+		if ( coilState )
+		    _reqPDU.put( (byte)0xff ); // lets set ON value
+		else
+		    _reqPDU.put( (byte)0x00 ); // lets set OFF value
+	
+		_reqPDU.put( (byte)0x00 ); // it is always 0x00
+		_reqPDU.flip();
+	
+		// lets convert devideID to unitID
+		unitID = (byte)deviceID;
+	
+		responseLen = _sRequest( _reqPDU, _rspPDU, unitID );
+	
+		if( responseLen < 0 ) {
+		    _trace(ModbusTraceEvent.ERROR, "mbtcWriteSingleCoil: mbtcRequest returned error.");
+		    return RET_ERRBRE;
+		}
+		else {
+			_trace(ModbusTraceEvent.MESSAGE, "mbtcWriteSingleCoil: mbtcRequest returned: ", _rspPDU);
+	
+		    if( _rspPDU.get(0) != _reqPDU.get(0) ) {
+		    	_trace(ModbusTraceEvent.ERROR, "mbtcWriteSingleCoil: exception in responsePDU.");
+		    	return RET_ERRXRE;
+		    }
+		    else {
+		    	_trace(ModbusTraceEvent.COIL, "mbtcWriteSingleCoil: coil {} state={}", coilNumber, coilState ? 1 : 0);
+		    }
+	
+		}
+	
+		return RET_OK;
+    }
+
+
+    /**
+     * Checks address and quantity for read functions (0x01, 0x02, 0x03, 0x04).
+     *
+     * @param  funName         name of the calling method (for debugging messages)
+     * @param  startAddress    address of the first coil/register to read
+     * @param  quantity        number of coils/registers to read
+     * @param  maxQuantity     maximum quantity allowed by MODBUS specification for this function
+     * @return true if the request can be sent
+     *         
+     */
+    private boolean _checkReadRange(String funName, int startAddress, int quantity, int maxQuantity) {
+		if( ( startAddress < 0 ) || ( startAddress > 65535 ) ) {
+			if ( _tracer != null )
+				_trace(ModbusTraceEvent.ERROR, funName + ": address out of range <0,65535> - startAddress={}", startAddress);
+			return false;
+		}
+	
+		if( ( quantity < 1 ) || ( quantity > maxQuantity ) ) {
+		    if ( _tracer != null )
+		    	_trace(ModbusTraceEvent.ERROR, funName + ": quantity out of range <1,{}> - quantity={}", maxQuantity, quantity);
+		    return false;
+		}
+		return true;
+    }
+    
+    /**
+     * Encodes request PDU for read functions (0x01, 0x02, 0x03, 0x04) in given buffer.
+     * Read request PDU:
+     *    Function code     = 1 byte
+     *    Starting Address  = 2 bytes in range 0x0000 to 0xFFFF
+     *    Quantity          = 2 bytes
+     *
+     * @param  requestPDU      buffer for the PDU. It is ready to be sent on return
+     * @param  functionCode    MODBUS function code
+     * @param  startAddress    address of the first coil/register to read
+     * @param  quantity        number of coils/registers to read
+     *         
+     */
+    private void _putReadRequestPDU(ByteBuffer requestPDU, byte functionCode, int startAddress, int quantity) {
+		requestPDU.clear();
+		requestPDU.put( functionCode );
+		requestPDU.putShort( (short)startAddress ); // HiByte first
+		requestPDU.putShort( (short)quantity );     // HiByte first
+		requestPDU.flip();
+    }
+
+    /**
+     * Encodes complete read request ADU (0x01, 0x03) in the transmit buffer the same way
+     * mbtcReadCoils and mbtcReadRegisters do, but does not send it. Used by benchmarks.
+     *
+     * @return transmit buffer with request ADU between position and limit<br>
+     *         null when ADU cannot be created
+     */
+    ByteBuffer _encodeReadRequest(byte functionCode, int startAddress, int quantity, byte unitID) {
+		_putReadRequestPDU( _reqPDU, functionCode, startAddress, quantity );
+		_txBuffer.clear();
+		if ( ! _putADU(_reqPDU, unitID, _getTransId()) )
+			return null;
+		_txBuffer.flip();
+		return _txBuffer;
+    }
+
+    // trace message of values decoded by read functions
+    private static String _readTraceMessage(byte functionCode) {
+		switch ( functionCode ) {
+		case 0x01: return "mbtcReadCoils: coil {} = {}";
+		case 0x02: return "mbtcReadDiscreteInputs: input {} = {}";
+		case 0x03: return "mbtcReadRegisters: register {} = {}";
+		case 0x04: return "mbtcReadInputRegisters: register {} = {}";
+		default:   return "mbtcReadWriteRegisters: register {} = {}";
+		}
+    }
+
+    /**
+     * Checks the response PDU of a read function before its data are decoded.
+     *
+     * @return RET_OK if the data of quantity bits/registers are there<br>
+     *         RET_ERRBRE when response does not match requested quantity<br>
+     *         RET_ERRXRE on exception response, its code is kept for mbtcGetLastExceptionCode
+     */
+    private int _checkReadResponse(ByteBuffer responsePDU, byte functionCode, int quantity, boolean bitTable) {
+		int byteCount;
+		int expected = bitTable ? ( quantity + 7 ) / 8 : quantity * 2;
+
+		if( responsePDU.get(0) != functionCode ) {
+			_lastExceptionCode = ( responsePDU.limit() > 1 ) ? responsePDU.get(1) & 0xFF : 0;
+			_trace(ModbusTraceEvent.ERROR, "_readResponseFromPDU: exception response, function code {}, exception code {}",
+					responsePDU.get(0) & 0xFF, _lastExceptionCode);
+			return RET_ERRXRE;
+		}
+
+		// byte count is unsigned - 2000 coils or 125 registers give 250 bytes.
+		// Some devices send more bytes than needed for bits, but registers must match exactly
+		byteCount = ( responsePDU.limit() > 1 ) ? ( responsePDU.get(1) & 0xFF ) : 0;
+		if( ( bitTable ? byteCount < expected : byteCount != expected ) || responsePDU.limit() < 2 + byteCount ) {
+			_trace(ModbusTraceEvent.ERROR, "_readResponseFromPDU: response PDU does not match requested quantity {}", quantity);
+			return RET_ERRBRE;
+		}
+		return RET_OK;
+    }
+
+    /**
+     * Decodes the response PDU of all read functions (0x01, 0x02, 0x03, 0x04, 0x17) into the buffer
+     * provided by the caller. Bit tables (coils, discrete inputs) are decoded into bits,
+     * register tables (holding and input registers) into words - the other one is null.
+     *
+     * Read response PDU:
+     *    Function code = 1 byte - the same as in request PDU or with 0x80 set on exception
+     *    Byte Count    = 1 byte - (quantity + 7) / 8 for bits, 2 x quantity for registers
+     *    Data          = N bytes - bits from the lowest bit of the first byte, registers HiByte first
+     *
+     * @param  responsePDU     response PDU returned by _sRequest or _pRequest, between 0 and limit
+     * @param  functionCode    function code of the request
+     * @param  quantity        number of bits/registers requested
+     * @param  bits            buffer for bit values or null
+     * @param  words           buffer for register values or null
+     * @param  offset          index in the buffer for the first value
+     * @return RET_OK on success<br>
+     *         RET_ERRBRE when response does not match requested quantity<br>
+     *         RET_ERRXRE on exception response
+     *         
+     */
+    int _readResponseFromPDU(ByteBuffer responsePDU, byte functionCode, int quantity, boolean[] bits, int[] words, int offset) {
+		int retVal;
+
+		_trace(ModbusTraceEvent.MESSAGE, "_readResponseFromPDU: response PDU: ", responsePDU);
+		if ( ( retVal = _checkReadResponse(responsePDU, functionCode, quantity, bits != null) ) != RET_OK )
+			return retVal;
+
+		if ( bits != null ) {
+			for ( int n = 0; n < quantity; n++ ) {
+				bits[offset + n] = ( responsePDU.get( 2 + ( n >>> 3 ) ) & ( 1 << ( n & 7 ) ) ) != 0;
+				if ( _tracer != null )
+					_trace(ModbusTraceEvent.COIL, _readTraceMessage(functionCode), n, bits[offset + n] ? 1 : 0);
+			}
+		}
+		else {
+			for ( int n = 0; n < quantity; n++ ) {
+				words[offset + n] = responsePDU.getShort( 2 + 2 * n ); // signed, as it always was
+				if ( _tracer != null )
+					_trace(ModbusTraceEvent.REGISTER, _readTraceMessage(functionCode), n, words[offset + n]);
+			}
+		}
+		return RET_OK;
+    }
+
+    /**
+     * Any read function (0x01, 0x02, 0x03, 0x04) decoded into the buffer provided by the caller.
+     * Range longer than one request may carry is read in chunks, see _readChunks. The longest
+     * request is the maximum quantity of the device capabilities (MODBUS specification limit
+     * unless something else was learned or set).
+     * Nothing is allocated here.
+     *
+     * @param  funName         name of the public method (for debugging messages)
+     * @param  functionCode    MODBUS function code
+     * @param  startAddress    address of the first bit/register to read
+     * @param  quantity        number of bits/registers to read, up to the end of the address space
+     * @param  deviceID        modbus device id
+     * @param  bits            buffer for bit values or null
+     * @param  words           buffer for register values or null
+     * @param  offset          index in the buffer for the first value
+     * @return RET_OK, RET_ERRRAN, RET_ERRBRE or RET_ERRXRE
+     *         
+     */
+    private int _readTable(String funName, byte functionCode, int startAddress, int quantity, int deviceID, boolean[] bits, int[] words, int offset) {
+		int bufferLength = ( bits != null ) ? bits.length : ( ( words != null ) ? words.length : -1 );
+		ModbusDeviceCapabilities device = mbtcGetCapabilities( deviceID );
+		int maxQuantity = ( bits != null ) ? 2000 : 125;
+
+		if ( device != null )
+			maxQuantity = ( bits != null ) ? device.maxReadBits() : device.maxReadRegisters();
+		if( ! _checkReadRange(funName, startAddress, quantity, 65536 - startAddress) )
+			return RET_ERRRAN;
+		if( offset < 0 || bufferLength - offset < quantity ) {
+			if ( _tracer != null )
+				_trace(ModbusTraceEvent.ERROR, funName + ": buffer is too small - offset={} quantity={}", offset, quantity);
+			return RET_ERRRAN;
+		}
+		if ( quantity > maxQuantity )
+			return _readChunks( funName, functionCode, startAddress, quantity, maxQuantity, deviceID, bits, words, offset );
+
+		_putReadRequestPDU( _reqPDU, functionCode, startAddress, quantity );
+		if( _sRequest( _reqPDU, _rspPDU, (byte)deviceID ) < 0 ) {
+			if ( _tracer != null )
+				_trace(ModbusTraceEvent.ERROR, funName + ": _sRequest returned error. Exit with error");
+			return RET_ERRBRE;
+		}
+		return _readResponseFromPDU( _rspPDU, functionCode, quantity, bits, words, offset );
+    }
+
+    /**
+     * Reads values wider than one register (or typed 16-bit ones) from holding or input registers
+     * and decodes them straight from the response PDU into the caller's buffer - exactly one of
+     * floats, doubles and longs is given. A value is never split between two requests, so long
+     * ranges take requests of as many whole values as fit in maxReadRegisters of the device
+     * capabilities - 124 registers for 32-bit and 64-bit types with the specification limit.
+     * The requests are sent one after another, not pipelined, because each response is decoded
+     * from the receive buffer before the next request is sent. Nothing is allocated here.
+     *
+     * @param  funName         name of the public method (for debugging messages)
+     * @param  table           ModbusTag.HOLDING_REGISTERS or ModbusTag.INPUT_REGISTERS, the function code
+     * @param  count           number of values
+     * @param  type            any register type but STRING
+     * @param  order           layout of the registers, null means ABCD
+     * @return RET_OK, RET_ERRBRE, RET_ERRXRE or RET_ERRRAN - also when one value is longer than the device reads
+     *
+     */
+    private int _readTyped(String funName, int table, int startAddress, int count, int deviceID, ModbusDataType type, ModbusWordOrder order,
+    		float[] floats, double[] doubles, long[] longs, int offset) {
+		int bufferLength = ( floats != null ) ? floats.length : ( ( doubles != null ) ? doubles.length : ( ( longs != null ) ? longs.length : -1 ) );
+		int registers = ( type != null ) ? type.registers() : 0;
+
+		if ( ( table != ModbusTag.HOLDING_REGISTERS && table != ModbusTag.INPUT_REGISTERS ) || registers == 0 || type.isBit() ) {
+			if ( _tracer != null )
+				_trace(ModbusTraceEvent.ERROR, funName + ": bad table {} or data type", table);
+			return RET_ERRRAN;
+		}
+		if ( count < 1 || ! _checkReadRange(funName, startAddress, count * registers, 65536 - startAddress) )
+			return RET_ERRRAN;
+		if( offset < 0 || bufferLength - offset < count ) {
+			if ( _tracer != null )
+				_trace(ModbusTraceEvent.ERROR, funName + ": buffer is too small - offset={} count={}", offset, count);
+			return RET_ERRRAN;
+		}
+
+		byte functionCode = (byte)table;
+		ModbusDeviceCapabilities device = mbtcGetCapabilities( deviceID );
+		int perRequest = ( ( device != null ) ? device.maxReadRegisters() : 125 ) / registers;
+		if ( perRequest == 0 ) {
+			if ( _tracer != null )
+				_trace(ModbusTraceEvent.ERROR, funName + ": device reads at most {} registers, one value takes {}", device.maxReadRegisters(), registers);
+			return RET_ERRRAN;
+		}
+		for ( int done = 0; done < count; done += perRequest ) {
+			int n = Math.min(perRequest, count - done);
+			int retVal;
+
+			_putReadRequestPDU( _reqPDU, functionCode, startAddress + done * registers, n * registers );
+			if( _sRequest( _reqPDU, _rspPDU, (byte)deviceID ) < 0 ) {
+				if ( _tracer != null )
+					_trace(ModbusTraceEvent.ERROR, funName + ": _sRequest returned error. Exit with error");
+				return RET_ERRBRE;
+			}
+			if ( ( retVal = _checkReadResponse(_rspPDU, functionCode, n * registers, false) ) != RET_OK )
+				return retVal;
+			for ( int i = 0; i < n; i++ ) {
+				int index = 2 + 2 * registers * i;
+				int k = offset + done + i;
+				if ( floats != null )
+					floats[k] = (float)_decodeNumber(_rspPDU, index, type, order);
+				else if ( doubles != null )
+					doubles[k] = _decodeNumber(_rspPDU, index, type, order);
+				else
+					longs[k] = ( type == ModbusDataType.FLOAT32 || type == ModbusDataType.FLOAT64 ) ? (long)_decodeNumber(_rspPDU, index, type, order)
+							: _decodeInteger(_rspPDU, index, type, order);
+			}
+		}
+		return RET_OK;
+    }
+
+    // integer type of registers at the byte index of the PDU
+    private static long _decodeInteger(ByteBuffer pdu, int index, ModbusDataType type, ModbusWordOrder order) {
+		long bits = ModbusDecoder.bits(pdu, index, type.registers(), order);
+		switch ( type ) {
+		case INT16: return (short)bits;
+		case INT32: return (int)bits;
+		default:    return bits; // UINT16, UINT32 and INT64
+		}
+    }
+
+    // any numeric type of registers at the byte index of the PDU
+    private static double _decodeNumber(ByteBuffer pdu, int index, ModbusDataType type, ModbusWordOrder order) {
+		switch ( type ) {
+		case FLOAT32: return Float.intBitsToFloat( (int)ModbusDecoder.bits(pdu, index, 2, order) );
+		case FLOAT64: return Double.longBitsToDouble( ModbusDecoder.bits(pdu, index, 4, order) );
+		default:      return _decodeInteger(pdu, index, type, order);
+		}
+    }
+
+    /**
+     * Reads the range of the plan around what is known about the device: illegal addresses
+     * are skipped, read boundaries are not crossed and pieces are not longer than the device
+     * supports. Each piece is read by _learnRange.
+     *
+     * @return RET_OK, RET_ERRBRE or RET_ERRXRE if a value of the range could not be read
+     *
+     */
+    private int _readAround(byte functionCode, int startAddress, int quantity, int deviceID, boolean[] bits, int[] words, int offset,
+    		ModbusDeviceCapabilities device) {
+		int end = startAddress + quantity;
+		int retVal = RET_OK;
+		int address = startAddress;
+
+		while ( address < end ) {
+			int hole = device.nextIllegalAddress(functionCode, address);
+			if ( hole == address ) {
+				retVal = RET_ERRXRE; // the value is left unchanged
+				address = device.nextLegalAddress(functionCode, address);
+				continue;
+			}
+			int max = ( bits != null ) ? device.maxReadBits() : device.maxReadRegisters();
+			int pieceEnd = Math.min( Math.min(end, address + max), Math.min(hole, device.nextReadBoundary(functionCode, address)) );
+			int result = _learnRange( functionCode, address, pieceEnd - address, deviceID, bits, words, offset + address - startAddress, device );
+			if ( result == RET_ERRBRE )
+				return result;
+			if ( result != RET_OK )
+				retVal = result;
+			address = pieceEnd;
+		}
+		return retVal;
+    }
+
+    /**
+     * Reads the range and when it fails with exception 02 or 03, bisects it to find out why.
+     * Single address which fails with either code is illegal. When both halves read fine, with
+     * nothing learned on the way, exception 02 means a read boundary between them and exception
+     * 03 a quantity limit - the largest quantity the device takes is searched for between the
+     * half and the whole range, see _learnMaxQuantity.
+     * Values of the valid sub-ranges are read into the buffer on the way.
+     *
+     * @return RET_OK, RET_ERRBRE or RET_ERRXRE if a value of the range could not be read
+     *
+     */
+    private int _learnRange(byte functionCode, int startAddress, int quantity, int deviceID, boolean[] bits, int[] words, int offset,
+    		ModbusDeviceCapabilities device) {
+		int result = _readTable( "mbtcReadPlan", functionCode, startAddress, quantity, deviceID, bits, words, offset );
+		int code = _lastExceptionCode;
+
+		if ( result != RET_ERRXRE || ( code != 0x02 && code != 0x03 ) )
+			return result;
+		if ( quantity == 1 ) {
+			device.addIllegalAddresses(functionCode, startAddress, 1);
+			_learnedCount++;
+			_trace(ModbusTraceEvent.MESSAGE, "mbtcReadPlan: illegal address {} of function {}", startAddress, functionCode);
+			return RET_ERRXRE;
+		}
+
+		int half = ( quantity + 1 ) / 2;
+		int learned = _learnedCount;
+		int first = _learnRange( functionCode, startAddress, half, deviceID, bits, words, offset, device );
+		if ( first == RET_ERRBRE )
+			return first;
+		int second = _learnRange( functionCode, startAddress + half, quantity - half, deviceID, bits, words, offset + half, device );
+		if ( second == RET_ERRBRE )
+			return second;
+		if ( first != RET_OK || second != RET_OK )
+			return RET_ERRXRE;
+		if ( learned != _learnedCount )
+			return RET_OK; // the halves explain the failure
+		if ( code == 0x03 )
+			return _learnMaxQuantity( functionCode, startAddress, half, quantity, deviceID, bits, words, offset, device );
+		device.addReadBoundary(functionCode, startAddress + half);
+		_learnedCount++;
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcReadPlan: read boundary at {} of function {}", startAddress + half, functionCode);
+		return RET_OK;
+    }
+
+    /**
+     * Searches for the largest quantity the device takes in one read request by bisection:
+     * a request of good values from startAddress has succeeded and one of bad values has got
+     * exception 03, while all values of the range are readable. The result becomes the maximum
+     * quantity of the device, it is only lowered, never raised.
+     *
+     * @return RET_OK or RET_ERRBRE
+     *
+     */
+    private int _learnMaxQuantity(byte functionCode, int startAddress, int good, int bad, int deviceID, boolean[] bits, int[] words, int offset,
+    		ModbusDeviceCapabilities device) {
+		while ( bad - good > 1 ) {
+			int middle = ( good + bad ) / 2;
+			int result = _readTable( "mbtcReadPlan", functionCode, startAddress, middle, deviceID, bits, words, offset );
+			if ( result == RET_OK )
+				good = middle;
+			else if ( result == RET_ERRXRE && _lastExceptionCode == 0x03 )
+				bad = middle;
+			else if ( result == RET_ERRBRE )
+				return result;
+			else
+				break; // anything else is no quantity limit, keep what is known to work
+		}
+		if ( bits != null )
+			device.setMaxReadBits( Math.min(device.maxReadBits(), good) );
+		else
+			device.setMaxReadRegisters( Math.min(device.maxReadRegisters(), good) );
+		_learnedCount++;
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcReadPlan: {} values rejected, {} accepted", bad, good);
+		return RET_OK;
+    }
+
+    /**
+     * Reads the range longer than one request in chunks of maxQuantity. With pipelining set in
+     * mbtcSetup up to _window chunks are in flight and each response is decoded into
+     * its place in the caller's buffer as soon as it comes, in any order. Chunks which did not
+     * get the response in pipelined mode are read once again one by one (with retries and
+     * reconnects of _sRequest). Requests are encoded straight into _txBuffer, nothing
+     * is allocated here.
+     *
+     * @return RET_OK, RET_ERRBRE or RET_ERRXRE - exception response to any chunk
+     */
+    private int _readChunks(String funName, byte functionCode, int startAddress, int quantity, int maxQuantity, int deviceID, boolean[] bits, int[] words, int offset) {
+		int chunks = ( quantity + maxQuantity - 1 ) / maxQuantity;
+		int next = 0;
+		int inFlight = 0;
+		int chunk;
+		int chunkQuantity;
+		int result;
+		int i;
+		boolean broken = false;
+		int window = _window( deviceID );
+
+		if ( _chunkDone.length < chunks )
+			_chunkDone = new boolean[chunks];
+		Arrays.fill( _chunkDone, 0, chunks, false );
+		if ( window > 1 ) {
+			if ( ! _amIConnected() && mbtcConnect() != RET_OK ) {
+				_trace(ModbusTraceEvent.ERROR, "_readChunks: cannot connect");
+				return RET_ERRBRE;
+			}
+			while ( next < chunks || inFlight > 0 ) {
+				// fill the window - all new requests go in one write
+				_txBuffer.clear();
+				while ( next < chunks && inFlight < window ) {
+					_inFlightChunks[inFlight] = next;
+					_inFlightTrans[inFlight]  = _getTransId();
+					// MBAP: transaction ID, protocol 0, length = unit ID + 5 bytes of PDU, unit ID
+					_txBuffer.putShort( (short)_inFlightTrans[inFlight] ).putShort( (short)0 ).putShort( (short)6 ).put( (byte)deviceID );
+					_txBuffer.put( functionCode ).putShort( (short)( startAddress + next * maxQuantity ) )
+							.putShort( (short)Math.min(maxQuantity, quantity - next * maxQuantity) );
+					inFlight++;
+					next++;
+				}
+				_txBuffer.flip();
+				try {
+					_writeFully(_txBuffer);
+				} catch (IOException ex) {
+					// also a write timeout - part of an ADU may be on the wire
+					_trace(ModbusTraceEvent.ERROR, "_readChunks: Problem with writing ADU to slave");
+					broken = true;
+					break;
+				}
+				try {
+					_readResponseADU( System.nanoTime() + _soTimeout * 1000000L );
+				} catch (SocketTimeoutException ex) {
+					// stream is still in sync, late responses will be dropped by transaction ID
+					_trace(ModbusTraceEvent.ERROR, "_readChunks: No response from slave. {} requests in flight", inFlight);
+					break;
+				} catch (IOException ex) {
+					_trace(ModbusTraceEvent.ERROR, "_readChunks: Problem with reading response from slave. {} requests in flight", inFlight);
+					broken = true;
+					break;
+				}
+
+				for ( i = 0; i < inFlight && _inFlightTrans[i] != _respTransId; i++ )
+					;
+				if ( i == inFlight ) {
+					_trace(ModbusTraceEvent.MESSAGE, "_readChunks: response with unexpected transaction ID={}. Ignoring ...", _respTransId);
+					continue;
+				}
+				chunk = _inFlightChunks[i];
+				inFlight--;
+				_inFlightChunks[i] = _inFlightChunks[inFlight];
+				_inFlightTrans[i]  = _inFlightTrans[inFlight];
+
+				chunkQuantity = Math.min(maxQuantity, quantity - chunk * maxQuantity);
+				result = _readResponseFromPDU( _rspPDU, functionCode, chunkQuantity, bits, words, offset + chunk * maxQuantity );
+				if ( result == RET_ERRXRE )
+					return result; // responses still in flight will be dropped by transaction ID
+				_chunkDone[chunk] = ( result == RET_OK );
+			}
+			if ( broken ) {
+				// responses of requests still in flight are lost, the stream is out of sync
+				_trace(ModbusTraceEvent.ERROR, "_readChunks: pipeline broken, disconnecting");
+				mbtcDisconnect();
+			}
+		}
+
+		// everything what is still missing goes one by one
+		for ( chunk = 0; chunk < chunks; chunk++ ) {
+			if ( _chunkDone[chunk] )
+				continue;
+			chunkQuantity = Math.min(maxQuantity, quantity - chunk * maxQuantity);
+			_putReadRequestPDU( _reqPDU, functionCode, startAddress + chunk * maxQuantity, chunkQuantity );
+			if( _sRequest( _reqPDU, _rspPDU, (byte)deviceID ) < 0 ) {
+				if ( _tracer != null )
+					_trace(ModbusTraceEvent.ERROR, funName + ": _sRequest returned error. Exit with error");
+				return RET_ERRBRE;
+			}
+			result = _readResponseFromPDU( _rspPDU, functionCode, chunkQuantity, bits, words, offset + chunk * maxQuantity );
+			if ( result != RET_OK )
+				return result;
+		}
+		return RET_OK;
+    }
+
+    /**
+     * Sends the requests of the plan through the pipeline, up to _window in flight, and
+     * decodes each response into its place in the caller's buffers as soon as it comes, in any
+     * order. _requestDone tells which requests got their response, the others (longer than the
+     * device takes in one request, or without the response) are left to the caller. Requests are
+     * encoded straight into _txBuffer, nothing is allocated here.
+     *
+     * @return RET_OK, RET_ERRBRE if the client cannot connect or RET_ERRXRE - exception response to any request
+     */
+    private int _readPlanPipelined(ModbusReadPlan plan, int deviceID, boolean[] bits, int[] words) {
+		int requests = plan.requestCount();
+		int next = 0;
+		int inFlight = 0;
+		int retVal = RET_OK;
+		int r;
+		int result;
+		int i;
+		boolean broken = false;
+
+		if ( _requestDone.length < requests )
+			_requestDone = new boolean[requests];
+		Arrays.fill( _requestDone, 0, requests, false );
+		if ( ! _amIConnected() && mbtcConnect() != RET_OK ) {
+			_trace(ModbusTraceEvent.ERROR, "_readPlanPipelined: cannot connect");
+			return RET_ERRBRE;
+		}
+		ModbusDeviceCapabilities device = mbtcGetCapabilities( deviceID );
+		int window = _window( deviceID );
+		while ( next < requests || inFlight > 0 ) {
+			// fill the window - all new requests go in one write
+			_txBuffer.clear();
+			while ( next < requests && inFlight < window ) {
+				r = next++;
+				if ( plan.quantity(r) > ( plan.functionCode(r) <= ModbusTag.DISCRETE_INPUTS ? device.maxReadBits() : device.maxReadRegisters() ) )
+					continue; // read in chunks by the caller
+				_inFlightChunks[inFlight] = r;
+				_inFlightTrans[inFlight]  = _getTransId();
+				// MBAP: transaction ID, protocol 0, length = unit ID + 5 bytes of PDU, unit ID
+				_txBuffer.putShort( (short)_inFlightTrans[inFlight] ).putShort( (short)0 ).putShort( (short)6 ).put( (byte)deviceID );
+				_txBuffer.put( (byte)plan.functionCode(r) ).putShort( (short)plan.startAddress(r) ).putShort( (short)plan.quantity(r) );
+				inFlight++;
+			}
+			if ( inFlight == 0 )
+				break;
+			_txBuffer.flip();
+			try {
+				_writeFully(_txBuffer);
+			} catch (IOException ex) {
+				// also a write timeout - part of an ADU may be on the wire
+				_trace(ModbusTraceEvent.ERROR, "_readPlanPipelined: Problem with writing ADU to slave");
+				broken = true;
+				break;
+			}
+			try {
+				_readResponseADU( System.nanoTime() + _soTimeout * 1000000L );
+			} catch (SocketTimeoutException ex) {
+				// stream is still in sync, late responses will be dropped by transaction ID
+				_trace(ModbusTraceEvent.ERROR, "_readPlanPipelined: No response from slave. {} requests in flight", inFlight);
+				break;
+			} catch (IOException ex) {
+				_trace(ModbusTraceEvent.ERROR, "_readPlanPipelined: Problem with reading response from slave. {} requests in flight", inFlight);
+				broken = true;
+				break;
+			}
+
+			for ( i = 0; i < inFlight && _inFlightTrans[i] != _respTransId; i++ )
+				;
+			if ( i == inFlight ) {
+				_trace(ModbusTraceEvent.MESSAGE, "_readPlanPipelined: response with unexpected transaction ID={}. Ignoring ...", _respTransId);
+				continue;
+			}
+			r = _inFlightChunks[i];
+			inFlight--;
+			_inFlightChunks[i] = _inFlightChunks[inFlight];
+			_inFlightTrans[i]  = _inFlightTrans[inFlight];
+
+			boolean bitTable = plan.functionCode(r) <= ModbusTag.DISCRETE_INPUTS;
+			result = _readResponseFromPDU( _rspPDU, (byte)plan.functionCode(r), plan.quantity(r),
+					bitTable ? bits : null, bitTable ? null : words, plan.bufferOffset(r) );
+			if ( result == RET_ERRXRE )
+				retVal = result; // values of its tags are left unchanged, the scan goes on
+			_requestDone[r] = ( result != RET_ERRBRE );
+		}
+		if ( broken ) {
+			// responses of requests still in flight are lost, the stream is out of sync
+			_trace(ModbusTraceEvent.ERROR, "_readPlanPipelined: pipeline broken, disconnecting");
+			mbtcDisconnect();
+		}
+		return retVal;
+    }
+
+    /**
+     * Sends read requests (0x01, 0x02, 0x03, 0x04) for several blocks through the pipeline.
+     *
+     * @return response PDUs, element is null if the block was out of range or got no response<br>
+     *         null if arrays are not given or their lengths differ
+     */
+    private byte[][] _readBlocks(String funName, byte functionCode, int maxQuantity, int[] startAddresses, int[] quantities, int deviceID) {
+		byte[][] requestPDUs;
+
+		if( startAddresses == null || quantities == null || startAddresses.length != quantities.length ) {
+			if ( _tracer != null )
+				_trace(ModbusTraceEvent.ERROR, funName + ": startAddresses and quantities must have the same length");
+			return null;
+		}
+
+		requestPDUs = new byte[startAddresses.length][];
+		for (int i = 0; i < startAddresses.length; i++) {
+			if( _checkReadRange(funName, startAddresses[i], quantities[i], maxQuantity) ) {
+				requestPDUs[i] = new byte[5];
+				_putReadRequestPDU( ByteBuffer.wrap(requestPDUs[i]), functionCode, startAddresses[i], quantities[i] );
+			}
+		}
+		return _pRequest( requestPDUs, (byte)deviceID );
+    }
+
+    // bit tables (0x01, 0x02) of several blocks
+    private boolean[][] _readBitBlocks(String funName, byte functionCode, int[] startAddresses, int[] quantities, int deviceID) {
+		byte[][] responsePDUs = _readBlocks(funName, functionCode, 2000, startAddresses, quantities, deviceID);
+		boolean[][] bitArrays;
+
+		if ( responsePDUs == null )
+			return null;
+		bitArrays = new boolean[startAddresses.length][];
+		for (int i = 0; i < startAddresses.length; i++) {
+			if( responsePDUs[i] != null ) {
+				bitArrays[i] = new boolean[ quantities[i] ];
+				if( _readResponseFromPDU( ByteBuffer.wrap(responsePDUs[i]), functionCode, quantities[i], bitArrays[i], null, 0 ) != RET_OK )
+					bitArrays[i] = null;
+			}
+		}
+		return bitArrays;
+    }
+
+    // register tables (0x03, 0x04) of several blocks
+    private int[][] _readWordBlocks(String funName, byte functionCode, int[] startAddresses, int[] quantities, int deviceID) {
+		byte[][] responsePDUs = _readBlocks(funName, functionCode, 125, startAddresses, quantities, deviceID);
+		int[][] wordArrays;
+
+		if ( responsePDUs == null )
+			return null;
+		wordArrays = new int[startAddresses.length][];
+		for (int i = 0; i < startAddresses.length; i++) {
+			if( responsePDUs[i] != null ) {
+				wordArrays[i] = new int[ quantities[i] ];
+				if( _readResponseFromPDU( ByteBuffer.wrap(responsePDUs[i]), functionCode, quantities[i], null, wordArrays[i], 0 ) != RET_OK )
+					wordArrays[i] = null;
+			}
+		}
+		return wordArrays;
+    }
+
+
+    /**
+     * Reads specified number of coils' status starting at given address into the buffer
+     * provided by the caller. Nothing is allocated here, so use this method for cyclic polling.
+     * More than 2000 coils (or maxReadBits of mbtcGetCapabilities) are read in several requests,
+     * pipelined when it is set in mbtcSetup, and put together in the buffer.
+     *
+     * @param  startAddress    address of the first coil to read
+     * @param  quantity        number of coils to read, up to the end of the address space
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  coils           buffer for coils status. It must have at least offset + quantity elements
+     * @param  offset          index in coils for the status of the first coil
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the address, quantity or offset is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *         
+     */
+    public int mbtcReadCoils( int startAddress, int quantity, int deviceID, boolean[] coils, int offset ) {
+		// according to MODBUS specification maximum number of coils to read is 2000 (0x7d0)
+		// the request PDU:
+		//    Function code     = 1 byte - it will be 0x01 in this case
+		//    Starting Address  = 2 bytes
+		//    Quantity of Coils = 2 bytes
+		//
+		// the response PDU:
+		//    Function code     = 1 byte - it will be the same as in request PDU
+		//    Byte Count        = 1 byte - if i ask for 1 to 8 coils i will receive 1 byte etc
+		//    Coil Status       = N bytes
+		//
+		// exception responce PDU
+		//    Function code     = 1 byte - it will be 0x81
+		//    Exception code    = 1 byte - 01 illegal function - not implemented in server device
+		//                                 02 illegal data address - address is not supported by device
+		//                                 03 illegal data value - fault in structure
+		//                                 04 server device failure - problem at server site
+	
+		return _readTable( "mbtcReadCoils", (byte)0x01, startAddress, quantity, deviceID, coils, null, offset );
+    }
+
+
+    /**
+     * Reads specified number of coils' status starting at given address into the buffer
+     * provided by the caller. Nothing is allocated here, so use this method for cyclic polling.
+     * More than 2000 coils (or maxReadBits of mbtcGetCapabilities) are read in several requests,
+     * pipelined when it is set in mbtcSetup, and put together in the buffer.
+     *
+     * @param  startAddress    address of the first coil to read
+     * @param  quantity        number of coils to read, up to the end of the address space
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  coils           buffer for coils status. It must have at least quantity elements
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the address or quantity is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *         
+     */
+    public int mbtcReadCoils( int startAddress, int quantity, int deviceID, boolean[] coils ) {
+		return mbtcReadCoils( startAddress, quantity, deviceID, coils, 0 );
+    }
+
+
+    /**
+     * Reads specified number of coils' status starting at given address.
+     *
+     * @param  startAddress    address of the first coil to read
+     * @param  quantity        number of coils to read, up to the end of the address space
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return boolean[]       List of boolean values associated with coils status
+     *         
+     */
+    public boolean[] mbtcReadCoils( int startAddress, int quantity, int deviceID ) {
+		boolean[] coilArray;
+		
+		if( ! _checkReadRange("mbtcReadCoils", startAddress, quantity, 65536 - startAddress) )
+			return null;
+		
+		coilArray = new boolean[ quantity ];
+		if( mbtcReadCoils( startAddress, quantity, deviceID, coilArray, 0 ) != RET_OK )
+			return null;
+		return coilArray;
+    }
+
+
+    /**
+     * Reads several blocks of coils' status in one go. If pipelining was enabled 
+     * in mbtcSetup, requests for all blocks are sent without waiting for each response,
+     * so the whole scan costs about one network round trip per pipeline window.
+     *
+     * @param  startAddresses  addresses of the first coil of each block
+     * @param  quantities      number of coils to read in each block
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return boolean[][]     List of coils status for each block. Element is null if the block cannot be read<br>
+     * null if arrays are not given or their lengths differ
+     *         
+     */
+    public boolean[][] mbtcReadCoils( int[] startAddresses, int[] quantities, int deviceID ) {
+		return _readBitBlocks( "mbtcReadCoils", (byte)0x01, startAddresses, quantities, deviceID );
+    }
+
+
+    /**
+     * Reads specified number of discrete inputs starting at given address into the buffer
+     * provided by the caller with read discrete inputs (0x02) function. Nothing is allocated here.
+     *
+     * @param  startAddress    address of the first input to read
+     * @param  quantity        number of inputs to read, more than 2000 are read in several requests
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  inputs          buffer for inputs status. It must have at least offset + quantity elements
+     * @param  offset          index in inputs for the status of the first input
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the address, quantity or offset is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *         
+     */
+    public int mbtcReadDiscreteInputs( int startAddress, int quantity, int deviceID, boolean[] inputs, int offset ) {
+		// request and response PDU are the same as for read coils, the function code is 0x02
+		return _readTable( "mbtcReadDiscreteInputs", (byte)0x02, startAddress, quantity, deviceID, inputs, null, offset );
+    }
+
+
+    /**
+     * Reads specified number of discrete inputs starting at given address into the buffer
+     * provided by the caller. Nothing is allocated here, so use this method for cyclic polling.
+     *
+     * @param  startAddress    address of the first input to read
+     * @param  quantity        number of inputs to read, more than 2000 are read in several requests
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  inputs          buffer for inputs status. It must have at least quantity elements
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the address or quantity is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *         
+     */
+    public int mbtcReadDiscreteInputs( int startAddress, int quantity, int deviceID, boolean[] inputs ) {
+		return mbtcReadDiscreteInputs( startAddress, quantity, deviceID, inputs, 0 );
+    }
+
+
+    /**
+     * Reads specified number of discrete inputs starting at given address.
+     *
+     * @param  startAddress    address of the first input to read
+     * @param  quantity        number of inputs to read, more than 2000 are read in several requests
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return boolean[]       inputs status or null on error
+     *         
+     */
+    public boolean[] mbtcReadDiscreteInputs( int startAddress, int quantity, int deviceID ) {
+		boolean[] inputArray;
+		
+		if( ! _checkReadRange("mbtcReadDiscreteInputs", startAddress, quantity, 65536 - startAddress) )
+			return null;
+		
+		inputArray = new boolean[ quantity ];
+		if( mbtcReadDiscreteInputs( startAddress, quantity, deviceID, inputArray, 0 ) != RET_OK )
+			return null;
+		return inputArray;
+    }
+
+
+    /**
+     * Reads several blocks of discrete inputs in one go, pipelined when it is set in mbtcSetup.
+     *
+     * @param  startAddresses  addresses of the first input of each block
+     * @param  quantities      number of inputs to read in each block
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return boolean[][]     List of inputs status for each block. Element is null if the block cannot be read<br>
+     * null if arrays are not given or their lengths differ
+     *         
+     */
+    public boolean[][] mbtcReadDiscreteInputs( int[] startAddresses, int[] quantities, int deviceID ) {
+		return _readBitBlocks( "mbtcReadDiscreteInputs", (byte)0x02, startAddresses, quantities, deviceID );
+    }
+
+
+    /**
+     * Reads specified number of registers starting at given address into the buffer
+     * provided by the caller. Nothing is allocated here, so use this method for cyclic polling.
+     * More than 125 registers (or maxReadRegisters of mbtcGetCapabilities) are read in several requests,
+     * pipelined when it is set in mbtcSetup, and put together in the buffer.
+     *
+     * @param  startAddress    address of the first register to read
+     * @param  quantity        number of registers to read, up to the end of the address space
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  registers       buffer for registers values. It must have at least offset + quantity elements
+     * @param  offset          index in registers for the value of the first register
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the address, quantity or offset is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *         
+     */
+    public int mbtcReadRegisters( int startAddress, int quantity, int deviceID, int[] registers, int offset ) {
+    	// according to MODBUS specification maximum number of register to read is 125 (0x7d)
+    	// the request PDU:
+    	//    Function code     = 1 byte - it will be 0x03 for reading holding registers
+    	//    Starting Address  = 2 bytes in range 0x0000 to 0xFFFF
+    	//    Quantity of Coils = 2 bytes in range 0x01 to 0x7D (125)
+    	//
+    	// the response PDU:
+    	//    Function code     = 1 byte - it will be the same as in request PDU
+    	//    Byte Count        = 1 byte - two bytes per register 
+    	//    Register Values   = N bytes
+    	//
+    	// exception response PDU
+    	//    Function code     = 1 byte - it will be 0x83
+    	//    Exception code    = 1 byte - 01 illegal function - not implemented in server device
+    	//                                 02 illegal data address - address is not supported by device
+    	//                                 03 illegal data value - fault in structure
+    	//                                 04 server device failure - problem at server site
+
+    	return _readTable( "mbtcReadRegisters", (byte)0x03, startAddress, quantity, deviceID, null, registers, offset );
+    }
+
+
+    /**
+     * Reads specified number of registers starting at given address into the buffer
+     * provided by the caller. Nothing is allocated here, so use this method for cyclic polling.
+     * More than 125 registers (or maxReadRegisters of mbtcGetCapabilities) are read in several requests,
+     * pipelined when it is set in mbtcSetup, and put together in the buffer.
+     *
+     * @param  startAddress    address of the first register to read
+     * @param  quantity        number of registers to read, up to the end of the address space
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  registers       buffer for registers values. It must have at least quantity elements
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the address or quantity is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *         
+     */
+    public int mbtcReadRegisters( int startAddress, int quantity, int deviceID, int[] registers ) {
+    	return mbtcReadRegisters( startAddress, quantity, deviceID, registers, 0 );
+    }
+    
+    
+    /**
+     * Reads specified number of registers starting at given address.
+     *
+     * @param  startAddress    address of the first register to read
+     * @param  quantity        number of registers to read, up to the end of the address space
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return int[]           List of int values associated with registers
+     *         
+     */
+    public int[] mbtcReadRegisters( int startAddress, int quantity, int deviceID ) {
+    	int[] registersArray;
+    	
+    	if( ! _checkReadRange("mbtcReadRegisters", startAddress, quantity, 65536 - startAddress) )
+    		return null;
+    	
+    	registersArray = new int[ quantity ];
+    	if( mbtcReadRegisters( startAddress, quantity, deviceID, registersArray, 0 ) != RET_OK )
+    		return null;
+    	return registersArray;
+    }
+    
+    
+    /**
+     * Reads FLOAT32 values from holding or input registers into the buffer provided by the caller.
+     * Values are decoded straight from the response, nothing is allocated here. More values than fit
+     * in maxReadRegisters of mbtcGetCapabilities (62 with the specification limit) take several
+     * requests, sent one after another also when pipelining is set in mbtcSetup.
+     *
+     * @param  table           ModbusTag.HOLDING_REGISTERS or ModbusTag.INPUT_REGISTERS
+     * @param  startAddress    address of the first register of the first value
+     * @param  count           number of values, two registers each
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  order           layout of the registers, null means ABCD
+     * @param  values          buffer for the values. It must have at least offset + count elements
+     * @param  offset          index in values for the first value
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the table, address, count or offset is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *
+     */
+    public int mbtcReadFloats( int table, int startAddress, int count, int deviceID, ModbusWordOrder order, float[] values, int offset ) {
+    	return _readTyped( "mbtcReadFloats", table, startAddress, count, deviceID, ModbusDataType.FLOAT32, order, values, null, null, offset );
+    }
+
+
+    /**
+     * Reads numeric values of any register type into the buffer provided by the caller, e.g.
+     * FLOAT64 values or UINT32 ones converted to double. Nothing is allocated here. Long ranges
+     * take several requests, sent one after another also when pipelining is set in mbtcSetup.
+     *
+     * @param  table           ModbusTag.HOLDING_REGISTERS or ModbusTag.INPUT_REGISTERS
+     * @param  startAddress    address of the first register of the first value
+     * @param  count           number of values
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  type            INT16, UINT16, INT32, UINT32, INT64, FLOAT32 or FLOAT64
+     * @param  order           layout of the registers, null means ABCD
+     * @param  values          buffer for the values. It must have at least offset + count elements
+     * @param  offset          index in values for the first value
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the table, type, address, count or offset is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *
+     */
+    public int mbtcReadDoubles( int table, int startAddress, int count, int deviceID, ModbusDataType type, ModbusWordOrder order, double[] values, int offset ) {
+    	return _readTyped( "mbtcReadDoubles", table, startAddress, count, deviceID, type, order, null, values, null, offset );
+    }
+
+
+    /**
+     * Reads integer values of any register type into the buffer provided by the caller:
+     * INT16 and INT32 sign extended, UINT16 and UINT32 unsigned, INT64 as it is. Float types
+     * are truncated. Nothing is allocated here. Long ranges take several requests, sent one
+     * after another also when pipelining is set in mbtcSetup.
+     *
+     * @param  table           ModbusTag.HOLDING_REGISTERS or ModbusTag.INPUT_REGISTERS
+     * @param  startAddress    address of the first register of the first value
+     * @param  count           number of values
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  type            INT16, UINT16, INT32, UINT32, INT64, FLOAT32 or FLOAT64
+     * @param  order           layout of the registers, null means ABCD
+     * @param  values          buffer for the values. It must have at least offset + count elements
+     * @param  offset          index in values for the first value
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the table, type, address, count or offset is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *
+     */
+    public int mbtcReadLongs( int table, int startAddress, int count, int deviceID, ModbusDataType type, ModbusWordOrder order, long[] values, int offset ) {
+    	return _readTyped( "mbtcReadLongs", table, startAddress, count, deviceID, type, order, null, null, values, offset );
+    }
+
+
+    /**
+     * Reads several blocks of registers in one go. If pipelining was enabled 
+     * in mbtcSetup, requests for all blocks are sent without waiting for each response,
+     * so the whole scan costs about one network round trip per pipeline window.
+     *
+     * @param  startAddresses  addresses of the first register of each block
+     * @param  quantities      number of registers to read in each block
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return int[][]         List of registers values for each block. Element is null if the block cannot be read<br>
+     * null if arrays are not given or their lengths differ
+     *         
+     */
+    public int[][] mbtcReadRegisters( int[] startAddresses, int[] quantities, int deviceID ) {
+    	return _readWordBlocks( "mbtcReadRegisters", (byte)0x03, startAddresses, quantities, deviceID );
+    }
+
+
+    /**
+     * Reads specified number of input registers starting at given address into the buffer
+     * provided by the caller with read input registers (0x04) function. Nothing is allocated here.
+     *
+     * @param  startAddress    address of the first input register to read
+     * @param  quantity        number of input registers to read, more than 125 are read in several requests
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  registers       buffer for registers values. It must have at least offset + quantity elements
+     * @param  offset          index in registers for the value of the first register
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the address, quantity or offset is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *         
+     */
+    public int mbtcReadInputRegisters( int startAddress, int quantity, int deviceID, int[] registers, int offset ) {
+    	// request and response PDU are the same as for read holding registers, the function code is 0x04
+    	return _readTable( "mbtcReadInputRegisters", (byte)0x04, startAddress, quantity, deviceID, null, registers, offset );
+    }
+
+
+    /**
+     * Reads specified number of input registers starting at given address into the buffer
+     * provided by the caller. Nothing is allocated here, so use this method for cyclic polling.
+     *
+     * @param  startAddress    address of the first input register to read
+     * @param  quantity        number of input registers to read, more than 125 are read in several requests
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  registers       buffer for registers values. It must have at least quantity elements
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the address or quantity is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *         
+     */
+    public int mbtcReadInputRegisters( int startAddress, int quantity, int deviceID, int[] registers ) {
+    	return mbtcReadInputRegisters( startAddress, quantity, deviceID, registers, 0 );
+    }
+
+
+    /**
+     * Reads specified number of input registers starting at given address.
+     *
+     * @param  startAddress    address of the first input register to read
+     * @param  quantity        number of input registers to read, more than 125 are read in several requests
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return int[]           registers values or null on error
+     *         
+     */
+    public int[] mbtcReadInputRegisters( int startAddress, int quantity, int deviceID ) {
+    	int[] registersArray;
+    	
+    	if( ! _checkReadRange("mbtcReadInputRegisters", startAddress, quantity, 65536 - startAddress) )
+    		return null;
+    	
+    	registersArray = new int[ quantity ];
+    	if( mbtcReadInputRegisters( startAddress, quantity, deviceID, registersArray, 0 ) != RET_OK )
+    		return null;
+    	return registersArray;
+    }
+
+
+    /**
+     * Reads several blocks of input registers in one go, pipelined when it is set in mbtcSetup.
+     *
+     * @param  startAddresses  addresses of the first input register of each block
+     * @param  quantities      number of input registers to read in each block
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return int[][]         List of registers values for each block. Element is null if the block cannot be read<br>
+     * null if arrays are not given or their lengths differ
+     *         
+     */
+    public int[][] mbtcReadInputRegisters( int[] startAddresses, int[] quantities, int deviceID ) {
+    	return _readWordBlocks( "mbtcReadInputRegisters", (byte)0x04, startAddresses, quantities, deviceID );
+    }
+
+
+    /**
+     * Reads all tags of the read plan (one scan) into the buffers provided by the caller.
+     * Coils and discrete inputs go to bits, holding and input registers go to words, each tag
+     * at ModbusReadPlan.offset. Nothing is allocated here, so the plan is compiled once and
+     * polled cyclically with the same buffers.
+     * Request with exception response does not stop the scan - values of its tags are left
+     * unchanged and the other requests are read. No response stops the scan at once.
+     * With pipelining set in mbtcSetup up to pipeline window requests of the plan are in flight
+     * together. Requests without the response, and requests longer than the device takes in one
+     * request, are then read one by one. With mbtcSetAdaptiveReads the failing requests are
+     * bisected and the device map is learned - the requests are sent one after another then.
+     *
+     * @param  plan            compiled tags, see ModbusTagDatabase.compile
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  bits            buffer of at least plan.bitBufferLength() elements, may be null if it is 0
+     * @param  words           buffer of at least plan.wordBufferLength() elements, may be null if it is 0
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the plan is not given or a buffer is too small<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response to at least one request
+     *
+     */
+    public int mbtcReadPlan( ModbusReadPlan plan, int deviceID, boolean[] bits, int[] words ) {
+		int retVal = RET_OK;
+		int result;
+
+		if ( plan == null
+				|| ( plan.bitBufferLength() > 0 && ( bits == null || bits.length < plan.bitBufferLength() ) )
+				|| ( plan.wordBufferLength() > 0 && ( words == null || words.length < plan.wordBufferLength() ) ) ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcReadPlan: plan is not given or a buffer is too small");
+			return RET_ERRRAN;
+		}
+
+		// one lookup per scan, the entry is shared with the other clients of the device
+		ModbusDeviceCapabilities device = _adaptiveReads ? mbtcGetCapabilities(deviceID) : null;
+		boolean pipelined = ( device == null && _window( deviceID ) > 1 && plan.requestCount() > 1 );
+		if ( pipelined && ( retVal = _readPlanPipelined( plan, deviceID, bits, words ) ) == RET_ERRBRE )
+			return retVal;
+		for ( int r = 0; r < plan.requestCount(); r++ ) {
+			byte functionCode = (byte)plan.functionCode(r);
+			boolean bitTable = functionCode <= ModbusTag.DISCRETE_INPUTS;
+
+			if ( pipelined && _requestDone[r] )
+				continue;
+			if ( device != null )
+				result = _readAround( functionCode, plan.startAddress(r), plan.quantity(r), deviceID,
+						bitTable ? bits : null, bitTable ? null : words, plan.bufferOffset(r), device );
+			else
+				result = _readTable( "mbtcReadPlan", functionCode, plan.startAddress(r), plan.quantity(r), deviceID,
+						bitTable ? bits : null, bitTable ? null : words, plan.bufferOffset(r) );
+			if ( result != RET_OK ) {
+				if ( retVal == RET_OK || result == RET_ERRBRE )
+					retVal = result;
+				if ( result == RET_ERRBRE )
+					break; // the other requests would only wait for their timeouts
+			}
+		}
+		return retVal;
+    }
+
+
+    /**
+     * Writes values in consecutive holding registers and reads another range of holding registers
+     * in one transaction with read/write multiple registers (0x17) function. The device writes
+     * before it reads, so when the ranges overlap the new values are read back.
+     * Typical use is a control loop: new setpoint and the process values in one round trip.
+     * <p>
+     * Both ranges must fit in one request: 1 to 125 registers to read and 1 to 121 registers
+     * to write. Unlike mbtcWriteRegisters longer arrays are not split, because then the write
+     * and the read would not happen together any more.
+     *
+     * @param  readAddress     address of the first register to read
+     * @param  readQuantity    number of registers to read, 1 to 125
+     * @param  registers       buffer for read registers values. It must have at least readOffset + readQuantity elements
+     * @param  readOffset      index in registers for the value of the first read register
+     * @param  writeAddress    address of the register for values[0]
+     * @param  values          new values of registers, 1 to 121 elements. Only lower 16 bits are sent
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if any of the ranges, the number of values or readOffset is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *         
+     */
+    public int mbtcReadWriteRegisters( int readAddress, int readQuantity, int[] registers, int readOffset, int writeAddress, int[] values, int deviceID ) {
+		// the request PDU:
+		//    Function code           = 1 byte  - it will be 0x17
+		//    Read Starting Address   = 2 bytes
+		//    Quantity to Read        = 2 bytes - 1 to 125 (0x7D)
+		//    Write Starting Address  = 2 bytes
+		//    Quantity to Write       = 2 bytes - 1 to 121 (0x79)
+		//    Write Byte Count        = 1 byte  - 2 x Quantity to Write
+		//    Write Registers Value   = N x 2 bytes - HiByte first
+		//
+		// the response PDU is the same as of read holding registers:
+		//    Function code           = 1 byte  - it will be the same as in request PDU
+		//    Byte Count              = 1 byte  - 2 x Quantity to Read
+		//    Read Registers Value    = N x 2 bytes
+
+		int writeQuantity = ( values != null ) ? values.length : 0;
+
+		// a read beyond 65535 would make the device reject the write as well
+		if( ! _checkReadRange("mbtcReadWriteRegisters", readAddress, readQuantity, 125) || readAddress + readQuantity > 65536 )
+			return RET_ERRRAN;
+		if( registers == null || readOffset < 0 || registers.length - readOffset < readQuantity ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcReadWriteRegisters: buffer is too small - offset={} quantity={}", readOffset, readQuantity);
+			return RET_ERRRAN;
+		}
+		if( writeAddress < 0 || writeQuantity < 1 || writeQuantity > MAX_RW_WRITE_REGISTERS || writeAddress + writeQuantity > 65536 ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcReadWriteRegisters: write out of range, 1 to 121 registers in <0,65535> - writeAddress={} count={}", writeAddress, writeQuantity);
+			return RET_ERRRAN;
+		}
+
+		_reqPDU.clear();
+		_reqPDU.put( (byte)0x17 );
+		_reqPDU.putShort( (short)readAddress );            // HiByte first
+		_reqPDU.putShort( (short)readQuantity );
+		_reqPDU.putShort( (short)writeAddress );
+		_reqPDU.putShort( (short)writeQuantity );
+		_reqPDU.put( (byte)( writeQuantity * 2 ) );        // byte count
+		for ( int i = 0; i < writeQuantity; i++ )
+			_reqPDU.putShort( (short)values[i] );
+		_reqPDU.flip();
+
+		if( _sRequest( _reqPDU, _rspPDU, (byte)deviceID ) < 0 ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcReadWriteRegisters: _sRequest returned error. Exit with error");
+			return RET_ERRBRE;
+		}
+		return _readResponseFromPDU( _rspPDU, (byte)0x17, readQuantity, null, registers, readOffset );
+    }
+
+
+    /**
+     * Writes values in consecutive holding registers and reads another range of holding registers
+     * in one transaction with read/write multiple registers (0x17) function.
+     *
+     * @param  readAddress     address of the first register to read
+     * @param  readQuantity    number of registers to read, 1 to 125
+     * @param  writeAddress    address of the register for values[0]
+     * @param  values          new values of registers, 1 to 121 elements. Only lower 16 bits are sent
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return int[]           values of read registers or null on error
+     *         
+     */
+    public int[] mbtcReadWriteRegisters( int readAddress, int readQuantity, int writeAddress, int[] values, int deviceID ) {
+		int[] registersArray;
+
+		if( ! _checkReadRange("mbtcReadWriteRegisters", readAddress, readQuantity, 125) )
+			return null;
+
+		registersArray = new int[ readQuantity ];
+		if( mbtcReadWriteRegisters( readAddress, readQuantity, registersArray, 0, writeAddress, values, deviceID ) != RET_OK )
+			return null;
+		return registersArray;
+    }
+
+
+    /**
+     * Reads the FIFO queue once with read FIFO queue (0x18) function. Values are decoded
+     * into an internal buffer which is passed to the sink, nothing is allocated here.
+     * The sink is not called when the queue is empty.
+     *
+     * @param  fifoAddress     FIFO pointer address
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  sink            receives the values
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the address is out of range or sink is null<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master - e.g. more than 31 values in the queue
+     *         
+     */
+    public int mbtcReadFifoQueue( int fifoAddress, int deviceID, ModbusFifoSink sink ) {
+		int retVal;
+		
+		if ( sink == null ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcReadFifoQueue: sink is null");
+			return RET_ERRRAN;
+		}
+		retVal = _readFifoQueue( "mbtcReadFifoQueue", fifoAddress, deviceID );
+		if ( retVal == RET_OK && _fifoCount > 0 )
+			sink.onFifoValues( fifoAddress, _fifoValues, _fifoCount );
+		return retVal;
+    }
+
+
+    /**
+     * Reads the FIFO queue once with read FIFO queue (0x18) function.
+     *
+     * @param  fifoAddress     FIFO pointer address
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return int[]           FIFO values, oldest first. Empty array if the queue is empty, null on error
+     *         
+     */
+    public int[] mbtcReadFifoQueue( int fifoAddress, int deviceID ) {
+		if ( _readFifoQueue( "mbtcReadFifoQueue", fifoAddress, deviceID ) != RET_OK )
+			return null;
+		return Arrays.copyOf( _fifoValues, _fifoCount );
+    }
+
+
+    /**
+     * Drains the FIFO queue: reads it with read FIFO queue (0x18) function again and again
+     * until it is empty, the sink asks to stop or maxReads responses were received. Every
+     * response which is not empty goes to the sink in the same reused buffer, so draining
+     * any number of records does not allocate.
+     * <p>
+     * By the MODBUS specification reading does not remove values from the queue, so a compliant
+     * device answers the same values again and again. Draining stops when a response repeats
+     * the previous one, which is not passed to the sink again. This is enough for devices which
+     * remove the values they send. Other devices need their own acknowledge or clear step, see
+     * mbtcDrainFifoQueue with ModbusFifoAcknowledge.
+     *
+     * @param  fifoAddress     FIFO pointer address
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  sink            receives the values of every response
+     * @param  maxReads        maximum number of requests, protects against a queue filled faster than it is read
+     * @return RET_OK (0)      when the queue is empty, the sink stopped, a response was repeated or maxReads was reached<br>
+     *         RET_ERRRAN (41) if the address is out of range, sink is null or maxReads is less than 1<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *         
+     */
+    public int mbtcDrainFifoQueue( int fifoAddress, int deviceID, ModbusFifoSink sink, int maxReads ) {
+		return mbtcDrainFifoQueue( fifoAddress, deviceID, sink, maxReads, null );
+    }
+
+
+    /**
+     * Drains the FIFO queue like mbtcDrainFifoQueue above, but after every response passed to
+     * the sink the acknowledge step of the device removes the read values from the queue. Then
+     * responses are not compared, the same values may come again when the device queues them.
+     * Values the sink stopped at are acknowledged as well.
+     *
+     * @param  fifoAddress     FIFO pointer address
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  sink            receives the values of every response
+     * @param  maxReads        maximum number of requests, protects against a queue filled faster than it is read
+     * @param  acknowledge     removes read values from the queue, null - responses are compared as described above
+     * @return RET_OK (0)      when the queue is empty, the sink stopped or maxReads was reached<br>
+     *         RET_ERRRAN (41) if the address is out of range, sink is null or maxReads is less than 1<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master<br>
+     *         any other code returned by the acknowledge step
+     *         
+     */
+    public int mbtcDrainFifoQueue( int fifoAddress, int deviceID, ModbusFifoSink sink, int maxReads, ModbusFifoAcknowledge acknowledge ) {
+		int previousCount = -1;
+		int retVal;
+
+		if ( sink == null || maxReads < 1 ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcDrainFifoQueue: no sink or maxReads less than 1 - maxReads={}", maxReads);
+			return RET_ERRRAN;
+		}
+		for ( int n = 0; n < maxReads; n++ ) {
+			retVal = _readFifoQueue( "mbtcDrainFifoQueue", fifoAddress, deviceID );
+			if ( retVal != RET_OK )
+				return retVal;
+			int count = _fifoCount;
+			if ( count == 0 )
+				break;
+			if ( acknowledge == null ) {
+				if ( _sameFifoValues( previousCount ) ) {
+					_trace(ModbusTraceEvent.MESSAGE, "mbtcDrainFifoQueue: response repeats the previous one, reading does not clear the queue");
+					break;
+				}
+				System.arraycopy( _fifoValues, 0, _fifoPrevious, 0, count );
+				previousCount = count;
+			}
+			boolean more = sink.onFifoValues( fifoAddress, _fifoValues, count );
+			if ( acknowledge != null && ( retVal = acknowledge.acknowledge( this, fifoAddress, count, deviceID ) ) != RET_OK ) {
+				_trace(ModbusTraceEvent.ERROR, "mbtcDrainFifoQueue: acknowledge step returned {}", retVal);
+				return retVal;
+			}
+			if ( ! more )
+				break;
+		}
+		return RET_OK;
+    }
+
+    // the last response has the same values as the previous one of previousCount values
+    private boolean _sameFifoValues( int previousCount ) {
+		if ( _fifoCount != previousCount )
+			return false;
+		for ( int n = 0; n < _fifoCount; n++ )
+			if ( _fifoValues[n] != _fifoPrevious[n] )
+				return false;
+		return true;
+    }
+
+
+    // one read FIFO queue request, values go to _fifoValues and _fifoCount
+    private int _readFifoQueue( String funName, int fifoAddress, int deviceID ) {
+		// the request PDU:
+		//    Function code         = 1 byte  - it will be 0x18
+		//    FIFO Pointer Address  = 2 bytes
+		//
+		// the response PDU:
+		//    Function code         = 1 byte  - it will be the same as in request PDU
+		//    Byte Count            = 2 bytes - 2 + 2 x FIFO Count
+		//    FIFO Count            = 2 bytes - up to 31
+		//    FIFO Value Register   = N x 2 bytes - HiByte first, oldest first
+		int byteCount;
+
+		_fifoCount = 0;
+		if ( ( fifoAddress < 0 ) || ( fifoAddress > 65535 ) ) {
+			if ( _tracer != null )
+				_trace(ModbusTraceEvent.ERROR, funName + ": address out of range <0,65535> - fifoAddress={}", fifoAddress);
+			return RET_ERRRAN;
+		}
+
+		_reqPDU.clear();
+		_reqPDU.put( (byte)0x18 );
+		_reqPDU.putShort( (short)fifoAddress );
+		_reqPDU.flip();
+		if ( _sRequest( _reqPDU, _rspPDU, (byte)deviceID ) < 0 ) {
+			if ( _tracer != null )
+				_trace(ModbusTraceEvent.ERROR, funName + ": _sRequest returned error. Exit with error");
+			return RET_ERRBRE;
+		}
+
+		if ( _rspPDU.get(0) != 0x18 ) {
+			_trace(ModbusTraceEvent.ERROR, "_readFifoQueue: exception response, function code {}", _rspPDU.get(0) & 0xFF);
+			return RET_ERRXRE;
+		}
+		if ( _rspPDU.limit() < 5 ) {
+			_trace(ModbusTraceEvent.ERROR, "_readFifoQueue: response PDU is too short");
+			return RET_ERRBRE;
+		}
+		byteCount = _rspPDU.getShort(1) & 0xFFFF;
+		_fifoCount = _rspPDU.getShort(3) & 0xFFFF;
+		if ( _fifoCount > MAX_FIFO_COUNT || byteCount != 2 + 2 * _fifoCount || _rspPDU.limit() < 3 + byteCount ) {
+			_trace(ModbusTraceEvent.ERROR, "_readFifoQueue: bad byte count {} for FIFO count {}", byteCount, _fifoCount);
+			_fifoCount = 0;
+			return RET_ERRBRE;
+		}
+		for ( int n = 0; n < _fifoCount; n++ ) {
+			_fifoValues[n] = _rspPDU.getShort( 5 + 2 * n );
+			if ( _tracer != null )
+				_trace(ModbusTraceEvent.REGISTER, "_readFifoQueue: FIFO value {} = {}", n, _fifoValues[n]);
+		}
+		return RET_OK;
+    }
+
+
+    /**
+     * Returns what is known about the device in the capability cache: identification objects and
+     * limits of its MODBUS stack. Nothing is sent to the device - see mbtcReadDeviceIdentification.
+     * Long reads are split by the limits of this entry. The client keeps the entry until the next
+     * mbtcSetup or mbtcSetCapabilityCache, removing the device from the cache is not seen before.
+     *
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return capabilities of the device, an entry with MODBUS specification limits if nothing is known yet<br>
+     *         null if mbtcSetup was not called
+     *         
+     */
+    public ModbusDeviceCapabilities mbtcGetCapabilities( int deviceID ) {
+		if ( _endpoint == null )
+			return null;
+		if ( _device == null || _deviceID != ( deviceID & 0xFF ) ) {
+			// kept, so reads do not build the cache key every time
+			_device = _capabilityCache.get( _endpoint, deviceID );
+			_deviceID = deviceID & 0xFF;
+		}
+		return _device;
+    }
+
+
+    /**
+     * Reads basic and regular identification objects (VendorName, ProductCode, MajorMinorRevision,
+     * VendorUrl, ProductName, ModelName, UserApplicationName) with read device identification
+     * (0x2B / MEI 0x0E) function and stores them in the capability cache. Devices which reject
+     * regular identification are asked for the basic one. Objects which do not fit one response
+     * are read with following requests, as told by More Follows of the device.
+     *
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return capabilities of the device with identification objects<br>
+     *         null if mbtcSetup was not called or the device cannot be identified
+     *         
+     */
+    public ModbusDeviceCapabilities mbtcReadDeviceIdentification( int deviceID ) {
+		// the request PDU:
+		//    Function code         = 1 byte  - it will be 0x2B
+		//    MEI Type              = 1 byte  - 0x0E read device identification
+		//    Read Device ID code   = 1 byte  - 01 basic, 02 regular, 03 extended, 04 one object
+		//    Object Id             = 1 byte  - first object to read
+		//
+		// the response PDU:
+		//    Function code         = 1 byte  - it will be the same as in request PDU
+		//    MEI Type              = 1 byte  - 0x0E
+		//    Read Device ID code   = 1 byte
+		//    Conformity level      = 1 byte
+		//    More Follows          = 1 byte  - 0xFF when objects did not fit this response
+		//    Next Object Id        = 1 byte  - object to ask for in the next request
+		//    Number of objects     = 1 byte
+		//    List of objects       = N x ( Object Id 1 byte, Object length 1 byte, Object value )
+		String[] objects = new String[ModbusDeviceCapabilities.USER_APPLICATION_NAME + 1];
+		int conformityLevel = -1;
+		int retVal;
+
+		if ( _endpoint == null ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcReadDeviceIdentification: mbtcSetup was not called");
+			return null;
+		}
+
+		retVal = RET_ERRXRE;
+		for ( int code = 0x02; code >= 0x01 && retVal == RET_ERRXRE; code-- ) {
+			int objectId = 0;
+			// objects are numbered 0..255, so a device cannot ask for more requests than that
+			for ( int n = 0; n < 256; n++ ) {
+				_reqPDU.clear();
+				_reqPDU.put( (byte)0x2B );
+				_reqPDU.put( (byte)0x0E );
+				_reqPDU.put( (byte)code );
+				_reqPDU.put( (byte)objectId );
+				_reqPDU.flip();
+				if ( _sRequest( _reqPDU, _rspPDU, (byte)deviceID ) < 0 ) {
+					_trace(ModbusTraceEvent.ERROR, "mbtcReadDeviceIdentification: _sRequest returned error. Exit with error");
+					return null;
+				}
+				retVal = _deviceIdentificationFromPDU( _rspPDU, objects );
+				if ( retVal != RET_OK )
+					break;
+				conformityLevel = _rspPDU.get(3) & 0xFF;
+				// More Follows = 0xFF and Next Object Id after the last requested one
+				if ( _rspPDU.get(4) != (byte)0xFF || ( _rspPDU.get(5) & 0xFF ) <= objectId )
+					break;
+				objectId = _rspPDU.get(5) & 0xFF;
+			}
+			if ( retVal == RET_ERRXRE )
+				_trace(ModbusTraceEvent.MESSAGE, "mbtcReadDeviceIdentification: device rejected read device ID code {}", code);
+		}
+		if ( retVal != RET_OK )
+			return null;
+
+		ModbusDeviceCapabilities device = _capabilityCache.get( _endpoint, deviceID );
+		device.setIdentification( objects, conformityLevel );
+		if ( _tracer != null )
+			_trace(ModbusTraceEvent.MESSAGE, "mbtcReadDeviceIdentification: " + device);
+		return device;
+    }
+
+
+    // objects of one read device identification response go to objects[object id]
+    private int _deviceIdentificationFromPDU( ByteBuffer responsePDU, String[] objects ) {
+		int count;
+		int pos = 7;
+
+		if ( responsePDU.get(0) != 0x2B ) {
+			_trace(ModbusTraceEvent.ERROR, "_deviceIdentificationFromPDU: exception response, function code {}", responsePDU.get(0) & 0xFF);
+			return RET_ERRXRE;
+		}
+		if ( responsePDU.limit() < 7 || responsePDU.get(1) != 0x0E ) {
+			_trace(ModbusTraceEvent.ERROR, "_deviceIdentificationFromPDU: response PDU is too short or not MEI 0x0E");
+			return RET_ERRBRE;
+		}
+		count = responsePDU.get(6) & 0xFF;
+		for ( int i = 0; i < count; i++ ) {
+			int id;
+			int length;
+			if ( responsePDU.limit() < pos + 2 )
+				return RET_ERRBRE;
+			id = responsePDU.get(pos) & 0xFF;
+			length = responsePDU.get(pos + 1) & 0xFF;
+			if ( responsePDU.limit() < pos + 2 + length ) {
+				_trace(ModbusTraceEvent.ERROR, "_deviceIdentificationFromPDU: object {} is longer than response PDU", id);
+				return RET_ERRBRE;
+			}
+			// extended and private objects (0x80..0xFF) are not kept
+			if ( id < objects.length ) {
+				byte[] value = new byte[length];
+				for ( int b = 0; b < length; b++ )
+					value[b] = responsePDU.get(pos + 2 + b);
+				objects[id] = new String( value, StandardCharsets.ISO_8859_1 );
+			}
+			pos += 2 + length;
+		}
+		return RET_OK;
+    }
+
+
+    /**
+     * Checks ranges of file records: file number 1 to 65535, record numbers 0 to 9999 within one file.
+     *
+     * @return true if all ranges can be requested
+     */
+    private boolean _checkFileRanges(String funName, int[] fileNumbers, int[] startRecords, int[] recordCounts) {
+		if ( fileNumbers == null || startRecords == null || recordCounts == null || fileNumbers.length == 0
+				|| fileNumbers.length != startRecords.length || fileNumbers.length != recordCounts.length ) {
+			if ( _tracer != null )
+				_trace(ModbusTraceEvent.ERROR, funName + ": fileNumbers, startRecords and recordCounts must have the same, non zero length");
+			return false;
+		}
+		for ( int i = 0; i < fileNumbers.length; i++ ) {
+			if ( fileNumbers[i] < 1 || fileNumbers[i] > 65535 || startRecords[i] < 0 || recordCounts[i] < 1
+					|| startRecords[i] + recordCounts[i] > MAX_FILE_RECORDS ) {
+				if ( _tracer != null )
+					_trace(ModbusTraceEvent.ERROR, funName + ": records out of range <0,9999> or bad file number - file={} record={}", fileNumbers[i], startRecords[i]);
+				return false;
+			}
+		}
+		return true;
+    }
+
+    /**
+     * Encodes read file record (0x14) request PDU with as many sub-requests as fit in one request
+     * and in its response. Ranges are taken from the cursor on, which is moved past the encoded records.
+     *
+     * @param  requestPDU   buffer for request PDU, at least 2 + 7 x 35 bytes
+     * @param  cursor       cursor[0] - index of the range, cursor[1] - records of this range already requested
+     * @return number of records in the request
+     *
+     */
+    private int _putReadFileRecordPDU(ByteBuffer requestPDU, int[] fileNumbers, int[] startRecords, int[] recordCounts, int[] cursor) {
+		int responseLength = 0;   // response data length, at most 0xF5
+		int records = 0;
+
+		requestPDU.clear();
+		requestPDU.put( (byte)0x14 );
+		requestPDU.put( (byte)0 );  // byte count, set below
+		// sub-request costs 7 bytes of the request and 2 + 2 x record length of the response
+		while ( cursor[0] < fileNumbers.length && requestPDU.position() + 7 <= MAX_PDU_LEN && responseLength + 4 <= MAX_FILE_RESPONSE_DATA ) {
+			int range = cursor[0];
+			int length = Math.min( recordCounts[range] - cursor[1], ( MAX_FILE_RESPONSE_DATA - responseLength - 2 ) / 2 );
+
+			requestPDU.put( (byte)0x06 );                                     // reference type
+			requestPDU.putShort( (short)fileNumbers[range] );
+			requestPDU.putShort( (short)( startRecords[range] + cursor[1] ) ); // record number
+			requestPDU.putShort( (short)length );                            // record length
+			responseLength += 2 + 2 * length;
+			records += length;
+			cursor[1] += length;
+			if ( cursor[1] == recordCounts[range] ) {
+				cursor[0]++;
+				cursor[1] = 0;
+			}
+		}
+		requestPDU.put( 1, (byte)( requestPDU.position() - 2 ) );
+		requestPDU.flip();
+		return records;
+    }
+
+    /**
+     * Checks read file record (0x14) response against its request and writes record data,
+     * HiByte first as received, to the channel.
+     *
+     * @return RET_OK, RET_ERRBRE, RET_ERRXRE or RET_ERRWRC
+     *
+     */
+    private int _fileRecordsFromPDU(ByteBuffer responsePDU, ByteBuffer requestPDU, WritableByteChannel out) {
+		int subRequests = ( requestPDU.get(1) & 0xFF ) / 7;
+		int pos = 2;
+		ByteBuffer data;
+
+		if ( responsePDU.get(0) != 0x14 ) {
+			_trace(ModbusTraceEvent.ERROR, "_fileRecordsFromPDU: exception response, function code {}", responsePDU.get(0) & 0xFF);
+			return RET_ERRXRE;
+		}
+		if ( responsePDU.limit() < 2 || responsePDU.limit() < 2 + ( responsePDU.get(1) & 0xFF ) ) {
+			_trace(ModbusTraceEvent.ERROR, "_fileRecordsFromPDU: response PDU is too short");
+			return RET_ERRBRE;
+		}
+		for ( int i = 0; i < subRequests; i++ ) {
+			int length = requestPDU.getShort( 2 + 7 * i + 5 ) & 0xFFFF;
+			if ( responsePDU.limit() < pos + 2 + 2 * length || ( responsePDU.get(pos) & 0xFF ) != 1 + 2 * length || responsePDU.get(pos + 1) != 0x06 ) {
+				_trace(ModbusTraceEvent.ERROR, "_fileRecordsFromPDU: sub-response {} does not match record length {}", i, length);
+				return RET_ERRBRE;
+			}
+			pos += 2 + 2 * length;
+		}
+
+		// all sub-responses are fine, now the data goes out
+		data = responsePDU.duplicate();
+		pos = 2;
+		try {
+			for ( int i = 0; i < subRequests; i++ ) {
+				int length = requestPDU.getShort( 2 + 7 * i + 5 ) & 0xFFFF;
+				data.limit( pos + 2 + 2 * length );
+				data.position( pos + 2 );
+				while ( data.hasRemaining() )
+					out.write( data );
+				pos += 2 + 2 * length;
+			}
+		} catch (IOException ex) {
+			_trace(ModbusTraceEvent.ERROR, "_fileRecordsFromPDU: cannot write records to the channel");
+			return RET_ERRWRC;
+		}
+		return RET_OK;
+    }
+
+
+    /**
+     * Reads ranges of file records with read file record (0x14) function and streams their data,
+     * two bytes per record HiByte first, to the channel in the order of the ranges. As many
+     * sub-requests as fit in one request and in 0xF5 bytes of its response data go in one request,
+     * so short ranges share requests and long ones are split in 121 record pieces. When pipelining is set in mbtcSetup the
+     * requests are in flight together, otherwise they are sent one by one.
+     * Data written before an error stays in the channel.
+     *
+     * @param  fileNumbers     file number of each range, 1 to 65535
+     * @param  startRecords    number of the first record of each range, 0 to 9999
+     * @param  recordCounts    number of records of each range. A range must end in its file (record 9999)
      * @param  deviceID        modbus device id. If not sure specify 0.
-     * @return boolean[]       List of boolean values associated with coils status
+     * @param  out             channel for record data
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if a range is out of range, arrays differ in length or out is null<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master<br>
+     *         RET_ERRWRC (44) error when writing to the channel
      *         
      */
-    public boolean[] mbtcReadCoils( int startAddress, int quantity, int deviceID ) {
-		// according to MODBUS specification maximum number of coils to read is 2000 (0x7d0)
+    public int mbtcReadFileRecords( int[] fileNumbers, int[] startRecords, int[] recordCounts, int deviceID, WritableByteChannel out ) {
 		// the request PDU:
-		//    Function code     = 1 byte - it will be 0x01 in this case
-		//    Starting Address  = 2 bytes
-		//    Quantity of Coils = 2 bytes
+		//    Function code         = 1 byte  - it will be 0x14
+		//    Byte Count            = 1 byte  - 7 x number of sub-requests, 0x07 to 0xF5
+		//    Sub-request           = N x 7 bytes:
+		//        Reference Type    = 1 byte  - always 0x06
+		//        File Number       = 2 bytes
+		//        Record Number     = 2 bytes - 0x0000 to 0x270F
+		//        Record Length     = 2 bytes
 		//
 		// the response PDU:
-		//    Function code     = 1 byte - it will be the same as in request PDU
-		//    Byte Count        = 1 byte - if i ask for 1 to 8 coils i will receive 1 byte etc
-		//    Coil Status       = N bytes
-		//
-		// exception responce PDU
-		//    Function code     = 1 byte - it will be 0x81
-		//    Exception code    = 1 byte - 01 illegal function - not implemented in server device
-		//                                 02 illegal data address - address is not supported by device
-		//                                 03 illegal data value - fault in structure
-		//                                 04 server device failure - problem at server site
-	
-		byte[] requestPDU = new byte[5];
-		byte[] intToByte;
-		byte[] responsePDU;
-		byte unitID;
-	
-		if( ( startAddress < 0 ) || ( startAddress > 65535 ) ) {
-			_dispDebugLog(9,"mbtcReadCoils: address out of range <0,65535> - startAddress=" + String.valueOf(startAddress));
-			return null;
+		//    Function code         = 1 byte  - it will be the same as in request PDU
+		//    Resp. data Length     = 1 byte
+		//    Sub-response          = N x:
+		//        File Resp. Length = 1 byte  - 1 + 2 x record length
+		//        Reference Type    = 1 byte  - 0x06
+		//        Record Data       = 2 x record length bytes
+		int[] cursor = new int[2];
+		int retVal;
+
+		if ( ! _checkFileRanges("mbtcReadFileRecords", fileNumbers, startRecords, recordCounts) )
+			return RET_ERRRAN;
+		if ( out == null ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcReadFileRecords: channel is null");
+			return RET_ERRRAN;
 		}
-		
-	
-		if( ( quantity < 1 ) || ( quantity > 2000 ) ) {
-		    _dispDebugLog(9,"mbtcReadCoils: quantity out of range <1,2000> - quantity=" + String.valueOf(quantity));
-		    return null;
+
+		if ( _window( deviceID ) == 1 ) {
+			// one by one, request PDU is encoded straight in the transmit buffer
+			while ( cursor[0] < fileNumbers.length ) {
+				_putReadFileRecordPDU( _reqPDU, fileNumbers, startRecords, recordCounts, cursor );
+				if ( _sRequest( _reqPDU, _rspPDU, (byte)deviceID ) < 0 ) {
+					_trace(ModbusTraceEvent.ERROR, "mbtcReadFileRecords: _sRequest returned error for range {}", cursor[0]);
+					return RET_ERRBRE;
+				}
+				retVal = _fileRecordsFromPDU( _rspPDU, _reqPDU, out );
+				if ( retVal != RET_OK )
+					return retVal;
+			}
+			return RET_OK;
 		}
-	
-		// for reading coils we use function 0x01
-		requestPDU[0] = 0x01;
-	
-		// lets convert 5code to PDU address
-		intToByte = _intToByteArray( startAddress );
-		requestPDU[1] = intToByte[2]; // HiByte of PDU address
-		requestPDU[2] = intToByte[3]; // LoByte of PDU address
-	
-		// lets convert quantity
-		intToByte = _intToByteArray( quantity );
-		requestPDU[3] = intToByte[2]; // HiByte of coils quantity
-		requestPDU[4] = intToByte[3]; // LoByte of coils quantity
-	
-		intToByte = _intToByteArray ( deviceID );
-		unitID = intToByte[3];
-	
-		responsePDU = _sRequest( requestPDU, unitID );
-	
-		if( responsePDU == null ) {
-		    _dispDebugLog(9,"mbtcReadCoils: _sRequest returned null value. Exit with null");
-		    return null;
+
+		// batches of requests in the pipeline, a few windows each, so a long download does not keep all responses
+		ByteBuffer pdu = ByteBuffer.allocate( MAX_PDU_LEN );
+		byte[][] requestPDUs = new byte[ _window( deviceID ) * 4 ][];
+		while ( cursor[0] < fileNumbers.length ) {
+			int count = 0;
+			while ( count < requestPDUs.length && cursor[0] < fileNumbers.length ) {
+				_putReadFileRecordPDU( pdu, fileNumbers, startRecords, recordCounts, cursor );
+				requestPDUs[count] = new byte[ pdu.limit() ];
+				pdu.get( requestPDUs[count] );
+				count++;
+			}
+			byte[][] batch = ( count == requestPDUs.length ) ? requestPDUs : Arrays.copyOf( requestPDUs, count );
+			byte[][] responsePDUs = _pRequest( batch, (byte)deviceID );
+			for ( int i = 0; i < count; i++ ) {
+				if ( responsePDUs[i] == null ) {
+					_trace(ModbusTraceEvent.ERROR, "mbtcReadFileRecords: no response for file {}", ByteBuffer.wrap(batch[i]).getShort(3) & 0xFFFF);
+					return RET_ERRBRE;
+				}
+				retVal = _fileRecordsFromPDU( ByteBuffer.wrap(responsePDUs[i]), ByteBuffer.wrap(batch[i]), out );
+				if ( retVal != RET_OK )
+					return retVal;
+			}
 		}
-		else {
-		    _dispDebugLog(9,"mbtcReadCoils: _sRequest returned: " + _byteArrayToHexString(responsePDU));
-	
-		    // lets analyze the responsePDU 
-		    if( responsePDU[0] != requestPDU[0] ) {
-		    	_dispDebugLog(9,"mbtcReadCoils: exception in response PDU. Exit with null");
-		    	return null;
-		    }
-	
-		    int coilArrayIdx = 0;
-		    boolean[] coilArray = new boolean[ quantity ];
-		    for (int i = 2; i < (2 + responsePDU[1]); i++ ){
-				_dispDebugLog(9,"mbtcReadCoils: data byte " + String.valueOf(i-2) + " = "+ String.format("0x%02x ",(responsePDU[i] & 0xFF) ) );
-				for( int j = 0; j <= 7; j++ ) {
-				    if( coilArrayIdx < quantity ) {
-				    	coilArray[coilArrayIdx] = _readBitFromByte( responsePDU[i] , j );
-				        _dispDebugLog(9,"mbtcReadCoils: coil " + String.valueOf(coilArrayIdx) + " = "+ String.valueOf(coilArray[coilArrayIdx]) );
-				    	coilArrayIdx++;
-				    }
-				    else {
-				    	// there is nothing to do next and we have to exit both loops
-				    	j = 8;
-				    	i = 2 + responsePDU[1];
-				    }
+		return RET_OK;
+    }
+
+
+    /**
+     * Reads consecutive records of one file with read file record (0x14) function and streams
+     * their data to the channel. See mbtcReadFileRecords(int[], int[], int[], int, WritableByteChannel).
+     *
+     * @param  fileNumber      file number, 1 to 65535
+     * @param  startRecord     number of the first record, 0 to 9999
+     * @param  recordCount     number of records, startRecord + recordCount must not exceed 10000
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  out             channel for record data
+     * @return RET_OK (0) on success, RET_ERRRAN, RET_ERRBRE, RET_ERRXRE or RET_ERRWRC on error
+     *         
+     */
+    public int mbtcReadFileRecords( int fileNumber, int startRecord, int recordCount, int deviceID, WritableByteChannel out ) {
+		return mbtcReadFileRecords( new int[] { fileNumber }, new int[] { startRecord }, new int[] { recordCount }, deviceID, out );
+    }
+
+
+    /**
+     * Encodes write file record (0x15) request PDU with one sub-request for values offset .. offset + length - 1.
+     */
+    private void _putWriteFileRecordPDU(ByteBuffer requestPDU, int fileNumber, int startRecord, int[] values, int offset, int length) {
+		requestPDU.clear();
+		requestPDU.put( (byte)0x15 );
+		requestPDU.put( (byte)( 7 + 2 * length ) );                   // request data length
+		requestPDU.put( (byte)0x06 );                                 // reference type
+		requestPDU.putShort( (short)fileNumber );
+		requestPDU.putShort( (short)( startRecord + offset ) );
+		requestPDU.putShort( (short)length );
+		for ( int i = offset; i < offset + length; i++ )
+			requestPDU.putShort( (short)values[i] );
+		requestPDU.flip();
+    }
+
+    // write file record response is the echo of the request
+    private int _checkWriteFileRecordResponse(ByteBuffer responsePDU, ByteBuffer requestPDU) {
+		if ( responsePDU.get(0) != 0x15 )
+			return RET_ERRXRE;
+		if ( responsePDU.limit() != requestPDU.limit() )
+			return RET_ERRBRE;
+		for ( int i = 1; i < requestPDU.limit(); i++ )
+			if ( responsePDU.get(i) != requestPDU.get(i) )
+				return RET_ERRBRE;
+		return RET_OK;
+    }
+
+
+    /**
+     * Writes consecutive records of one file with write file record (0x15) function. Arrays longer
+     * than 122 records are split in several requests, pipelined when it is set in mbtcSetup.
+     * No request is sent after one has failed. With pipelining the requests already in flight at that
+     * moment (up to pipeline window - 1 after the failed one) are still written by the device.
+     *
+     * @param  fileNumber      file number, 1 to 65535
+     * @param  startRecord     number of the record for values[0], 0 to 9999
+     * @param  values          new values of records, startRecord + values.length must not exceed 10000.
+     *                         Only lower 16 bits are sent
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the records are out of range or there are no values<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *         
+     */
+    public int mbtcWriteFileRecords( int fileNumber, int startRecord, int[] values, int deviceID ) {
+		// the request PDU:
+		//    Function code         = 1 byte  - it will be 0x15
+		//    Request data length   = 1 byte
+		//    Sub-request           = Reference Type (0x06), File Number, Record Number,
+		//                            Record Length and 2 x Record Length bytes of Record data
+		//
+		// the response PDU - is just the echo of the requested PDU
+		int count = ( values != null ) ? values.length : 0;
+		int chunks;
+		int retVal;
+
+		if ( count == 0 || ! _checkFileRanges("mbtcWriteFileRecords", new int[] { fileNumber }, new int[] { startRecord }, new int[] { count }) )
+			return RET_ERRRAN;
+
+		chunks = ( count + MAX_WRITE_FILE_RECORDS - 1 ) / MAX_WRITE_FILE_RECORDS;
+		if ( chunks == 1 || _window( deviceID ) == 1 ) {
+			for ( int offset = 0; offset < count; offset += MAX_WRITE_FILE_RECORDS ) {
+				_putWriteFileRecordPDU( _reqPDU, fileNumber, startRecord, values, offset, Math.min(MAX_WRITE_FILE_RECORDS, count - offset) );
+				if ( _sRequest( _reqPDU, _rspPDU, (byte)deviceID ) < 0 ) {
+					_trace(ModbusTraceEvent.ERROR, "mbtcWriteFileRecords: _sRequest returned error for record {}", startRecord + offset);
+					return RET_ERRBRE;
 				}
-		    }
-		    return coilArray;
+				retVal = _checkWriteFileRecordResponse( _rspPDU, _reqPDU );
+				if ( retVal != RET_OK ) {
+					_trace(ModbusTraceEvent.ERROR, "mbtcWriteFileRecords: bad response for record {}", startRecord + offset);
+					return retVal;
+				}
+			}
+			return RET_OK;
+		}
+
+		byte[][] requestPDUs = new byte[chunks][];
+		for ( int c = 0; c < chunks; c++ ) {
+			int offset = c * MAX_WRITE_FILE_RECORDS;
+			int length = Math.min(MAX_WRITE_FILE_RECORDS, count - offset);
+			requestPDUs[c] = new byte[9 + 2 * length];
+			_putWriteFileRecordPDU( ByteBuffer.wrap(requestPDUs[c]), fileNumber, startRecord, values, offset, length );
 		}
+		byte[][] responsePDUs = _pRequest( requestPDUs, (byte)deviceID, true );
+		for ( int c = 0; c < chunks; c++ ) {
+			int offset = c * MAX_WRITE_FILE_RECORDS;
+			if ( responsePDUs[c] == null ) {
+				_trace(ModbusTraceEvent.ERROR, "mbtcWriteFileRecords: no response for record {}", startRecord + offset);
+				return RET_ERRBRE;
+			}
+			retVal = _checkWriteFileRecordResponse( ByteBuffer.wrap(responsePDUs[c]), ByteBuffer.wrap(requestPDUs[c]) );
+			if ( retVal != RET_OK ) {
+				_trace(ModbusTraceEvent.ERROR, "mbtcWriteFileRecords: bad response for record {}", startRecord + offset);
+				return retVal;
+			}
+		}
+		return RET_OK;
+    }
+
+
+    // diagnostics (0x08) return query data request with the next probe data word
+    private void _putEchoPDU(ByteBuffer requestPDU) {
+		requestPDU.clear();
+		requestPDU.put( (byte)0x08 );
+		requestPDU.putShort( (short)0x0000 );      // sub-function: return query data
+		requestPDU.putShort( (short)++_probeData ); // changes every time, so an old echo cannot match
+		requestPDU.flip();
+    }
+
+    // response of return query data is the echo of the request
+    private int _checkEchoResponse(ByteBuffer responsePDU, ByteBuffer requestPDU) {
+		if ( responsePDU.get(0) != 0x08 )
+			return RET_ERRXRE;
+		if ( responsePDU.limit() != 5 || responsePDU.getShort(1) != 0 || responsePDU.getShort(3) != requestPDU.getShort(3) )
+			return RET_ERRBRE;
+		return RET_OK;
     }
 
 
     /**
-     * Reads specified number of registers starting at given address.
+     * Sends diagnostics (0x08) request with return query data (0x0000) sub-function and checks the echo.
+     * It is sent like any other request - connecting, retrying and reconnecting as set in mbtcSetup.
+     * Round trip time of the request is kept, see mbtcGetRoundTripNanos.
      *
-     * @param  startAddress    address of the first register to read
-     * @param  quantity        number of registers to read
      * @param  deviceID        modbus device id. If not sure specify 0.
-     * @return int[]           List of int values associated with registers
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response - device does not support diagnostics, but it is alive
      *         
      */
-    public int[] mbtcReadRegisters( int startAddress, int quantity, int deviceID ) {
-    	// according to MODBUS specification maximum number of register to read is 125 (0x7d)
-    	// the request PDU:
-    	//    Function code     = 1 byte - it will be 0x03 for reading holding registers
-    	//    Starting Address  = 2 bytes in range 0x0000 to 0xFFFF
-    	//    Quantity of Coils = 2 bytes in range 0x01 to 0x7D (125)
-    	//
-    	// the response PDU:
-    	//    Function code     = 1 byte - it will be the same as in request PDU
-    	//    Byte Count        = 1 byte - two bytes per register 
-    	//    Register Values   = N bytes
-    	//
-    	// exception response PDU
-    	//    Function code     = 1 byte - it will be 0x83
-    	//    Exception code    = 1 byte - 01 illegal function - not implemented in server device
-    	//                                 02 illegal data address - address is not supported by device
-    	//                                 03 illegal data value - fault in structure
-    	//                                 04 server device failure - problem at server site
+    public int mbtcEcho( int deviceID ) {
+		// the request PDU:
+		//    Function code   = 1 byte  - it will be 0x08
+		//    Sub-function    = 2 bytes - 0x0000 return query data
+		//    Data            = 2 bytes - any value
+		//
+		// the response PDU - is just the echo of the requested PDU
+		long start;
+		int retVal;
 
-    	byte[] requestPDU = new byte[5];
-    	byte[] intToByte;
-    	byte[] responsePDU;
-    	byte unitID;
-    
-	
-    	if( ( startAddress < 0 ) || ( startAddress > 65535 ) ) {
-    		_dispDebugLog(9,"mbtcReadRegisters: address out of range <0,65535> - startAddress=" + String.valueOf(startAddress));
-    		return null;
-    	}
-	
-    
-    	if( ( quantity < 1 ) || ( quantity > 125 ) ) {
-    		_dispDebugLog(9,"mbtcReadRegisters: quantity out of range <1,125> - quantity=" + String.valueOf(quantity));
-    		return null;
-    	}
+		_putEchoPDU( _reqPDU );
+		start = System.nanoTime();
+		if ( _sRequest( _reqPDU, _rspPDU, (byte)deviceID ) < 0 ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcEcho: _sRequest returned error.");
+			return RET_ERRBRE;
+		}
+		_roundTripNanos = System.nanoTime() - start;
+		retVal = _checkEchoResponse( _rspPDU, _reqPDU );
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcEcho: round trip {} us, result {}", _roundTripNanos / 1000, retVal);
+		return retVal;
+    }
 
-    	// for reading registers we use function 0x03
-    	requestPDU[0] = 0x03;
 
-	
-    	// lets convert 5code to PDU address
-    	intToByte = _intToByteArray( startAddress );
-    	requestPDU[1] = intToByte[2]; // HiByte of PDU address
-    	requestPDU[2] = intToByte[3]; // LoByte of PDU address
+    /**
+     * Liveness probe of the open connection: one diagnostics (0x08) return query data request,
+     * without connecting, retrying or reconnecting and with its own timeout. Connection which
+     * does not answer in time is closed, so a half-open socket is found by the probe and the
+     * next real request connects again at once instead of waiting for its timeouts.
+     * Exception response means the device is alive and does not support diagnostics, the
+     * connection stays open.
+     *
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  timeoutMillis   how long to wait for the echo, usually much shorter than soTimeout
+     * @return RET_OK (0)      the connection is alive<br>
+     *         RET_NOTCON (31) the client is not connected, nothing was sent<br>
+     *         RET_ERRBRE (42) no or bad response - the connection was closed<br>
+     *         RET_ERRXRE (43) exception response - the connection is alive
+     *         
+     */
+    public int mbtcProbe( int deviceID, int timeoutMillis ) {
+		long start;
+		int retVal;
 
-	
-    	// lets convert quantity
-    	intToByte = _intToByteArray( quantity );
-    	requestPDU[3] = intToByte[2]; // HiByte of coils quantity
-    	requestPDU[4] = intToByte[3]; // LoByte of coils quantity
+		if ( ! _amIConnected() )
+			return RET_NOTCON;
 
-	
-    	// lets convert devideID to unitID
-    	intToByte = _intToByteArray ( deviceID );
-    	unitID = intToByte[3];
-	
-    	responsePDU = _sRequest( requestPDU, unitID );
+		_putEchoPDU( _reqPDU );
+		start = System.nanoTime();
+		if ( _rawRequest( _reqPDU, _rspPDU, (byte)deviceID, Math.max(1, timeoutMillis) ) < 0 ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcProbe: no echo in {} ms, closing the connection", timeoutMillis);
+			_closeChannel();
+			return RET_ERRBRE;
+		}
+		_roundTripNanos = System.nanoTime() - start;
+		retVal = _checkEchoResponse( _rspPDU, _reqPDU );
+		if ( retVal == RET_ERRBRE ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcProbe: bad echo, closing the connection");
+			_closeChannel();
+		}
+		return retVal;
+    }
 
-    	if( responsePDU == null ) {
-    		_dispDebugLog(9,"mbtcReadRegisters: _sRequest returned null value. Exit with null");
-    		return null;
-    	}
-    	else {
-    		_dispDebugLog(9,"mbtcReadRegisters: _sRequest returned: " + _byteArrayToHexString(responsePDU));
 
-    		// lets analyze the responsePDU
-    		if( responsePDU[0] != requestPDU[0] ) {
-    			_dispDebugLog(9,"mbtcReadRegisters: exception in responsePDU. Exit with null");
-    			return null;
-    		}
+    /**
+     * @return round trip time of the last successful mbtcEcho or mbtcProbe in nanoseconds,
+     *         -1 if there was none
+     */
+    public long mbtcGetRoundTripNanos() {
+		return _roundTripNanos;
+    }
 
-    		// reposncePDU[0] - function code 0x03 or 0x83 in case of error
-    		// responcePDU[1] - number of bytes of data
-    		// responcePDU[2] - Hi of register 1
-    		// responcePDU[3] - Lo of register 1
-    		// responcePDU[4] - Hi of register 2
-    		// responcePDU[5] - Lo of register 2
-    		// ....
-    		// responcePDU[N]   - Hi of register N/2
-    		// responcePDU[N+1] - Lo of register N/2
-    		
-    		int registryArrayIdx = 0;
-    		int[] registersArray = new int[ quantity ];
-    		for(int i=2; i < 2 + responsePDU[1]; i=i+2 ) {
-    			_dispDebugLog(9,"mbtcReadRegisters: Hi data byte " + String.valueOf(i) + " = "+ String.format("0x%02x ",(responsePDU[i] & 0xFF) ) );
-    			_dispDebugLog(9,"mbtcReadRegisters: Lo data byte " + String.valueOf(i+1) + " = "+ String.format("0x%02x ",(responsePDU[i+1] & 0xFF) ) );
-    			registersArray[registryArrayIdx] = _twoBytesToInt(responsePDU[i],responsePDU[i+1]);
-    			_dispDebugLog(9,"mbtcReadRegisters: register " + String.valueOf(registryArrayIdx) + " = "+ String.valueOf(registersArray[registryArrayIdx]) );
-    			registryArrayIdx++;
-    		}
- 
-    		return registersArray;
-    	} // end if
+
+    /**
+     * @return exception code of the last exception response to a read request (e.g. 0x02 illegal
+     *         data address), 0 if there was none
+     */
+    public int mbtcGetLastExceptionCode() {
+		return _lastExceptionCode;
+    }
+
+
+    /**
+     * Tells how long the connection has been idle - nothing received since the last response
+     * or since it was connected. Pool and concurrent client use it to probe idle connections only.
+     *
+     * @return nanoseconds since the last response or connect, Long.MAX_VALUE if never connected
+     */
+    public long mbtcGetIdleNanos() {
+		return ( _lastResponseNanos == 0 ) ? Long.MAX_VALUE : System.nanoTime() - _lastResponseNanos;
     }
     
+
+
+    /**
+     * Sends any request PDU - vendor specific function codes or the ones this class does not
+     * wrap - with the same retries and reconnects as all other requests. Nothing is allocated:
+     * the request is copied straight into the transmit buffer and the response is copied
+     * into the buffer given by the caller.
+     * Request PDU is taken from position to limit of requestPDU, its position is not changed.
+     * On success and on exception response responsePDU contains the response PDU between
+     * position 0 and limit, function code first. Exception code of the exception response
+     * is responsePDU.get(1).
+     *
+     * @param  requestPDU      function code and data of the request, 1..253 bytes
+     * @param  responsePDU     writable buffer for the response PDU, capacity of at least 253 bytes
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return length of the response PDU on success<br>
+     *         -RET_ERRRAN (-41) bad request or too small response buffer, nothing was sent<br>
+     *         -RET_ERRBRE (-42) none or bad response from MODBUS Master<br>
+     *         -RET_ERRXRE (-43) exception response from MODBUS Master
+     *
+     */
+    public int mbtcRawRequest( ByteBuffer requestPDU, ByteBuffer responsePDU, int deviceID ) {
+		int functionCode;
+		int responseLen;
+
+		if ( requestPDU == null || requestPDU.remaining() < 1 || requestPDU.remaining() > MAX_PDU_LEN
+				|| responsePDU == null || responsePDU.isReadOnly() || responsePDU.capacity() < MAX_PDU_LEN ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcRawRequest: request PDU or response buffer out of range");
+			return -RET_ERRRAN;
+		}
+		functionCode = requestPDU.get( requestPDU.position() ) & 0x7F;
+
+		responseLen = _sRequest( requestPDU, responsePDU, (byte)deviceID );
+		if ( responseLen < 1 ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcRawRequest: _sRequest returned error.");
+			return -RET_ERRBRE;
+		}
+		// response of another function means the frames got mixed up
+		if ( ( responsePDU.get(0) & 0x7F ) != functionCode ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcRawRequest: response function code {} does not match request {}", responsePDU.get(0) & 0xFF, functionCode);
+			return -RET_ERRBRE;
+		}
+		if ( ( responsePDU.get(0) & 0x80 ) != 0 ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcRawRequest: exception response, exception code {}", responseLen > 1 ? responsePDU.get(1) & 0xFF : -1);
+			return -RET_ERRXRE;
+		}
+		return responseLen;
+    }
+
   
+    /**
+     * Tells if the client has an open connection to MODBUS master.
+     *
+     * @return true if connected
+     *         
+     */
+    public boolean mbtcIsConnected() {
+    	return _amIConnected();
+    }
+    
+    
 	/**
-     * Disconnecting the socket from MODBUS master. Before closing socket
-     * method flushes output stream and close both input and output streams
+     * Disconnecting from MODBUS master. Method closes the channel and 
+     * the selector used for waiting on it.
      *
      * @return RET_OK (0)      on success<br>
      *         RET_NOTCON (31) user is trying to disconnect already closed connection<br>
-     *         RET_ERRFLU (32) error flushing input stream<br>
-     *         RET_ERROCL (33) error closing output stream<br>
-     *         RET_ERRICL (34) error closing input stream stream<br>
      *         RET_ERRCSO (35) error closing socket<br>
      *         
      */
@@ -752,200 +3530,153 @@ public abstract class ModbusTcpClient {
 		int retval = RET_OK;
 		
 		// check if not already connected
-		if( ! _amIConnected() )
+		if( ! _amIConnected() ) {
+			// whatever is left after failed connection must be released anyway
+			_closeChannel();
 		    return RET_NOTCON;
+		}
 		else {
-		    // output stream should be flushed and closed first
-		    try {
-		    	_oStream.flush();
-		    	_dispDebugLog(9,"mbtcDisconnect: flushing output stream");
-		    } catch (IOException ex) {
-		    	_dispDebugLog(9,"mbtcDisconnect: cannot flush output stream");
-		    	retval = RET_ERRFLU;
-		    }
-	
-		    try {
-		    	if ( _oStream != null ) {
-		    		try {
-		    			_oStream.close();
-		    			_dispDebugLog(9,"mbtcDisconnect: closing output stream");
-		    		} catch (NullPointerException ee) {
-						retval = RET_ERROCL;
-					}
-					_oStream = null;
-		    	}
-		    } catch (IOException ex) {
-				_oStream = null;
-				_dispDebugLog(9,"mbtcDisconnect: cannot close output stream");
-				retval = RET_ERROCL;
-		    }
-	
-		    try {
-		    	if ( _iStream != null ) {
-		    		try {
-		    			_iStream.close();
-		    			_dispDebugLog(9,"mbtcDisconnect: closing input stream");
-		    		} catch (NullPointerException ee) {
-						retval = RET_ERROCL;
-					}
-					_iStream = null;
-		    	}
-		    } catch (IOException ex) {
-				_iStream = null;
-				_dispDebugLog(9,"mbtcDisconnect: cannot close input stream");
-				retval = RET_ERRICL;
-		    }
-	
-		    try {
-		    	if ( _socClient != null) {
-		    		try {
-		    			_socClient.close();
-		    			_dispDebugLog(9,"mbtcDisconnect: closing socket");
-		    		} catch (NullPointerException ee) {
-						retval = RET_ERRCSO;
-					}
-					_socClient = null;
-		    	}
-		    } catch (IOException ex) {
-				_socClient = null;
-				_dispDebugLog(9,"mbtcDisconnect: cannot close socket");
+		    if ( ! _closeChannel() ) {
+				_trace(ModbusTraceEvent.ERROR, "mbtcDisconnect: cannot close socket");
 				retval = RET_ERRCSO;
 		    }
 		}
-		_dispDebugLog(9,"mbtcDisconnect: disconnected successfully");
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcDisconnect: disconnected successfully");
+		return retval;
+    }
+
+    // closes channel and selector, returns false if anything went wrong
+    private boolean _closeChannel() {
+		boolean retval = true;
+		
+		if ( _watchedChannel != null ) {
+			ModbusDeadlineWatchdog.unwatch(this);
+			_watchedChannel = null;
+		}
+		if ( _selector != null ) {
+			try {
+				_selector.close();
+				_trace(ModbusTraceEvent.MESSAGE, "mbtcDisconnect: closing selector");
+			} catch (IOException ex) {
+				retval = false;
+			}
+			_selector = null;
+		}
+		if ( _channel != null ) {
+			try {
+				_channel.close();
+				_trace(ModbusTraceEvent.MESSAGE, "mbtcDisconnect: closing socket");
+			} catch (IOException ex) {
+				retval = false;
+			}
+			_channel = null;
+		}
 		return retval;
     }
 
 
     /**
      * Connecting to the MODBUS master using address port and parameters set in 
-     * mbtcSetup method. Method creates new Socket for communication.
+     * mbtcSetup method. Method opens new non-blocking SocketChannel for communication.
+     * SO_TIMEOUT value from mbtcSetup is used as the time limit when waiting for the response.
      *
      * @return RET_OK (0)      on success<br>
      *         RET_NOTSET (21) when mbtcSetup has not been invoked<br>
      *         RET_ERRCON (22) cannot connect socket to MODBUS master<br>
-     *         RET_ERRIST (23) cannot create input stream<br>
-     *         RET_ERROST (24) cannot create output stream<br>
-     *         RET_ERRSTO (25) cannot set socket timeout<br>
      *         
      */
     public int mbtcConnect() {
 
 		if( _socAddress == null ) return RET_NOTSET;
+		
+		// release what is left after previous connection
+		_closeChannel();
 	
-		// we are creating unconnected socket
-		_socClient = new Socket();
+		// we are creating unconnected channel and selector for waiting on it.
+		// In blocking I/O mode the channel stays blocking and the watchdog keeps the deadlines
+		try {
+			_channel  = SocketChannel.open();
+			if ( ! _blockingIo ) {
+				_selector = Selector.open();
+				_channel.configureBlocking(false);
+			}
+		} catch (IOException ex) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcConnect: cannot open channel");
+			_closeChannel();
+			return RET_ERRCON;
+		}
 	
 		// now we need to setup socket parameters recommended for ModbusTCP
 		// TCP_NODELAY - we need to disable NAGLE for better real-time behavior
 		if( _tcpNoDelay == 1 ) {
 		    try {
-			if(!_socClient.getTcpNoDelay()) {
-			    _socClient.setTcpNoDelay(true);
-			    _dispDebugLog(9,"mbtcConnect: setTcpNoDelay");
+			if(!_channel.socket().getTcpNoDelay()) {
+			    _channel.socket().setTcpNoDelay(true);
+			    _trace(ModbusTraceEvent.MESSAGE, "mbtcConnect: setTcpNoDelay");
 			}
 			else {
-			    _dispDebugLog(9,"mbtcConnect: TcpNoDelay is already set");
+			    _trace(ModbusTraceEvent.MESSAGE, "mbtcConnect: TcpNoDelay is already set");
 			}
 	
 		    } catch(SocketException ex) {
 			// this exception is raised if underlying TCPIP stack does not support
 			// TCP_NODELAY - if it is not supported then we ignore it
-			_dispDebugLog(9,"mbtcConnect: cannot setTcpDelay. Ignoring ...");
+			_trace(ModbusTraceEvent.ERROR, "mbtcConnect: cannot setTcpDelay. Ignoring ...");
 		    }
 		}
 	
 		// SO_KEEPALIVE - Normally on idle connection no data are sent so we need to enable it
 		if( _keepAlive == 1 ) {
 		    try {
-			if(!_socClient.getKeepAlive()) {
-			    _socClient.setKeepAlive(true);
-			    _dispDebugLog(9,"mbtcConnect: setKeepAlive");
+			if(!_channel.socket().getKeepAlive()) {
+			    _channel.socket().setKeepAlive(true);
+			    _trace(ModbusTraceEvent.MESSAGE, "mbtcConnect: setKeepAlive");
 			}
 			else {
-			    _dispDebugLog(9,"mbtcConnect: KeepAlive already set");
+			    _trace(ModbusTraceEvent.MESSAGE, "mbtcConnect: KeepAlive already set");
 			}
 	
 		    } catch(SocketException ex) {
 			// this exception is raised if underlying TCPIP stack does not support
 			// TCP_KEEPALIVE - if it is not supported then we ignore it
-			_dispDebugLog(9,"mbtcConnect: cannot setKeepAlive. Ignoring ...");
+			_trace(ModbusTraceEvent.ERROR, "mbtcConnect: cannot setKeepAlive. Ignoring ...");
 		    }
 		}
 	
-		// SO_TIMEOUT - is used by the read method to raise InteruptedIOException when timeout occurs
-		if(_soTimeout > 0 ) {
-		    try {
-			  _socClient.setSoTimeout(_soTimeout);
-			  _dispDebugLog(9,"mbtcConnect: setSoTimeout to " + String.valueOf(_soTimeout));
-		    } catch(SocketException ex) {
-		    	// this exception is raised if underlying TCPIP report error on
-		    	// SO_TIMEOUT - cleaning up and return an error
-		    	_dispDebugLog(9,"mbtcConnect: cannot setSoTimeout(" + String.valueOf(_soTimeout) + ")");
-		    	try {
-		    		_socClient.close();
-		    		_socClient = null;
-		    	} catch(IOException eex) {
-		    		// ignore
-		    	}
-		    	return RET_ERRSTO;
-		    }
-		}
+		// SO_TIMEOUT - is not used by channels, _readFully waits on the selector for _soTimeout instead
 	
 		// now we are ready to connect to the server
 		try {
-		    _socClient.connect(_socAddress, _conTimeout);
-		    _dispDebugLog(9,"mbtcConnect: connected with _conTimeout = " + String.valueOf(_conTimeout));
+			if ( _blockingIo ) {
+				ModbusDeadlineWatchdog.watch(this);
+				_watchedChannel = _channel;
+				_ioDeadline.set( System.nanoTime() + _conTimeout * 1000000L );
+				try {
+					_channel.connect(_socAddress);
+				} finally {
+					if ( ! _disarmDeadline() )
+						throw new SocketTimeoutException("connect timeout");
+				}
+			}
+			else {
+				if ( ! _channel.connect(_socAddress) ) {
+					long deadline = System.nanoTime() + _conTimeout * 1000000L;
+					while ( ! _channel.finishConnect() )
+						_waitFor(SelectionKey.OP_CONNECT, deadline);
+				}
+				_channel.register(_selector, SelectionKey.OP_READ);
+			}
+			_rxBuffer.clear();
+			_rxBuffer.limit(0); // nothing received on the new connection yet
+			_lastResponseNanos = System.nanoTime();
+		    _trace(ModbusTraceEvent.MESSAGE, "mbtcConnect: connected with _conTimeout = {}", _conTimeout);
 		} catch (IOException ex) {
-		    try {
-			_socClient.close(); // if we cannot connect the socket is useless and we close it
-			_socClient = null;
-		    } catch(IOException eex) {
-		    	_socClient = null; // if we cannot close it then socket is useless and we cleanup
-		    }
-		    _dispDebugLog(9,"mbtcConnect: connection cannot be established");
+			_closeChannel(); // if we cannot connect the channel is useless and we close it
+		    _trace(ModbusTraceEvent.ERROR, "mbtcConnect: connection cannot be established");
 		    return RET_ERRCON;
 		}
-		
-	
-		// the socket is created so we can now create Input and Output Streams
-		try {
-		    _oStream = new DataOutputStream( _socClient.getOutputStream());
-		} catch(IOException ex) {
-		    // i cannot create output stream, so we have to cleanup
-		    // the socket end exit with error
-		    _dispDebugLog(9,"mbtcConnect: cannot create output stream.");
-		    try {
-		        _socClient.close();
-		        _socClient = null;
-		    } catch (IOException eex) {
-		    	_dispDebugLog(9,"mbtcConnect: cannot close socket.");
-		    	_socClient = null; // if we cannot close it then socket is useless and we cleanup
-		    }
-		    return RET_ERROST;
-		}
-	
-		try {
-		    _iStream = new DataInputStream(  _socClient.getInputStream());
-		} catch(IOException ex) {
-		    // i cannot create input stream, so we have to cleanup
-		    // Previously created output stream then the socket end exit with error
-		    _dispDebugLog(9,"mbtcConnect: cannot create input stream.");
-		    try {
-			// we should always close the output stream before input stream
-			_oStream.close();
-			_socClient.close();
-			_oStream = null;
-			_socClient = null;
-		    } catch (IOException eex) {
-		    	_dispDebugLog(9,"mbtcConnect: cannot close output stream or socket.");
-		    	_oStream = null;
-		    	_socClient = null;
-		    }
-		    return RET_ERRIST;
-		}
 	
-		_dispDebugLog(9,"mbtcConnect: connected successfully");
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcConnect: connected successfully");
 		return RET_OK;
     }
 
@@ -962,10 +3693,15 @@ public abstract class ModbusTcpClient {
      * @param  port       an int value with the TCP port
      * @param  reqNum     (varargs) an int value indicates the number of read/write request to be done to the PLC Master before an error will be returned (default:3)
      * @param  reconNum   (varargs) an int value indicates the number of TCP connection requests before an error will be returned (default:2)
-     * @param  soTimeout  (varargs) an SO_TIMEOUT to avoid permanent blocking of InputStream associated with the Socket (default:1000) 
+     * @param  soTimeout  (varargs) time limit in ms for waiting for the response from the Master (default:1000) 
      * @param  conTimeout (varargs) an Socket connection timeout (default:1000)
      * @param  tcpNoDelay (varargs) disable the Nagle buffering algorithm. Value 1 disables buffering. Do not change it for MODBUS-TCP (default:1)
      * @param  keepAlive  (varargs) enable keep-alive packets for a socket connection. Value 1 enables it. Do not change it for MODBUS-TCP (default:1)
+     * @param  pipeline   (varargs) maximum number of requests in flight on the connection. Values greater than 1 enable pipelining of 
+     *                    multiple requests (e.g. mbtcReadRegisters with arrays of addresses). Use it only if the Master supports it (default:1)
+     * @param  blockingIo (varargs) value 1 selects blocking channel I/O for running the client in virtual threads. Timeouts are then
+     *                    kept by a shared watchdog thread which closes the connection of the late request. Value 0 selects
+     *                    non-blocking channel with selector. Takes effect on the next connection (default:0)
      * @return RET_OK (0)      on success<br>
      *         RET_BADARG (11) when bad arguments has been passed to InetSocketAddress constructor<br>
      *         RET_SECRES (12) when DNS name cannot be resolved<br>
@@ -975,16 +3711,21 @@ public abstract class ModbusTcpClient {
 		// we creating and checking address and port of the server
 		try {
 		    _socAddress = new InetSocketAddress(host,port);
+		    _endpoint = host + ":" + port;
+		    _device = null;
 	
 		} catch(IllegalArgumentException ex) {
 		      // host is null or port is out of range 0k,64k
 		      _socAddress = null;
-		      _dispDebugLog(9,"mbtcSetup: illegal arguments in InetSocketAddress");
+		      _endpoint = null;
+		      _trace(ModbusTraceEvent.ERROR, "mbtcSetup: illegal arguments in InetSocketAddress");
 		      return RET_BADARG;
 		} catch(SecurityException ex) {
 		      // security manager is present and prevents to resolve "hostname"
 		      _socAddress = null;
-		      _dispDebugLog(9,"mbtcSetup: unable to resolve " + host);
+		      _endpoint = null;
+		      if ( _tracer != null )
+		    	  _trace(ModbusTraceEvent.ERROR, "mbtcSetup: unable to resolve " + host);
 		      return RET_SECRES;
 		}
 	
@@ -994,16 +3735,23 @@ public abstract class ModbusTcpClient {
 		if( additionalParams.length >= 4 ) _conTimeout                  = additionalParams[3];
 		if( additionalParams.length >= 5 ) _tcpNoDelay                  = additionalParams[4];
 		if( additionalParams.length >= 6 ) _keepAlive                   = additionalParams[5];
+		if( additionalParams.length >= 7 ) _pipelineWindow              = Math.max(1, Math.min(additionalParams[6], 255));
+		if( additionalParams.length >= 8 ) _blockingIo                  = ( additionalParams[7] == 1 );
+		
+		_allocBuffers();
 		
-		_dispDebugLog(9,"mbtcSetup: ### Network parameters:");
-		_dispDebugLog(9,"mbtcSetup:                         host = \"" + host + "\"");
-		_dispDebugLog(9,"mbtcSetup:                         port = " + Integer.toString(port));
-		_dispDebugLog(9,"mbtcSetup:             _rawRequestRetry = " + Integer.toString(_rawRequestRetry));
-		_dispDebugLog(9,"mbtcSetup: _rawRequestReconnectAndRetry = " + Integer.toString(_rawRequestReconnectAndRetry));
-		_dispDebugLog(9,"mbtcSetup:                   _soTimeout = " + Integer.toString(_soTimeout));
-		_dispDebugLog(9,"mbtcSetup:                  _conTimeout = " + Integer.toString(_conTimeout));
-		_dispDebugLog(9,"mbtcSetup:                  _tcpNoDelay = " + Integer.toString(_tcpNoDelay));
-		_dispDebugLog(9,"mbtcSetup:                   _keepAlive = " + Integer.toString(_keepAlive));
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcSetup: ### Network parameters:");
+		if ( _tracer != null )
+			_trace(ModbusTraceEvent.MESSAGE, "mbtcSetup:                         host = \"" + host + "\"");
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcSetup:                         port = {}", port);
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcSetup:             _rawRequestRetry = {}", _rawRequestRetry);
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcSetup: _rawRequestReconnectAndRetry = {}", _rawRequestReconnectAndRetry);
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcSetup:                   _soTimeout = {}", _soTimeout);
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcSetup:                  _conTimeout = {}", _conTimeout);
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcSetup:                  _tcpNoDelay = {}", _tcpNoDelay);
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcSetup:                   _keepAlive = {}", _keepAlive);
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcSetup:              _pipelineWindow = {}", _pipelineWindow);
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcSetup:                  _blockingIo = {}", _blockingIo ? 1 : 0);
 		
 		return RET_OK;
     } // end of mbtcSetup
@@ -0,0 +1,723 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of connections to one MODBUS master (host:port). Most PLCs serve one request
+ * per connection at a time but accept several connections, so requests coming from
+ * many threads are spread across pool members. Each member is a ModbusTcpClient
+ * guarded by its own lock. Member which lost the connection and could not reconnect
+ * is taken out of use and replaced by the background thread.
+ * <p>
+ * Methods have the same parameters and return codes as in ModbusTcpClient and
+ * are safe to be called from many threads.
+ *
+ * @author Robert K.
+ *
+ */
+public abstract class ModbusTcpClientPool {
+
+    // ********************************************************************************************
+    // **** Private properties
+    // ********************************************************************************************
+    private final int                  _dispDebugMsgLevel;
+    private volatile ModbusTracer      _tracer;       // null - tracing is off
+    private volatile ModbusTracer      _memberTracer; // set by mbtcSetTracer, null - members use debugLevel
+    private volatile boolean           _adaptiveReads; // set by mbtcSetAdaptiveReads, given to new members too
+    private final ModbusTcpClient[]    _members;   // member i is used only with _locks[i] held
+    private final ReentrantLock[]      _locks;
+    private final AtomicIntegerArray   _dead;      // 1 - member is waiting for replacement
+    private final AtomicInteger        _next;      // round robin start for the next request
+    private final LinkedBlockingQueue<Integer> _deadQueue;
+    private String _host;
+    private int    _port;
+    private int[]  _setupParams;
+    private int    _conTimeout;
+    private Thread _keeper;
+    private volatile boolean _running;
+    private volatile int _probeIdleMillis;    // 0 - idle members are not probed
+    private volatile int _probeTimeoutMillis;
+    private volatile int _probeDeviceID;
+
+    private static final Integer WAKE_UP = -1; // put in _deadQueue to make the keeper read new probe settings
+
+    // keeper thread traces as well - no shared event object here
+    private void _trace(int type, String message) {
+		ModbusTracer tracer = _tracer;
+		if ( tracer != null )
+			tracer.trace(new ModbusTraceEvent().set(type, message, 0, 0, 0, null));
+    }
+
+    private void _trace(int type, String message, long arg0) {
+		ModbusTracer tracer = _tracer;
+		if ( tracer != null )
+			tracer.trace(new ModbusTraceEvent().set(type, message, 1, arg0, 0, null));
+    }
+
+    private void _trace(int type, String message, long arg0, long arg1) {
+		ModbusTracer tracer = _tracer;
+		if ( tracer != null )
+			tracer.trace(new ModbusTraceEvent().set(type, message, 2, arg0, arg1, null));
+    }
+
+    private ModbusTcpClient _newMember(final int memberNo) {
+    	ModbusTcpClient member = new ModbusTcpClient(_dispDebugMsgLevel) {
+    		@Override
+    		public void displayLog(String debMsg) {
+    			ModbusTcpClientPool.this.displayLog("#" + memberNo + " " + debMsg);
+    		}
+    	};
+    	if ( _memberTracer != null )
+    		member.mbtcSetTracer(_memberTracer);
+    	member.mbtcSetAdaptiveReads(_adaptiveReads);
+    	return member;
+    }
+
+    /**
+     * Takes free member for the request. Free healthy member is taken if there is any,
+     * otherwise we wait for the healthy member next in the round robin order.
+     *
+     * @return index of locked member<br>
+     * -1 if all members are dead
+     */
+    private int _acquire() {
+		int n = _members.length;
+		int start = ( _next.getAndIncrement() & 0x7FFFFFFF ) % n;
+		int idx;
+
+		for ( int k = 0; k < n; k++ ) {
+			idx = ( start + k ) % n;
+			if ( _dead.get(idx) == 0 && _locks[idx].tryLock() ) {
+				if ( _dead.get(idx) == 0 )
+					return idx;
+				_locks[idx].unlock();
+			}
+		}
+		for ( int k = 0; k < n; k++ ) {
+			idx = ( start + k ) % n;
+			if ( _dead.get(idx) == 0 ) {
+				_locks[idx].lock();
+				if ( _dead.get(idx) == 0 )
+					return idx;
+				_locks[idx].unlock();
+			}
+		}
+		_trace(ModbusTraceEvent.ERROR, "_acquire: all pool members are dead");
+		return -1;
+    }
+
+    /**
+     * Gives the member back. Member which failed and has no connection any more
+     * (its own reconnect did not help) goes to the background replacement.
+     */
+    private void _release(int idx, int retCode) {
+		if ( retCode == ModbusTcpClient.RET_ERRBRE && ! _members[idx].mbtcIsConnected() )
+			_markDead(idx);
+		_locks[idx].unlock();
+    }
+
+    private void _markDead(int idx) {
+		if ( _dead.compareAndSet(idx, 0, 1) ) {
+			_trace(ModbusTraceEvent.ERROR, "_markDead: pool member #{} is dead", idx);
+			_deadQueue.add(idx);
+		}
+    }
+
+    /**
+     * Background thread. Dead member is replaced by a new client connected
+     * with the same mbtcSetup parameters. If it cannot connect we try again later.
+     */
+    private void _keep() {
+		while ( _running ) {
+			Integer idx;
+			int probeIdle = _probeIdleMillis;
+			try {
+				if ( probeIdle > 0 )
+					idx = _deadQueue.poll( Math.max(10, probeIdle / 2), TimeUnit.MILLISECONDS );
+				else
+					idx = _deadQueue.take();
+			} catch (InterruptedException ex) {
+				return;
+			}
+			if ( idx == null ) {
+				_probeIdleMembers(probeIdle);
+				continue;
+			}
+			if ( idx < 0 )
+				continue; // WAKE_UP
+
+			ModbusTcpClient fresh = _newMember(idx);
+			fresh.mbtcSetup(_host, _port, _setupParams);
+			if ( fresh.mbtcConnect() == ModbusTcpClient.RET_OK ) {
+				_locks[idx].lock();
+				try {
+					_members[idx].mbtcDisconnect();
+					_members[idx] = fresh;
+				} finally {
+					_locks[idx].unlock();
+				}
+				_dead.set(idx, 0);
+				_trace(ModbusTraceEvent.MESSAGE, "_keep: pool member #{} replaced", idx);
+			}
+			else {
+				_trace(ModbusTraceEvent.ERROR, "_keep: pool member #{} cannot connect. Trying later", idx);
+				try {
+					Thread.sleep( Math.max(100, _conTimeout) );
+				} catch (InterruptedException ex) {
+					return;
+				}
+				_deadQueue.add(idx);
+			}
+		}
+    }
+
+    /**
+     * Keeper thread. Members which got no response for probeIdle ms are probed with
+     * diagnostics echo. Busy members are skipped - a request in progress proves the connection
+     * anyway. Member which does not answer the probe goes to the replacement at once,
+     * before any real request is sent through it.
+     */
+    private void _probeIdleMembers(int probeIdle) {
+		for ( int i = 0; i < _members.length && _running; i++ ) {
+			if ( _dead.get(i) != 0 || ! _locks[i].tryLock() )
+				continue;
+			int retVal = ModbusTcpClient.RET_OK;
+			ModbusTcpClient member = _members[i];
+			if ( member.mbtcIsConnected() && member.mbtcGetIdleNanos() >= probeIdle * 1000000L ) {
+				retVal = member.mbtcProbe(_probeDeviceID, _probeTimeoutMillis);
+				if ( retVal == ModbusTcpClient.RET_ERRBRE )
+					_trace(ModbusTraceEvent.ERROR, "_probeIdleMembers: pool member #{} did not answer the probe", i);
+			}
+			_release(i, retVal);
+		}
+    }
+
+    // ********************************************************************************************
+    // **** Public methods
+    // ********************************************************************************************
+
+    /**
+     * Displays debug messages when the object was created with debugLevel 9 and no other
+     * tracer was set. Override it to display formatted messages in your application.
+     * Default implementation does nothing.
+     * Messages of pool members are prefixed with member number.
+     *
+     * @param  debMsg formatted debugging message to be displayed in your application
+     *
+     */
+    public void displayLog(String debMsg) {
+    }
+
+    /**
+     * Sets the receiver of trace events. Events are not created at all when tracer is null,
+     * so switched off tracing costs one branch per trace point. Tracer is set for all pool members as well.
+     * Call it before the pool is used.
+     *
+     * @param  tracer receiver of trace events or null to switch tracing off
+     *
+     */
+    public void mbtcSetTracer(ModbusTracer tracer) {
+		_tracer = tracer;
+		_memberTracer = tracer;
+		for ( ModbusTcpClient member : _members )
+			member.mbtcSetTracer(tracer);
+    }
+
+    /**
+     * Switches learning of the device map in mbtcReadPlan on or off for all pool members,
+     * see ModbusTcpClient.mbtcSetAdaptiveReads. Members share what they learn through the
+     * capability cache. Call it before the pool is used.
+     *
+     * @param  adaptive true - learn and read around the learned map
+     *
+     */
+    public void mbtcSetAdaptiveReads(boolean adaptive) {
+		_adaptiveReads = adaptive;
+		for ( ModbusTcpClient member : _members )
+			member.mbtcSetAdaptiveReads(adaptive);
+    }
+
+
+    /**
+     * Creates the pool. Connections are opened in mbtcConnect or by the first requests.
+     *
+     * @param  poolSize   number of connections to the MODBUS master
+     * @param  debugLevel value 0 indicates no debugging messages. Value 9 will call displayLog with formatted trace events.
+     *
+     */
+    public ModbusTcpClientPool(int poolSize, int debugLevel) {
+		_dispDebugMsgLevel = debugLevel;
+		if ( debugLevel >= 9 ) {
+			_tracer = new ModbusTracer() {
+				@Override
+				public void trace(ModbusTraceEvent event) {
+					displayLog(event.toString());
+				}
+			};
+		}
+		_members   = new ModbusTcpClient[ Math.max(1, poolSize) ];
+		_locks     = new ReentrantLock[ _members.length ];
+		_dead      = new AtomicIntegerArray( _members.length );
+		_next      = new AtomicInteger();
+		_deadQueue = new LinkedBlockingQueue<Integer>();
+		_setupParams = new int[0];
+		_conTimeout  = 1000;
+		for ( int i = 0; i < _members.length; i++ ) {
+			_members[i] = _newMember(i);
+			_locks[i]   = new ReentrantLock();
+		}
+    }
+
+
+    /**
+     * Setup the initial parameters for all connections. Parameters are the same as for
+     * ModbusTcpClient.mbtcSetup and they are used for the replacements of dead members as well.
+     * Call it before mbtcConnect.
+     *
+     * @param  host       a String value with the IP address or DNS name of the PLC Master
+     * @param  port       an int value with the TCP port
+     * @param  additionalParams (varargs) reqNum, reconNum, soTimeout, conTimeout, tcpNoDelay, keepAlive, pipeline
+     *                    - see ModbusTcpClient.mbtcSetup
+     * @return RET_OK (0)      on success<br>
+     *         RET_BADARG (11) when bad arguments has been passed to InetSocketAddress constructor<br>
+     *         RET_SECRES (12) when DNS name cannot be resolved<br>
+     *
+     */
+    public int mbtcSetup(String host, int port, int... additionalParams ) {
+		int retVal = ModbusTcpClient.RET_OK;
+
+		_host = host;
+		_port = port;
+		_setupParams = additionalParams.clone();
+		if ( additionalParams.length >= 4 )
+			_conTimeout = additionalParams[3];
+		for ( int i = 0; i < _members.length && retVal == ModbusTcpClient.RET_OK; i++ ) {
+			_locks[i].lock();
+			try {
+				retVal = _members[i].mbtcSetup(host, port, additionalParams);
+			} finally {
+				_locks[i].unlock();
+			}
+		}
+		return retVal;
+    }
+
+
+    /**
+     * Connects all pool members and starts the background thread replacing dead members.
+     * Members which cannot connect now are left to the background thread.
+     *
+     * @return RET_OK (0)      if at least one member is connected<br>
+     *         RET_NOTSET (21) when mbtcSetup has not been invoked<br>
+     *         RET_ERRCON (22) no member can connect to MODBUS master<br>
+     *
+     */
+    public int mbtcConnect() {
+		int connected = 0;
+		int retVal;
+
+		if ( _host == null )
+			return ModbusTcpClient.RET_NOTSET;
+
+		if ( _keeper == null ) {
+			_running = true;
+			_keeper = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					_keep();
+				}
+			}, "ModbusTcpClientPool-" + _host + ":" + _port);
+			_keeper.setDaemon(true);
+			_keeper.start();
+		}
+
+		for ( int i = 0; i < _members.length; i++ ) {
+			if ( _dead.get(i) != 0 )
+				continue;
+			_locks[i].lock();
+			try {
+				retVal = _members[i].mbtcIsConnected() ? ModbusTcpClient.RET_OK : _members[i].mbtcConnect();
+			} finally {
+				_locks[i].unlock();
+			}
+			if ( retVal == ModbusTcpClient.RET_OK )
+				connected++;
+			else
+				_markDead(i);
+		}
+		_trace(ModbusTraceEvent.MESSAGE, "mbtcConnect: {} of {} pool members connected", connected, _members.length);
+		return connected > 0 ? ModbusTcpClient.RET_OK : ModbusTcpClient.RET_ERRCON;
+    }
+
+
+    /**
+     * Stops the background thread and disconnects all pool members.
+     *
+     * @return RET_OK (0)      on success<br>
+     *         RET_NOTCON (31) when the pool was not connected<br>
+     *
+     */
+    public int mbtcDisconnect() {
+		if ( _keeper == null )
+			return ModbusTcpClient.RET_NOTCON;
+
+		_running = false;
+		_keeper.interrupt();
+		try {
+			_keeper.join(5000);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		_keeper = null;
+		_deadQueue.clear();
+
+		for ( int i = 0; i < _members.length; i++ ) {
+			_locks[i].lock();
+			try {
+				_members[i].mbtcDisconnect();
+			} finally {
+				_dead.set(i, 0); // next mbtcConnect or request tries again
+				_locks[i].unlock();
+			}
+		}
+		return ModbusTcpClient.RET_OK;
+    }
+
+
+    /**
+     * Switches on probing of idle pool members by the background thread. Member which got no
+     * response for idleMillis gets diagnostics (0x08) echo - see ModbusTcpClient.mbtcProbe. If there
+     * is no echo within timeoutMillis, its connection is closed and the member is replaced, so dead
+     * and half-open connections are found between requests and not by them. TCP keepalive needs
+     * minutes for that.
+     *
+     * @param  idleMillis     idle time after which a member is probed, 0 switches probing off
+     * @param  timeoutMillis  how long to wait for the echo
+     * @param  deviceID       modbus device id the echo is sent to. If not sure specify 0.
+     *
+     */
+    public void mbtcSetIdleProbe(int idleMillis, int timeoutMillis, int deviceID) {
+		_probeTimeoutMillis = timeoutMillis;
+		_probeDeviceID = deviceID;
+		_probeIdleMillis = Math.max(0, idleMillis);
+		_deadQueue.add(WAKE_UP);
+    }
+
+
+    /**
+     * Tells how many pool members have open connection.
+     *
+     * @return number of connected members
+     *
+     */
+    public int mbtcConnectedCount() {
+		int connected = 0;
+		for ( int i = 0; i < _members.length; i++ ) {
+			if ( _dead.get(i) == 0 && _members[i].mbtcIsConnected() )
+				connected++;
+		}
+		return connected;
+    }
+
+
+    /**
+     * Reads registers into the buffer provided by the caller on any free pool member.
+     * See ModbusTcpClient.mbtcReadRegisters.
+     *
+     * @param  startAddress    address of the first register to read
+     * @param  quantity        number of registers to read, up to the end of the address space
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  registers       buffer for registers values. It must have at least quantity elements
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the address or quantity is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master or no pool member is alive<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *
+     */
+    public int mbtcReadRegisters( int startAddress, int quantity, int deviceID, int[] registers ) {
+		int retVal = ModbusTcpClient.RET_ERRBRE;
+		int idx = _acquire();
+
+		if ( idx < 0 )
+			return retVal;
+		try {
+			retVal = _members[idx].mbtcReadRegisters(startAddress, quantity, deviceID, registers);
+		} finally {
+			_release(idx, retVal);
+		}
+		return retVal;
+    }
+
+
+    /**
+     * Reads FLOAT32 values on any free pool member. See ModbusTcpClient.mbtcReadFloats.
+     *
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the table, address, count or offset is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master or no pool member is alive<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *
+     */
+    public int mbtcReadFloats( int table, int startAddress, int count, int deviceID, ModbusWordOrder order, float[] values, int offset ) {
+		int retVal = ModbusTcpClient.RET_ERRBRE;
+		int idx = _acquire();
+
+		if ( idx < 0 )
+			return retVal;
+		try {
+			retVal = _members[idx].mbtcReadFloats(table, startAddress, count, deviceID, order, values, offset);
+		} finally {
+			_release(idx, retVal);
+		}
+		return retVal;
+    }
+
+
+    /**
+     * Reads numeric values of any register type on any free pool member. See ModbusTcpClient.mbtcReadDoubles.
+     *
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the table, type, address, count or offset is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master or no pool member is alive<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *
+     */
+    public int mbtcReadDoubles( int table, int startAddress, int count, int deviceID, ModbusDataType type, ModbusWordOrder order, double[] values, int offset ) {
+		int retVal = ModbusTcpClient.RET_ERRBRE;
+		int idx = _acquire();
+
+		if ( idx < 0 )
+			return retVal;
+		try {
+			retVal = _members[idx].mbtcReadDoubles(table, startAddress, count, deviceID, type, order, values, offset);
+		} finally {
+			_release(idx, retVal);
+		}
+		return retVal;
+    }
+
+
+    /**
+     * Reads integer values of any register type on any free pool member. See ModbusTcpClient.mbtcReadLongs.
+     *
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the table, type, address, count or offset is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master or no pool member is alive<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *
+     */
+    public int mbtcReadLongs( int table, int startAddress, int count, int deviceID, ModbusDataType type, ModbusWordOrder order, long[] values, int offset ) {
+		int retVal = ModbusTcpClient.RET_ERRBRE;
+		int idx = _acquire();
+
+		if ( idx < 0 )
+			return retVal;
+		try {
+			retVal = _members[idx].mbtcReadLongs(table, startAddress, count, deviceID, type, order, values, offset);
+		} finally {
+			_release(idx, retVal);
+		}
+		return retVal;
+    }
+
+
+    /**
+     * Reads registers on any free pool member.
+     *
+     * @param  startAddress    address of the first register to read
+     * @param  quantity        number of registers to read, up to the end of the address space
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return int[]           List of int values associated with registers or null on error
+     *
+     */
+    public int[] mbtcReadRegisters( int startAddress, int quantity, int deviceID ) {
+		int[] registersArray;
+
+		if( quantity < 1 || quantity > 65536 )
+			return null;
+		registersArray = new int[ quantity ];
+		if( mbtcReadRegisters( startAddress, quantity, deviceID, registersArray ) != ModbusTcpClient.RET_OK )
+			return null;
+		return registersArray;
+    }
+
+
+    /**
+     * Reads coils' status into the buffer provided by the caller on any free pool member.
+     * See ModbusTcpClient.mbtcReadCoils.
+     *
+     * @param  startAddress    address of the first coil to read
+     * @param  quantity        number of coils to read, up to the end of the address space
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  coils           buffer for coils status. It must have at least quantity elements
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the address or quantity is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master or no pool member is alive<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *
+     */
+    public int mbtcReadCoils( int startAddress, int quantity, int deviceID, boolean[] coils ) {
+		int retVal = ModbusTcpClient.RET_ERRBRE;
+		int idx = _acquire();
+
+		if ( idx < 0 )
+			return retVal;
+		try {
+			retVal = _members[idx].mbtcReadCoils(startAddress, quantity, deviceID, coils);
+		} finally {
+			_release(idx, retVal);
+		}
+		return retVal;
+    }
+
+
+    /**
+     * Reads coils' status on any free pool member.
+     *
+     * @param  startAddress    address of the first coil to read
+     * @param  quantity        number of coils to read, up to the end of the address space
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return boolean[]       List of boolean values associated with coils status or null on error
+     *
+     */
+    public boolean[] mbtcReadCoils( int startAddress, int quantity, int deviceID ) {
+		boolean[] coilArray;
+
+		if( quantity < 1 || quantity > 65536 )
+			return null;
+		coilArray = new boolean[ quantity ];
+		if( mbtcReadCoils( startAddress, quantity, deviceID, coilArray ) != ModbusTcpClient.RET_OK )
+			return null;
+		return coilArray;
+    }
+
+
+    /**
+     * Switches ON or OFF the coil at specified address on any free pool member.
+     *
+     * @param  coilNumber      address of the coil
+     * @param  coilState       desired state of the coil
+     * @param  deviceID        MODBUS Master device ID. Usually 0.
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the coil address is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master or no pool member is alive<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *
+     */
+    public int mbtcWriteSingleCoil( int coilNumber, boolean coilState, int deviceID ) {
+		int retVal = ModbusTcpClient.RET_ERRBRE;
+		int idx = _acquire();
+
+		if ( idx < 0 )
+			return retVal;
+		try {
+			retVal = _members[idx].mbtcWriteSingleCoil(coilNumber, coilState, deviceID);
+		} finally {
+			_release(idx, retVal);
+		}
+		return retVal;
+    }
+
+
+    /**
+     * Reads all tags of the read plan on any free pool member. See ModbusTcpClient.mbtcReadPlan.
+     *
+     * @param  plan            compiled tags, see ModbusTagDatabase.compile
+     * @param  deviceID        MODBUS Master device ID. Usually 0.
+     * @param  bits            buffer of at least plan.bitBufferLength() elements, may be null if it is 0
+     * @param  words           buffer of at least plan.wordBufferLength() elements, may be null if it is 0
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the plan is not given or a buffer is too small<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master or no pool member is alive<br>
+     *         RET_ERRXRE (43) exception response to at least one request
+     *
+     */
+    public int mbtcReadPlan( ModbusReadPlan plan, int deviceID, boolean[] bits, int[] words ) {
+		int retVal = ModbusTcpClient.RET_ERRBRE;
+		int idx = _acquire();
+
+		if ( idx < 0 )
+			return retVal;
+		try {
+			retVal = _members[idx].mbtcReadPlan(plan, deviceID, bits, words);
+		} finally {
+			_release(idx, retVal);
+		}
+		return retVal;
+    }
+
+
+    /**
+     * Sends any request PDU on any free pool member. See ModbusTcpClient.mbtcRawRequest.
+     *
+     * @param  requestPDU      function code and data of the request, 1..253 bytes
+     * @param  responsePDU     writable buffer for the response PDU, capacity of at least 253 bytes
+     * @param  deviceID        MODBUS Master device ID. Usually 0.
+     * @return length of the response PDU on success<br>
+     *         -RET_ERRRAN (-41) bad request or too small response buffer<br>
+     *         -RET_ERRBRE (-42) none or bad response from MODBUS Master or no pool member is alive<br>
+     *         -RET_ERRXRE (-43) exception response from MODBUS Master
+     *
+     */
+    public int mbtcRawRequest( ByteBuffer requestPDU, ByteBuffer responsePDU, int deviceID ) {
+		int responseLen = -ModbusTcpClient.RET_ERRBRE;
+		int idx = _acquire();
+
+		if ( idx < 0 )
+			return responseLen;
+		try {
+			responseLen = _members[idx].mbtcRawRequest(requestPDU, responsePDU, deviceID);
+		} finally {
+			_release(idx, ( responseLen < 0 ) ? -responseLen : ModbusTcpClient.RET_OK);
+		}
+		return responseLen;
+    }
+
+
+    /**
+     * Set specified value in the register at specified address on any free pool member.
+     *
+     * @param  registerNumber   address of the register
+     * @param  registerNewValue new value of the register
+     * @param  deviceID         MODBUS Master device ID. Usually 0.
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the register address is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master or no pool member is alive<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *
+     */
+    public int mbtcWriteSingleRegister( int registerNumber, int registerNewValue, int deviceID ) {
+		int retVal = ModbusTcpClient.RET_ERRBRE;
+		int idx = _acquire();
+
+		if ( idx < 0 )
+			return retVal;
+		try {
+			retVal = _members[idx].mbtcWriteSingleRegister(registerNumber, registerNewValue, deviceID);
+		} finally {
+			_release(idx, retVal);
+		}
+		return retVal;
+    }
+}
@@ -0,0 +1,547 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thread-safe MODBUS/TCP client for one connection. Any number of threads may call
+ * its methods at the same time. Requests are put in a lock-free queue and one owner
+ * thread puts them on the wire. If pipelining is enabled in mbtcSetup, requests
+ * queued by different threads are sent together and answered in one round trip.
+ * <p>
+ * The owner thread is started by the first request and stops in mbtcDisconnect.
+ * Calling threads wait only for their own requests, they never wait for a lock.
+ *
+ * @author Robert K.
+ *
+ */
+public abstract class ModbusTcpConcurrentClient {
+
+    // ********************************************************************************************
+    // **** Private properties
+    // ********************************************************************************************
+    private static final int REQ_READ_COILS     = 1;
+    private static final int REQ_READ_REGISTERS = 2;
+    private static final int REQ_WRITE_COIL     = 3;
+    private static final int REQ_WRITE_REGISTER = 4;
+    private static final int REQ_CONNECT        = 5;
+    private static final int REQ_DISCONNECT     = 6;
+
+    /**
+     * Request queued by the calling thread. Result is set by the owner thread.
+     */
+    private static final class Request {
+    	final int       kind;
+    	final int       address;
+    	final int       quantity;
+    	final int       value;
+    	final byte      unitID;
+    	final boolean[] coils;
+    	final int[]     registers;
+    	final Thread    waiter;
+    	int              result;
+    	volatile boolean done;
+
+    	Request(int kind, int address, int quantity, int value, int deviceID, boolean[] coils, int[] registers) {
+    		this.kind      = kind;
+    		this.address   = address;
+    		this.quantity  = quantity;
+    		this.value     = value;
+    		this.unitID    = (byte)deviceID;
+    		this.coils     = coils;
+    		this.registers = registers;
+    		this.waiter    = Thread.currentThread();
+    	}
+    }
+
+    private volatile ModbusTracer         _tracer;   // null - tracing is off
+    private final ModbusTcpClient         _client;   // used only by the owner thread
+    private final MpscQueue<Request>      _queue;
+    private final AtomicReference<Thread> _owner;
+    private volatile boolean              _ownerParked;
+    private int        _pipelineWindow;
+    private volatile int _probeIdleMillis;           // 0 - idle connection is not probed
+    private volatile int _probeTimeoutMillis;
+    private volatile int _probeDeviceID;
+    private Request[]  _batch;                        // owner thread only
+
+    // called by any thread, each event is a new object
+    private void _trace(int type, String message) {
+		ModbusTracer tracer = _tracer;
+		if ( tracer != null )
+			tracer.trace(new ModbusTraceEvent().set(type, message, 0, 0, 0, null));
+    }
+
+    private void _trace(int type, String message, long arg0) {
+		ModbusTracer tracer = _tracer;
+		if ( tracer != null )
+			tracer.trace(new ModbusTraceEvent().set(type, message, 1, arg0, 0, null));
+    }
+
+    private void _trace(int type, String message, long arg0, long arg1) {
+		ModbusTracer tracer = _tracer;
+		if ( tracer != null )
+			tracer.trace(new ModbusTraceEvent().set(type, message, 2, arg0, arg1, null));
+    }
+
+    /**
+     * Puts the request in the queue, wakes up (or starts) the owner thread
+     * and waits until the request is done.
+     */
+    private int _submit(Request request) {
+		_queue.offer(request);
+
+		Thread owner = _owner.get();
+		if ( owner == null )
+			_startOwner();
+		else if ( _ownerParked )
+			LockSupport.unpark(owner);
+
+		while ( ! request.done )
+			LockSupport.park(this);
+		return request.result;
+    }
+
+    private void _startOwner() {
+		Thread owner = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				_own();
+			}
+		}, "ModbusTcpConcurrentClient");
+		owner.setDaemon(true);
+		if ( _owner.compareAndSet(null, owner) )
+			owner.start();
+    }
+
+    private void _complete(Request request, int result) {
+		request.result = result;
+		request.done   = true;
+		LockSupport.unpark(request.waiter);
+    }
+
+    /**
+     * Owner thread. Takes requests from the queue and executes them on _client.
+     * Exits after disconnect when nothing more is queued.
+     */
+    private void _own() {
+		Thread me = Thread.currentThread();
+		Request request;
+
+		while ( true ) {
+			request = _queue.poll();
+			if ( request == null ) {
+				int probeIdle = _probeIdleMillis;
+				_ownerParked = true;
+				if ( _queue.isEmpty() ) {
+					if ( probeIdle > 0 )
+						LockSupport.parkNanos(this, Math.max(10, probeIdle / 2) * 1000000L);
+					else
+						LockSupport.park(this);
+				}
+				_ownerParked = false;
+				// nothing to do - make sure the connection still works before the next request comes
+				if ( probeIdle > 0 && _queue.isEmpty() && _client.mbtcIsConnected()
+						&& _client.mbtcGetIdleNanos() >= probeIdle * 1000000L ) {
+					if ( _client.mbtcProbe(_probeDeviceID, _probeTimeoutMillis) == ModbusTcpClient.RET_ERRBRE )
+						_trace(ModbusTraceEvent.ERROR, "_own: no answer to the idle probe, connection closed");
+				}
+				continue;
+			}
+
+			if ( request.kind == REQ_CONNECT ) {
+				_complete( request, _client.mbtcConnect() );
+			}
+			else if ( request.kind == REQ_DISCONNECT ) {
+				_complete( request, _client.mbtcDisconnect() );
+				if ( _queue.isEmpty() ) {
+					_owner.compareAndSet(me, null);
+					// request queued while we were leaving - stay if nobody took over
+					if ( _queue.isEmpty() || ! _owner.compareAndSet(null, me) )
+						return;
+				}
+			}
+			else if ( _pipelineWindow == 1 || ! _fitsOneRequest(request) ) {
+				_execute(request); // long reads are split and pipelined by _client itself
+			}
+			else {
+				// requests of the same device queued meanwhile go in one pipelined batch
+				int n = 0;
+				Request next;
+				_batch[n++] = request;
+				while ( n < _pipelineWindow && ( next = _queue.peek() ) != null
+						&& next.kind <= REQ_WRITE_REGISTER && next.unitID == request.unitID && _fitsOneRequest(next) )
+					_batch[n++] = _queue.poll();
+				if ( n == 1 )
+					_execute(request);
+				else
+					_executeBatch(n);
+				for ( int i = 0; i < n; i++ )
+					_batch[i] = null;
+			}
+		}
+    }
+
+    private static boolean _fitsOneRequest(Request request) {
+		if ( request.kind == REQ_READ_COILS )
+			return request.quantity <= 2000;
+		return request.kind != REQ_READ_REGISTERS || request.quantity <= 125;
+    }
+
+    private void _execute(Request request) {
+		int result;
+
+		switch ( request.kind ) {
+		case REQ_READ_COILS:
+			result = _client.mbtcReadCoils(request.address, request.quantity, request.unitID, request.coils);
+			break;
+		case REQ_READ_REGISTERS:
+			result = _client.mbtcReadRegisters(request.address, request.quantity, request.unitID, request.registers);
+			break;
+		case REQ_WRITE_COIL:
+			result = _client.mbtcWriteSingleCoil(request.address, request.value != 0, request.unitID);
+			break;
+		default:
+			result = _client.mbtcWriteSingleRegister(request.address, request.value, request.unitID);
+			break;
+		}
+		_complete(request, result);
+    }
+
+    /**
+     * Sends first n requests of _batch pipelined and completes each of them.
+     */
+    private void _executeBatch(int n) {
+		byte[][] requestPDUs = new byte[n][];
+		byte[][] responsePDUs;
+		byte     functionCode;
+		int      result;
+
+		for ( int i = 0; i < n; i++ ) {
+			Request request = _batch[i];
+			ByteBuffer pdu = ByteBuffer.wrap( requestPDUs[i] = new byte[5] );
+			switch ( request.kind ) {
+			case REQ_READ_COILS:
+				pdu.put( (byte)0x01 ).putShort( (short)request.address ).putShort( (short)request.quantity );
+				break;
+			case REQ_READ_REGISTERS:
+				pdu.put( (byte)0x03 ).putShort( (short)request.address ).putShort( (short)request.quantity );
+				break;
+			case REQ_WRITE_COIL:
+				pdu.put( (byte)0x05 ).putShort( (short)request.address ).putShort( request.value != 0 ? (short)0xFF00 : (short)0 );
+				break;
+			default:
+				pdu.put( (byte)0x06 ).putShort( (short)request.address ).putShort( (short)request.value );
+				break;
+			}
+		}
+
+		responsePDUs = _client._pRequest( requestPDUs, _batch[0].unitID );
+
+		for ( int i = 0; i < n; i++ ) {
+			Request request = _batch[i];
+			functionCode = requestPDUs[i][0];
+			if ( responsePDUs[i] == null )
+				result = ModbusTcpClient.RET_ERRBRE;
+			else if ( request.kind == REQ_READ_COILS )
+				result = _client._readResponseFromPDU( ByteBuffer.wrap(responsePDUs[i]), functionCode, request.quantity, request.coils, null, 0 );
+			else if ( request.kind == REQ_READ_REGISTERS )
+				result = _client._readResponseFromPDU( ByteBuffer.wrap(responsePDUs[i]), functionCode, request.quantity, null, request.registers, 0 );
+			else
+				result = ( responsePDUs[i][0] == functionCode ) ? ModbusTcpClient.RET_OK : ModbusTcpClient.RET_ERRXRE;
+			_complete(request, result);
+		}
+    }
+
+    private boolean _checkRange(String funName, int address, int quantity, int maxQuantity, int bufferLength) {
+		if( ( address < 0 ) || ( address > 65535 ) || ( quantity < 1 ) || ( quantity > maxQuantity ) || ( bufferLength < quantity ) ) {
+			if ( _tracer != null )
+				_trace(ModbusTraceEvent.ERROR, funName + ": address, quantity or buffer out of range - address={} quantity={}", address, quantity);
+			return false;
+		}
+		return true;
+    }
+
+    // ********************************************************************************************
+    // **** Public methods
+    // ********************************************************************************************
+
+    /**
+     * Displays debug messages when the object was created with debugLevel 9 and no other
+     * tracer was set. Override it to display formatted messages in your application.
+     * Default implementation does nothing.
+     * It is called from the owner thread and from the calling threads.
+     *
+     * @param  debMsg formatted debugging message to be displayed in your application
+     *
+     */
+    public void displayLog(String debMsg) {
+    }
+
+    /**
+     * Sets the receiver of trace events. Events are not created at all when tracer is null,
+     * so switched off tracing costs one branch per trace point. Tracer of the owner thread gets
+     * events of the connection, set it before the client is used.
+     *
+     * @param  tracer receiver of trace events or null to switch tracing off
+     *
+     */
+    public void mbtcSetTracer(ModbusTracer tracer) {
+		_tracer = tracer;
+		_client.mbtcSetTracer(tracer);
+    }
+
+
+    /**
+     * Initializes private properties of the object with the default values.
+     * Default values can be changed in mbtcSetup method.
+     *
+     * @param  debugLevel value 0 indicates no debugging messages. Value 9 will call displayLog with formatted trace events.
+     *
+     */
+    public ModbusTcpConcurrentClient (int debugLevel) {
+		if ( debugLevel >= 9 ) {
+			_tracer = new ModbusTracer() {
+				@Override
+				public void trace(ModbusTraceEvent event) {
+					displayLog(event.toString());
+				}
+			};
+		}
+		_client = new ModbusTcpClient(debugLevel) {
+			@Override
+			public void displayLog(String debMsg) {
+				ModbusTcpConcurrentClient.this.displayLog(debMsg);
+			}
+		};
+		_queue  = new MpscQueue<Request>();
+		_owner  = new AtomicReference<Thread>();
+		_pipelineWindow = 1;
+		_batch  = new Request[1];
+    }
+
+
+    /**
+     * Setup the initial parameters for TCP connection. Parameters are the same as for
+     * ModbusTcpClient.mbtcSetup. With pipeline (7th additional parameter) greater than 1,
+     * requests queued by different threads are pipelined.
+     * Call it before the first request, not while other threads use the client.
+     *
+     * @param  host       a String value with the IP address or DNS name of the PLC Master
+     * @param  port       an int value with the TCP port
+     * @param  additionalParams (varargs) reqNum, reconNum, soTimeout, conTimeout, tcpNoDelay, keepAlive, pipeline
+     *                    - see ModbusTcpClient.mbtcSetup
+     * @return RET_OK (0)      on success<br>
+     *         RET_BADARG (11) when bad arguments has been passed to InetSocketAddress constructor<br>
+     *         RET_SECRES (12) when DNS name cannot be resolved<br>
+     *
+     */
+    public int mbtcSetup(String host, int port, int... additionalParams ) {
+		if( additionalParams.length >= 7 ) {
+			_pipelineWindow = Math.max(1, Math.min(additionalParams[6], 255));
+			_batch = new Request[_pipelineWindow];
+		}
+		return _client.mbtcSetup(host, port, additionalParams);
+    }
+
+
+    /**
+     * Connects to the MODBUS master. Calling it is optional, the first request connects as well.
+     *
+     * @return RET_OK (0)      on success<br>
+     *         RET_NOTSET (21) when mbtcSetup has not been invoked<br>
+     *         RET_ERRCON (22) cannot connect socket to MODBUS master<br>
+     *
+     */
+    public int mbtcConnect() {
+    	return _submit( new Request(REQ_CONNECT, 0, 0, 0, 0, null, null) );
+    }
+
+
+    /**
+     * Disconnects from MODBUS master and stops the owner thread. Requests queued
+     * before are done first. The client can be used again afterwards.
+     *
+     * @return RET_OK (0)      on success<br>
+     *         RET_NOTCON (31) user is trying to disconnect already closed connection<br>
+     *         RET_ERRCSO (35) error closing socket<br>
+     *
+     */
+    public int mbtcDisconnect() {
+    	return _submit( new Request(REQ_DISCONNECT, 0, 0, 0, 0, null, null) );
+    }
+
+
+    /**
+     * Switches on probing of the idle connection by the owner thread. When no response came
+     * for idleMillis and nothing is queued, diagnostics (0x08) echo is sent - see
+     * ModbusTcpClient.mbtcProbe. If there is no echo within timeoutMillis the connection is
+     * closed, so the next request connects again at once instead of running into timeouts.
+     * The probe runs only while the owner thread is alive - after the first request and
+     * until mbtcDisconnect.
+     *
+     * @param  idleMillis     idle time after which the connection is probed, 0 switches probing off
+     * @param  timeoutMillis  how long to wait for the echo
+     * @param  deviceID       modbus device id the echo is sent to. If not sure specify 0.
+     *
+     */
+    public void mbtcSetIdleProbe(int idleMillis, int timeoutMillis, int deviceID) {
+		_probeTimeoutMillis = timeoutMillis;
+		_probeDeviceID = deviceID;
+		_probeIdleMillis = Math.max(0, idleMillis);
+		Thread owner = _owner.get();
+		if ( owner != null )
+			LockSupport.unpark(owner);
+    }
+
+
+    /**
+     * @return round trip time of the last successful idle probe in nanoseconds, -1 if there was none
+     */
+    public long mbtcGetRoundTripNanos() {
+		return _client.mbtcGetRoundTripNanos();
+    }
+
+
+    /**
+     * Reads specified number of coils' status starting at given address into the buffer
+     * provided by the caller.
+     *
+     * @param  startAddress    address of the first coil to read
+     * @param  quantity        number of coils to read, up to the end of the address space
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  coils           buffer for coils status. It must have at least quantity elements
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the address or quantity is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *
+     */
+    public int mbtcReadCoils( int startAddress, int quantity, int deviceID, boolean[] coils ) {
+		if ( ! _checkRange("mbtcReadCoils", startAddress, quantity, 65536 - startAddress, coils == null ? 0 : coils.length) )
+			return ModbusTcpClient.RET_ERRRAN;
+		return _submit( new Request(REQ_READ_COILS, startAddress, quantity, 0, deviceID, coils, null) );
+    }
+
+
+    /**
+     * Reads specified number of coils' status starting at given address.
+     *
+     * @param  startAddress    address of the first coil to read
+     * @param  quantity        number of coils to read, up to the end of the address space
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return boolean[]       List of boolean values associated with coils status or null on error
+     *
+     */
+    public boolean[] mbtcReadCoils( int startAddress, int quantity, int deviceID ) {
+		boolean[] coilArray;
+
+		if( quantity < 1 || quantity > 65536 )
+			return null;
+		coilArray = new boolean[ quantity ];
+		if( mbtcReadCoils( startAddress, quantity, deviceID, coilArray ) != ModbusTcpClient.RET_OK )
+			return null;
+		return coilArray;
+    }
+
+
+    /**
+     * Reads specified number of registers starting at given address into the buffer
+     * provided by the caller.
+     *
+     * @param  startAddress    address of the first register to read
+     * @param  quantity        number of registers to read, up to the end of the address space
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @param  registers       buffer for registers values. It must have at least quantity elements
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the address or quantity is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *
+     */
+    public int mbtcReadRegisters( int startAddress, int quantity, int deviceID, int[] registers ) {
+		if ( ! _checkRange("mbtcReadRegisters", startAddress, quantity, 65536 - startAddress, registers == null ? 0 : registers.length) )
+			return ModbusTcpClient.RET_ERRRAN;
+		return _submit( new Request(REQ_READ_REGISTERS, startAddress, quantity, 0, deviceID, null, registers) );
+    }
+
+
+    /**
+     * Reads specified number of registers starting at given address.
+     *
+     * @param  startAddress    address of the first register to read
+     * @param  quantity        number of registers to read, up to the end of the address space
+     * @param  deviceID        modbus device id. If not sure specify 0.
+     * @return int[]           List of int values associated with registers or null on error
+     *
+     */
+    public int[] mbtcReadRegisters( int startAddress, int quantity, int deviceID ) {
+		int[] registersArray;
+
+		if( quantity < 1 || quantity > 65536 )
+			return null;
+		registersArray = new int[ quantity ];
+		if( mbtcReadRegisters( startAddress, quantity, deviceID, registersArray ) != ModbusTcpClient.RET_OK )
+			return null;
+		return registersArray;
+    }
+
+
+    /**
+     * Switches ON or OFF the coil at specified address.
+     *
+     * @param  coilNumber      address of the coil
+     * @param  coilState       desired state of the coil
+     * @param  deviceID        MODBUS Master device ID. Usually 0.
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the coil address is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *
+     */
+    public int mbtcWriteSingleCoil( int coilNumber, boolean coilState, int deviceID ) {
+		if( ( coilNumber < 0 ) || ( coilNumber >= 65535 ) ) {
+		    _trace(ModbusTraceEvent.ERROR, "mbtcWriteSingleCoil: coil# out of range <0,65535) - coilNumber={}", coilNumber);
+		    return ModbusTcpClient.RET_ERRRAN;
+		}
+		return _submit( new Request(REQ_WRITE_COIL, coilNumber, 1, coilState ? 1 : 0, deviceID, null, null) );
+    }
+
+
+    /**
+     * Set specified value in the register at specified address.
+     *
+     * @param  registerNumber   address of the register
+     * @param  registerNewValue new value of the register
+     * @param  deviceID         MODBUS Master device ID. Usually 0.
+     * @return RET_OK (0)      on success<br>
+     *         RET_ERRRAN (41) if the register address is out of range<br>
+     *         RET_ERRBRE (42) none or bad response from MODBUS Master<br>
+     *         RET_ERRXRE (43) exception response from MODBUS Master
+     *
+     */
+    public int mbtcWriteSingleRegister( int registerNumber, int registerNewValue, int deviceID ) {
+		if( ( registerNumber < 0 ) || ( registerNumber >= 65535 ) ) {
+			_trace(ModbusTraceEvent.ERROR, "mbtcWriteSingleRegister: register# out of range <0,65535) - registerNumber={}", registerNumber);
+			return ModbusTcpClient.RET_ERRRAN;
+		}
+		return _submit( new Request(REQ_WRITE_REGISTER, registerNumber, 1, registerNewValue, deviceID, null, null) );
+    }
+}
@@ -0,0 +1,142 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One trace event: type, constant message template and primitive arguments.
+ * Nothing is formatted until toString() is called, so a tracer which filters
+ * events by type() or looks only at arg0()/arg1() does not create any garbage.
+ *
+ * @author Robert K.
+ *
+ */
+public final class ModbusTraceEvent {
+
+    // ********************************************************************************************
+    // **** Event types
+    // ********************************************************************************************
+
+    public static final int MESSAGE  = 0; // connection life-cycle and configuration
+    public static final int ERROR    = 1; // request or connection problem
+    public static final int REQUEST  = 2; // request ADU sent, data() is the ADU
+    public static final int RESPONSE = 3; // response PDU received, arg0 = transaction ID, arg1 = unit ID, data() is the PDU
+    public static final int COIL     = 4; // decoded coil, arg0 = index in the result, arg1 = 1 (on) or 0 (off)
+    public static final int REGISTER = 5; // decoded register, arg0 = index in the result, arg1 = value
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private int        _type;
+    private long       _timeMillis;
+    private String     _message;  // constant text, every {} is replaced by the next argument
+    private int        _argCount;
+    private long       _arg0;
+    private long       _arg1;
+    private ByteBuffer _data;     // bytes between position and limit are appended as hex
+
+    ModbusTraceEvent() {
+    }
+
+    // clients reuse one event object, so set() overwrites all fields
+    ModbusTraceEvent set(int type, String message, int argCount, long arg0, long arg1, ByteBuffer data) {
+		_type = type;
+		_timeMillis = System.currentTimeMillis();
+		_message = message;
+		_argCount = argCount;
+		_arg0 = arg0;
+		_arg1 = arg1;
+		_data = data;
+		return this;
+    }
+
+    // event must not keep the caller's buffer after the tracer returns
+    void clear() {
+		_data = null;
+    }
+
+    /**
+     * @return one of MESSAGE, ERROR, REQUEST, RESPONSE, COIL, REGISTER
+     */
+    public int type() {
+    	return _type;
+    }
+
+    /**
+     * @return System.currentTimeMillis() when the event was created
+     */
+    public long timeMillis() {
+    	return _timeMillis;
+    }
+
+    /**
+     * @return constant message template, {} marks the place of an argument
+     */
+    public String message() {
+    	return _message;
+    }
+
+    /**
+     * @return number of arguments in message template (0, 1 or 2)
+     */
+    public int argCount() {
+    	return _argCount;
+    }
+
+    public long arg0() {
+    	return _arg0;
+    }
+
+    public long arg1() {
+    	return _arg1;
+    }
+
+    /**
+     * @return frame bytes between position and limit or null. Do not modify the buffer
+     */
+    public ByteBuffer data() {
+    	return _data;
+    }
+
+    /**
+     * Formats the event the same way debug messages were displayed: DEBUG(time): message
+     *
+     * @return formatted message
+     */
+    @Override
+    public String toString() {
+		StringBuilder retVal = new StringBuilder(64 + ( _data != null ? 2 * _data.remaining() : 0 ));
+		int arg = 0;
+		int from = 0;
+		int at;
+
+		retVal.append("DEBUG(").append(_timeMillis).append("): ");
+		while ( arg < _argCount && ( at = _message.indexOf("{}", from) ) >= 0 ) {
+			retVal.append(_message, from, at).append(arg == 0 ? _arg0 : _arg1);
+			from = at + 2;
+			arg++;
+		}
+		retVal.append(_message, from, _message.length());
+		if ( _data != null ) {
+			for ( int i = _data.position(); i < _data.limit(); i++ ) {
+				int b = _data.get(i) & 0xFF;
+				retVal.append(HEX_DIGITS[b >>> 4]).append(HEX_DIGITS[b & 0x0F]);
+			}
+		}
+		return retVal.toString();
+    }
+}
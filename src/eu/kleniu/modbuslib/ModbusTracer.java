@@ -0,0 +1,37 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+/**
+ * Receives trace events of the MODBUS clients. Set it with mbtcSetTracer.
+ * When no tracer is set, the client does not build any event at all.
+ *
+ * @author Robert K.
+ *
+ */
+public interface ModbusTracer {
+
+    /**
+     * Called in the thread doing the I/O. Event object and its data buffer are reused
+     * by the client and valid only until this method returns - call event.toString()
+     * or copy what you need, do not keep the reference.
+     *
+     * @param  event trace event, not formatted yet
+     *
+     */
+    void trace(ModbusTraceEvent event);
+}
@@ -0,0 +1,38 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+/**
+ * How a value wider than one register is laid out in consecutive registers.
+ * Letters name the bytes of a 32-bit value from the most significant one (A) to the least
+ * significant one (D), in the order they are sent: first register HiByte, first register
+ * LoByte, second register HiByte, ... 64-bit values follow the same pattern over 4 registers.
+ *
+ * @author Robert K.
+ *
+ */
+public enum ModbusWordOrder {
+
+    /** big endian - MODBUS byte order and the most significant register first */
+    ABCD,
+    /** the least significant register first, bytes in registers big endian (word swap) */
+    CDAB,
+    /** the most significant register first, bytes in registers swapped (byte swap) */
+    BADC,
+    /** little endian - the least significant register first and bytes swapped */
+    DCBA
+}
@@ -0,0 +1,94 @@
+/*
+   Copyright Robert Kleniewski
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package eu.kleniu.modbuslib;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free multi-producer single-consumer queue (linked list with a stub node).
+ * Any thread may offer, only one thread at a time may poll or peek.
+ * Producers never wait for each other: offer is one atomic swap of the tail.
+ *
+ * @author Robert K.
+ *
+ */
+final class MpscQueue<E> {
+
+    private static final class Node<E> {
+    	E value;
+    	volatile Node<E> next;
+
+    	Node(E value) {
+    		this.value = value;
+    	}
+    }
+
+    private final AtomicReference<Node<E>> _tail; // last node, producers swap it
+    private Node<E> _head;                        // stub node, consumer only
+
+    MpscQueue() {
+		_head = new Node<E>(null);
+		_tail = new AtomicReference<Node<E>>(_head);
+    }
+
+    // any thread
+    void offer(E value) {
+		Node<E> node = new Node<E>(value);
+		Node<E> prev = _tail.getAndSet(node);
+		// between the swap and this link the node is not visible to the consumer yet
+		prev.next = node;
+    }
+
+    /**
+     * Consumer only.
+     *
+     * @return first element or null if the queue is empty
+     */
+    E poll() {
+		Node<E> next = _head.next;
+
+		if ( next == null ) {
+			if ( _head == _tail.get() )
+				return null;
+			// producer has swapped the tail but not linked the node yet, it is a matter of nanoseconds
+			while ( ( next = _head.next ) == null )
+				Thread.yield();
+		}
+		E value = next.value;
+		next.value = null;
+		_head = next;
+		return value;
+    }
+
+    // consumer only. First element or null if the queue is empty
+    E peek() {
+		Node<E> next = _head.next;
+
+		if ( next == null ) {
+			if ( _head == _tail.get() )
+				return null;
+			while ( ( next = _head.next ) == null )
+				Thread.yield();
+		}
+		return next.value;
+    }
+
+    // consumer only
+    boolean isEmpty() {
+    	return _head == _tail.get();
+    }
+}
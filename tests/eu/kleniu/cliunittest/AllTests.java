@@ -6,8 +6,8 @@ import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
 @SuiteClasses({ HelpOptionModbusCliTest.class, ReadCoilsModbusCliTest.class, ReadRegistersModbusCliTest.class,
-		SetCoilModbusCliTest.class, ToggleCoilModbusCliTest.class, UnsetCoilModbusCliTest.class,
-		WriteRegisterModbusCliTest.class })
+		SetCoilModbusCliTest.class, SetCoilsRangeModbusCliTest.class, ToggleCoilModbusCliTest.class, UnsetCoilModbusCliTest.class,
+		WriteRegisterModbusCliTest.class, WriteRegisterBitsModbusCliTest.class })
 
 public class AllTests {
 
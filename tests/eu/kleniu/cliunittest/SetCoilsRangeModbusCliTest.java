@@ -0,0 +1,48 @@
+package eu.kleniu.cliunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.libunittest.ModbusTestServer;
+import eu.kleniu.modbuscli.MyModbusCli;
+
+public class SetCoilsRangeModbusCliTest {
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void test() {
+		String port = String.valueOf(server.getPort());
+		String[] setArgs = { "-ip", "127.0.0.1", "-p", port, "-s", "-cs", "2700:800" };
+		String[] unsetArgs = { "-ip", "127.0.0.1", "-p", port, "-s", "-cu", "2710:5" };
+
+		assertEquals(new MyModbusCli().myMain(setArgs), 0);
+		assertEquals(server.getRequestCount(), 1);
+		for (int i = 2700; i < 3500; i++)
+			assertTrue("Coil " + i + " must be set.", server.coils[i]);
+		assertFalse("Coil 3500 must not be set.", server.coils[3500]);
+
+		assertEquals(new MyModbusCli().myMain(unsetArgs), 0);
+		assertEquals(server.getRequestCount(), 2);
+		for (int i = 2710; i < 2715; i++)
+			assertFalse("Coil " + i + " must be unset.", server.coils[i]);
+		assertTrue("Coil 2715 must stay set.", server.coils[2715]);
+	}
+
+}
@@ -0,0 +1,44 @@
+package eu.kleniu.cliunittest;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.libunittest.ModbusTestServer;
+import eu.kleniu.modbuscli.MyModbusCli;
+
+public class WriteRegisterBitsModbusCliTest {
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		server.holdingRegisters[300] = 0x00F0;
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void test() {
+		String port = String.valueOf(server.getPort());
+		String[] args = { "-ip", "127.0.0.1", "-p", port, "-s", "-rb", "300:0=1,4=0,15=1" };
+		String[] badBitArgs = { "-ip", "127.0.0.1", "-p", port, "-s", "-rb", "300:16=1" };
+		String[] badValueArgs = { "-ip", "127.0.0.1", "-p", port, "-s", "-rb", "300:3=2" };
+
+		assertEquals(new MyModbusCli().myMain(args), 0);
+		assertEquals("All bits must be changed with one request.", server.getRequestCount(), 1);
+		assertEquals(server.holdingRegisters[300], 0x80E1);
+
+		assertEquals(new MyModbusCli().myMain(badBitArgs), 2);
+		assertEquals(new MyModbusCli().myMain(badValueArgs), 2);
+		assertEquals(server.getRequestCount(), 1);
+	}
+
+}
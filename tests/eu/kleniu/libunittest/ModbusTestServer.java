@@ -0,0 +1,531 @@
+package eu.kleniu.libunittest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Simple in-process MODBUS/TCP slave used by unit tests instead of a real PLC.
+ * One thread serves all connections through a Selector. Coils, discrete inputs,
+ * holding and input registers are plain arrays, so tests can prepare and check them directly.
+ */
+public class ModbusTestServer implements Runnable {
+
+	public final boolean[] coils            = new boolean[65536];
+	public final int[]     holdingRegisters = new int[65536];
+	public final boolean[] discreteInputs   = new boolean[65536];
+	public final int[]     inputRegisters   = new int[65536];
+	// holding registers which do not exist - reading or writing (0x10) any of them gives exception 02 (illegal data address)
+	public final BitSet    illegalRegisters = new BitSet(65536);
+	// coils which do not exist - writing (0x0F) any of them gives exception 02 (illegal data address)
+	public final BitSet    illegalCoils     = new BitSet(65536);
+	// file records which do not exist in any file - writing (0x15) any of them gives exception 02 (illegal data address)
+	public final BitSet    illegalRecords   = new BitSet(10000);
+	// bit a - holding registers a-1 and a are in different memory areas, reading both gives exception 02
+	public final BitSet    registerAreas    = new BitSet(65536);
+	// longer reads of holding registers give exception 03 (illegal data value)
+	public volatile int    maxReadRegisters = 125;
+	// holding registers the device cannot read - reading any of them gives exception 03 (illegal data value)
+	public final BitSet    badValueRegisters = new BitSet(65536);
+	// FIFO queue at fifoAddress for read FIFO queue (0x18), at most 31 values at a time. Reading does not
+	// remove values (MODBUS specification) unless fifoRemoveOnRead is set. Writing (0x06) n to holding
+	// register fifoAckRegister removes n values
+	public final List<Integer> fifoQueue    = Collections.synchronizedList(new ArrayList<Integer>());
+	public volatile int    fifoAddress      = 0;
+	public volatile boolean fifoRemoveOnRead = false;
+	public volatile int    fifoAckRegister  = -1;
+	// read device identification (0x2B / 0x0E) objects 0..6, null objects are not sent
+	public final String[]  deviceIdObjects  = { "Kleniu", "MBSIM", "1.0", null, "Simulator", null, null };
+	public volatile int    deviceIdObjectsPerResponse = 7;
+	public volatile boolean deviceIdBasicOnly = false;
+	// file records (0x14, 0x15), 10000 records per file
+	private final Map<Integer, int[]> files = new ConcurrentHashMap<Integer, int[]>();
+
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+	private Thread thread;
+	private volatile boolean running;
+	private volatile boolean reorderResponses = false;
+	private volatile boolean fragmentResponses = false;
+	private volatile int requestCount = 0;
+	private volatile int connectionCount = 0;
+	private volatile int delayedResponses = 0;
+	private volatile int responseDelay = 0;
+	private volatile int garbageLength = 0;
+
+	/**
+	 * records of the file, created with all records 0 on first use
+	 */
+	public int[] file(int fileNumber) {
+		int[] records = files.get(fileNumber);
+		if (records == null) {
+			files.putIfAbsent(fileNumber, new int[10000]);
+			records = files.get(fileNumber);
+		}
+		return records;
+	}
+
+	private static class Connection {
+		ByteBuffer in  = ByteBuffer.allocate(8192);
+		ByteBuffer out = ByteBuffer.allocate(8192);
+		List<byte[]> delayed = new ArrayList<byte[]>();
+		List<Long> delayedUntil = new ArrayList<Long>();
+	}
+
+	public ModbusTestServer() throws IOException {
+		this(0);
+	}
+
+	/**
+	 * @param port TCP port to listen on, 0 for any free port
+	 */
+	public ModbusTestServer(int port) throws IOException {
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		serverChannel.bind(new InetSocketAddress("127.0.0.1", port), 1024);
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * when set, all requests received in one read are answered in reverse order
+	 */
+	public void setReorderResponses(boolean reorder) {
+		reorderResponses = reorder;
+	}
+
+	/**
+	 * when set, responses are written in small pieces with pauses, so the client
+	 * receives frames split over many TCP segments
+	 */
+	public void setFragmentResponses(boolean fragment) {
+		fragmentResponses = fragment;
+	}
+
+	/**
+	 * next count responses are sent ms milliseconds later than they should be
+	 */
+	public void delayResponses(int count, int ms) {
+		responseDelay = ms;
+		delayedResponses = count;
+	}
+
+	/**
+	 * when set, each response is preceded by given number of bytes which are not a MODBUS frame
+	 */
+	public void setGarbageBeforeResponses(int length) {
+		garbageLength = length;
+	}
+
+	public int getRequestCount() {
+		return requestCount;
+	}
+
+	/**
+	 * number of connections accepted so far
+	 */
+	public int getConnectionCount() {
+		return connectionCount;
+	}
+
+	public void start() {
+		running = true;
+		thread = new Thread(this, "ModbusTestServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() {
+		running = false;
+		selector.wakeup();
+		try {
+			thread.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			for (SelectionKey key : selector.keys())
+				key.channel().close();
+			selector.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				selector.select(10);
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						_accept();
+					else if (key.isReadable())
+						_read(key);
+					if (key.isValid() && key.isWritable())
+						_write(key);
+				}
+				_sendDelayed();
+			} catch (IOException e) {
+				// keep serving other connections
+			}
+		}
+	}
+
+	private void _accept() throws IOException {
+		SocketChannel ch;
+		while ((ch = serverChannel.accept()) != null) {
+			connectionCount++;
+			ch.configureBlocking(false);
+			ch.socket().setTcpNoDelay(true);
+			ch.register(selector, SelectionKey.OP_READ, new Connection());
+		}
+	}
+
+	private void _close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	private void _read(SelectionKey key) {
+		SocketChannel ch = (SocketChannel) key.channel();
+		Connection con = (Connection) key.attachment();
+		int n;
+		try {
+			n = ch.read(con.in);
+		} catch (IOException e) {
+			n = -1;
+		}
+		if (n < 0) {
+			_close(key);
+			return;
+		}
+
+		List<byte[]> responses = new ArrayList<byte[]>();
+		con.in.flip();
+		while (con.in.remaining() >= 7) {
+			int pos = con.in.position();
+			int len = con.in.getShort(pos + 4) & 0xFFFF;
+			if (con.in.remaining() < 6 + len)
+				break;
+			byte[] adu = new byte[6 + len];
+			con.in.get(adu);
+			byte[] rsp = _process(adu);
+			if (rsp != null)
+				responses.add(rsp);
+		}
+		con.in.compact();
+
+		if (reorderResponses)
+			Collections.reverse(responses);
+		for (byte[] rsp : responses) {
+			if (delayedResponses > 0) {
+				delayedResponses--;
+				con.delayed.add(rsp);
+				con.delayedUntil.add(System.currentTimeMillis() + responseDelay);
+				continue;
+			}
+			for (int i = 0; i < garbageLength; i++)
+				con.out.put((byte) 0x55);
+			con.out.put(rsp);
+		}
+		_write(key);
+	}
+
+	private void _sendDelayed() {
+		long now = System.currentTimeMillis();
+		for (SelectionKey key : selector.keys()) {
+			if (!key.isValid() || !(key.attachment() instanceof Connection))
+				continue;
+			Connection con = (Connection) key.attachment();
+			boolean sent = false;
+			while (!con.delayed.isEmpty() && con.delayedUntil.get(0) <= now) {
+				con.out.put(con.delayed.remove(0));
+				con.delayedUntil.remove(0);
+				sent = true;
+			}
+			if (sent)
+				_write(key);
+		}
+	}
+
+	private void _write(SelectionKey key) {
+		SocketChannel ch = (SocketChannel) key.channel();
+		Connection con = (Connection) key.attachment();
+		con.out.flip();
+		try {
+			if (fragmentResponses) {
+				int end = con.out.limit();
+				while (con.out.position() < end) {
+					con.out.limit(Math.min(end, con.out.position() + 5));
+					ch.write(con.out);
+					con.out.limit(end);
+					Thread.sleep(1);
+				}
+			}
+			else {
+				ch.write(con.out);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			_close(key);
+			return;
+		}
+		con.out.compact();
+		if (con.out.position() > 0)
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		else
+			key.interestOps(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * builds response ADU for request ADU
+	 */
+	private byte[] _process(byte[] adu) {
+		ByteBuffer req = ByteBuffer.wrap(adu);
+		ByteBuffer pdu = ByteBuffer.allocate(260);
+		int function = req.get(7) & 0xFF;
+		requestCount++;
+
+		pdu.put((byte) function);
+		switch (function) {
+		case 0x01:
+		case 0x02: {
+			boolean[] bits = (function == 0x01) ? coils : discreteInputs;
+			int start = req.getShort(8) & 0xFFFF;
+			int qty = req.getShort(10) & 0xFFFF;
+			if (qty < 1 || qty > 2000 || start + qty > 65536)
+				return _exception(adu, function, 2);
+			int bytes = (qty + 7) / 8;
+			pdu.put((byte) bytes);
+			for (int b = 0; b < bytes; b++) {
+				int v = 0;
+				for (int j = 0; j < 8 && b * 8 + j < qty; j++)
+					if (bits[start + b * 8 + j])
+						v |= 1 << j;
+				pdu.put((byte) v);
+			}
+			break;
+		}
+		case 0x03:
+		case 0x04: {
+			int[] words = (function == 0x03) ? holdingRegisters : inputRegisters;
+			int start = req.getShort(8) & 0xFFFF;
+			int qty = req.getShort(10) & 0xFFFF;
+			if (qty < 1 || qty > 125 || start + qty > 65536)
+				return _exception(adu, function, 2);
+			if (function == 0x03 && illegalRegisters.nextSetBit(start) >= 0 && illegalRegisters.nextSetBit(start) < start + qty)
+				return _exception(adu, function, 2);
+			if (function == 0x03 && registerAreas.nextSetBit(start + 1) >= 0 && registerAreas.nextSetBit(start + 1) < start + qty)
+				return _exception(adu, function, 2);
+			if (function == 0x03 && qty > maxReadRegisters)
+				return _exception(adu, function, 3);
+			if (function == 0x03 && badValueRegisters.nextSetBit(start) >= 0 && badValueRegisters.nextSetBit(start) < start + qty)
+				return _exception(adu, function, 3);
+			pdu.put((byte) (qty * 2));
+			for (int i = 0; i < qty; i++)
+				pdu.putShort((short) words[start + i]);
+			break;
+		}
+		case 0x05: {
+			int address = req.getShort(8) & 0xFFFF;
+			coils[address] = (req.get(10) & 0xFF) == 0xFF;
+			pdu.put(adu, 8, 4);
+			break;
+		}
+		case 0x06: {
+			int address = req.getShort(8) & 0xFFFF;
+			holdingRegisters[address] = req.getShort(10) & 0xFFFF;
+			if (address == fifoAckRegister)
+				synchronized (fifoQueue) {
+					fifoQueue.subList(0, Math.min(fifoQueue.size(), holdingRegisters[address])).clear();
+				}
+			pdu.put(adu, 8, 4);
+			break;
+		}
+		case 0x0F: {
+			int start = req.getShort(8) & 0xFFFF;
+			int qty = req.getShort(10) & 0xFFFF;
+			int bytes = req.get(12) & 0xFF;
+			if (qty < 1 || qty > 1968 || bytes != (qty + 7) / 8 || adu.length < 13 + bytes)
+				return _exception(adu, function, 3);
+			if (start + qty > 65536 || (illegalCoils.nextSetBit(start) >= 0 && illegalCoils.nextSetBit(start) < start + qty))
+				return _exception(adu, function, 2);
+			for (int i = 0; i < qty; i++)
+				coils[start + i] = (adu[13 + i / 8] & (1 << (i % 8))) != 0;
+			pdu.put(adu, 8, 4);
+			break;
+		}
+		case 0x10: {
+			int start = req.getShort(8) & 0xFFFF;
+			int qty = req.getShort(10) & 0xFFFF;
+			int bytes = req.get(12) & 0xFF;
+			if (qty < 1 || qty > 123 || bytes != qty * 2 || adu.length < 13 + bytes)
+				return _exception(adu, function, 3);
+			if (start + qty > 65536 || (illegalRegisters.nextSetBit(start) >= 0 && illegalRegisters.nextSetBit(start) < start + qty))
+				return _exception(adu, function, 2);
+			for (int i = 0; i < qty; i++)
+				holdingRegisters[start + i] = req.getShort(13 + 2 * i) & 0xFFFF;
+			pdu.put(adu, 8, 4);
+			break;
+		}
+		case 0x08: {
+			// only return query data (sub-function 0) is supported - echo everything after function code
+			if (req.getShort(8) != 0)
+				return _exception(adu, function, 1);
+			pdu.put(adu, 8, (req.getShort(4) & 0xFFFF) - 2);
+			break;
+		}
+		case 0x16: {
+			int address = req.getShort(8) & 0xFFFF;
+			int andMask = req.getShort(10) & 0xFFFF;
+			int orMask = req.getShort(12) & 0xFFFF;
+			holdingRegisters[address] = (holdingRegisters[address] & andMask) | (orMask & ~andMask & 0xFFFF);
+			pdu.put(adu, 8, 6);
+			break;
+		}
+		case 0x18: {
+			if ((req.getShort(8) & 0xFFFF) != fifoAddress)
+				return _exception(adu, function, 2);
+			synchronized (fifoQueue) {
+				int count = Math.min(fifoQueue.size(), 31);
+				pdu.putShort((short) (2 + 2 * count));
+				pdu.putShort((short) count);
+				for (int i = 0; i < count; i++)
+					pdu.putShort((short) (int) fifoQueue.get(i));
+				if (fifoRemoveOnRead)
+					fifoQueue.subList(0, count).clear();
+			}
+			break;
+		}
+		case 0x2B: {
+			int code = req.get(9) & 0xFF;
+			int objectId = req.get(10) & 0xFF;
+			int last = (code == 1) ? 2 : 6;
+			if ((req.get(8) & 0xFF) != 0x0E)
+				return _exception(adu, function, 1);
+			if (code < 1 || code > 2 || (code == 2 && deviceIdBasicOnly) || objectId > last)
+				return _exception(adu, function, 3);
+			pdu.put((byte) 0x0E).put((byte) code).put((byte) (deviceIdBasicOnly ? 0x01 : 0x02));
+			int moreFollowsPos = pdu.position();
+			pdu.put((byte) 0).put((byte) 0).put((byte) 0);
+			int count = 0;
+			for (int id = objectId; id <= last; id++) {
+				if (deviceIdObjects[id] == null)
+					continue;
+				if (count == deviceIdObjectsPerResponse) {
+					pdu.put(moreFollowsPos, (byte) 0xFF);
+					pdu.put(moreFollowsPos + 1, (byte) id);
+					break;
+				}
+				byte[] value = deviceIdObjects[id].getBytes();
+				pdu.put((byte) id).put((byte) value.length).put(value);
+				count++;
+			}
+			pdu.put(moreFollowsPos + 2, (byte) count);
+			break;
+		}
+		case 0x14: {
+			int bytes = req.get(8) & 0xFF;
+			if (bytes < 7 || bytes > 0xF5 || bytes % 7 != 0)
+				return _exception(adu, function, 3);
+			pdu.put((byte) 0);
+			for (int pos = 9; pos < 9 + bytes; pos += 7) {
+				int fileNumber = req.getShort(pos + 1) & 0xFFFF;
+				int record = req.getShort(pos + 3) & 0xFFFF;
+				int length = req.getShort(pos + 5) & 0xFFFF;
+				if (req.get(pos) != 6 || record + length > 10000)
+					return _exception(adu, function, 2);
+				if (pdu.position() - 2 + 2 + 2 * length > 0xF5)   // response data length
+					return _exception(adu, function, 3);
+				pdu.put((byte) (1 + 2 * length)).put((byte) 6);
+				for (int i = 0; i < length; i++)
+					pdu.putShort((short) file(fileNumber)[record + i]);
+			}
+			pdu.put(1, (byte) (pdu.position() - 2));
+			break;
+		}
+		case 0x15: {
+			int bytes = req.get(8) & 0xFF;
+			for (int pos = 9; pos < 9 + bytes;) {
+				int fileNumber = req.getShort(pos + 1) & 0xFFFF;
+				int record = req.getShort(pos + 3) & 0xFFFF;
+				int length = req.getShort(pos + 5) & 0xFFFF;
+				int illegal = illegalRecords.nextSetBit(record);
+				if (req.get(pos) != 6 || record + length > 10000 || illegal >= 0 && illegal < record + length)
+					return _exception(adu, function, 2);
+				for (int i = 0; i < length; i++)
+					file(fileNumber)[record + i] = req.getShort(pos + 7 + 2 * i) & 0xFFFF;
+				pos += 7 + 2 * length;
+			}
+			pdu.put(adu, 8, 1 + bytes);
+			break;
+		}
+		case 0x17: {
+			int readStart = req.getShort(8) & 0xFFFF;
+			int readQty = req.getShort(10) & 0xFFFF;
+			int writeStart = req.getShort(12) & 0xFFFF;
+			int writeQty = req.getShort(14) & 0xFFFF;
+			int bytes = req.get(16) & 0xFF;
+			if (readQty < 1 || readQty > 125 || writeQty < 1 || writeQty > 121 || bytes != writeQty * 2 || adu.length < 17 + bytes)
+				return _exception(adu, function, 3);
+			if (readStart + readQty > 65536 || writeStart + writeQty > 65536)
+				return _exception(adu, function, 2);
+			// write is done before read
+			for (int i = 0; i < writeQty; i++)
+				holdingRegisters[writeStart + i] = req.getShort(17 + 2 * i) & 0xFFFF;
+			pdu.put((byte) (readQty * 2));
+			for (int i = 0; i < readQty; i++)
+				pdu.putShort((short) holdingRegisters[readStart + i]);
+			break;
+		}
+		default:
+			return _exception(adu, function, 1);
+		}
+		return _adu(adu, pdu);
+	}
+
+	private byte[] _exception(byte[] adu, int function, int code) {
+		ByteBuffer pdu = ByteBuffer.allocate(2);
+		pdu.put((byte) (function | 0x80));
+		pdu.put((byte) code);
+		return _adu(adu, pdu);
+	}
+
+	private byte[] _adu(byte[] requestADU, ByteBuffer pdu) {
+		pdu.flip();
+		ByteBuffer rsp = ByteBuffer.allocate(7 + pdu.remaining());
+		rsp.put(requestADU, 0, 4); // transaction ID and protocol ID
+		rsp.putShort((short) (pdu.remaining() + 1));
+		rsp.put(requestADU[6]); // unit ID
+		rsp.put(pdu);
+		return rsp.array();
+	}
+}
@@ -0,0 +1,243 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusCapabilityCache;
+import eu.kleniu.modbuslib.ModbusDataType;
+import eu.kleniu.modbuslib.ModbusDecoder;
+import eu.kleniu.modbuslib.ModbusReadPlan;
+import eu.kleniu.modbuslib.ModbusTag;
+import eu.kleniu.modbuslib.ModbusTcpClient;
+import eu.kleniu.modbuslib.ModbusTcpClientPool;
+import eu.kleniu.modbuslib.ModbusWordOrder;
+
+public class TestModbusDecoder {
+
+	static final ModbusWordOrder[] ORDERS = { ModbusWordOrder.ABCD, ModbusWordOrder.CDAB, ModbusWordOrder.BADC, ModbusWordOrder.DCBA };
+	// 0x41424344 and 0x0102030405060708 as sent in each of ORDERS
+	static final int[][] WORDS32 = { { 0x4142, 0x4344 }, { 0x4344, 0x4142 }, { 0x4241, 0x4443 }, { 0x4443, 0x4241 } };
+	static final int[][] WORDS64 = {
+			{ 0x0102, 0x0304, 0x0506, 0x0708 }, { 0x0708, 0x0506, 0x0304, 0x0102 },
+			{ 0x0201, 0x0403, 0x0605, 0x0807 }, { 0x0807, 0x0605, 0x0403, 0x0201 } };
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	// FLOAT32 value i + 0.5 from address, in given order, as the device would have it
+	void putFloats(int[] registers, int address, int count, int order) {
+		for (int i = 0; i < count; i++) {
+			int bits = Float.floatToIntBits(i + 0.5f);
+			int hi = bits >>> 16;
+			int lo = bits & 0xFFFF;
+			if (order >= 2) {
+				hi = ((hi & 0xFF) << 8) | (hi >>> 8);
+				lo = ((lo & 0xFF) << 8) | (lo >>> 8);
+			}
+			registers[address + 2 * i] = (order == 1 || order == 3) ? lo : hi;
+			registers[address + 2 * i + 1] = (order == 1 || order == 3) ? hi : lo;
+		}
+	}
+
+	@Test
+	public void test001WordOrders() {
+		for (int o = 0; o < ORDERS.length; o++) {
+			assertEquals("Bad INT32 in " + ORDERS[o], ModbusDecoder.int32(WORDS32[o], 0, ORDERS[o]), 0x41424344);
+			assertEquals("Bad FLOAT32 in " + ORDERS[o], ModbusDecoder.float32(WORDS32[o], 0, ORDERS[o]), Float.intBitsToFloat(0x41424344), 0);
+			assertEquals("Bad INT64 in " + ORDERS[o], ModbusDecoder.int64(WORDS64[o], 0, ORDERS[o]), 0x0102030405060708L);
+			assertEquals("Bad FLOAT64 in " + ORDERS[o], ModbusDecoder.float64(WORDS64[o], 0, ORDERS[o]), Double.longBitsToDouble(0x0102030405060708L), 0);
+		}
+		assertEquals("Null order is ABCD.", ModbusDecoder.int32(WORDS32[0], 0, null), 0x41424344);
+	}
+
+	@Test
+	public void test002SignsAndStrings() {
+		// registers are stored signed by the read functions
+		int[] words = { -1, -2, 0, (short)0x8000, 0x4142, 0x4300, 0x4444 };
+
+		assertEquals("Bad UINT16.", ModbusDecoder.uint16(words, 0), 0xFFFF);
+		assertEquals("Bad INT16.", ModbusDecoder.longValue(words, 0, ModbusDataType.INT16, null), -1);
+		assertEquals("Bad INT32.", ModbusDecoder.int32(words, 0, null), -2);
+		assertEquals("Bad UINT32.", ModbusDecoder.uint32(words, 0, null), 0xFFFFFFFEL);
+		assertEquals("Bad UINT32 with word swap.", ModbusDecoder.uint32(words, 2, ModbusWordOrder.CDAB), 0x80000000L);
+		assertEquals("Bad FLOAT32 as long.", ModbusDecoder.longValue(new int[] { 0x4148, 0 }, 0, ModbusDataType.FLOAT32, null), 12);
+		assertEquals("Bad UINT32 as double.", ModbusDecoder.doubleValue(words, 0, ModbusDataType.UINT32, null), 4294967294.0, 0);
+		assertEquals("String ends at zero.", ModbusDecoder.string(words, 4, 3), "ABC");
+		assertEquals("Bad appended string.", ModbusDecoder.string(words, 6, 1, new StringBuilder("x")).toString(), "xDD");
+	}
+
+	@Test
+	public void test003ReadFloats() {
+		ModbusTcpClient myClient = new MyClient(0, "DECODE003");
+		float[] values = new float[205];
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		for (int o = 0; o < ORDERS.length; o++) {
+			putFloats(server.holdingRegisters, 1000, 200, o);
+			int before = server.getRequestCount();
+			assertEquals("I cannot read floats in " + ORDERS[o], myClient.mbtcReadFloats(ModbusTag.HOLDING_REGISTERS, 1000, 200, 0, ORDERS[o], values, 5), ModbusTcpClient.RET_OK);
+			// 62 floats in one request
+			assertEquals("Bad number of requests.", server.getRequestCount() - before, 4);
+			for (int i = 0; i < 200; i++)
+				assertEquals("Bad float " + i + " in " + ORDERS[o], values[5 + i], i + 0.5f, 0);
+		}
+
+		putFloats(server.inputRegisters, 7, 3, 1);
+		assertEquals("I cannot read input floats.", myClient.mbtcReadFloats(ModbusTag.INPUT_REGISTERS, 7, 3, 0, ModbusWordOrder.CDAB, values, 0), ModbusTcpClient.RET_OK);
+		assertEquals("Bad input float.", values[2], 2.5f, 0);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test004ReadLongsAndDoubles() {
+		ModbusTcpClient myClient = new MyClient(0, "DECODE004");
+		long[] longs = new long[2];
+		double[] doubles = new double[2];
+
+		for (int i = 0; i < 4; i++) {
+			server.holdingRegisters[100 + i] = WORDS64[3][i];
+			server.holdingRegisters[104 + i] = WORDS64[1][i];
+		}
+		server.inputRegisters[10] = 0xFFFF;
+		server.inputRegisters[11] = 0xFFFE;
+		server.inputRegisters[12] = 0x8000;
+		server.inputRegisters[13] = 0x0000;
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("I cannot read INT64.", myClient.mbtcReadLongs(ModbusTag.HOLDING_REGISTERS, 100, 1, 0, ModbusDataType.INT64, ModbusWordOrder.DCBA, longs, 0), ModbusTcpClient.RET_OK);
+		assertEquals("Bad INT64.", longs[0], 0x0102030405060708L);
+		assertEquals("I cannot read FLOAT64.", myClient.mbtcReadDoubles(ModbusTag.HOLDING_REGISTERS, 104, 1, 0, ModbusDataType.FLOAT64, ModbusWordOrder.CDAB, doubles, 1), ModbusTcpClient.RET_OK);
+		assertEquals("Bad FLOAT64.", doubles[1], Double.longBitsToDouble(0x0102030405060708L), 0);
+		assertEquals("I cannot read UINT32.", myClient.mbtcReadLongs(ModbusTag.INPUT_REGISTERS, 10, 2, 0, ModbusDataType.UINT32, null, longs, 0), ModbusTcpClient.RET_OK);
+		assertEquals("Bad UINT32.", longs[0], 0xFFFFFFFEL);
+		assertEquals("Bad UINT32.", longs[1], 0x80000000L);
+		assertEquals("I cannot read INT16.", myClient.mbtcReadDoubles(ModbusTag.INPUT_REGISTERS, 10, 2, 0, ModbusDataType.INT16, null, doubles, 0), ModbusTcpClient.RET_OK);
+		assertEquals("Bad INT16.", doubles[0], -1, 0);
+
+		assertEquals("Coils have no floats.", myClient.mbtcReadFloats(ModbusTag.COILS, 0, 1, 0, null, new float[1], 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("String is not a number.", myClient.mbtcReadLongs(ModbusTag.HOLDING_REGISTERS, 0, 1, 0, ModbusDataType.STRING, null, longs, 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Buffer is too small.", myClient.mbtcReadLongs(ModbusTag.HOLDING_REGISTERS, 0, 2, 0, ModbusDataType.INT32, null, longs, 1), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Registers beyond 65535.", myClient.mbtcReadDoubles(ModbusTag.HOLDING_REGISTERS, 65533, 1, 0, ModbusDataType.INT64, null, doubles, 0), ModbusTcpClient.RET_ERRRAN);
+
+		server.illegalRegisters.set(100);
+		assertEquals("Exception response expected.", myClient.mbtcReadLongs(ModbusTag.HOLDING_REGISTERS, 100, 1, 0, ModbusDataType.INT64, null, longs, 0), ModbusTcpClient.RET_ERRXRE);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test005PlanValues() throws IOException {
+		ModbusReadPlan plan = TestModbusReadPlan.load(TestModbusReadPlan.CSV).compile();
+		ModbusTcpClient myClient = new MyClient(0, "DECODE005");
+		boolean[] bits = new boolean[plan.bitBufferLength()];
+		int[] words = new int[plan.wordBufferLength()];
+		double[] values = new double[plan.tagCount()];
+
+		putFloats(server.holdingRegisters, 98, 2, 1); // pump1.speed = 1.5 in CDAB
+		putFloats(server.holdingRegisters, 106, 3, 0); // pump2.speed = 2.5
+		server.holdingRegisters[103] = 0xFFFF;
+		server.holdingRegisters[104] = 0xFFFF;
+		server.holdingRegisters[200] = 0x5031;
+		server.holdingRegisters[201] = 0x2D41;
+		server.coils[11] = true;
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("I cannot read the plan.", myClient.mbtcReadPlan(plan, 0, bits, words), ModbusTcpClient.RET_OK);
+
+		assertEquals("Bad pump1.speed.", plan.doubleValue(plan.indexOf("pump1.speed"), words), 1.5, 0);
+		assertEquals("Bad pump1.counter.", plan.longValue(plan.indexOf("pump1.counter"), words), 0xFFFFFFFFL);
+		assertEquals("Bad pump1.name.", plan.stringValue(plan.indexOf("pump1.name"), words), "P1-A");
+
+		plan.decode(bits, words, values);
+		assertEquals("Bad pump2.speed.", values[plan.indexOf("pump2.speed")], 2.5, 0);
+		assertEquals("Bad pump2.running.", values[plan.indexOf("pump2.running")], 1, 0);
+		assertEquals("Bad pump1.running.", values[plan.indexOf("pump1.running")], 0, 0);
+		assertTrue("String is not a number.", Double.isNaN(values[plan.indexOf("pump1.name")]));
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test006TypedReadsDoNotAllocate() throws IOException {
+		com.sun.management.ThreadMXBean amx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		ModbusReadPlan plan = TestModbusReadPlan.load(TestModbusReadPlan.CSV).compile();
+		ModbusTcpClient myClient = new MyClient(0, "DECODE006");
+		boolean[] bits = new boolean[plan.bitBufferLength()];
+		int[] words = new int[plan.wordBufferLength()];
+		double[] values = new double[plan.tagCount()];
+		float[] floats = new float[500];
+		long[] longs = new long[100];
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		for (int i = 0; i < 200; i++) {
+			myClient.mbtcReadFloats(ModbusTag.HOLDING_REGISTERS, 0, 500, 0, ModbusWordOrder.CDAB, floats, 0);
+			myClient.mbtcReadLongs(ModbusTag.INPUT_REGISTERS, 0, 100, 0, ModbusDataType.INT64, ModbusWordOrder.DCBA, longs, 0);
+			myClient.mbtcReadPlan(plan, 0, bits, words);
+			plan.decode(bits, words, values);
+		}
+		long before = amx.getThreadAllocatedBytes(Thread.currentThread().getId());
+		for (int i = 0; i < 200; i++) {
+			myClient.mbtcReadFloats(ModbusTag.HOLDING_REGISTERS, 0, 500, 0, ModbusWordOrder.CDAB, floats, 0);
+			myClient.mbtcReadLongs(ModbusTag.INPUT_REGISTERS, 0, 100, 0, ModbusDataType.INT64, ModbusWordOrder.DCBA, longs, 0);
+			myClient.mbtcReadPlan(plan, 0, bits, words);
+			plan.decode(bits, words, values);
+		}
+		long after = amx.getThreadAllocatedBytes(Thread.currentThread().getId());
+		assertTrue("Typed reads allocated " + (after - before) + " bytes", after - before < 5000);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test007Pool() {
+		ModbusTcpClientPool myPool = new TestModbusTcpClientPool.MyPool(2, 0, "DECODE007");
+		float[] floats = new float[10];
+		long[] longs = new long[1];
+		double[] doubles = new double[1];
+
+		putFloats(server.holdingRegisters, 50, 10, 2);
+		myPool.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("I cannot read floats.", myPool.mbtcReadFloats(ModbusTag.HOLDING_REGISTERS, 50, 10, 0, ModbusWordOrder.BADC, floats, 0), ModbusTcpClient.RET_OK);
+		assertEquals("Bad float.", floats[9], 9.5f, 0);
+		assertEquals("I cannot read longs.", myPool.mbtcReadLongs(ModbusTag.HOLDING_REGISTERS, 50, 1, 0, ModbusDataType.UINT16, null, longs, 0), ModbusTcpClient.RET_OK);
+		assertEquals("Bad UINT16.", longs[0], 0x003F);
+		assertEquals("I cannot read doubles.", myPool.mbtcReadDoubles(ModbusTag.HOLDING_REGISTERS, 52, 1, 0, ModbusDataType.FLOAT32, ModbusWordOrder.BADC, doubles, 0), ModbusTcpClient.RET_OK);
+		assertEquals("Bad double.", doubles[0], 1.5, 0);
+		myPool.mbtcDisconnect();
+	}
+
+	@Test
+	public void test008TypedReadsFollowDeviceCapabilities() {
+		ModbusTcpClient myClient = new MyClient(0, "DECODE008");
+		float[] values = new float[200];
+
+		myClient.mbtcSetCapabilityCache(new ModbusCapabilityCache());
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		putFloats(server.holdingRegisters, 1000, 200, 0);
+		server.maxReadRegisters = 60;
+		myClient.mbtcGetCapabilities(0).setMaxReadRegisters(60);
+		assertEquals("I cannot read floats.", myClient.mbtcReadFloats(ModbusTag.HOLDING_REGISTERS, 1000, 200, 0, ORDERS[0], values, 0), ModbusTcpClient.RET_OK);
+		// 30 floats in one request
+		assertEquals("Bad number of requests.", server.getRequestCount(), 7);
+		for (int i = 0; i < 200; i++)
+			assertEquals("Bad float " + i, values[i], i + 0.5f, 0);
+
+		myClient.mbtcGetCapabilities(0).setMaxReadRegisters(3);
+		assertEquals("INT64 does not fit in one request.", myClient.mbtcReadLongs(ModbusTag.HOLDING_REGISTERS, 0, 1, 0, ModbusDataType.INT64, null, new long[1], 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Nothing must be sent.", server.getRequestCount(), 7);
+		myClient.mbtcDisconnect();
+	}
+}
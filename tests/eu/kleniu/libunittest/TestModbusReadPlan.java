@@ -0,0 +1,307 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusCapabilityCache;
+import eu.kleniu.modbuslib.ModbusDataType;
+import eu.kleniu.modbuslib.ModbusDeviceCapabilities;
+import eu.kleniu.modbuslib.ModbusReadCost;
+import eu.kleniu.modbuslib.ModbusReadPlan;
+import eu.kleniu.modbuslib.ModbusTag;
+import eu.kleniu.modbuslib.ModbusTagDatabase;
+import eu.kleniu.modbuslib.ModbusTcpClient;
+import eu.kleniu.modbuslib.ModbusWordOrder;
+
+public class TestModbusReadPlan {
+
+	static final String CSV =
+			"# pump station\n" +
+			"name, table, address, type, word order, registers\n" +
+			"pump1.running, coil, 10\n" +
+			"pump2.running, 0x, 11\n" +
+			"pump1.alarm, discrete, 500\n" +
+			"\n" +
+			"pump1.speed, holding, 100, FLOAT32, CDAB\n" +
+			"pump1.mode, holding, 102\n" +
+			"pump1.counter, 4x, 103, uint32\n" +
+			"pump1.name, holding, 200, STRING, , 4\n" +
+			"pump2.speed, holding, 110, FLOAT32\n" +
+			"temperature, input, 7, INT16\n";
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	static ModbusTagDatabase load(String csv) throws IOException {
+		return ModbusTagDatabase.load(new StringReader(csv));
+	}
+
+	// one INT16 tag every 10 registers from 1000 to 1490
+	static ModbusTagDatabase sparse() {
+		ModbusTagDatabase database = new ModbusTagDatabase();
+		for (int i = 0; i < 50; i++)
+			database.add(new ModbusTag("t" + i, ModbusTag.HOLDING_REGISTERS, 1000 + 10 * i, ModbusDataType.INT16, null));
+		return database;
+	}
+
+	@Test
+	public void test001LoadCsv() throws IOException {
+		ModbusTagDatabase database = load(CSV);
+
+		assertEquals("Bad number of tags.", database.size(), 9);
+		ModbusTag speed = database.find("pump1.speed");
+		assertEquals("Bad table.", speed.table(), ModbusTag.HOLDING_REGISTERS);
+		assertEquals("Bad address.", speed.address(), 100);
+		assertEquals("Bad type.", speed.type(), ModbusDataType.FLOAT32);
+		assertEquals("Bad word order.", speed.wordOrder(), ModbusWordOrder.CDAB);
+		assertEquals("Bad quantity.", speed.quantity(), 2);
+		assertEquals("Default type of registers is INT16.", database.find("pump1.mode").type(), ModbusDataType.INT16);
+		assertEquals("Default word order is ABCD.", database.find("pump1.counter").wordOrder(), ModbusWordOrder.ABCD);
+		assertEquals("Default type of coils is BOOL.", database.find("pump2.running").type(), ModbusDataType.BOOL);
+		assertEquals("Bad STRING length.", database.find("pump1.name").quantity(), 4);
+		assertEquals("Bad table of 1x.", database.find("pump1.alarm").table(), ModbusTag.DISCRETE_INPUTS);
+		assertEquals("Bad table of input register.", database.find("temperature").table(), ModbusTag.INPUT_REGISTERS);
+		assertNull("Unknown tag must not be found.", database.find("pump3.speed"));
+	}
+
+	@Test
+	public void test002BadCsvTellsTheLine() {
+		String[] bad = {
+				"a, holding, 1\nb, holding, x\n",
+				"a, holding, 1\nb, coil, 2, FLOAT32\n",
+				"a, holding, 1\nb, output, 2\n",
+				"a, holding, 1\nb, holding, 65535, INT32\n",
+				"a, holding, 1\nb, holding, 2, STRING\n",
+				"a, holding, 1\na, holding, 2\n" };
+
+		for (String csv : bad) {
+			try {
+				load(csv);
+				fail("Bad CSV was loaded: " + csv);
+			} catch (IOException ex) {
+				assertTrue("Line number is missing: " + ex.getMessage(), ex.getMessage().startsWith("line 2: "));
+			}
+		}
+	}
+
+	@Test
+	public void test003CompileMergesAdjacentTags() throws IOException {
+		ModbusReadPlan plan = load(CSV).compile();
+
+		// coils 10-11, discrete input 500, holding 100-104, 110-111, 200-203, input 7
+		assertEquals("Bad number of requests.", plan.requestCount(), 6);
+		assertEquals("Bad function code.", plan.functionCode(2), ModbusTag.HOLDING_REGISTERS);
+		assertEquals("Bad start address.", plan.startAddress(2), 100);
+		assertEquals("Bad quantity.", plan.quantity(2), 5);
+		assertEquals("Bad start address of a gap.", plan.startAddress(3), 110);
+		assertEquals("Bad bit buffer length.", plan.bitBufferLength(), 3);
+		assertEquals("Bad word buffer length.", plan.wordBufferLength(), 12);
+
+		assertEquals("Bad offset of pump2.running.", plan.offset(plan.indexOf("pump2.running")), 1);
+		assertEquals("Bad offset of pump1.alarm.", plan.offset(plan.indexOf("pump1.alarm")), 2);
+		assertEquals("Bad offset of pump1.counter.", plan.offset(plan.indexOf("pump1.counter")), 3);
+		assertEquals("Bad offset of pump2.speed.", plan.offset(plan.indexOf("pump2.speed")), 5);
+		assertEquals("Bad offset of temperature.", plan.offset(plan.indexOf("temperature")), 11);
+		assertEquals("Unknown tag must have no index.", plan.indexOf("pump3.speed"), -1);
+	}
+
+	@Test
+	public void test004CompileRespectsMaximumQuantity() {
+		ModbusTagDatabase database = new ModbusTagDatabase();
+
+		// 200 adjacent registers and overlapping tags do not fit in one request
+		for (int i = 0; i < 100; i++)
+			database.add(new ModbusTag("r" + i, ModbusTag.HOLDING_REGISTERS, 2 * i, ModbusDataType.INT32, null));
+		database.add(new ModbusTag("overlap", ModbusTag.HOLDING_REGISTERS, 121, ModbusDataType.INT64, null));
+		ModbusReadPlan plan = database.compile();
+
+		assertEquals("Bad number of requests.", plan.requestCount(), 2);
+		// overlap (121-124) still fits in the first request, r62 (124-125) does not
+		assertEquals("Bad quantity of the first request.", plan.quantity(0), 125);
+		assertEquals("Bad offset of overlap.", plan.offset(plan.indexOf("overlap")), 121);
+		assertEquals("Bad start of the second request.", plan.startAddress(1), 124);
+		assertEquals("Bad quantity of the second request.", plan.quantity(1), 76);
+		assertEquals("Tag split between requests.", plan.request(plan.indexOf("r62")), 1);
+		assertEquals("Bad offset of r62.", plan.offset(plan.indexOf("r62")), 125);
+	}
+
+	@Test
+	public void test005ScanReadsTagsWithoutAllocation() throws IOException {
+		com.sun.management.ThreadMXBean amx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		ModbusReadPlan plan = load(CSV).compile();
+		boolean[] bits = new boolean[plan.bitBufferLength()];
+		int[] words = new int[plan.wordBufferLength()];
+		ModbusTcpClient myClient = new MyClient(0, "PLAN005");
+
+		server.coils[11] = true;
+		server.discreteInputs[500] = true;
+		server.holdingRegisters[102] = 3;
+		server.holdingRegisters[110] = 0x4049;
+		server.inputRegisters[7] = 215;
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("I cannot read the plan.", myClient.mbtcReadPlan(plan, 0, bits, words), ModbusTcpClient.RET_OK);
+		assertEquals("Bad number of requests.", server.getRequestCount(), plan.requestCount());
+		assertEquals("Bad value of pump1.running.", bits[plan.offset(plan.indexOf("pump1.running"))], false);
+		assertEquals("Bad value of pump2.running.", bits[plan.offset(plan.indexOf("pump2.running"))], true);
+		assertEquals("Bad value of pump1.alarm.", bits[plan.offset(plan.indexOf("pump1.alarm"))], true);
+		assertEquals("Bad value of pump1.mode.", words[plan.offset(plan.indexOf("pump1.mode"))], 3);
+		assertEquals("Bad value of pump2.speed.", words[plan.offset(plan.indexOf("pump2.speed"))], 0x4049);
+		assertEquals("Bad value of temperature.", words[plan.offset(plan.indexOf("temperature"))], 215);
+
+		for (int i = 0; i < 500; i++)
+			myClient.mbtcReadPlan(plan, 0, bits, words);
+		long before = amx.getThreadAllocatedBytes(Thread.currentThread().getId());
+		for (int i = 0; i < 500; i++)
+			myClient.mbtcReadPlan(plan, 0, bits, words);
+		long after = amx.getThreadAllocatedBytes(Thread.currentThread().getId());
+		assertTrue("Scans allocated " + (after - before) + " bytes", after - before < 5000);
+
+		assertEquals("Small buffer must be rejected.", myClient.mbtcReadPlan(plan, 0, bits, new int[3]), ModbusTcpClient.RET_ERRRAN);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test006ExceptionResponseDoesNotStopTheScan() throws IOException {
+		ModbusReadPlan plan = load(CSV).compile();
+		int[] words = new int[plan.wordBufferLength()];
+		ModbusTcpClient myClient = new MyClient(0, "PLAN006");
+
+		server.illegalRegisters.set(111);
+		server.holdingRegisters[200] = 0x4142;
+		server.inputRegisters[7] = 215;
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("Exception response expected.", myClient.mbtcReadPlan(plan, 0, new boolean[3], words), ModbusTcpClient.RET_ERRXRE);
+		assertEquals("Scan stopped at the exception.", server.getRequestCount(), plan.requestCount());
+		assertEquals("Bad value of pump1.name.", words[plan.offset(plan.indexOf("pump1.name"))], 0x4142);
+		assertEquals("Bad value of temperature.", words[plan.offset(plan.indexOf("temperature"))], 215);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test007CostCoalescesSparseTags() {
+		ModbusTagDatabase database = sparse();
+
+		assertEquals("Exact plan must not read gaps.", database.compile().requestCount(), 50);
+
+		// 13 tags (1000-1120) fit in 125 registers
+		ModbusReadPlan plan = database.compile(new ModbusReadCost());
+		assertEquals("Bad number of requests.", plan.requestCount(), 4);
+		assertEquals("Bad quantity.", plan.quantity(0), 121);
+		assertEquals("Bad start address.", plan.startAddress(1), 1130);
+		assertEquals("Bad offset of t14.", plan.offset(plan.indexOf("t14")), 121 + 10);
+		assertEquals("Bad word buffer length.", plan.wordBufferLength(), 3 * 121 + 101);
+
+		// 9 registers gap = 18 bytes is cheaper than a round trip of 10 us + 21 header bytes, 19 registers are not
+		ModbusReadCost fast = new ModbusReadCost().setRoundTripMicros(10).setByteMicros(1);
+		assertTrue("Small gaps were not read.", fast.isGapCheaper(ModbusTag.HOLDING_REGISTERS, 9));
+		assertTrue("Big gaps were read.", ! fast.isGapCheaper(ModbusTag.HOLDING_REGISTERS, 19));
+		assertTrue("Bit gaps are counted in bytes.", fast.isGapCheaper(ModbusTag.COILS, 200));
+
+		plan = database.compile(new ModbusReadCost().setMaxQuantity(ModbusTag.HOLDING_REGISTERS, 50));
+		assertEquals("Maximum quantity of the function was not respected.", plan.requestCount(), 10);
+		for (int r = 0; r < plan.requestCount(); r++)
+			assertTrue("Request too long.", plan.quantity(r) <= 50);
+	}
+
+	@Test
+	public void test008CoalescedPlanNeverReadsHoles() {
+		ModbusTagDatabase database = sparse();
+		ModbusDeviceCapabilities device = new ModbusCapabilityCache().get("127.0.0.1:" + server.getPort(), 0);
+		ModbusTcpClient myClient = new MyClient(0, "PLAN008");
+
+		for (int i = 0; i < 50; i++)
+			server.holdingRegisters[1000 + 10 * i] = i;
+		server.illegalRegisters.set(1055, 1058);
+		server.illegalRegisters.set(1200);
+		device.addIllegalAddresses(ModbusTag.HOLDING_REGISTERS, 1055, 3);
+		device.addIllegalAddresses(ModbusTag.HOLDING_REGISTERS, 1200, 1);
+		device.setMaxReadRegisters(100);
+
+		ModbusReadPlan plan = database.compile(new ModbusReadCost(), device);
+		int[] words = new int[plan.wordBufferLength()];
+		for (int r = 0; r < plan.requestCount(); r++) {
+			assertTrue("Request too long for the device.", plan.quantity(r) <= 100);
+			boolean tagOnHole = plan.startAddress(r) == 1200;
+			assertTrue("Request reads a hole.", tagOnHole || !device.hasIllegalAddress(ModbusTag.HOLDING_REGISTERS, plan.startAddress(r), plan.quantity(r)));
+		}
+		assertEquals("Tag on a hole must have its own request.", plan.quantity(plan.request(plan.indexOf("t20"))), 1);
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("Only the tag on the hole may fail.", myClient.mbtcReadPlan(plan, 0, null, words), ModbusTcpClient.RET_ERRXRE);
+		for (int i = 0; i < 50; i++)
+			if (i != 20)
+				assertEquals("Bad value of t" + i, words[plan.offset(plan.indexOf("t" + i))], i);
+
+		// the plan without the device reads across the holes
+		plan = database.compile(new ModbusReadCost());
+		words = new int[plan.wordBufferLength()];
+		myClient.mbtcReadPlan(plan, 0, null, words);
+		assertEquals("Value read across the hole.", words[plan.offset(plan.indexOf("t4"))], 0);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test009OnlyTheFirstLineIsHeader() throws IOException {
+		ModbusTagDatabase database = load("# header follows\nName, table, address\nnameplate_kw, holding, 1\nNameX, coil, 2\n");
+
+		assertEquals("Tags starting with name were dropped.", database.size(), 2);
+		assertEquals("Bad address of nameplate_kw.", database.find("nameplate_kw").address(), 1);
+		assertEquals("Bad table of NameX.", database.find("NameX").table(), ModbusTag.COILS);
+
+		database = load("nameplate_kw, holding, 1\n");
+		assertEquals("First tag is not a header.", database.size(), 1);
+	}
+
+	@Test
+	public void test010PipelinedScan() {
+		ModbusReadPlan plan = sparse().compile(new ModbusReadCost());
+		int[] words = new int[plan.wordBufferLength()];
+		ModbusTcpClient myClient = new MyClient(0, "PLAN010");
+
+		for (int i = 0; i < 50; i++)
+			server.holdingRegisters[1000 + 10 * i] = i;
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 2000, 1000, 1, 1, 4);
+		assertEquals("I cannot connect.", myClient.mbtcConnect(), ModbusTcpClient.RET_OK);
+
+		// slow PLC answering in any order - one by one 4 requests would take 4 x 300 ms
+		server.setReorderResponses(true);
+		server.delayResponses(4, 300);
+		long start = System.currentTimeMillis();
+		assertEquals("I cannot read the plan.", myClient.mbtcReadPlan(plan, 0, null, words), ModbusTcpClient.RET_OK);
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("Requests were not pipelined, it took " + elapsed + " ms", elapsed < 900);
+		assertEquals("Requests were sent more than once.", server.getRequestCount(), plan.requestCount());
+		for (int i = 0; i < 50; i++)
+			assertEquals("Bad value of t" + i, words[plan.offset(plan.indexOf("t" + i))], i);
+
+		// exception response to one request does not stop the others
+		server.illegalRegisters.set(1200);
+		Arrays.fill(words, -1);
+		assertEquals("Exception response expected.", myClient.mbtcReadPlan(plan, 0, null, words), ModbusTcpClient.RET_ERRXRE);
+		assertEquals("Scan stopped at the exception.", server.getRequestCount(), 2 * plan.requestCount());
+		assertEquals("Tags of the failed request must be left unchanged.", words[plan.offset(plan.indexOf("t20"))], -1);
+		assertEquals("Bad value of t49.", words[plan.offset(plan.indexOf("t49"))], 49);
+		myClient.mbtcDisconnect();
+	}
+}
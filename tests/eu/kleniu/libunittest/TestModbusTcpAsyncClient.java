@@ -0,0 +1,177 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusEventLoopGroup;
+import eu.kleniu.modbuslib.ModbusTcpAsyncClient;
+import eu.kleniu.modbuslib.ModbusTcpClient;
+
+public class TestModbusTcpAsyncClient {
+
+	ModbusTestServer server;
+	ModbusEventLoopGroup group;
+
+	static class MyAsyncClient extends ModbusTcpAsyncClient {
+		String tag;
+
+		MyAsyncClient(ModbusEventLoopGroup group, int debugLevel, String tag) {
+			super(group, debugLevel);
+			this.tag = tag;
+		}
+
+		@Override
+		public void displayLog(String debMsg) {
+			System.out.println(tag + ": " + debMsg);
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		for (int i = 0; i < 1000; i++)
+			server.holdingRegisters[i] = i + 7;
+		server.coils[3] = true;
+		server.start();
+		group = new ModbusEventLoopGroup(1);
+	}
+
+	@After
+	public void tearDown() {
+		group.shutdown();
+		server.stop();
+	}
+
+	@Test
+	public void test001ReadWriteAsync() throws Exception {
+		ModbusTcpAsyncClient myClient = new MyAsyncClient(group, 0, "ASYNC001");
+
+		assertEquals("I cannot setup TCP connection.", myClient.mbtcSetup("127.0.0.1", server.getPort()), ModbusTcpClient.RET_OK);
+		assertEquals("I cannot connect.", (int) myClient.mbtcConnect().get(5, TimeUnit.SECONDS), ModbusTcpClient.RET_OK);
+
+		int[] registers = myClient.mbtcReadRegistersAsync(10, 125, 0).get(5, TimeUnit.SECONDS);
+		assertNotNull("I cannot read register values.", registers);
+		for (int i = 0; i < 125; i++)
+			assertEquals("Bad value of register " + (10 + i), registers[i], 17 + i);
+
+		boolean[] coils = myClient.mbtcReadCoilsAsync(0, 8, 0).get(5, TimeUnit.SECONDS);
+		assertNotNull("I cannot read coil status.", coils);
+		assertTrue("Coil 3 must be set.", coils[3]);
+
+		assertEquals("I cannot write register.", (int) myClient.mbtcWriteSingleRegisterAsync(2000, 4321, 0).get(5, TimeUnit.SECONDS), ModbusTcpClient.RET_OK);
+		assertEquals("Register was not written.", server.holdingRegisters[2000], 4321);
+		assertEquals("I cannot write coil.", (int) myClient.mbtcWriteSingleCoilAsync(2000, true, 0).get(5, TimeUnit.SECONDS), ModbusTcpClient.RET_OK);
+		assertTrue("Coil was not written.", server.coils[2000]);
+
+		assertNull("Out of range read must fail.", myClient.mbtcReadRegistersAsync(0, 126, 0).get(5, TimeUnit.SECONDS));
+
+		assertEquals("I cannot disconnect.", (int) myClient.mbtcDisconnect().get(5, TimeUnit.SECONDS), ModbusTcpClient.RET_OK);
+	}
+
+	@Test
+	public void test002ManyDevicesOnOneThread() throws Exception {
+		int devices = 300;
+		List<ModbusTcpAsyncClient> clients = new ArrayList<ModbusTcpAsyncClient>();
+		List<CompletableFuture<int[]>> futures = new ArrayList<CompletableFuture<int[]>>();
+
+		for (int i = 0; i < devices; i++) {
+			ModbusTcpAsyncClient myClient = new MyAsyncClient(group, 0, "ASYNC002");
+			myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 5000, 5000);
+			clients.add(myClient);
+		}
+		for (int round = 0; round < 3; round++)
+			for (int i = 0; i < devices; i++)
+				futures.add(clients.get(i).mbtcReadRegistersAsync(i, 2, 0));
+
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+		for (int f = 0; f < futures.size(); f++) {
+			int[] registers = futures.get(f).get();
+			int i = f % devices;
+			assertNotNull("I cannot read registers of device #" + i, registers);
+			assertEquals("Bad value of register " + i, registers[0], i + 7);
+		}
+
+		for (ModbusTcpAsyncClient myClient : clients)
+			myClient.mbtcDisconnect().get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void test003PipelinedOutOfOrder() throws Exception {
+		int blocks = 40;
+		List<CompletableFuture<int[]>> futures = new ArrayList<CompletableFuture<int[]>>();
+		ModbusTcpAsyncClient myClient = new MyAsyncClient(group, 0, "ASYNC003");
+
+		server.setReorderResponses(true);
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 1000, 1000, 1, 1, 8);
+		for (int i = 0; i < blocks; i++)
+			futures.add(myClient.mbtcReadRegistersAsync(i * 20, 10, 0));
+
+		for (int i = 0; i < blocks; i++) {
+			int[] registers = futures.get(i).get(5, TimeUnit.SECONDS);
+			assertNotNull("I cannot read register block #" + i, registers);
+			assertEquals("Bad value of register " + (i * 20), registers[0], i * 20 + 7);
+		}
+		assertEquals("Requests were sent more than once.", server.getRequestCount(), blocks);
+
+		myClient.mbtcDisconnect().get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void test004NoResponseFailsAfterRetries() throws Exception {
+		ServerSocket silent = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+		ModbusTcpAsyncClient myClient = new MyAsyncClient(group, 0, "ASYNC004");
+
+		// connection is accepted by the backlog, but nobody ever answers
+		myClient.mbtcSetup("127.0.0.1", silent.getLocalPort(), 2, 0, 200, 1000);
+		long start = System.currentTimeMillis();
+		assertNull("There must be no response.", myClient.mbtcReadRegistersAsync(0, 1, 0).get(5, TimeUnit.SECONDS));
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("Request must give up after 2 retries, it took " + elapsed + " ms", elapsed >= 350 && elapsed < 2000);
+		assertEquals("Write must fail as well.", (int) myClient.mbtcWriteSingleCoilAsync(1, true, 0).get(5, TimeUnit.SECONDS), ModbusTcpClient.RET_ERRBRE);
+
+		myClient.mbtcDisconnect().get(5, TimeUnit.SECONDS);
+		silent.close();
+	}
+
+	@Test
+	public void test006HalfOpenConnectionIsReconnected() throws Exception {
+		ModbusTcpAsyncClient myClient = new MyAsyncClient(group, 0, "ASYNC006");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 2, 1, 200, 1000);
+		assertEquals("I cannot connect.", (int) myClient.mbtcConnect().get(5, TimeUnit.SECONDS), ModbusTcpClient.RET_OK);
+
+		// device does not answer on the old connection any more, only reconnect helps
+		server.delayResponses(2, 5000);
+		int[] registers = myClient.mbtcReadRegistersAsync(10, 1, 0).get(5, TimeUnit.SECONDS);
+		assertNotNull("Request must succeed after reconnect.", registers);
+		assertEquals("Bad value of register.", registers[0], 17);
+		assertEquals("Client did not reconnect.", server.getConnectionCount(), 2);
+
+		myClient.mbtcDisconnect().get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void test005ConnectionRefused() throws Exception {
+		ServerSocket closed = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+		int port = closed.getLocalPort();
+		closed.close();
+		ModbusTcpAsyncClient myClient = new MyAsyncClient(group, 0, "ASYNC005");
+
+		myClient.mbtcSetup("127.0.0.1", port, 3, 1, 200, 200);
+		assertEquals("Connect must fail.", (int) myClient.mbtcConnect().get(5, TimeUnit.SECONDS), ModbusTcpClient.RET_ERRCON);
+		assertNull("Read must fail.", myClient.mbtcReadCoilsAsync(0, 1, 0).get(5, TimeUnit.SECONDS));
+	}
+}
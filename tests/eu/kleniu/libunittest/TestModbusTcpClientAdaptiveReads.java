@@ -0,0 +1,185 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusCapabilityCache;
+import eu.kleniu.modbuslib.ModbusDeviceCapabilities;
+import eu.kleniu.modbuslib.ModbusReadCost;
+import eu.kleniu.modbuslib.ModbusReadPlan;
+import eu.kleniu.modbuslib.ModbusTag;
+import eu.kleniu.modbuslib.ModbusTagDatabase;
+import eu.kleniu.modbuslib.ModbusTcpClient;
+import eu.kleniu.modbuslib.ModbusTcpClientPool;
+
+public class TestModbusTcpClientAdaptiveReads {
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		for (int i = 0; i < 50; i++)
+			server.holdingRegisters[1000 + 10 * i] = i;
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	ModbusTcpClient newClient(String tag) {
+		ModbusTcpClient myClient = new MyClient(0, tag);
+		myClient.mbtcSetCapabilityCache(new ModbusCapabilityCache());
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		myClient.mbtcSetAdaptiveReads(true);
+		return myClient;
+	}
+
+	void assertValues(ModbusReadPlan plan, int[] words, int skipped) {
+		for (int i = 0; i < 50; i++)
+			if (i != skipped)
+				assertEquals("Bad value of t" + i, words[plan.offset(plan.indexOf("t" + i))], i);
+	}
+
+	@Test
+	public void test001HoleIsLearnedAndSkipped() {
+		ModbusTcpClient myClient = newClient("ADAPT001");
+		ModbusReadPlan plan = TestModbusReadPlan.sparse().compile(new ModbusReadCost());
+		int[] words = new int[plan.wordBufferLength()];
+
+		server.illegalRegisters.set(1200);
+		assertEquals("Tag on the hole cannot be read.", myClient.mbtcReadPlan(plan, 0, null, words), ModbusTcpClient.RET_ERRXRE);
+		assertEquals("Bad exception code.", myClient.mbtcGetLastExceptionCode(), 0x02);
+		assertValues(plan, words, 20);
+
+		ModbusDeviceCapabilities device = myClient.mbtcGetCapabilities(0);
+		assertEquals("Only the illegal register is learned.", device.illegalAddressCount(), 1);
+		assertTrue("Hole is not learned.", device.hasIllegalAddress(ModbusTag.HOLDING_REGISTERS, 1200, 1));
+
+		// next scan reads around the hole without any exception response
+		int before = server.getRequestCount();
+		Arrays.fill(words, -1);
+		assertEquals("Tag on the hole cannot be read.", myClient.mbtcReadPlan(plan, 0, null, words), ModbusTcpClient.RET_ERRXRE);
+		assertValues(plan, words, 20);
+		assertEquals("Scan around one hole takes one request more.", server.getRequestCount() - before, plan.requestCount() + 1);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test002RecompiledPlanIsolatesTheHole() {
+		ModbusTcpClient myClient = newClient("ADAPT002");
+		ModbusTagDatabase database = TestModbusReadPlan.sparse();
+		ModbusReadPlan plan = database.compile(new ModbusReadCost());
+		int[] words = new int[plan.wordBufferLength()];
+
+		server.illegalRegisters.set(1055, 1058);
+		myClient.mbtcReadPlan(plan, 0, null, words);
+		assertEquals("Gap holes are not learned.", myClient.mbtcGetCapabilities(0).illegalAddressCount(), 3);
+
+		plan = database.compile(new ModbusReadCost(), myClient.mbtcGetCapabilities(0));
+		words = new int[plan.wordBufferLength()];
+		assertEquals("Holes between tags must not fail the scan.", myClient.mbtcReadPlan(plan, 0, null, words), ModbusTcpClient.RET_OK);
+		assertValues(plan, words, -1);
+
+		// the recompiled plan needs no learning
+		myClient.mbtcSetAdaptiveReads(false);
+		assertEquals("Recompiled plan must avoid the holes.", myClient.mbtcReadPlan(plan, 0, null, words), ModbusTcpClient.RET_OK);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test003ReadBoundaryIsLearned() {
+		ModbusTcpClient myClient = newClient("ADAPT003");
+		ModbusTagDatabase database = TestModbusReadPlan.sparse();
+		ModbusReadPlan plan = database.compile(new ModbusReadCost());
+		int[] words = new int[plan.wordBufferLength()];
+
+		// two memory areas of the device, 1000-1299 and 1300-1499
+		server.registerAreas.set(1300);
+		assertEquals("Values on both sides of the boundary are valid.", myClient.mbtcReadPlan(plan, 0, null, words), ModbusTcpClient.RET_OK);
+		assertValues(plan, words, -1);
+
+		ModbusDeviceCapabilities device = myClient.mbtcGetCapabilities(0);
+		assertEquals("Boundary is not an illegal address.", device.illegalAddressCount(), 0);
+		assertTrue("Boundary is not learned.", device.hasReadBoundary(ModbusTag.HOLDING_REGISTERS, 1250, 100));
+		assertFalse("Boundary is elsewhere.", device.hasReadBoundary(ModbusTag.HOLDING_REGISTERS, 1000, 300));
+		assertFalse("Boundary is elsewhere.", device.hasReadBoundary(ModbusTag.HOLDING_REGISTERS, 1300, 200));
+
+		plan = database.compile(new ModbusReadCost(), device);
+		for (int r = 0; r < plan.requestCount(); r++)
+			assertFalse("Request crosses the boundary.", plan.startAddress(r) < 1300 && plan.startAddress(r) + plan.quantity(r) > 1300);
+		myClient.mbtcSetAdaptiveReads(false);
+		assertEquals("Recompiled plan fails.", myClient.mbtcReadPlan(plan, 0, null, words), ModbusTcpClient.RET_OK);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test004MaxQuantityIsLearned() {
+		ModbusTcpClient myClient = newClient("ADAPT004");
+		ModbusReadPlan plan = TestModbusReadPlan.sparse().compile(new ModbusReadCost());
+		int[] words = new int[plan.wordBufferLength()];
+
+		server.maxReadRegisters = 60;
+		assertEquals("Short requests must succeed.", myClient.mbtcReadPlan(plan, 0, null, words), ModbusTcpClient.RET_OK);
+		assertEquals("Bad exception code.", myClient.mbtcGetLastExceptionCode(), 0x03);
+		assertValues(plan, words, -1);
+		assertEquals("Limit is not learned.", myClient.mbtcGetCapabilities(0).maxReadRegisters(), 60);
+
+		// requests are split by the learned limit and none is rejected again
+		int max = myClient.mbtcGetCapabilities(0).maxReadRegisters();
+		int expected = 0;
+		for (int r = 0; r < plan.requestCount(); r++)
+			expected += (plan.quantity(r) + max - 1) / max;
+		int before = server.getRequestCount();
+		assertEquals("Learned limit must be kept.", myClient.mbtcReadPlan(plan, 0, null, words), ModbusTcpClient.RET_OK);
+		assertEquals("Bad number of requests.", server.getRequestCount() - before, expected);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test005PoolMembersShareTheMap() {
+		ModbusTcpClientPool myPool = new TestModbusTcpClientPool.MyPool(2, 0, "ADAPT005");
+		ModbusReadPlan plan = TestModbusReadPlan.sparse().compile(new ModbusReadCost());
+		int[] words = new int[plan.wordBufferLength()];
+
+		server.illegalRegisters.set(1200);
+		myPool.mbtcSetup("127.0.0.1", server.getPort());
+		myPool.mbtcSetAdaptiveReads(true);
+		assertEquals("Tag on the hole cannot be read.", myPool.mbtcReadPlan(plan, 0, null, words), ModbusTcpClient.RET_ERRXRE);
+		assertValues(plan, words, 20);
+		ModbusDeviceCapabilities device = ModbusCapabilityCache.getDefault().get("127.0.0.1:" + server.getPort(), 0);
+		assertTrue("Hole is not learned.", device.hasIllegalAddress(ModbusTag.HOLDING_REGISTERS, 1200, 1));
+		myPool.mbtcDisconnect();
+	}
+
+	@Test
+	public void test006SingleRegisterWithException03IsAHole() {
+		ModbusTcpClient myClient = newClient("ADAPT006");
+		ModbusReadPlan plan = TestModbusReadPlan.sparse().compile(new ModbusReadCost());
+		int[] words = new int[plan.wordBufferLength()];
+
+		server.badValueRegisters.set(1200);
+		assertEquals("Tag on the bad register cannot be read.", myClient.mbtcReadPlan(plan, 0, null, words), ModbusTcpClient.RET_ERRXRE);
+		assertEquals("Bad exception code.", myClient.mbtcGetLastExceptionCode(), 0x03);
+		assertValues(plan, words, 20);
+
+		ModbusDeviceCapabilities device = myClient.mbtcGetCapabilities(0);
+		assertEquals("Only the bad register is learned.", device.illegalAddressCount(), 1);
+		assertTrue("Bad register is not a hole.", device.hasIllegalAddress(ModbusTag.HOLDING_REGISTERS, 1200, 1));
+		assertEquals("One register must not lower the limit.", device.maxReadRegisters(), 125);
+
+		int before = server.getRequestCount();
+		assertEquals("Tag on the bad register cannot be read.", myClient.mbtcReadPlan(plan, 0, null, words), ModbusTcpClient.RET_ERRXRE);
+		assertEquals("Scan around one hole takes one request more.", server.getRequestCount() - before, plan.requestCount() + 1);
+		myClient.mbtcDisconnect();
+	}
+}
@@ -0,0 +1,117 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusTcpClient;
+
+public class TestModbusTcpClientChannel {
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		for (int i = 0; i < 200; i++)
+			server.holdingRegisters[i] = 1000 + i;
+		server.coils[5] = true;
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void test001ReadIntoCallerBuffers() {
+		int retVal = 0;
+		int[] registers = new int[10];
+		boolean[] coils = new boolean[16];
+		ModbusTcpClient myClient = new MyClient(0, "CHAN001");
+
+		retVal = myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("I cannot setup TCP connection.", retVal, ModbusTcpClient.RET_OK);
+
+		retVal = myClient.mbtcReadRegisters(100, 10, 0, registers);
+		assertEquals("I cannot read register values.", retVal, ModbusTcpClient.RET_OK);
+		for (int i = 0; i < 10; i++)
+			assertEquals("Bad value of register " + (100 + i), registers[i], 1100 + i);
+
+		retVal = myClient.mbtcReadCoils(0, 16, 0, coils);
+		assertEquals("I cannot read coil status.", retVal, ModbusTcpClient.RET_OK);
+		assertTrue("Coil 5 must be set.", coils[5]);
+
+		retVal = myClient.mbtcReadRegisters(0, 20, 0, registers);
+		assertEquals("Too small buffer must be rejected.", retVal, ModbusTcpClient.RET_ERRRAN);
+
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test002NoResponseTimesOut() throws Exception {
+		ServerSocket silent = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+		ModbusTcpClient myClient = new MyClient(0, "CHAN002");
+		Thread acceptor = new Thread(() -> {
+			try {
+				while (true) {
+					Socket s = silent.accept(); // accepts and never answers
+					s.setSoLinger(false, 0);
+				}
+			} catch (Exception e) {
+				// closed
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		myClient.mbtcSetup("127.0.0.1", silent.getLocalPort(), 1, 0, 200, 1000);
+		long start = System.currentTimeMillis();
+		assertNull("There must be no response.", myClient.mbtcReadRegisters(0, 1, 0));
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("Request must give up after SO_TIMEOUT, it took " + elapsed + " ms", elapsed < 1500);
+
+		myClient.mbtcDisconnect();
+		silent.close();
+	}
+
+	@Test
+	public void test003PollingDoesNotAllocate() {
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		int[] registers = new int[60];
+		boolean[] coils = new boolean[100];
+		ModbusTcpClient myClient = new MyClient(0, "CHAN003");
+
+		if (!(mx instanceof com.sun.management.ThreadMXBean))
+			return; // cannot measure on this JVM
+		com.sun.management.ThreadMXBean amx = (com.sun.management.ThreadMXBean) mx;
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		for (int i = 0; i < 5000; i++) {
+			myClient.mbtcReadRegisters(0, 60, 0, registers);
+			myClient.mbtcReadCoils(0, 100, 0, coils);
+			myClient.mbtcWriteSingleRegister(1, i, 0);
+		}
+		long before = amx.getThreadAllocatedBytes(Thread.currentThread().getId());
+		for (int i = 0; i < 5000; i++) {
+			myClient.mbtcReadRegisters(0, 60, 0, registers);
+			myClient.mbtcReadCoils(0, 100, 0, coils);
+			myClient.mbtcWriteSingleCoil(3, (i & 1) == 0, 0);
+		}
+		long after = amx.getThreadAllocatedBytes(Thread.currentThread().getId());
+		assertTrue("Polling allocated " + (after - before) + " bytes", after - before < 5000);
+
+		myClient.mbtcDisconnect();
+	}
+}
@@ -0,0 +1,147 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusCapabilityCache;
+import eu.kleniu.modbuslib.ModbusDeviceCapabilities;
+import eu.kleniu.modbuslib.ModbusTcpClient;
+
+public class TestModbusTcpClientDeviceIdentification {
+
+	ModbusTestServer server;
+	ModbusCapabilityCache cache;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		server.start();
+		cache = new ModbusCapabilityCache();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void test001RegularIdentification() {
+		ModbusTcpClient myClient = new MyClient(0, "FC43001");
+
+		server.deviceIdObjects[5] = "SIM-125";
+		myClient.mbtcSetCapabilityCache(cache);
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		ModbusDeviceCapabilities device = myClient.mbtcReadDeviceIdentification(3);
+		assertTrue("Device is not identified.", device.identified());
+		assertEquals("Bad vendor.", device.vendorName(), "Kleniu");
+		assertEquals("Bad product code.", device.productCode(), "MBSIM");
+		assertEquals("Bad revision.", device.revision(), "1.0");
+		assertEquals("Bad model.", device.model(), "SIM-125");
+		assertNull("Vendor URL was not sent.", device.object(ModbusDeviceCapabilities.VENDOR_URL));
+		assertEquals("Bad conformity level.", device.conformityLevel(), 2);
+		assertEquals("Bad endpoint.", device.endpoint(), "127.0.0.1:" + server.getPort());
+		assertEquals("Bad unit ID.", device.unitID(), 3);
+		assertEquals("Bad number of requests.", server.getRequestCount(), 1);
+
+		assertSame("Device must be cached.", cache.find("127.0.0.1:" + server.getPort(), 3), device);
+		assertSame("Device must be cached.", myClient.mbtcGetCapabilities(3), device);
+		assertFalse("Unit 4 is another device.", myClient.mbtcGetCapabilities(4).identified());
+		assertEquals("Nothing must be sent by mbtcGetCapabilities.", server.getRequestCount(), 1);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test002MoreFollows() {
+		ModbusTcpClient myClient = new MyClient(0, "FC43002");
+
+		server.deviceIdObjectsPerResponse = 1;
+		server.deviceIdObjects[6] = "Line 3 packer";
+		myClient.mbtcSetCapabilityCache(cache);
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		ModbusDeviceCapabilities device = myClient.mbtcReadDeviceIdentification(0);
+		assertEquals("Bad application name.", device.object(ModbusDeviceCapabilities.USER_APPLICATION_NAME), "Line 3 packer");
+		assertEquals("Bad model - product name is used when there is no model name.", device.model(), "Simulator");
+		// objects 0, 1, 2, 4, 6 one per response
+		assertEquals("Bad number of requests.", server.getRequestCount(), 5);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test003BasicOnlyDevice() {
+		ModbusTcpClient myClient = new MyClient(0, "FC43003");
+
+		server.deviceIdBasicOnly = true;
+		myClient.mbtcSetCapabilityCache(cache);
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		ModbusDeviceCapabilities device = myClient.mbtcReadDeviceIdentification(0);
+		assertEquals("Bad vendor.", device.vendorName(), "Kleniu");
+		assertNull("Product name is not basic identification.", device.object(ModbusDeviceCapabilities.PRODUCT_NAME));
+		assertEquals("Bad conformity level.", device.conformityLevel(), 1);
+		assertEquals("Regular and then basic identification expected.", server.getRequestCount(), 2);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test004LimitsAndDefaults() {
+		ModbusTcpClient myClient = new MyClient(0, "FC43004");
+
+		assertNull("No capabilities before mbtcSetup.", myClient.mbtcGetCapabilities(0));
+		assertNull("No identification before mbtcSetup.", myClient.mbtcReadDeviceIdentification(0));
+		myClient.mbtcSetCapabilityCache(cache);
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		ModbusDeviceCapabilities device = myClient.mbtcGetCapabilities(0);
+		assertEquals("Default is MODBUS limit.", device.maxReadRegisters(), 125);
+		assertEquals("Default is MODBUS limit.", device.maxReadBits(), 2000);
+		assertEquals("Pipelining is not known yet.", device.maxPipelineWindow(), 0);
+		device.setMaxReadRegisters(500);
+		assertEquals("Limit must be clamped.", device.maxReadRegisters(), 125);
+		device.setMaxReadRegisters(60);
+		device.setMaxPipelineWindow(1);
+
+		// another client of the same device sees what was learned
+		ModbusTcpClient otherClient = new MyClient(0, "FC43004b");
+		otherClient.mbtcSetCapabilityCache(cache);
+		otherClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("Limit is not shared.", otherClient.mbtcGetCapabilities(0).maxReadRegisters(), 60);
+		assertEquals("Pipelining is not shared.", otherClient.mbtcGetCapabilities(0).maxPipelineWindow(), 1);
+		assertEquals("Bad number of devices.", cache.size(), 1);
+		otherClient.mbtcSetCapabilityCache(null);
+		assertSame("Default cache expected.", otherClient.mbtcGetCapabilities(0), ModbusCapabilityCache.getDefault().get("127.0.0.1:" + server.getPort(), 0));
+		assertEquals("Nothing must be sent.", server.getRequestCount(), 0);
+	}
+
+	@Test
+	public void test005PipelineWindowOfTheDevice() {
+		ModbusTcpClient myClient = new MyClient(0, "FC43005");
+		int[] registers = new int[600];
+
+		myClient.mbtcSetCapabilityCache(cache);
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 2000, 1000, 1, 1, 8);
+		assertEquals("I cannot connect.", myClient.mbtcConnect(), ModbusTcpClient.RET_OK);
+
+		// device which cannot pipeline gets 5 chunks of 200 ms one by one
+		myClient.mbtcGetCapabilities(0).setMaxPipelineWindow(1);
+		server.delayResponses(5, 200);
+		long start = System.currentTimeMillis();
+		assertEquals("I cannot read registers.", myClient.mbtcReadRegisters(1000, 600, 0, registers), ModbusTcpClient.RET_OK);
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("Chunks were pipelined, it took " + elapsed + " ms", elapsed >= 950);
+		assertEquals("Chunks were sent more than once.", server.getRequestCount(), 5);
+
+		// window of mbtcSetup when the device limit is not known
+		myClient.mbtcGetCapabilities(0).setMaxPipelineWindow(0);
+		server.delayResponses(5, 200);
+		start = System.currentTimeMillis();
+		assertEquals("I cannot read registers.", myClient.mbtcReadRegisters(1000, 600, 0, registers), ModbusTcpClient.RET_OK);
+		elapsed = System.currentTimeMillis() - start;
+		assertTrue("Chunks were not pipelined, it took " + elapsed + " ms", elapsed < 900);
+		myClient.mbtcDisconnect();
+	}
+}
@@ -0,0 +1,116 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusTcpClient;
+import eu.kleniu.modbuslib.ModbusTcpClientPool;
+import eu.kleniu.modbuslib.ModbusTcpConcurrentClient;
+
+public class TestModbusTcpClientEcho {
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		server.holdingRegisters[7] = 77;
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	private static boolean waitFor(ModbusTestServer server, int connections, int millis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + millis;
+		while (server.getConnectionCount() < connections && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		return server.getConnectionCount() >= connections;
+	}
+
+	@Test
+	public void test001EchoMeasuresRoundTrip() {
+		ModbusTcpClient myClient = new MyClient(0, "FC08001");
+
+		assertEquals("There must be no round trip before the first echo.", myClient.mbtcGetRoundTripNanos(), -1L);
+		assertEquals("Never connected client must be idle forever.", myClient.mbtcGetIdleNanos(), Long.MAX_VALUE);
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("I cannot echo.", myClient.mbtcEcho(0), ModbusTcpClient.RET_OK);
+		assertTrue("Bad round trip " + myClient.mbtcGetRoundTripNanos(), myClient.mbtcGetRoundTripNanos() > 0);
+		assertTrue("Idle time was not reset by the echo.", myClient.mbtcGetIdleNanos() < 1000000000L);
+		assertEquals("I cannot probe.", myClient.mbtcProbe(0, 500), ModbusTcpClient.RET_OK);
+		assertEquals("Bad number of requests.", server.getRequestCount(), 2);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test002ProbeClosesSilentConnection() throws InterruptedException {
+		ModbusTcpClient myClient = new MyClient(0, "FC08002");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("Probe must not connect.", myClient.mbtcProbe(0, 100), ModbusTcpClient.RET_NOTCON);
+		assertEquals("Nothing must be sent.", server.getRequestCount(), 0);
+		assertEquals("I cannot connect.", myClient.mbtcConnect(), ModbusTcpClient.RET_OK);
+
+		// half-open connection - the PLC does not answer any more
+		server.delayResponses(1, 1000);
+		long start = System.currentTimeMillis();
+		assertEquals("Silent connection must fail the probe.", myClient.mbtcProbe(0, 100), ModbusTcpClient.RET_ERRBRE);
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("Probe was not limited by its own timeout, it took " + elapsed + " ms", elapsed < 800);
+		assertFalse("Connection was not closed.", myClient.mbtcIsConnected());
+		assertEquals("Probe must not be retried.", server.getRequestCount(), 1);
+
+		// next request connects again and is not confused by the late echo
+		int[] registers = myClient.mbtcReadRegisters(7, 1, 0);
+		assertEquals("Bad value of register 7", registers[0], 77);
+		assertEquals("Bad number of connections.", server.getConnectionCount(), 2);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test003PoolReplacesSilentMembers() throws InterruptedException {
+		ModbusTcpClientPool myPool = new TestModbusTcpClientPool.MyPool(2, 0, "FC08003");
+
+		myPool.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("I cannot connect pool.", myPool.mbtcConnect(), ModbusTcpClient.RET_OK);
+		assertTrue("Members are not connected.", waitFor(server, 2, 1000));
+
+		server.delayResponses(2, 2000);
+		myPool.mbtcSetIdleProbe(50, 100, 0);
+		assertTrue("Silent members were not replaced.", waitFor(server, 4, 3000));
+		myPool.mbtcSetIdleProbe(0, 100, 0);
+
+		int[] registers = myPool.mbtcReadRegisters(7, 1, 0);
+		assertEquals("Bad value of register 7", registers[0], 77);
+		myPool.mbtcDisconnect();
+	}
+
+	@Test
+	public void test004ConcurrentClientProbesWhenIdle() throws InterruptedException {
+		ModbusTcpConcurrentClient myClient = new TestModbusTcpConcurrentClient.MyConcurrentClient(0, "FC08004");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("Bad value of register 7", myClient.mbtcReadRegisters(7, 1, 0)[0], 77);
+
+		myClient.mbtcSetIdleProbe(50, 500, 0);
+		long deadline = System.currentTimeMillis() + 3000;
+		while (myClient.mbtcGetRoundTripNanos() < 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertTrue("Idle connection was not probed.", myClient.mbtcGetRoundTripNanos() > 0);
+
+		server.delayResponses(1, 2000);
+		Thread.sleep(1000);
+		myClient.mbtcSetIdleProbe(0, 500, 0);
+		assertEquals("Bad value of register 7", myClient.mbtcReadRegisters(7, 1, 0)[0], 77);
+		assertEquals("Silent connection was not replaced.", server.getConnectionCount(), 2);
+		myClient.mbtcDisconnect();
+	}
+}
@@ -0,0 +1,162 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusFifoAcknowledge;
+import eu.kleniu.modbuslib.ModbusFifoSink;
+import eu.kleniu.modbuslib.ModbusTcpClient;
+
+public class TestModbusTcpClientFifo {
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		server.fifoAddress = 1246;
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void test001ReadOnce() {
+		ModbusTcpClient myClient = new MyClient(0, "FC24001");
+
+		server.fifoQueue.add(440);
+		server.fifoQueue.add(0xFFFF);
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		int[] values = myClient.mbtcReadFifoQueue(1246, 0);
+		assertEquals("Bad number of values.", values.length, 2);
+		assertEquals("Bad value 0", values[0], 440);
+		assertEquals("Bad value 1", values[1], -1);
+		assertEquals("Reading must not remove values.", myClient.mbtcReadFifoQueue(1246, 0).length, 2);
+		assertNull("Wrong FIFO address must fail.", myClient.mbtcReadFifoQueue(1, 0));
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test002DrainIntoSink() {
+		final List<Integer> drained = new ArrayList<Integer>();
+		final int[] calls = new int[1];
+		ModbusTcpClient myClient = new MyClient(0, "FC24002");
+
+		for (int i = 0; i < 100; i++)
+			server.fifoQueue.add(i);
+		server.fifoAckRegister = 500;
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		int retVal = myClient.mbtcDrainFifoQueue(1246, 0, new ModbusFifoSink() {
+			@Override
+			public boolean onFifoValues(int fifoAddress, int[] values, int count) {
+				calls[0]++;
+				for (int i = 0; i < count; i++)
+					drained.add(values[i]);
+				return true;
+			}
+		}, 10, new ModbusFifoAcknowledge() {
+			@Override
+			public int acknowledge(ModbusTcpClient client, int fifoAddress, int count, int deviceID) {
+				return client.mbtcWriteSingleRegister(500, count, deviceID);
+			}
+		});
+		assertEquals("I cannot drain the queue.", retVal, ModbusTcpClient.RET_OK);
+		assertEquals("Bad number of drained values.", drained.size(), 100);
+		for (int i = 0; i < 100; i++)
+			assertEquals("Bad value " + i, (int) drained.get(i), i);
+		// 31 + 31 + 31 + 7, each acknowledged, the last read finds the queue empty
+		assertEquals("Bad number of sink calls.", calls[0], 4);
+		assertEquals("Bad number of requests.", server.getRequestCount(), 9);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test003SinkAndMaxReadsStopDraining() {
+		final int[] calls = new int[1];
+		ModbusTcpClient myClient = new MyClient(0, "FC24003");
+		ModbusFifoSink stopAfterFirst = new ModbusFifoSink() {
+			@Override
+			public boolean onFifoValues(int fifoAddress, int[] values, int count) {
+				calls[0]++;
+				return false;
+			}
+		};
+
+		for (int i = 0; i < 100; i++)
+			server.fifoQueue.add(i);
+		server.fifoRemoveOnRead = true;
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("I cannot drain the queue.", myClient.mbtcDrainFifoQueue(1246, 0, stopAfterFirst, 10), ModbusTcpClient.RET_OK);
+		assertEquals("Sink asked to stop.", calls[0], 1);
+		assertEquals("Bad number of values left.", server.fifoQueue.size(), 69);
+
+		assertEquals("I cannot drain the queue.", myClient.mbtcReadFifoQueue(1246, 0, stopAfterFirst), ModbusTcpClient.RET_OK);
+		assertEquals("Bad number of values left.", server.fifoQueue.size(), 38);
+		assertEquals("maxReads 0 must be rejected.", myClient.mbtcDrainFifoQueue(1246, 0, stopAfterFirst, 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Null sink must be rejected.", myClient.mbtcDrainFifoQueue(1246, 0, null, 1), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Wrong FIFO address must fail.", myClient.mbtcDrainFifoQueue(7, 0, stopAfterFirst, 1), ModbusTcpClient.RET_ERRXRE);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test004DrainDoesNotAllocate() {
+		com.sun.management.ThreadMXBean amx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		final long[] sum = new long[1];
+		ModbusTcpClient myClient = new MyClient(0, "FC24004");
+		ModbusFifoSink sink = new ModbusFifoSink() {
+			@Override
+			public boolean onFifoValues(int fifoAddress, int[] values, int count) {
+				for (int i = 0; i < count; i++)
+					sum[0] += values[i];
+				return true;
+			}
+		};
+
+		// device removing read values, no two responses are the same
+		server.fifoRemoveOnRead = true;
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		for (int i = 0; i < 20000; i++)
+			server.fifoQueue.add(i & 0x3FFF);
+		myClient.mbtcDrainFifoQueue(1246, 0, sink, 100);
+		long before = amx.getThreadAllocatedBytes(Thread.currentThread().getId());
+		myClient.mbtcDrainFifoQueue(1246, 0, sink, 1000);
+		long after = amx.getThreadAllocatedBytes(Thread.currentThread().getId());
+		assertTrue("Draining allocated " + (after - before) + " bytes", after - before < 5000);
+		assertEquals("Bad sum of values.", sum[0], 16383L * 16384 / 2 + 3615L * 3616 / 2);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test005RepeatedResponseStopsDraining() {
+		final int[] calls = new int[1];
+		ModbusTcpClient myClient = new MyClient(0, "FC24005");
+
+		// compliant device - reading does not clear the queue
+		for (int i = 0; i < 40; i++)
+			server.fifoQueue.add(i);
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("I cannot drain the queue.", myClient.mbtcDrainFifoQueue(1246, 0, new ModbusFifoSink() {
+			@Override
+			public boolean onFifoValues(int fifoAddress, int[] values, int count) {
+				calls[0]++;
+				return true;
+			}
+		}, 10), ModbusTcpClient.RET_OK);
+		assertEquals("Repeated values must not go to the sink.", calls[0], 1);
+		assertEquals("Bad number of requests.", server.getRequestCount(), 2);
+		assertEquals("Queue must not be cleared.", server.fifoQueue.size(), 40);
+		myClient.mbtcDisconnect();
+	}
+}
@@ -0,0 +1,171 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusTcpClient;
+
+public class TestModbusTcpClientFileRecords {
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		for (int f = 1; f <= 3; f++)
+			for (int r = 0; r < 10000; r++)
+				server.file(f)[r] = (f * 10000 + r) & 0xFFFF;
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	private static void assertRecords(ByteBuffer data, int file, int start, int count) {
+		for (int r = start; r < start + count; r++)
+			assertEquals("Bad record " + r + " of file " + file, data.getShort() & 0xFFFF, (file * 10000 + r) & 0xFFFF);
+	}
+
+	@Test
+	public void test001WholeFileOneByOne() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ModbusTcpClient myClient = new MyClient(0, "FC20001");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		int retVal = myClient.mbtcReadFileRecords(2, 0, 10000, 0, Channels.newChannel(bytes));
+		assertEquals("I cannot read file records.", retVal, ModbusTcpClient.RET_OK);
+		assertEquals("Bad number of bytes.", bytes.size(), 20000);
+		assertRecords(ByteBuffer.wrap(bytes.toByteArray()), 2, 0, 10000);
+		// 121 records fit in one response (0xF5 bytes of response data)
+		assertEquals("Bad number of requests.", server.getRequestCount(), (10000 + 120) / 121);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test002ShortRangesSharePDU() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ModbusTcpClient myClient = new MyClient(0, "FC20002");
+		int[] files = new int[12];
+		int[] starts = new int[12];
+		int[] counts = new int[12];
+
+		for (int i = 0; i < 12; i++) {
+			files[i] = 1 + i % 3;
+			starts[i] = 100 * i;
+			counts[i] = 5;
+		}
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("I cannot read file records.", myClient.mbtcReadFileRecords(files, starts, counts, 0, Channels.newChannel(bytes)), ModbusTcpClient.RET_OK);
+		assertEquals("All ranges must go in one request.", server.getRequestCount(), 1);
+		ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray());
+		for (int i = 0; i < 12; i++)
+			assertRecords(data, files[i], starts[i], counts[i]);
+
+		// 100 records of file 1, 20 of file 2 fill the first response, the rest goes in the second
+		bytes.reset();
+		assertEquals("I cannot read file records.", myClient.mbtcReadFileRecords(new int[] { 1, 2 }, new int[] { 9900, 0 }, new int[] { 100, 100 }, 0, Channels.newChannel(bytes)), ModbusTcpClient.RET_OK);
+		assertEquals("Bad number of requests.", server.getRequestCount(), 3);
+		data = ByteBuffer.wrap(bytes.toByteArray());
+		assertRecords(data, 1, 9900, 100);
+		assertRecords(data, 2, 0, 100);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test003PipelinedDownload() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ModbusTcpClient myClient = new MyClient(0, "FC20003");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 2000, 1000, 1, 1, 8);
+		server.setReorderResponses(true);
+		int retVal = myClient.mbtcReadFileRecords(new int[] { 1, 2, 3 }, new int[] { 0, 0, 0 }, new int[] { 10000, 10000, 10000 }, 0, Channels.newChannel(bytes));
+		assertEquals("I cannot read file records.", retVal, ModbusTcpClient.RET_OK);
+		ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray());
+		for (int f = 1; f <= 3; f++)
+			assertRecords(data, f, 0, 10000);
+		assertTrue("Every record read once.", server.getRequestCount() <= 30000 / 121 + 3);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test004WriteAndReadBack() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		int[] recipe = new int[300];
+		ModbusTcpClient myClient = new MyClient(0, "FC21004");
+
+		for (int i = 0; i < recipe.length; i++)
+			recipe[i] = 3 * i;
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 2000, 1000, 1, 1, 4);
+		assertEquals("I cannot write file records.", myClient.mbtcWriteFileRecords(7, 9700, recipe, 0), ModbusTcpClient.RET_OK);
+		// 122 + 122 + 56
+		assertEquals("Bad number of requests.", server.getRequestCount(), 3);
+		assertEquals("Bad record 9999.", server.file(7)[9999], 897);
+
+		assertEquals("I cannot read file records.", myClient.mbtcReadFileRecords(7, 9700, 300, 0, Channels.newChannel(bytes)), ModbusTcpClient.RET_OK);
+		ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray());
+		for (int i = 0; i < recipe.length; i++)
+			assertEquals("Bad record " + (9700 + i), data.getShort(), 3 * i);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test005Errors() {
+		ModbusTcpClient myClient = new MyClient(0, "FC20005");
+		WritableByteChannel closed = new WritableByteChannel() {
+			@Override
+			public boolean isOpen() {
+				return false;
+			}
+
+			@Override
+			public void close() {
+			}
+
+			@Override
+			public int write(ByteBuffer src) throws IOException {
+				throw new IOException("closed");
+			}
+		};
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("Record 10000 must be rejected.", myClient.mbtcReadFileRecords(1, 9999, 2, 0, closed), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("File 0 must be rejected.", myClient.mbtcReadFileRecords(0, 0, 1, 0, closed), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Null channel must be rejected.", myClient.mbtcReadFileRecords(1, 0, 1, 0, null), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Different lengths must be rejected.", myClient.mbtcReadFileRecords(new int[] { 1, 2 }, new int[] { 0 }, new int[] { 1 }, 0, closed), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Write beyond record 9999 must be rejected.", myClient.mbtcWriteFileRecords(1, 9999, new int[2], 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Nothing must be sent.", server.getRequestCount(), 0);
+		assertEquals("Channel error expected.", myClient.mbtcReadFileRecords(1, 0, 10, 0, closed), ModbusTcpClient.RET_ERRWRC);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test006NoRequestIsSentAfterTheFailedOne() {
+		ModbusTcpClient myClient = new MyClient(0, "FC21006");
+		int[] recipe = new int[122 * 5];
+
+		Arrays.fill(recipe, 5);
+		server.illegalRecords.set(122 + 3);
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 2000, 1000, 1, 1, 2);
+		assertEquals("Exception response expected.", myClient.mbtcWriteFileRecords(4, 0, recipe, 0), ModbusTcpClient.RET_ERRXRE);
+
+		// request 1 failed, request 2 was in flight already (window 2), requests 3 and 4 were never sent
+		assertEquals("Requests were sent after the failed one.", server.getRequestCount(), 3);
+		assertEquals("Request before the failed one must be written.", server.file(4)[121], 5);
+		for (int i = 3 * 122; i < recipe.length; i++)
+			assertEquals("Record " + i + " of an unsent request was written.", server.file(4)[i], 0);
+		myClient.mbtcDisconnect();
+	}
+}
@@ -0,0 +1,105 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusEventLoopGroup;
+import eu.kleniu.modbuslib.ModbusTcpAsyncClient;
+import eu.kleniu.modbuslib.ModbusTcpClient;
+
+public class TestModbusTcpClientFrames {
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		for (int i = 0; i < 4000; i++)
+			server.holdingRegisters[i] = (i * 7) & 0x7FFF;
+		for (int i = 0; i < 4000; i++)
+			server.coils[i] = (i % 5) == 1;
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	private void checkRegisters(int[] registers, int startAddress) {
+		for (int i = 0; i < registers.length; i++)
+			assertEquals("Bad value of register " + (startAddress + i), registers[i], ((startAddress + i) * 7) & 0x7FFF);
+	}
+
+	@Test
+	public void test001MaximumSizeReads() {
+		ModbusTcpClient myClient = new MyClient(0, "FRAME001");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+
+		int[] registers = myClient.mbtcReadRegisters(100, 125, 0);
+		assertNotNull("I cannot read 125 registers.", registers);
+		checkRegisters(registers, 100);
+
+		boolean[] coils = myClient.mbtcReadCoils(3, 2000, 0);
+		assertNotNull("I cannot read 2000 coils.", coils);
+		for (int i = 0; i < 2000; i++)
+			assertEquals("Bad status of coil " + (3 + i), coils[i], server.coils[3 + i]);
+
+		assertEquals("Requests were retried.", server.getRequestCount(), 2);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test002FragmentedResponses() throws Exception {
+		ModbusTcpClient myClient = new MyClient(0, "FRAME002");
+		ModbusEventLoopGroup group = new ModbusEventLoopGroup(1);
+		ModbusTcpAsyncClient myAsyncClient = new TestModbusTcpAsyncClient.MyAsyncClient(group, 0, "FRAME002");
+
+		server.setFragmentResponses(true);
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		myAsyncClient.mbtcSetup("127.0.0.1", server.getPort());
+
+		int[] registers = myClient.mbtcReadRegisters(0, 125, 0);
+		assertNotNull("I cannot read fragmented response.", registers);
+		checkRegisters(registers, 0);
+
+		registers = myAsyncClient.mbtcReadRegistersAsync(500, 125, 0).get(5, TimeUnit.SECONDS);
+		assertNotNull("I cannot read fragmented response asynchronously.", registers);
+		checkRegisters(registers, 500);
+
+		assertEquals("Requests were retried.", server.getRequestCount(), 2);
+		myClient.mbtcDisconnect();
+		group.shutdown();
+	}
+
+	@Test
+	public void test003SeveralFramesInOneSegment() {
+		int blocks = 24;
+		int[] startAddresses = new int[blocks];
+		int[] quantities = new int[blocks];
+		ModbusTcpClient myClient = new MyClient(0, "FRAME003");
+
+		server.setReorderResponses(true);
+		for (int i = 0; i < blocks; i++) {
+			startAddresses[i] = i * 125;
+			quantities[i] = 125;
+		}
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 1000, 1000, 1, 1, 8);
+
+		int[][] regStatus = myClient.mbtcReadRegisters(startAddresses, quantities, 0);
+		assertNotNull("I cannot read register values.", regStatus);
+		for (int i = 0; i < blocks; i++) {
+			assertNotNull("I cannot read register block #" + i, regStatus[i]);
+			checkRegisters(regStatus[i], startAddresses[i]);
+		}
+		assertEquals("Requests were sent more than once.", server.getRequestCount(), blocks);
+		myClient.mbtcDisconnect();
+	}
+}
@@ -0,0 +1,135 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusTcpClient;
+
+public class TestModbusTcpClientInputs {
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		for (int i = 0; i < 3000; i++) {
+			server.discreteInputs[i] = (i % 3) == 0;
+			server.inputRegisters[i] = (5 * i) & 0xFFFF;
+			// holding registers and coils differ, so a wrong function code shows up
+			server.holdingRegisters[i] = 7;
+			server.coils[i] = (i % 3) != 0;
+		}
+		server.inputRegisters[2999] = 0xFFFE;
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void test001ReadDiscreteInputs() {
+		ModbusTcpClient myClient = new MyClient(0, "FC02001");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		boolean[] inputs = myClient.mbtcReadDiscreteInputs(100, 2000, 0);
+		assertEquals("Bad number of inputs.", inputs.length, 2000);
+		for (int i = 0; i < inputs.length; i++)
+			assertEquals("Bad value of input " + (100 + i), inputs[i], ((100 + i) % 3) == 0);
+
+		assertNull("Inputs beyond 65535 must be rejected.", myClient.mbtcReadDiscreteInputs(65000, 537, 0));
+		assertEquals("Only one request should be sent.", server.getRequestCount(), 1);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test002ReadInputRegisters() {
+		ModbusTcpClient myClient = new MyClient(0, "FC04002");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		int[] registers = myClient.mbtcReadInputRegisters(2875, 125, 0);
+		for (int i = 0; i < 124; i++)
+			assertEquals("Bad value of input register " + (2875 + i), registers[i], 5 * (2875 + i));
+		// registers are returned signed, as for read holding registers
+		assertEquals("Bad value of input register 2999", registers[124], -2);
+		assertNull("Registers beyond 65535 must be rejected.", myClient.mbtcReadInputRegisters(65500, 37, 0));
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test003ReadIntoBufferAtOffset() {
+		boolean[] bits = new boolean[40];
+		int[] words = new int[40];
+		ModbusTcpClient myClient = new MyClient(0, "FC02003");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		// coils and discrete inputs of one device side by side in one buffer
+		assertEquals("I cannot read coils.", myClient.mbtcReadCoils(0, 20, 0, bits, 0), ModbusTcpClient.RET_OK);
+		assertEquals("I cannot read inputs.", myClient.mbtcReadDiscreteInputs(0, 20, 0, bits, 20), ModbusTcpClient.RET_OK);
+		for (int i = 0; i < 20; i++) {
+			assertEquals("Bad value of coil " + i, bits[i], (i % 3) != 0);
+			assertEquals("Bad value of input " + i, bits[20 + i], (i % 3) == 0);
+		}
+
+		assertEquals("I cannot read registers.", myClient.mbtcReadRegisters(0, 10, 0, words, 5), ModbusTcpClient.RET_OK);
+		assertEquals("I cannot read input registers.", myClient.mbtcReadInputRegisters(10, 10, 0, words, 30), ModbusTcpClient.RET_OK);
+		assertEquals("Buffer before offset was written.", words[4], 0);
+		assertEquals("Bad value of register 0", words[5], 7);
+		assertEquals("Buffer after registers was written.", words[15], 0);
+		assertEquals("Bad value of input register 19", words[39], 95);
+
+		assertEquals("Offset beyond buffer must be rejected.", myClient.mbtcReadInputRegisters(0, 11, 0, words, 30), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Negative offset must be rejected.", myClient.mbtcReadDiscreteInputs(0, 1, 0, bits, -1), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Null buffer must be rejected.", myClient.mbtcReadCoils(0, 1, 0, null, 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Rejected reads must not be sent.", server.getRequestCount(), 4);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test004PipelinedBlocks() {
+		ModbusTcpClient myClient = new MyClient(0, "FC04004");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 2000, 1000, 1, 1, 4);
+		int[][] registers = myClient.mbtcReadInputRegisters(new int[] { 0, 500, 1000, 70000 }, new int[] { 10, 125, 1, 1 }, 0);
+		assertEquals("Bad value of input register 9", registers[0][9], 45);
+		assertEquals("Bad value of input register 624", registers[1][124], 5 * 624);
+		assertEquals("Bad value of input register 1000", registers[2][0], 5000);
+		assertNull("Block out of range must be null.", registers[3]);
+
+		boolean[][] inputs = myClient.mbtcReadDiscreteInputs(new int[] { 0, 1001 }, new int[] { 3, 2 }, 0);
+		assertEquals("Bad inputs 0..2.", inputs[0][0] + "," + inputs[0][1] + "," + inputs[0][2], "true,false,false");
+		assertEquals("Bad inputs 1001..1002.", inputs[1][0] + "," + inputs[1][1], "false,true");
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test005ScanDoesNotAllocate() {
+		com.sun.management.ThreadMXBean amx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		boolean[] bits = new boolean[4000];
+		int[] words = new int[250];
+		ModbusTcpClient myClient = new MyClient(0, "FC04005");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		for (int i = 0; i < 1000; i++) {
+			myClient.mbtcReadDiscreteInputs(0, 2000, 0, bits, 2000);
+			myClient.mbtcReadInputRegisters(0, 125, 0, words, 125);
+		}
+		long before = amx.getThreadAllocatedBytes(Thread.currentThread().getId());
+		for (int i = 0; i < 1000; i++) {
+			myClient.mbtcReadDiscreteInputs(0, 2000, 0, bits, 2000);
+			myClient.mbtcReadInputRegisters(0, 125, 0, words, 125);
+		}
+		long after = amx.getThreadAllocatedBytes(Thread.currentThread().getId());
+		assertTrue("Scan allocated " + (after - before) + " bytes", after - before < 5000);
+		assertEquals("Bad value of input register 124", words[249], 620);
+		myClient.mbtcDisconnect();
+	}
+}
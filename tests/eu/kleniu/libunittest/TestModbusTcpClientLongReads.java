@@ -0,0 +1,177 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusCapabilityCache;
+import eu.kleniu.modbuslib.ModbusTcpClient;
+import eu.kleniu.modbuslib.ModbusTcpClientPool;
+import eu.kleniu.modbuslib.ModbusTcpConcurrentClient;
+
+public class TestModbusTcpClientLongReads {
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		for (int i = 0; i < 65536; i++) {
+			server.holdingRegisters[i] = i & 0x7FFF;
+			server.inputRegisters[i] = (3 * i) & 0x7FFF;
+			server.coils[i] = (i % 7) == 0;
+			server.discreteInputs[i] = (i % 5) == 0;
+		}
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void test001WholeMapPipelined() {
+		int[] registers = new int[65536];
+		ModbusTcpClient myClient = new MyClient(0, "LONG001");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 2000, 1000, 1, 1, 8);
+		assertEquals("I cannot read the whole map.", myClient.mbtcReadRegisters(0, 65536, 0, registers), ModbusTcpClient.RET_OK);
+		// 524 x 125 + 36
+		assertEquals("Bad number of requests.", server.getRequestCount(), 525);
+		for (int i = 0; i < registers.length; i++)
+			assertEquals("Bad value of register " + i, registers[i], i & 0x7FFF);
+
+		int[] inputs = myClient.mbtcReadInputRegisters(60000, 5536, 0);
+		for (int i = 0; i < inputs.length; i++)
+			assertEquals("Bad value of input register " + (60000 + i), inputs[i], (3 * (60000 + i)) & 0x7FFF);
+		assertNull("Registers beyond 65535 must be rejected.", myClient.mbtcReadRegisters(1, 65536, 0));
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test002BitsOneByOneWithOffset() {
+		boolean[] coils = new boolean[5010];
+		ModbusTcpClient myClient = new MyClient(0, "LONG002");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("I cannot read coils.", myClient.mbtcReadCoils(1, 5000, 0, coils, 10), ModbusTcpClient.RET_OK);
+		assertEquals("Bad number of requests.", server.getRequestCount(), 3);
+		for (int i = 0; i < 5000; i++)
+			assertEquals("Bad value of coil " + (1 + i), coils[10 + i], ((1 + i) % 7) == 0);
+
+		boolean[] inputs = myClient.mbtcReadDiscreteInputs(63000, 2536, 0);
+		for (int i = 0; i < inputs.length; i++)
+			assertEquals("Bad value of input " + (63000 + i), inputs[i], ((63000 + i) % 5) == 0);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test003ChunksAreInFlightTogether() {
+		int[] registers = new int[600];
+		ModbusTcpClient myClient = new MyClient(0, "LONG003");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 2000, 1000, 1, 1, 8);
+		assertEquals("I cannot connect.", myClient.mbtcConnect(), ModbusTcpClient.RET_OK);
+
+		// slow PLC answering in any order - one by one 5 chunks would take 5 x 300 ms
+		server.setReorderResponses(true);
+		server.delayResponses(5, 300);
+		long start = System.currentTimeMillis();
+		assertEquals("I cannot read registers.", myClient.mbtcReadRegisters(1000, 600, 0, registers), ModbusTcpClient.RET_OK);
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue("Chunks were not pipelined, it took " + elapsed + " ms", elapsed < 900);
+		assertEquals("Chunks were sent more than once.", server.getRequestCount(), 5);
+		for (int i = 0; i < registers.length; i++)
+			assertEquals("Bad value of register " + (1000 + i), registers[i], 1000 + i);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test004ExceptionInOneChunk() {
+		int[] registers = new int[1000];
+		ModbusTcpClient myClient = new MyClient(0, "LONG004");
+
+		server.illegalRegisters.set(300);
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 2000, 1000, 1, 1, 4);
+		assertEquals("Exception response expected.", myClient.mbtcReadRegisters(0, 1000, 0, registers), ModbusTcpClient.RET_ERRXRE);
+
+		// responses still in flight must not confuse the next read
+		int[] next = myClient.mbtcReadRegisters(5000, 10, 0);
+		for (int i = 0; i < next.length; i++)
+			assertEquals("Bad value of register " + (5000 + i), next[i], 5000 + i);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test005PipelinedChunksDoNotAllocate() {
+		com.sun.management.ThreadMXBean amx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		int[] registers = new int[1000];
+		boolean[] coils = new boolean[10000];
+		ModbusTcpClient myClient = new MyClient(0, "LONG005");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 2000, 1000, 1, 1, 8);
+		for (int i = 0; i < 200; i++) {
+			myClient.mbtcReadRegisters(0, 1000, 0, registers);
+			myClient.mbtcReadCoils(0, 10000, 0, coils);
+		}
+		long before = amx.getThreadAllocatedBytes(Thread.currentThread().getId());
+		for (int i = 0; i < 200; i++) {
+			myClient.mbtcReadRegisters(0, 1000, 0, registers);
+			myClient.mbtcReadCoils(0, 10000, 0, coils);
+		}
+		long after = amx.getThreadAllocatedBytes(Thread.currentThread().getId());
+		assertTrue("Long reads allocated " + (after - before) + " bytes", after - before < 5000);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test006PoolAndConcurrentClient() {
+		ModbusTcpClientPool myPool = new TestModbusTcpClientPool.MyPool(2, 0, "LONG006P");
+		ModbusTcpConcurrentClient myClient = new TestModbusTcpConcurrentClient.MyConcurrentClient(0, "LONG006C");
+
+		myPool.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 2000, 1000, 1, 1, 4);
+		int[] registers = myPool.mbtcReadRegisters(100, 1000, 0);
+		for (int i = 0; i < registers.length; i++)
+			assertEquals("Bad value of register " + (100 + i), registers[i], 100 + i);
+		myPool.mbtcDisconnect();
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 2000, 1000, 1, 1, 4);
+		boolean[] coils = myClient.mbtcReadCoils(7, 4500, 0);
+		for (int i = 0; i < coils.length; i++)
+			assertEquals("Bad value of coil " + (7 + i), coils[i], ((7 + i) % 7) == 0);
+		registers = myClient.mbtcReadRegisters(200, 300, 0);
+		for (int i = 0; i < registers.length; i++)
+			assertEquals("Bad value of register " + (200 + i), registers[i], 200 + i);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test007ChunksFollowDeviceCapabilities() {
+		int[] registers = new int[2000];
+		ModbusTcpClient myClient = new MyClient(0, "LONG007");
+
+		myClient.mbtcSetCapabilityCache(new ModbusCapabilityCache());
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 2000, 1000, 1, 1, 4);
+		server.maxReadRegisters = 64;
+		myClient.mbtcGetCapabilities(0).setMaxReadRegisters(64);
+		assertEquals("I cannot read in chunks of 64.", myClient.mbtcReadRegisters(0, 1000, 0, registers), ModbusTcpClient.RET_OK);
+		assertEquals("Bad number of requests.", server.getRequestCount(), (1000 + 63) / 64);
+		for (int i = 0; i < 1000; i++)
+			assertEquals("Bad value of register " + i, registers[i], i);
+
+		// more chunks than of the specification limit
+		myClient.mbtcGetCapabilities(0).setMaxReadRegisters(3);
+		assertEquals("I cannot read in chunks of 3.", myClient.mbtcReadRegisters(10, 2000, 0, registers), ModbusTcpClient.RET_OK);
+		for (int i = 0; i < 2000; i++)
+			assertEquals("Bad value of register " + (10 + i), registers[i], 10 + i);
+		myClient.mbtcDisconnect();
+	}
+}
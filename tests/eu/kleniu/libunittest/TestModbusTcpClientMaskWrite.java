@@ -0,0 +1,88 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusTcpClient;
+
+public class TestModbusTcpClientMaskWrite {
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		server.holdingRegisters[4] = 0x0012;
+		server.holdingRegisters[10] = 0xFF00;
+		server.holdingRegisters[11] = 0x00FF;
+		server.holdingRegisters[12] = 0x5555;
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void test001MaskWrite() {
+		ModbusTcpClient myClient = new MyClient(0, "FC22001");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		// example from MODBUS specification: 0x12 AND 0xF2 OR 0x25 gives 0x17
+		assertEquals("I cannot mask write register.", myClient.mbtcMaskWriteRegister(4, 0x00F2, 0x0025, 0), ModbusTcpClient.RET_OK);
+		assertEquals("Bad value of register 4", server.holdingRegisters[4], 0x0017);
+		assertEquals("Address beyond 65535 must be rejected.", myClient.mbtcMaskWriteRegister(65536, 0, 0, 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Bad number of requests.", server.getRequestCount(), 1);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test002SeveralBitsOfOneWord() {
+		ModbusTcpClient myClient = new MyClient(0, "FC22002");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("I cannot write bits.", myClient.mbtcWriteRegisterBits(10, 0x0003, 0x0300, 0), ModbusTcpClient.RET_OK);
+		assertEquals("Bad value of register 10", server.holdingRegisters[10], 0xFC03);
+		assertEquals("Bit both set and cleared must be rejected.", myClient.mbtcWriteRegisterBits(10, 0x0001, 0x0001, 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Bad number of requests.", server.getRequestCount(), 1);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test003EditsAreMergedPerWord() {
+		ModbusTcpClient myClient = new MyClient(0, "FC22003");
+		int[] addresses = { 10, 11, 10, 12, 11, 10 };
+		int[] bits = { 15, 0, 0, 0, 8, 15 };
+		boolean[] states = { false, false, true, false, true, true };
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 2000, 1000, 1, 1, 4);
+		assertEquals("I cannot write bits.", myClient.mbtcWriteRegisterBits(addresses, bits, states, 0), ModbusTcpClient.RET_OK);
+		assertEquals("One request per register.", server.getRequestCount(), 3);
+		// last edit of bit 15 wins
+		assertEquals("Bad value of register 10", server.holdingRegisters[10], 0xFF01);
+		assertEquals("Bad value of register 11", server.holdingRegisters[11], 0x01FE);
+		assertEquals("Bad value of register 12", server.holdingRegisters[12], 0x5554);
+
+		assertEquals("Bit 16 must be rejected.", myClient.mbtcWriteRegisterBits(new int[] { 1 }, new int[] { 16 }, new boolean[] { true }, 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Different lengths must be rejected.", myClient.mbtcWriteRegisterBits(new int[] { 1, 2 }, new int[] { 1 }, new boolean[] { true }, 0), ModbusTcpClient.RET_ERRRAN);
+		assertTrue("Nothing more must be sent.", server.getRequestCount() == 3);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test004EditsOneByOne() {
+		ModbusTcpClient myClient = new MyClient(0, "FC22004");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("I cannot write bits.", myClient.mbtcWriteRegisterBits(new int[] { 11, 12, 11 }, new int[] { 1, 1, 2 }, new boolean[] { false, true, false }, 0), ModbusTcpClient.RET_OK);
+		assertEquals("One request per register.", server.getRequestCount(), 2);
+		assertEquals("Bad value of register 11", server.holdingRegisters[11], 0x00F9);
+		assertEquals("Bad value of register 12", server.holdingRegisters[12], 0x5557);
+		myClient.mbtcDisconnect();
+	}
+}
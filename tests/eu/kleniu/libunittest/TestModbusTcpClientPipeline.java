@@ -0,0 +1,103 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusTcpClient;
+
+public class TestModbusTcpClientPipeline {
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		for (int i = 0; i < 1000; i++)
+			server.holdingRegisters[i] = i * 3;
+		for (int i = 0; i < 1000; i++)
+			server.coils[i] = (i % 3) == 0;
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void test001PipelinedReadRegistersOutOfOrder() {
+		int retVal = 0;
+		int blocks = 40;
+		int[] startAddresses = new int[blocks];
+		int[] quantities = new int[blocks];
+		ModbusTcpClient myClient = new MyClient(0, "PIPE001");
+
+		server.setReorderResponses(true);
+		for (int i = 0; i < blocks; i++) {
+			startAddresses[i] = i * 20;
+			quantities[i] = 10 + (i % 10);
+		}
+
+		retVal = myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 1000, 1000, 1, 1, 8);
+		assertEquals("I cannot setup TCP connection.", retVal, ModbusTcpClient.RET_OK);
+
+		int[][] regStatus = myClient.mbtcReadRegisters(startAddresses, quantities, 0);
+		assertNotNull("I cannot read register values.", regStatus);
+		for (int i = 0; i < blocks; i++) {
+			assertNotNull("I cannot read register block #" + i, regStatus[i]);
+			assertEquals("Bad size of register block #" + i, regStatus[i].length, quantities[i]);
+			for (int j = 0; j < quantities[i]; j++)
+				assertEquals("Bad value of register " + (startAddresses[i] + j), regStatus[i][j], (startAddresses[i] + j) * 3);
+		}
+		assertEquals("Requests were sent more than once.", server.getRequestCount(), blocks);
+
+		retVal = myClient.mbtcDisconnect();
+		assertEquals("I cannot close connection.", retVal, ModbusTcpClient.RET_OK);
+	}
+
+	@Test
+	public void test002PipelinedReadCoils() {
+		int retVal = 0;
+		int[] startAddresses = { 0, 17, 100, 333, 900 };
+		int[] quantities = { 8, 30, 1, 64, 100 };
+		ModbusTcpClient myClient = new MyClient(0, "PIPE002");
+
+		retVal = myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 1000, 1000, 1, 1, 4);
+		assertEquals("I cannot setup TCP connection.", retVal, ModbusTcpClient.RET_OK);
+
+		boolean[][] coilStatus = myClient.mbtcReadCoils(startAddresses, quantities, 0);
+		assertNotNull("I cannot read coil status.", coilStatus);
+		for (int i = 0; i < startAddresses.length; i++) {
+			boolean[] expected = new boolean[quantities[i]];
+			for (int j = 0; j < quantities[i]; j++)
+				expected[j] = server.coils[startAddresses[i] + j];
+			assertArrayEquals("Bad status of coil block #" + i, coilStatus[i], expected);
+		}
+
+		retVal = myClient.mbtcDisconnect();
+		assertEquals("I cannot close connection.", retVal, ModbusTcpClient.RET_OK);
+	}
+
+	@Test
+	public void test003BadBlockDoesNotStopOthers() {
+		int[] startAddresses = { 0, 10, 20 };
+		int[] quantities = { 5, 500, 5 }; // 500 registers is out of range
+		ModbusTcpClient myClient = new MyClient(0, "PIPE003");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 1000, 1000, 1, 1, 8);
+
+		int[][] regStatus = myClient.mbtcReadRegisters(startAddresses, quantities, 0);
+		assertNotNull("I cannot read register values.", regStatus);
+		assertNotNull("I cannot read first block.", regStatus[0]);
+		assertEquals("Out of range block must be null.", regStatus[1], null);
+		assertNotNull("I cannot read last block.", regStatus[2]);
+		assertEquals("Bad value of register 20", regStatus[2][0], 60);
+
+		myClient.mbtcDisconnect();
+	}
+}
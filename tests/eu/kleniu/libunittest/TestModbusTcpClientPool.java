@@ -0,0 +1,122 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusTcpClient;
+import eu.kleniu.modbuslib.ModbusTcpClientPool;
+
+public class TestModbusTcpClientPool {
+
+	ModbusTestServer server;
+
+	static class MyPool extends ModbusTcpClientPool {
+		String tag;
+
+		MyPool(int poolSize, int debugLevel, String tag) {
+			super(poolSize, debugLevel);
+			this.tag = tag;
+		}
+
+		@Override
+		public void displayLog(String debMsg) {
+			System.out.println(tag + ": " + debMsg);
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		for (int i = 0; i < 1000; i++)
+			server.holdingRegisters[i] = i * 2;
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void test001ManyThreadsShareConnections() throws Exception {
+		final ModbusTcpClientPool myPool = new MyPool(4, 0, "POOL001");
+		final AtomicInteger errors = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+
+		assertEquals("I cannot setup pool.", myPool.mbtcSetup("127.0.0.1", server.getPort()), ModbusTcpClient.RET_OK);
+		assertEquals("I cannot connect pool.", myPool.mbtcConnect(), ModbusTcpClient.RET_OK);
+		assertEquals("Not all members are connected.", myPool.mbtcConnectedCount(), 4);
+
+		for (int t = 0; t < 8; t++) {
+			final int base = t * 100;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					int[] registers = new int[10];
+					for (int i = 0; i < 200; i++) {
+						int start = base + (i % 90);
+						if (myPool.mbtcReadRegisters(start, 10, 0, registers) != ModbusTcpClient.RET_OK || registers[0] != start * 2)
+							errors.incrementAndGet();
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads)
+			thread.join(30000);
+
+		assertEquals("Some requests failed.", errors.get(), 0);
+		assertEquals("Pool opened more connections than its size.", server.getConnectionCount(), 4);
+		assertEquals("Requests were retried.", server.getRequestCount(), 8 * 200);
+
+		assertEquals("I cannot write register.", myPool.mbtcWriteSingleRegister(5000, 77, 0), ModbusTcpClient.RET_OK);
+		assertEquals("Register was not written.", server.holdingRegisters[5000], 77);
+		assertEquals("I cannot disconnect pool.", myPool.mbtcDisconnect(), ModbusTcpClient.RET_OK);
+	}
+
+	@Test
+	public void test002DeadMembersAreReplaced() throws Exception {
+		ModbusTcpClientPool myPool = new MyPool(3, 0, "POOL002");
+		int port = server.getPort();
+
+		myPool.mbtcSetup("127.0.0.1", port, 1, 1, 200, 200);
+		assertEquals("I cannot connect pool.", myPool.mbtcConnect(), ModbusTcpClient.RET_OK);
+
+		// PLC goes down - every member fails and goes to replacement
+		server.stop();
+		for (int i = 0; i < 3; i++)
+			assertNull("Read must fail while PLC is down.", myPool.mbtcReadRegisters(0, 1, 0));
+		assertEquals("Dead members are still in use.", myPool.mbtcConnectedCount(), 0);
+		assertEquals("Request must fail fast when all members are dead.", myPool.mbtcWriteSingleCoil(1, true, 0), ModbusTcpClient.RET_ERRBRE);
+
+		// PLC is back - background thread brings members back
+		server = new ModbusTestServer(port);
+		server.holdingRegisters[7] = 1234;
+		server.start();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (myPool.mbtcConnectedCount() < 3 && System.currentTimeMillis() < deadline)
+			Thread.sleep(50);
+		assertEquals("Dead members were not replaced.", myPool.mbtcConnectedCount(), 3);
+
+		int[] registers = myPool.mbtcReadRegisters(7, 1, 0);
+		assertNotNull("I cannot read after replacement.", registers);
+		assertEquals("Bad value of register 7", registers[0], 1234);
+		// connections may still wait in the accept queue of the server
+		while (server.getConnectionCount() < 3 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		Thread.sleep(100);
+		assertEquals("Replacements opened extra connections.", server.getConnectionCount(), 3);
+
+		myPool.mbtcDisconnect();
+	}
+}
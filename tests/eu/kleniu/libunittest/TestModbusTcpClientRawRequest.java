@@ -0,0 +1,118 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusTcpClient;
+import eu.kleniu.modbuslib.ModbusTcpClientPool;
+
+public class TestModbusTcpClientRawRequest {
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		for (int i = 0; i < 10; i++)
+			server.holdingRegisters[i] = 100 + i;
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void test001ReadRegistersThroughRawRequest() {
+		ByteBuffer request = ByteBuffer.allocate(5);
+		ByteBuffer response = ByteBuffer.allocate(253);
+		ModbusTcpClient myClient = new MyClient(0, "RAW001");
+
+		request.put((byte) 0x03).putShort((short) 2).putShort((short) 3).flip();
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("Bad response length.", myClient.mbtcRawRequest(request, response, 0), 8);
+		assertEquals("Request position was changed.", request.position(), 0);
+		assertEquals("Bad response limit.", response.limit(), 8);
+		assertEquals("Bad function code.", response.get(0), 0x03);
+		assertEquals("Bad byte count.", response.get(1), 6);
+		assertEquals("Bad value of register 2", response.getShort(2), 102);
+		assertEquals("Bad value of register 4", response.getShort(6), 104);
+
+		// the same request buffer can be sent again
+		assertEquals("Bad response length.", myClient.mbtcRawRequest(request, response, 0), 8);
+		assertEquals("Bad number of requests.", server.getRequestCount(), 2);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test002VendorFunctionGetsExceptionResponse() {
+		ByteBuffer request = ByteBuffer.wrap(new byte[] { 0x41, 0x01, 0x02 });
+		ByteBuffer response = ByteBuffer.allocateDirect(253);
+		ModbusTcpClient myClient = new MyClient(0, "RAW002");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("Exception response expected.", myClient.mbtcRawRequest(request, response, 0), -ModbusTcpClient.RET_ERRXRE);
+		assertEquals("Bad exception function code.", response.get(0) & 0xFF, 0xC1);
+		assertEquals("Bad exception code.", response.get(1), 1);
+		assertEquals("Exception response must not be retried.", server.getRequestCount(), 1);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test003RangeChecks() {
+		ByteBuffer request = ByteBuffer.wrap(new byte[] { 0x08, 0, 0, 0x12, 0x34 });
+		ModbusTcpClient myClient = new MyClient(0, "RAW003");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("Null request must be rejected.", myClient.mbtcRawRequest(null, ByteBuffer.allocate(253), 0), -ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Empty request must be rejected.", myClient.mbtcRawRequest(ByteBuffer.allocate(0), ByteBuffer.allocate(253), 0), -ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Too long request must be rejected.", myClient.mbtcRawRequest(ByteBuffer.allocate(254), ByteBuffer.allocate(253), 0), -ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Small response buffer must be rejected.", myClient.mbtcRawRequest(request, ByteBuffer.allocate(100), 0), -ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Read-only response buffer must be rejected.", myClient.mbtcRawRequest(request, ByteBuffer.allocate(253).asReadOnlyBuffer(), 0), -ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Nothing must be sent.", server.getRequestCount(), 0);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test004RawRequestDoesNotAllocate() {
+		com.sun.management.ThreadMXBean amx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		ByteBuffer request = ByteBuffer.allocateDirect(5);
+		ByteBuffer response = ByteBuffer.allocateDirect(253);
+		ModbusTcpClient myClient = new MyClient(0, "RAW004");
+
+		request.put((byte) 0x08).putShort((short) 0).putShort((short) 0x55AA).flip();
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		for (int i = 0; i < 2000; i++)
+			myClient.mbtcRawRequest(request, response, 0);
+		long before = amx.getThreadAllocatedBytes(Thread.currentThread().getId());
+		for (int i = 0; i < 2000; i++)
+			assertEquals("Bad echo length.", myClient.mbtcRawRequest(request, response, 0), 5);
+		long after = amx.getThreadAllocatedBytes(Thread.currentThread().getId());
+		assertTrue("Raw requests allocated " + (after - before) + " bytes", after - before < 5000);
+		assertEquals("Bad echo data.", response.getShort(3), 0x55AA);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test005PoolRawRequest() {
+		ByteBuffer request = ByteBuffer.wrap(new byte[] { 0x06, 0, 9, 0, 42 });
+		ByteBuffer response = ByteBuffer.allocate(253);
+		ModbusTcpClientPool myPool = new TestModbusTcpClientPool.MyPool(2, 0, "RAW005");
+
+		myPool.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("I cannot connect pool.", myPool.mbtcConnect(), ModbusTcpClient.RET_OK);
+		assertEquals("Bad response length.", myPool.mbtcRawRequest(request, response, 0), 5);
+		assertEquals("Bad value of register 9", server.holdingRegisters[9], 42);
+		assertEquals("Exception response expected.", myPool.mbtcRawRequest(ByteBuffer.wrap(new byte[] { 0x41 }), response, 0), -ModbusTcpClient.RET_ERRXRE);
+		assertEquals("Member must stay alive after exception response.", myPool.mbtcConnectedCount(), 2);
+		myPool.mbtcDisconnect();
+	}
+}
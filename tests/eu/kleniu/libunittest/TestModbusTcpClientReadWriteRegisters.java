@@ -0,0 +1,78 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusTcpClient;
+
+public class TestModbusTcpClientReadWriteRegisters {
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		for (int i = 0; i < 200; i++)
+			server.holdingRegisters[i] = 1000 + i;
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void test001SetpointAndFeedbackInOneRequest() {
+		int[] feedback = new int[10];
+		ModbusTcpClient myClient = new MyClient(0, "FC23001");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		int retVal = myClient.mbtcReadWriteRegisters(100, 4, feedback, 6, 10, new int[] { 555, -1 }, 0);
+		assertEquals("I cannot read/write registers.", retVal, ModbusTcpClient.RET_OK);
+		assertEquals("Setpoint was not written.", server.holdingRegisters[10], 555);
+		assertEquals("Second setpoint was not written.", server.holdingRegisters[11], 0xFFFF);
+		assertEquals("Buffer before offset was written.", feedback[5], 0);
+		for (int i = 0; i < 4; i++)
+			assertEquals("Bad value of register " + (100 + i), feedback[6 + i], 1100 + i);
+		assertEquals("It must be one round trip.", server.getRequestCount(), 1);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test002WriteIsDoneBeforeRead() {
+		ModbusTcpClient myClient = new MyClient(0, "FC23002");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		int[] registers = myClient.mbtcReadWriteRegisters(0, 3, 1, new int[] { 7 }, 0);
+		assertEquals("Bad value of register 0", registers[0], 1000);
+		assertEquals("Written value was not read back.", registers[1], 7);
+		assertEquals("Bad value of register 2", registers[2], 1002);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test003RangeChecks() {
+		int[] buffer = new int[125];
+		ModbusTcpClient myClient = new MyClient(0, "FC23003");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("122 written registers must be rejected.", myClient.mbtcReadWriteRegisters(0, 1, buffer, 0, 0, new int[122], 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("126 read registers must be rejected.", myClient.mbtcReadWriteRegisters(0, 126, new int[126], 0, 0, new int[1], 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Write beyond 65535 must be rejected.", myClient.mbtcReadWriteRegisters(0, 1, buffer, 0, 65535, new int[2], 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Read beyond 65535 must be rejected.", myClient.mbtcReadWriteRegisters(65535, 2, buffer, 0, 0, new int[1], 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Nothing to write must be rejected.", myClient.mbtcReadWriteRegisters(0, 1, buffer, 0, 0, new int[0], 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Small buffer must be rejected.", myClient.mbtcReadWriteRegisters(0, 10, buffer, 120, 0, new int[1], 0), ModbusTcpClient.RET_ERRRAN);
+		assertNull("Null values must be rejected.", myClient.mbtcReadWriteRegisters(0, 1, 0, null, 0));
+		assertEquals("Nothing must be sent.", server.getRequestCount(), 0);
+
+		// largest request - 10 + 242 bytes PDU
+		assertEquals("Largest request failed.", myClient.mbtcReadWriteRegisters(0, 125, buffer, 0, 65415, new int[121], 0), ModbusTcpClient.RET_OK);
+		assertEquals("Bad value of register 124", buffer[124], 1124);
+		myClient.mbtcDisconnect();
+	}
+}
@@ -0,0 +1,87 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusEventLoopGroup;
+import eu.kleniu.modbuslib.ModbusTcpAsyncClient;
+import eu.kleniu.modbuslib.ModbusTcpClient;
+
+public class TestModbusTcpClientResync {
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		for (int i = 0; i < 1000; i++)
+			server.holdingRegisters[i] = i + 11;
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void test001LateResponseIsDropped() throws Exception {
+		ModbusTcpClient myClient = new MyClient(0, "RESYNC001");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 300, 1000);
+		myClient.mbtcConnect();
+
+		// first response comes after the timeout, the retry must not wait for a drain
+		server.delayResponses(1, 400);
+		long start = System.currentTimeMillis();
+		int[] registers = myClient.mbtcReadRegisters(10, 2, 0);
+		long elapsed = System.currentTimeMillis() - start;
+		assertNotNull("I cannot read registers after timeout.", registers);
+		assertEquals("Bad value of register 10", registers[0], 21);
+		assertTrue("Retry waited for drain, it took " + elapsed + " ms", elapsed < 550);
+
+		// late response to the first request is in the stream now
+		Thread.sleep(300);
+		start = System.currentTimeMillis();
+		registers = myClient.mbtcReadRegisters(500, 3, 0);
+		elapsed = System.currentTimeMillis() - start;
+		assertNotNull("I cannot read registers after late response.", registers);
+		assertEquals("Stale response was taken", registers.length, 3);
+		assertEquals("Bad value of register 500", registers[0], 511);
+		assertTrue("Read after late response took " + elapsed + " ms", elapsed < 250);
+		assertEquals("Connection was dropped or request retried.", server.getRequestCount(), 3);
+
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test002GarbageBetweenFrames() throws Exception {
+		ModbusTcpClient myClient = new MyClient(0, "RESYNC002");
+		ModbusEventLoopGroup group = new ModbusEventLoopGroup(1);
+		ModbusTcpAsyncClient myAsyncClient = new TestModbusTcpAsyncClient.MyAsyncClient(group, 0, "RESYNC002");
+
+		server.setGarbageBeforeResponses(3);
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 300, 1000);
+		myAsyncClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 300, 1000);
+
+		for (int i = 0; i < 10; i++) {
+			int[] registers = myClient.mbtcReadRegisters(i * 10, 10, 0);
+			assertNotNull("I cannot read registers #" + i, registers);
+			assertEquals("Bad value of register " + (i * 10), registers[0], i * 10 + 11);
+		}
+		int[] registers = myAsyncClient.mbtcReadRegistersAsync(100, 10, 0).get(5, TimeUnit.SECONDS);
+		assertNotNull("I cannot read registers asynchronously.", registers);
+		assertEquals("Bad value of register 100", registers[0], 111);
+		assertEquals("Requests were retried.", server.getRequestCount(), 11);
+
+		myClient.mbtcDisconnect();
+		group.shutdown();
+	}
+}
@@ -0,0 +1,124 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusTcpClient;
+import eu.kleniu.modbuslib.ModbusTraceEvent;
+import eu.kleniu.modbuslib.ModbusTracer;
+
+public class TestModbusTcpClientTracer {
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		for (int i = 0; i < 200; i++)
+			server.holdingRegisters[i] = 1000 + i;
+		server.coils[2] = true;
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void test001StructuredEvents() {
+		final List<String> registers = new ArrayList<String>();
+		final List<String> coils = new ArrayList<String>();
+		final List<String> responses = new ArrayList<String>();
+		ModbusTcpClient myClient = new MyClient(0, "TRC001");
+
+		myClient.mbtcSetTracer(new ModbusTracer() {
+			@Override
+			public void trace(ModbusTraceEvent event) {
+				if (event.type() == ModbusTraceEvent.REGISTER)
+					registers.add(event.arg0() + "=" + event.arg1());
+				else if (event.type() == ModbusTraceEvent.COIL)
+					coils.add(event.arg0() + "=" + event.arg1());
+				else if (event.type() == ModbusTraceEvent.RESPONSE)
+					responses.add(event.toString());
+			}
+		});
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		myClient.mbtcReadRegisters(10, 2, 0);
+		myClient.mbtcReadCoils(0, 3, 0);
+
+		assertEquals("Bad register events.", registers.toString(), "[0=1010, 1=1011]");
+		assertEquals("Bad coil events.", coils.toString(), "[0=0, 1=0, 2=1]");
+		assertEquals("Bad number of response events.", responses.size(), 2);
+		// FC 03, 4 bytes, 1010 = 0x03f2, 1011 = 0x03f3
+		assertTrue("Bad response event: " + responses.get(0),
+				responses.get(0).startsWith("DEBUG(") && responses.get(0).endsWith("unit ID = 0, PDU: 030403f203f3"));
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test002DebugLevelUsesDisplayLog() {
+		final List<String> messages = new ArrayList<String>();
+		ModbusTcpClient myClient = new ModbusTcpClient(9) {
+			@Override
+			public void displayLog(String debMsg) {
+				messages.add(debMsg);
+			}
+		};
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		myClient.mbtcReadRegisters(0, 125, 0, new int[130]);
+		assertTrue("There are no debug messages.", messages.size() > 125);
+		boolean found = false;
+		for (String msg : messages)
+			found |= msg.endsWith("mbtcReadRegisters: register 124 = 1124");
+		assertTrue("Register 124 is missing in debug messages.", found);
+
+		// tracing switched off
+		messages.clear();
+		myClient.mbtcSetTracer(null);
+		myClient.mbtcReadRegisters(0, 125, 0, new int[130]);
+		assertEquals("Tracing is off, but displayLog was called.", messages.size(), 0);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test003TracerWithoutFormattingDoesNotAllocate() {
+		com.sun.management.ThreadMXBean amx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		final long[] sum = new long[1];
+		int[] registers = new int[100];
+		boolean[] coils = new boolean[500];
+		ModbusTcpClient myClient = new MyClient(0, "TRC003");
+
+		// events are counted, never formatted
+		myClient.mbtcSetTracer(new ModbusTracer() {
+			@Override
+			public void trace(ModbusTraceEvent event) {
+				sum[0] += event.arg1();
+			}
+		});
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		for (int i = 0; i < 2000; i++) {
+			myClient.mbtcReadRegisters(0, 100, 0, registers);
+			myClient.mbtcReadCoils(0, 500, 0, coils);
+		}
+		long before = amx.getThreadAllocatedBytes(Thread.currentThread().getId());
+		for (int i = 0; i < 2000; i++) {
+			myClient.mbtcReadRegisters(0, 100, 0, registers);
+			myClient.mbtcReadCoils(0, 500, 0, coils);
+		}
+		long after = amx.getThreadAllocatedBytes(Thread.currentThread().getId());
+		assertTrue("Tracing allocated " + (after - before) + " bytes", after - before < 5000);
+		assertTrue("There were no trace events.", sum[0] > 0);
+
+		myClient.mbtcDisconnect();
+	}
+}
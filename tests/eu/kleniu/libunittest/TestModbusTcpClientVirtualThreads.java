@@ -0,0 +1,141 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusTcpClient;
+
+/**
+ * Blocking I/O mode (8th mbtcSetup parameter = 1) is made for one virtual thread per device.
+ * On Java 21+ the scale test runs 10000 device loops in virtual threads, on older Java
+ * it falls back to fewer platform threads.
+ */
+public class TestModbusTcpClientVirtualThreads {
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		for (int i = 0; i < 10000; i++)
+			server.holdingRegisters[i] = i & 0x7FFF;
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	// Executors.newVirtualThreadPerTaskExecutor() if this Java has virtual threads
+	private static ExecutorService virtualThreadExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	// both ends of every connection live in this JVM, so keep some descriptors spare
+	private static int maxDevices(int wanted) {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+			long maxFds = ((com.sun.management.UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+			return (int) Math.min(wanted, (maxFds - 1000) / 2);
+		}
+		return wanted;
+	}
+
+	@Test
+	public void test001DeviceLoopsAtScale() throws Exception {
+		ExecutorService executor = virtualThreadExecutor();
+		final int devices;
+		final int scans = 5;
+		final AtomicInteger errors = new AtomicInteger();
+		final AtomicInteger done = new AtomicInteger();
+
+		if (executor != null) {
+			devices = maxDevices(10000);
+		}
+		else {
+			devices = maxDevices(500);
+			executor = Executors.newFixedThreadPool(devices);
+		}
+		System.out.println("TestModbusTcpClientVirtualThreads: " + devices + " devices, "
+				+ (devices >= 1000 ? "virtual threads" : "platform threads"));
+
+		for (int d = 0; d < devices; d++) {
+			final int device = d;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					ModbusTcpClient myClient = new MyClient(0, "VT");
+					int[] registers = new int[4];
+					myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 3, 10000, 10000, 1, 1, 1, 1);
+					for (int scan = 0; scan < scans; scan++) {
+						if (myClient.mbtcReadRegisters(device, 4, 0, registers) != ModbusTcpClient.RET_OK || registers[0] != device)
+							errors.incrementAndGet();
+					}
+					if (myClient.mbtcWriteSingleCoil(device, true, 0) != ModbusTcpClient.RET_OK)
+						errors.incrementAndGet();
+					myClient.mbtcDisconnect();
+					done.incrementAndGet();
+				}
+			});
+		}
+		executor.shutdown();
+		assertTrue("Device loops did not finish.", executor.awaitTermination(120, TimeUnit.SECONDS));
+
+		assertEquals("Not all device loops finished.", done.get(), devices);
+		assertEquals("Some requests failed.", errors.get(), 0);
+		for (int d = 0; d < devices; d++)
+			assertTrue("Coil " + d + " was not written.", server.coils[d]);
+	}
+
+	@Test
+	public void test002WatchdogKeepsTimeout() throws Exception {
+		ServerSocket silent = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+		ModbusTcpClient myClient = new MyClient(0, "VT002");
+
+		// connection is accepted by the backlog, but nobody ever answers
+		myClient.mbtcSetup("127.0.0.1", silent.getLocalPort(), 2, 0, 200, 1000, 1, 1, 1, 1);
+		long start = System.currentTimeMillis();
+		assertNull("There must be no response.", myClient.mbtcReadRegisters(0, 1, 0));
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("Blocking read must give up after SO_TIMEOUT, it took " + elapsed + " ms", elapsed >= 190 && elapsed < 1500);
+
+		myClient.mbtcDisconnect();
+		silent.close();
+	}
+
+	@Test
+	public void test003BlockingModeKeepsPipelining() {
+		int[] startAddresses = { 0, 100, 200, 300 };
+		int[] quantities = { 125, 125, 125, 125 };
+		ModbusTcpClient myClient = new MyClient(0, "VT003");
+
+		server.setReorderResponses(true);
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 1000, 1000, 1, 1, 4, 1);
+		int[][] regStatus = myClient.mbtcReadRegisters(startAddresses, quantities, 0);
+		for (int i = 0; i < startAddresses.length; i++)
+			assertEquals("Bad value of register " + (startAddresses[i] + 124), regStatus[i][124], startAddresses[i] + 124);
+		assertEquals("Requests were retried.", server.getRequestCount(), 4);
+		myClient.mbtcDisconnect();
+	}
+}
@@ -0,0 +1,147 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusTcpClient;
+
+public class TestModbusTcpClientWriteCoils {
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		for (int i = 0; i < 5000; i++)
+			server.coils[i] = true;
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void test001ResetOutputsInOneRequest() {
+		ModbusTcpClient myClient = new MyClient(0, "FC15001");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("I cannot write coils.", myClient.mbtcWriteCoils(100, new BitSet(), 800, 0), ModbusTcpClient.RET_OK);
+		assertEquals("800 coils must be written with one request.", server.getRequestCount(), 1);
+		assertTrue("Coil 99 must stay set.", server.coils[99]);
+		for (int i = 100; i < 900; i++)
+			assertFalse("Coil " + i + " must be reset.", server.coils[i]);
+		assertTrue("Coil 900 must stay set.", server.coils[900]);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test002BitSetPattern() {
+		BitSet bits = new BitSet();
+		ModbusTcpClient myClient = new MyClient(0, "FC15002");
+
+		for (int i = 0; i < 21; i++)
+			if (i % 3 == 0)
+				bits.set(i);
+		bits.set(21); // beyond count, must not be written
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("I cannot write coils.", myClient.mbtcWriteCoils(5, bits, 21, 0), ModbusTcpClient.RET_OK);
+		for (int i = 0; i < 21; i++)
+			assertEquals("Bad state of coil " + (5 + i), server.coils[5 + i], i % 3 == 0);
+		assertTrue("Coil after the range must keep its state.", server.coils[26]);
+
+		boolean[] readBack = myClient.mbtcReadCoils(5, 21, 0);
+		for (int i = 0; i < 21; i++)
+			assertEquals("Bad state of read back coil " + (5 + i), readBack[i], i % 3 == 0);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test003LongArrayInChunks() {
+		int count = 4000; // 1968 + 1968 + 64
+		long[] words = new long[(count + 63) / 64];
+		ModbusTcpClient myClient = new MyClient(0, "FC15003");
+
+		for (int i = 0; i < count; i++)
+			if (Integer.bitCount(i) % 2 == 0)
+				words[i / 64] |= 1L << (i % 64);
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("I cannot write coils.", myClient.mbtcWriteCoils(0, words, count, 0), ModbusTcpClient.RET_OK);
+		assertEquals("Bad number of requests.", server.getRequestCount(), 3);
+		for (int i = 0; i < count; i++)
+			assertEquals("Bad state of coil " + i, server.coils[i], Integer.bitCount(i) % 2 == 0);
+		assertTrue("Coil after the range must keep its state.", server.coils[count]);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test004PipelinedChunks() {
+		int count = 1968 * 4;
+		BitSet bits = new BitSet();
+		ModbusTcpClient myClient = new MyClient(0, "FC15004");
+
+		bits.set(0, count);
+		bits.clear(1967);
+		bits.clear(1968);
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 2000, 1000, 1, 1, 4);
+		assertEquals("I cannot connect.", myClient.mbtcConnect(), ModbusTcpClient.RET_OK);
+		for (int i = 0; i < count; i++)
+			server.coils[i] = false;
+
+		server.setReorderResponses(true);
+		server.delayResponses(4, 300);
+		long start = System.currentTimeMillis();
+		assertEquals("I cannot write coils.", myClient.mbtcWriteCoils(0, bits, count, 0), ModbusTcpClient.RET_OK);
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue("Chunks were not pipelined, it took " + elapsed + " ms", elapsed < 800);
+		assertEquals("Chunks were sent more than once.", server.getRequestCount(), 4);
+		for (int i = 0; i < count; i++)
+			assertEquals("Bad state of coil " + i, server.coils[i], i != 1967 && i != 1968);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test005RangeChecks() {
+		ModbusTcpClient myClient = new MyClient(0, "FC15005");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("Coils beyond 65535 must be rejected.", myClient.mbtcWriteCoils(65530, new BitSet(), 7, 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Count 0 must be rejected.", myClient.mbtcWriteCoils(0, new BitSet(), 0, 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Too short array must be rejected.", myClient.mbtcWriteCoils(0, new long[1], 65, 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Null must be rejected.", myClient.mbtcWriteCoils(0, (BitSet) null, 1, 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Nothing must be sent.", server.getRequestCount(), 0);
+		assertEquals("Last coils must be writable.", myClient.mbtcWriteCoils(65530, new long[] { 0x3FL }, 6, 0), ModbusTcpClient.RET_OK);
+		assertTrue("Coil 65535 must be set.", server.coils[65535]);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test006NoChunkIsSentAfterTheFailedOne() {
+		int count = 1968 * 5;
+		ModbusTcpClient myClient = new MyClient(0, "FC15006");
+
+		for (int i = 0; i < count; i++)
+			server.coils[i] = true;
+		server.illegalCoils.set(1968 + 5);
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 2000, 1000, 1, 1, 2);
+		assertEquals("Exception response expected.", myClient.mbtcWriteCoils(0, new BitSet(), count, 0), ModbusTcpClient.RET_ERRXRE);
+
+		// chunk 1 failed, chunk 2 was in flight already (window 2), chunks 3 and 4 were never sent
+		assertEquals("Chunks were sent after the failed one.", server.getRequestCount(), 3);
+		assertEquals("Chunk before the failed one must be written.", server.coils[1967], false);
+		for (int i = 3 * 1968; i < count; i++)
+			assertTrue("Coil " + i + " of an unsent chunk was reset.", server.coils[i]);
+		myClient.mbtcDisconnect();
+	}
+}
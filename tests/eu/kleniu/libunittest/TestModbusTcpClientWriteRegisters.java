@@ -0,0 +1,124 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusTcpClient;
+
+public class TestModbusTcpClientWriteRegisters {
+
+	ModbusTestServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void test001WriteRecipeInChunks() {
+		int retVal = 0;
+		int[] recipe = new int[300];
+		ModbusTcpClient myClient = new MyClient(0, "FC16001");
+
+		for (int i = 0; i < recipe.length; i++)
+			recipe[i] = 7 * i + 1;
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		retVal = myClient.mbtcWriteRegisters(1000, recipe, 0);
+		assertEquals("I cannot write registers.", retVal, ModbusTcpClient.RET_OK);
+		// 123 + 123 + 54
+		assertEquals("Bad number of requests.", server.getRequestCount(), 3);
+		for (int i = 0; i < recipe.length; i++)
+			assertEquals("Bad value of register " + (1000 + i), server.holdingRegisters[1000 + i], 7 * i + 1);
+		assertEquals("Register after the recipe was written.", server.holdingRegisters[1300], 0);
+
+		int[] readBack = myClient.mbtcReadRegisters(1120, 10, 0);
+		for (int i = 0; i < 10; i++)
+			assertEquals("Bad value of read back register " + (1120 + i), readBack[i], 7 * (120 + i) + 1);
+
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test002WriteShortValues() {
+		short[] values = { -1, 0, 1, Short.MIN_VALUE, Short.MAX_VALUE };
+		ModbusTcpClient myClient = new MyClient(0, "FC16002");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("I cannot write registers.", myClient.mbtcWriteRegisters(10, values, 0), ModbusTcpClient.RET_OK);
+		assertEquals("Bad value of register 10", server.holdingRegisters[10], 0xFFFF);
+		assertEquals("Bad value of register 12", server.holdingRegisters[12], 1);
+		assertEquals("Bad value of register 13", server.holdingRegisters[13], 0x8000);
+		assertEquals("Bad value of register 14", server.holdingRegisters[14], 0x7FFF);
+		assertEquals("Bad number of requests.", server.getRequestCount(), 1);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test003ChunksArePipelined() {
+		int[] recipe = new int[600];
+		ModbusTcpClient myClient = new MyClient(0, "FC16003");
+
+		for (int i = 0; i < recipe.length; i++)
+			recipe[i] = i;
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 2000, 1000, 1, 1, 8);
+		assertEquals("I cannot connect.", myClient.mbtcConnect(), ModbusTcpClient.RET_OK);
+
+		// slow PLC - one by one 5 chunks would take 5 x 300 ms
+		server.setReorderResponses(true);
+		server.delayResponses(5, 300);
+		long start = System.currentTimeMillis();
+		assertEquals("I cannot write registers.", myClient.mbtcWriteRegisters(0, recipe, 0), ModbusTcpClient.RET_OK);
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue("Chunks were not pipelined, it took " + elapsed + " ms", elapsed < 900);
+		assertEquals("Chunks were sent more than once.", server.getRequestCount(), 5);
+		for (int i = 0; i < recipe.length; i++)
+			assertEquals("Bad value of register " + i, server.holdingRegisters[i], i);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test004RangeChecks() {
+		ModbusTcpClient myClient = new MyClient(0, "FC16004");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertEquals("Registers beyond 65535 must be rejected.", myClient.mbtcWriteRegisters(65500, new int[37], 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Negative address must be rejected.", myClient.mbtcWriteRegisters(-1, new int[1], 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Empty array must be rejected.", myClient.mbtcWriteRegisters(0, new short[0], 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Null must be rejected.", myClient.mbtcWriteRegisters(0, (int[]) null, 0), ModbusTcpClient.RET_ERRRAN);
+		assertEquals("Nothing must be sent.", server.getRequestCount(), 0);
+		assertEquals("Last register must be writable.", myClient.mbtcWriteRegisters(65535, new int[] { 5 }, 0), ModbusTcpClient.RET_OK);
+		assertEquals("Bad value of register 65535", server.holdingRegisters[65535], 5);
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test005NoChunkIsSentAfterTheFailedOne() {
+		int[] recipe = new int[615];
+		ModbusTcpClient myClient = new MyClient(0, "FC16005");
+
+		for (int i = 0; i < recipe.length; i++)
+			recipe[i] = i + 1;
+		server.illegalRegisters.set(130);
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 2000, 1000, 1, 1, 2);
+		assertEquals("Exception response expected.", myClient.mbtcWriteRegisters(0, recipe, 0), ModbusTcpClient.RET_ERRXRE);
+
+		// chunk 1 failed, chunk 2 was in flight already (window 2), chunks 3 and 4 were never sent
+		assertEquals("Chunks were sent after the failed one.", server.getRequestCount(), 3);
+		assertEquals("Chunk before the failed one must be written.", server.holdingRegisters[122], 123);
+		for (int i = 3 * 123; i < recipe.length; i++)
+			assertEquals("Register " + i + " of an unsent chunk was written.", server.holdingRegisters[i], 0);
+		myClient.mbtcDisconnect();
+	}
+}
@@ -0,0 +1,136 @@
+package eu.kleniu.libunittest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.kleniu.modbuslib.ModbusTcpClient;
+import eu.kleniu.modbuslib.ModbusTcpConcurrentClient;
+
+public class TestModbusTcpConcurrentClient {
+
+	ModbusTestServer server;
+
+	static class MyConcurrentClient extends ModbusTcpConcurrentClient {
+		String tag;
+
+		MyConcurrentClient(int debugLevel, String tag) {
+			super(debugLevel);
+			this.tag = tag;
+		}
+
+		@Override
+		public void displayLog(String debMsg) {
+			System.out.println(tag + ": " + debMsg);
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ModbusTestServer();
+		for (int i = 0; i < 2000; i++)
+			server.holdingRegisters[i] = i + 3;
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	private List<Thread> runThreads(int count, final Runnable task) {
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < count; t++) {
+			Thread thread = new Thread(task);
+			threads.add(thread);
+			thread.start();
+		}
+		return threads;
+	}
+
+	private void joinThreads(List<Thread> threads) throws InterruptedException {
+		for (Thread thread : threads)
+			thread.join(30000);
+	}
+
+	@Test
+	public void test001ManyThreadsOneConnection() throws Exception {
+		final ModbusTcpConcurrentClient myClient = new MyConcurrentClient(0, "CONC001");
+		final AtomicInteger errors = new AtomicInteger();
+		final AtomicInteger threadNo = new AtomicInteger();
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		joinThreads(runThreads(16, new Runnable() {
+			@Override
+			public void run() {
+				int t = threadNo.getAndIncrement();
+				int[] registers = new int[5];
+				for (int i = 0; i < 300; i++) {
+					int address = t * 100 + (i % 50);
+					if (myClient.mbtcReadRegisters(address, 5, 0, registers) != ModbusTcpClient.RET_OK || registers[0] != address + 3)
+						errors.incrementAndGet();
+					if (myClient.mbtcWriteSingleRegister(3000 + t, i, 0) != ModbusTcpClient.RET_OK)
+						errors.incrementAndGet();
+				}
+			}
+		}));
+
+		assertEquals("Some requests failed or got wrong response.", errors.get(), 0);
+		assertEquals("Requests were retried.", server.getRequestCount(), 16 * 600);
+		assertEquals("More than one connection was used.", server.getConnectionCount(), 1);
+		for (int t = 0; t < 16; t++)
+			assertEquals("Bad value of register " + (3000 + t), server.holdingRegisters[3000 + t], 299);
+
+		assertEquals("I cannot disconnect.", myClient.mbtcDisconnect(), ModbusTcpClient.RET_OK);
+	}
+
+	@Test
+	public void test002RequestsOfManyThreadsArePipelined() throws Exception {
+		final ModbusTcpConcurrentClient myClient = new MyConcurrentClient(0, "CONC002");
+		final AtomicInteger errors = new AtomicInteger();
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort(), 3, 2, 2000, 1000, 1, 1, 8);
+		assertEquals("I cannot connect.", myClient.mbtcConnect(), ModbusTcpClient.RET_OK);
+
+		// slow PLC - one by one it would take 8 x 300 ms
+		server.delayResponses(8, 300);
+		long start = System.currentTimeMillis();
+		joinThreads(runThreads(8, new Runnable() {
+			@Override
+			public void run() {
+				if (myClient.mbtcReadCoils(0, 16, 0) == null)
+					errors.incrementAndGet();
+			}
+		}));
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertEquals("Some requests failed.", errors.get(), 0);
+		assertTrue("Requests were not pipelined, it took " + elapsed + " ms", elapsed < 1200);
+		assertEquals("Requests were retried.", server.getRequestCount(), 8);
+
+		myClient.mbtcDisconnect();
+	}
+
+	@Test
+	public void test003UsableAfterDisconnect() {
+		ModbusTcpConcurrentClient myClient = new MyConcurrentClient(0, "CONC003");
+
+		myClient.mbtcSetup("127.0.0.1", server.getPort());
+		assertNotNull("I cannot read registers.", myClient.mbtcReadRegisters(0, 1, 0));
+		assertEquals("I cannot disconnect.", myClient.mbtcDisconnect(), ModbusTcpClient.RET_OK);
+		assertEquals("Second disconnect must report no connection.", myClient.mbtcDisconnect(), ModbusTcpClient.RET_NOTCON);
+		int[] registers = myClient.mbtcReadRegisters(10, 1, 0);
+		assertNotNull("I cannot read registers after disconnect.", registers);
+		assertEquals("Bad value of register 10", registers[0], 13);
+		assertEquals("Out of range read must fail.", myClient.mbtcReadRegisters(65500, 37, 0, new int[37]), ModbusTcpClient.RET_ERRRAN);
+		myClient.mbtcDisconnect();
+	}
+}